@@ -0,0 +1,39 @@
+import { type NextRequest, NextResponse } from "next/server"
+
+// Spring Boot API URL
+const prod = "https://pdf-compressor-bprg.onrender.com/api"
+const local = "http://localhost:8080/api"
+const SPRING_BOOT_API = prod
+
+export async function POST(request: NextRequest) {
+  try {
+    const formData = await request.formData()
+
+    // Forward the request to Spring Boot; compressionLevels is a comma-separated list such as "20,50,80"
+    const response = await fetch(`${SPRING_BOOT_API}/compress/variants`, {
+      method: "POST",
+      body: formData,
+    })
+
+    if (!response.ok) {
+      const errorData = await response.json()
+      return NextResponse.json({ error: errorData.message || "Compression failed" }, { status: response.status })
+    }
+
+    const data = await response.json()
+
+    // Transform the response to match our frontend expectations
+    return NextResponse.json({
+      success: data.success,
+      originalSize: data.originalSize,
+      variants: data.variants.map((variant: { compressionLevel: number; fileName: string; compressedSize: number }) => ({
+        compressionLevel: variant.compressionLevel,
+        downloadUrl: `/api/download?file=${variant.fileName}`,
+        compressedSize: variant.compressedSize,
+      })),
+    })
+  } catch (error) {
+    console.error("Error processing PDF:", error)
+    return NextResponse.json({ error: "Failed to process PDF" }, { status: 500 })
+  }
+}
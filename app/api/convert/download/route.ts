@@ -1,4 +1,5 @@
 import { type NextRequest, NextResponse } from "next/server"
+import { proxyDownload } from "@/lib/download"
 
 const prod = "https://pdf-compressor-bprg.onrender.com/api/convert"
 const local = "http://localhost:8080/api/convert"
@@ -13,16 +14,6 @@ export async function GET(request: NextRequest) {
       return NextResponse.json({ error: "No file specified" }, { status: 400 })
     }
 
-    // Forward the request to Spring Boot
-    const response = await fetch(`${SPRING_BOOT_API}/download/${fileName}`)
-
-    if (!response.ok) {
-      return NextResponse.json({ error: "File not found" }, { status: response.status })
-    }
-
-    // Get the file content
-    const fileBuffer = await response.arrayBuffer()
-
     // Determine content type based on file extension
     let contentType = "application/octet-stream"
     if (fileName.endsWith(".pdf")) {
@@ -31,15 +22,8 @@ export async function GET(request: NextRequest) {
       contentType = "application/vnd.openxmlformats-officedocument.wordprocessingml.document"
     }
 
-    // Set appropriate headers for file download
-    const headers = new Headers()
-    headers.set("Content-Disposition", `attachment; filename=${fileName}`)
-    headers.set("Content-Type", contentType)
-
-    return new NextResponse(fileBuffer, {
-      status: 200,
-      headers,
-    })
+    // Forward the request to Spring Boot, passing range and cache validator headers through
+    return await proxyDownload(request, `${SPRING_BOOT_API}/download/${fileName}`, fileName, contentType)
   } catch (error) {
     console.error("Error downloading file:", error)
     return NextResponse.json({ error: "Failed to download file" }, { status: 500 })
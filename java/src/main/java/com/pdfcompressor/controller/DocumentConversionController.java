@@ -2,16 +2,14 @@ package com.pdfcompressor.controller;
 
 import com.pdfcompressor.model.ConversionResponse;
 import com.pdfcompressor.service.DocumentConversionService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
@@ -22,10 +20,12 @@ import java.util.Map;
 public class DocumentConversionController {
 
     private final DocumentConversionService documentConversionService;
+    private final FileDownloadHandler fileDownloadHandler;
 
     @Autowired
-    public DocumentConversionController(DocumentConversionService documentConversionService) {
+    public DocumentConversionController(DocumentConversionService documentConversionService, FileDownloadHandler fileDownloadHandler) {
         this.documentConversionService = documentConversionService;
+        this.fileDownloadHandler = fileDownloadHandler;
     }
 
     @PostMapping("/pdf-to-word")
@@ -91,32 +91,22 @@ public class DocumentConversionController {
     }
 
     @GetMapping("/download/{fileName:.+}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName) {
-        try {
-            Path filePath = documentConversionService.getConvertedFilePath(fileName);
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists()) {
-                // Determine content type based on file extension
-                String contentType;
-                if (fileName.endsWith(".pdf")) {
-                    contentType = "application/pdf";
-                } else if (fileName.endsWith(".docx")) {
-                    contentType = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
-                } else {
-                    contentType = "application/octet-stream";
-                }
-                
-                return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                    .body(resource);
-            } else {
-                return ResponseEntity.notFound().build();
-            }
-        } catch (MalformedURLException e) {
-            return ResponseEntity.badRequest().build();
+    public void downloadFile(@PathVariable String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Path filePath = documentConversionService.getConvertedFilePath(fileName);
+        
+        // Determine content type based on file extension
+        String contentType;
+        if (fileName.endsWith(".pdf")) {
+            contentType = "application/pdf";
+        } else if (fileName.endsWith(".docx")) {
+            contentType = "application/vnd.openxmlformats-officedocument.wordprocessingml.document";
+        } else {
+            contentType = "application/octet-stream";
         }
+        
+        // Serves byte ranges and answers conditional requests from the content hash
+        fileDownloadHandler.serve(filePath, contentType, fileName, request, response);
     }
     
     @DeleteMapping("/delete/{fileName:.+}")
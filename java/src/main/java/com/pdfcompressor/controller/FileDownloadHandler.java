@@ -0,0 +1,298 @@
+package com.pdfcompressor.controller;
+
+import com.pdfcompressor.service.ContentHashService;
+import com.pdfcompressor.service.PreviewService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+// Serves output files for the download endpoints with byte ranges (single and multipart),
+// strong ETags derived from the content hash, and conditional GET support. Previews of the same
+// files are served inline the same way
+@Component
+public class FileDownloadHandler {
+
+    // Tomcat hands the file to the kernel (sendfile) when these request attributes are set
+    private static final String SENDFILE_SUPPORTED = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+    // Below this size the sendfile setup costs more than copying the bytes
+    private static final long SENDFILE_THRESHOLD = 48 * 1024;
+
+    // More ranges than this in one request are answered with the full file
+    private static final int MAX_RANGES = 32;
+
+    private final ContentHashService contentHashService;
+    private final PreviewService previewService;
+
+    @Autowired
+    public FileDownloadHandler(ContentHashService contentHashService, PreviewService previewService) {
+        this.contentHashService = contentHashService;
+        this.previewService = previewService;
+    }
+
+    public void serve(Path filePath, String contentType, String fileName,
+                      HttpServletRequest request, HttpServletResponse response) throws IOException {
+        serveFile(filePath, contentType, "attachment; filename=\"" + fileName + "\"", request, response);
+    }
+
+    public void serveInline(Path filePath, String contentType,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        serveFile(filePath, contentType, null, request, response);
+    }
+
+    // A thumbnail of one page of the file that fits in size x size pixels
+    public void servePreview(Path filePath, int page, int size,
+                             HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!Files.isRegularFile(filePath)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        Path preview;
+        try {
+            preview = previewService.getPreview(filePath, page, size);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, e.getMessage());
+            return;
+        }
+        serveInline(preview, PreviewService.contentType(preview), request, response);
+    }
+
+    private void serveFile(Path filePath, String contentType, String contentDisposition,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        if (!Files.isRegularFile(filePath)) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        long length = Files.size(filePath);
+        long lastModified = Files.getLastModifiedTime(filePath).toMillis();
+        String etag = "\"" + contentHashService.sha256(filePath) + "\"";
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.setHeader(HttpHeaders.ETAG, etag);
+        response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+        if (contentDisposition != null) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, contentDisposition);
+        }
+
+        // Conditional GET: the client already has this exact content
+        if (isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        List<long[]> ranges = null;
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader != null && isIfRangeSatisfied(request, etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, length);
+            if (ranges != null && ranges.isEmpty()) {
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+                return;
+            }
+        }
+
+        boolean headOnly = "HEAD".equalsIgnoreCase(request.getMethod());
+        if (ranges == null || ranges.size() > MAX_RANGES) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(contentType);
+            sendRange(filePath, 0, length, headOnly, request, response);
+        } else if (ranges.size() == 1) {
+            long[] range = ranges.get(0);
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + length);
+            sendRange(filePath, range[0], range[1] - range[0] + 1, headOnly, request, response);
+        } else {
+            sendMultipart(filePath, contentType, length, ranges, headOnly, response);
+        }
+    }
+
+    private void sendRange(Path filePath, long start, long count, boolean headOnly,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentLengthLong(count);
+        if (headOnly) {
+            return;
+        }
+
+        if (count >= SENDFILE_THRESHOLD && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED))) {
+            // Zero-copy: the connector streams the file region straight to the socket
+            request.setAttribute(SENDFILE_FILENAME, filePath.toAbsolutePath().normalize().toString());
+            request.setAttribute(SENDFILE_START, start);
+            request.setAttribute(SENDFILE_END, start + count);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            OutputStream out = response.getOutputStream();
+            transfer(channel, start, count, Channels.newChannel(out));
+            out.flush();
+        }
+    }
+
+    private void sendMultipart(Path filePath, String contentType, long length, List<long[]> ranges,
+                               boolean headOnly, HttpServletResponse response) throws IOException {
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (long[] range : ranges) {
+            String partHeader = "\r\n--" + boundary + "\r\n"
+                + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                + HttpHeaders.CONTENT_RANGE + ": bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+            byte[] headerBytes = partHeader.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(headerBytes);
+            contentLength += headerBytes.length + (range[1] - range[0] + 1);
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (headOnly) {
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            OutputStream out = response.getOutputStream();
+            WritableByteChannel target = Channels.newChannel(out);
+            for (int i = 0; i < ranges.size(); i++) {
+                long[] range = ranges.get(i);
+                out.write(partHeaders.get(i));
+                transfer(channel, range[0], range[1] - range[0] + 1, target);
+            }
+            out.write(closing);
+            out.flush();
+        }
+    }
+
+    private void transfer(FileChannel channel, long start, long count, WritableByteChannel target) throws IOException {
+        long position = start;
+        long remaining = count;
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                throw new IOException("File ended before the requested range was sent");
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            // Weak comparison, as required for If-None-Match
+            for (String candidate : ifNoneMatch.split(",")) {
+                String tag = candidate.trim();
+                if (tag.equals("*") || stripWeakPrefix(tag).equals(etag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince = parseDateHeader(request, HttpHeaders.IF_MODIFIED_SINCE);
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            // Strong comparison: a weak validator never matches
+            return ifRange.equals(etag);
+        }
+        long date = parseDateHeader(request, HttpHeaders.IF_RANGE);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private long parseDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private String stripWeakPrefix(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    // Returns null when the header is malformed (and must be ignored), or an empty list when
+    // no range can be satisfied; overlapping and adjacent ranges are merged
+    private List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) {
+            return null;
+        }
+
+        List<long[]> ranges = new ArrayList<>();
+        try {
+            for (String part : header.substring(6).split(",")) {
+                String spec = part.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+
+                if (first.isEmpty()) {
+                    // Suffix range: the last N bytes
+                    if (last.isEmpty()) {
+                        return null;
+                    }
+                    long suffixLength = Long.parseLong(last);
+                    if (suffixLength > 0 && length > 0) {
+                        ranges.add(new long[]{Math.max(0, length - suffixLength), length - 1});
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? length - 1 : Long.parseLong(last);
+                    if (!last.isEmpty() && end < start) {
+                        return null;
+                    }
+                    if (start < length) {
+                        ranges.add(new long[]{start, Math.min(end, length - 1)});
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] range : ranges) {
+            long[] previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range[0] <= previous[1] + 1) {
+                previous[1] = Math.max(previous[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+}
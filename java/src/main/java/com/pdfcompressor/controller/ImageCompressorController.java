@@ -1,19 +1,21 @@
 package com.pdfcompressor.controller;
 
 import com.pdfcompressor.model.CompressionResponse;
+import com.pdfcompressor.model.ImageCompressionOptions;
+import com.pdfcompressor.model.ResponsiveImageResponse;
+import com.pdfcompressor.model.ResponsiveImageVariant;
 import com.pdfcompressor.service.ImageCompressorService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -21,17 +23,26 @@ import java.util.Map;
 @CrossOrigin(origins = "*") // In production, restrict this to your frontend URL
 public class ImageCompressorController {
 
+    private static final int MAX_RESPONSIVE_WIDTHS = 8;
+
     private final ImageCompressorService imageCompressorService;
+    private final FileDownloadHandler fileDownloadHandler;
 
     @Autowired
-    public ImageCompressorController(ImageCompressorService imageCompressorService) {
+    public ImageCompressorController(ImageCompressorService imageCompressorService, FileDownloadHandler fileDownloadHandler) {
         this.imageCompressorService = imageCompressorService;
+        this.fileDownloadHandler = fileDownloadHandler;
     }
 
     @PostMapping("/compress")
     public ResponseEntity<CompressionResponse> compressImage(
             @RequestParam("file") MultipartFile file,
-            @RequestParam("compressionLevel") int compressionLevel) {
+            @RequestParam("compressionLevel") int compressionLevel,
+            @RequestParam(value = "maxWidth", defaultValue = "0") int maxWidth,
+            @RequestParam(value = "maxHeight", defaultValue = "0") int maxHeight,
+            @RequestParam(value = "lossless", defaultValue = "false") boolean lossless,
+            @RequestParam(value = "targetSsim", defaultValue = "0") double targetSsim,
+            @RequestParam(value = "outputFormat", required = false) String outputFormat) {
         
         try {
             // Validate file
@@ -39,11 +50,26 @@ public class ImageCompressorController {
                 return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0, "Invalid file"));
             }
 
+            // Validate output format
+            if (outputFormat != null && !outputFormat.isBlank() && !imageCompressorService.isSupportedOutputFormat(outputFormat)) {
+                return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0,
+                    "Unsupported output format: " + outputFormat));
+            }
+
             // Convert compression level to quality (0-1)
             float quality = Math.max(0.1f, 1 - (compressionLevel / 100.0f));
             
+            ImageCompressionOptions options = new ImageCompressionOptions(quality);
+            options.setMaxWidth(maxWidth);
+            options.setMaxHeight(maxHeight);
+            options.setLossless(lossless);
+            // A target SSIM (e.g. 0.95) overrides compressionLevel
+            options.setTargetSsim(targetSsim);
+            // e.g. "webp"; lossless then picks lossless WebP
+            options.setOutputFormat(outputFormat);
+
             // Compress the image
-            String fileName = imageCompressorService.compressImage(file, quality);
+            String fileName = imageCompressorService.compressImage(file, options);
             
             // Get the size of the original and compressed files
             long originalSize = imageCompressorService.getOriginalFileSize(fileName);
@@ -66,28 +92,69 @@ public class ImageCompressorController {
         }
     }
 
-    @GetMapping("/download/{fileName:.+}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName) {
+    @PostMapping("/responsive")
+    public ResponseEntity<ResponsiveImageResponse> createResponsiveImages(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam("compressionLevel") int compressionLevel,
+            @RequestParam(value = "widths", defaultValue = "320,640,960,1280,1920") List<Integer> widths) {
+
         try {
-            Path filePath = imageCompressorService.getCompressedFilePath(fileName);
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists()) {
-                // Determine the content type based on file extension
-                String contentType = determineContentType(fileName);
-                
-                return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                    .body(resource);
-            } else {
-                return ResponseEntity.notFound().build();
+            // Validate file
+            if (file.isEmpty() || !file.getContentType().startsWith("image/")) {
+                return ResponseEntity.badRequest().body(new ResponsiveImageResponse(false, 0, null, "Invalid file"));
+            }
+
+            // Validate widths
+            if (widths.isEmpty() || widths.size() > MAX_RESPONSIVE_WIDTHS
+                    || widths.stream().anyMatch(width -> width == null || width <= 0)) {
+                return ResponseEntity.badRequest().body(new ResponsiveImageResponse(false, 0, null,
+                    "Provide between 1 and " + MAX_RESPONSIVE_WIDTHS + " positive widths"));
             }
-        } catch (MalformedURLException e) {
-            return ResponseEntity.badRequest().build();
+
+            // Convert compression level to quality (0-1)
+            float quality = Math.max(0.1f, 1 - (compressionLevel / 100.0f));
+
+            // Decode once and encode every width
+            List<ResponsiveImageVariant> variants = imageCompressorService.compressResponsive(file, widths, quality);
+
+            long originalSize = imageCompressorService.getOriginalFileSize(variants.get(0).getFileName());
+
+            return ResponseEntity.ok(new ResponsiveImageResponse(
+                true,
+                originalSize,
+                variants,
+                "Responsive images created successfully"
+            ));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError()
+                .body(new ResponsiveImageResponse(false, 0, null, "Error: " + e.getMessage()));
         }
     }
+
+    @GetMapping("/download/{fileName:.+}")
+    public void downloadFile(@PathVariable String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Path filePath = imageCompressorService.getCompressedFilePath(fileName);
+        
+        // Determine the content type based on file extension
+        String contentType = determineContentType(fileName);
+        
+        // Serves byte ranges and answers conditional requests from the content hash
+        fileDownloadHandler.serve(filePath, contentType, fileName, request, response);
+    }
     
+    @GetMapping("/preview/{fileName:.+}")
+    public void previewFile(@PathVariable String fileName,
+                            @RequestParam(value = "page", defaultValue = "1") int page,
+                            @RequestParam(value = "size", defaultValue = "256") int size,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path filePath = imageCompressorService.getCompressedFilePath(fileName);
+
+        // A cached thumbnail of the page instead of the whole file
+        fileDownloadHandler.servePreview(filePath, page, size, request, response);
+    }
+
     @DeleteMapping("/delete/{fileName:.+}")
     public ResponseEntity<Map<String, Object>> deleteFile(@PathVariable String fileName) {
         Map<String, Object> response = new HashMap<>();
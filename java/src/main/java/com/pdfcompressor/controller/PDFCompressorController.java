@@ -1,20 +1,25 @@
 package com.pdfcompressor.controller;
 
 import com.pdfcompressor.model.CompressionResponse;
+import com.pdfcompressor.model.CompressionStrategy;
+import com.pdfcompressor.model.CompressionVariant;
+import com.pdfcompressor.model.PDFCleanupOptions;
+import com.pdfcompressor.model.PDFCompressionOptions;
+import com.pdfcompressor.model.PDFCompressionResult;
+import com.pdfcompressor.model.VariantCompressionResponse;
 import com.pdfcompressor.service.PDFCompressorService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @RestController
@@ -22,17 +27,26 @@ import java.util.Map;
 @CrossOrigin(origins = "*") // In production, restrict this to your frontend URL
 public class PDFCompressorController {
 
+    // Upper bound on the levels one variants request may ask for
+    private static final int MAX_VARIANTS = 10;
+
     private final PDFCompressorService pdfCompressorService;
+    private final FileDownloadHandler fileDownloadHandler;
 
     @Autowired
-    public PDFCompressorController(PDFCompressorService pdfCompressorService) {
+    public PDFCompressorController(PDFCompressorService pdfCompressorService, FileDownloadHandler fileDownloadHandler) {
         this.pdfCompressorService = pdfCompressorService;
+        this.fileDownloadHandler = fileDownloadHandler;
     }
 
     @PostMapping("/compress")
     public ResponseEntity<CompressionResponse> compressPDF(
             @RequestParam("file") MultipartFile file,
-            @RequestParam("compressionLevel") int compressionLevel) {
+            @RequestParam("compressionLevel") int compressionLevel,
+            @RequestParam(value = "linearize", defaultValue = "false") boolean linearize,
+            @RequestParam(value = "strategy", defaultValue = "auto") String strategy,
+            // Bound from removeThumbnails, removeEmbeddedFiles, ... removeStructureTree request parameters
+            @ModelAttribute PDFCleanupOptions cleanupOptions) {
         
         try {
             // Validate file
@@ -40,11 +54,25 @@ public class PDFCompressorController {
                 return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0, "Invalid file"));
             }
 
+            // Validate strategy (auto, raster or structural)
+            CompressionStrategy compressionStrategy;
+            try {
+                compressionStrategy = CompressionStrategy.valueOf(strategy.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0, "Invalid strategy"));
+            }
+
             // Convert compression level to quality (0-1)
-            float quality = Math.max(0.1f, 1 - (compressionLevel / 100.0f));
+            float quality = PDFCompressorService.qualityForCompressionLevel(compressionLevel);
+            
+            PDFCompressionOptions options = new PDFCompressionOptions(quality);
+            options.setLinearize(linearize);
+            options.setStrategy(compressionStrategy);
+            options.setCleanup(cleanupOptions);
             
             // Compress the PDF
-            String fileName = pdfCompressorService.compressPDF(file, quality);
+            PDFCompressionResult result = pdfCompressorService.compressPDF(file, options);
+            String fileName = result.getFileName();
             
             // Get the size of the original and compressed files
             long originalSize = pdfCompressorService.getOriginalFileSize(fileName);
@@ -58,6 +86,7 @@ public class PDFCompressorController {
                 compressedSize,
                 "PDF compressed successfully"
             );
+            response.setCleanup(result.getCleanup());
             
             return ResponseEntity.ok(response);
         } catch (Exception e) {
@@ -67,25 +96,82 @@ public class PDFCompressorController {
         }
     }
 
-    @GetMapping("/download/{fileName:.+}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName) {
+    @PostMapping("/compress/variants")
+    public ResponseEntity<VariantCompressionResponse> compressPDFVariants(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam("compressionLevels") List<Integer> compressionLevels,
+            @RequestParam(value = "linearize", defaultValue = "false") boolean linearize,
+            @RequestParam(value = "strategy", defaultValue = "auto") String strategy,
+            // Same cleanup parameters as a single compression
+            @ModelAttribute PDFCleanupOptions cleanupOptions) {
+
         try {
-            Path filePath = pdfCompressorService.getCompressedFilePath(fileName);
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists()) {
-                return ResponseEntity.ok()
-                    .contentType(MediaType.APPLICATION_PDF)
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                    .body(resource);
-            } else {
-                return ResponseEntity.notFound().build();
+            // Validate file
+            if (file.isEmpty() || !file.getContentType().equals("application/pdf")) {
+                return ResponseEntity.badRequest().body(new VariantCompressionResponse(false, 0, null, "Invalid file"));
+            }
+
+            // Validate compression levels
+            if (compressionLevels.isEmpty() || compressionLevels.size() > MAX_VARIANTS
+                    || compressionLevels.stream().anyMatch(level -> level == null || level < 0 || level > 100)) {
+                return ResponseEntity.badRequest().body(new VariantCompressionResponse(false, 0, null,
+                    "Provide between 1 and " + MAX_VARIANTS + " compression levels from 0 to 100"));
+            }
+
+            // Validate strategy (auto, raster or structural)
+            CompressionStrategy compressionStrategy;
+            try {
+                compressionStrategy = CompressionStrategy.valueOf(strategy.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(new VariantCompressionResponse(false, 0, null, "Invalid strategy"));
             }
-        } catch (MalformedURLException e) {
-            return ResponseEntity.badRequest().build();
+
+            // Quality is set per level; everything else applies to every variant
+            PDFCompressionOptions options = new PDFCompressionOptions(1.0f);
+            options.setLinearize(linearize);
+            options.setStrategy(compressionStrategy);
+            options.setCleanup(cleanupOptions);
+
+            // Render each page once and encode it at every requested level
+            List<CompressionVariant> variants = pdfCompressorService.compressPDFVariants(file, compressionLevels, options);
+
+            long originalSize = pdfCompressorService.getOriginalFileSize(variants.get(0).getFileName());
+
+            return ResponseEntity.ok(new VariantCompressionResponse(
+                true,
+                originalSize,
+                variants,
+                "PDF variants created successfully"
+            ));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError()
+                .body(new VariantCompressionResponse(false, 0, null, "Error: " + e.getMessage()));
         }
     }
+
+    @GetMapping("/download/{fileName:.+}")
+    public void downloadFile(@PathVariable String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Path filePath = pdfCompressorService.getCompressedFilePath(fileName);
+        
+        String contentType = MediaType.APPLICATION_PDF_VALUE;
+        
+        // Serves byte ranges and answers conditional requests from the content hash
+        fileDownloadHandler.serve(filePath, contentType, fileName, request, response);
+    }
     
+    @GetMapping("/preview/{fileName:.+}")
+    public void previewFile(@PathVariable String fileName,
+                            @RequestParam(value = "page", defaultValue = "1") int page,
+                            @RequestParam(value = "size", defaultValue = "256") int size,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path filePath = pdfCompressorService.getCompressedFilePath(fileName);
+
+        // A cached thumbnail of the page instead of the whole file
+        fileDownloadHandler.servePreview(filePath, page, size, request, response);
+    }
+
     @DeleteMapping("/delete/{fileName:.+}")
     public ResponseEntity<Map<String, Object>> deleteFile(@PathVariable String fileName) {
         Map<String, Object> response = new HashMap<>();
@@ -2,18 +2,17 @@ package com.pdfcompressor.controller;
 
 
 import com.pdfcompressor.model.CompressionResponse;
+import com.pdfcompressor.model.MediaProbeResponse;
+import com.pdfcompressor.model.VideoCompressionOptions;
 import com.pdfcompressor.service.VideoCompressorService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
@@ -24,16 +23,24 @@ import java.util.Map;
 public class VideoCompressorController {
 
     private final VideoCompressorService videoCompressorService;
+    private final FileDownloadHandler fileDownloadHandler;
 
     @Autowired
-    public VideoCompressorController(VideoCompressorService videoCompressorService) {
+    public VideoCompressorController(VideoCompressorService videoCompressorService, FileDownloadHandler fileDownloadHandler) {
         this.videoCompressorService = videoCompressorService;
+        this.fileDownloadHandler = fileDownloadHandler;
     }
 
     @PostMapping("/compress")
     public ResponseEntity<CompressionResponse> compressVideo(
             @RequestParam("file") MultipartFile file,
-            @RequestParam("compressionLevel") int compressionLevel) {
+            @RequestParam("compressionLevel") int compressionLevel,
+            @RequestParam(value = "maxWidth", defaultValue = "0") int maxWidth,
+            @RequestParam(value = "maxHeight", defaultValue = "0") int maxHeight,
+            @RequestParam(value = "maxFps", defaultValue = "0") double maxFps,
+            @RequestParam(value = "targetSize", defaultValue = "0") long targetSize,
+            @RequestParam(value = "targetBitrate", defaultValue = "0") int targetBitrate,
+            @RequestParam(value = "outputFormat", required = false) String outputFormat) {
         
         try {
             // Validate file
@@ -41,20 +48,39 @@ public class VideoCompressorController {
                 return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0, "Invalid file"));
             }
 
+            // Validate output format
+            if (outputFormat != null && !outputFormat.isBlank()
+                    && !videoCompressorService.isSupportedOutputFormat(outputFormat, file.getOriginalFilename())) {
+                return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0,
+                    "Unsupported output format: " + outputFormat));
+            }
+
+            VideoCompressionOptions options = new VideoCompressionOptions(compressionLevel);
+            // Frames are scaled down and dropped before they reach the encoder
+            options.setMaxWidth(maxWidth);
+            options.setMaxHeight(maxHeight);
+            options.setMaxFps(maxFps);
+            // Bytes or bits per second for the whole file; overrides compressionLevel's bitrate
+            options.setTargetSize(targetSize);
+            options.setTargetBitrate(targetBitrate);
+            // "hls" returns with the first segment while the rest is encoded; "fmp4" fragments the MP4
+            options.setOutputFormat(outputFormat == null || outputFormat.isBlank() ? null : outputFormat);
+
             // Compress the video
-            String fileName = videoCompressorService.compressVideo(file, compressionLevel);
+            String fileName = videoCompressorService.compressVideo(file, options);
             
             // Get the size of the original and compressed files
             long originalSize = videoCompressorService.getOriginalFileSize(fileName);
             long compressedSize = videoCompressorService.getCompressedFileSize(fileName);
             
             // Create response
+            boolean streaming = "hls".equalsIgnoreCase(outputFormat);
             CompressionResponse response = new CompressionResponse(
                 true,
                 fileName,
                 originalSize,
                 compressedSize,
-                "Video compressed successfully"
+                streaming ? "Encoding; play /api/video/stream/" + fileName + "/index.m3u8" : "Video compressed successfully"
             );
             
             return ResponseEntity.ok(response);
@@ -65,28 +91,104 @@ public class VideoCompressorController {
         }
     }
 
-    @GetMapping("/download/{fileName:.+}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName) {
+    @PostMapping("/trim")
+    public ResponseEntity<CompressionResponse> trimVideo(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam("start") double start,
+            @RequestParam(value = "end", defaultValue = "0") double end,
+            @RequestParam(value = "accurate", defaultValue = "false") boolean accurate) {
+
         try {
-            Path filePath = videoCompressorService.getCompressedFilePath(fileName);
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists()) {
-                // Determine the content type based on file extension
-                String contentType = determineContentType(fileName);
-                
-                return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                    .body(resource);
-            } else {
-                return ResponseEntity.notFound().build();
+            // Validate file
+            if (file.isEmpty() || !file.getContentType().startsWith("video/")) {
+                return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0, "Invalid file"));
+            }
+
+            // Validate the range; end 0 keeps the rest of the video
+            if (start < 0 || end < 0 || (end > 0 && end <= start)) {
+                return ResponseEntity.badRequest().body(new CompressionResponse(false, null, 0, 0,
+                    "Invalid range: " + start + " - " + end));
             }
-        } catch (MalformedURLException e) {
-            return ResponseEntity.badRequest().build();
+
+            // Copied from the keyframe at or before start unless accurate asks for the exact frames
+            String fileName = videoCompressorService.trimVideo(file, start, end, accurate);
+
+            // Get the size of the original and trimmed files
+            long originalSize = videoCompressorService.getOriginalFileSize(fileName);
+            long trimmedSize = videoCompressorService.getCompressedFileSize(fileName);
+
+            CompressionResponse response = new CompressionResponse(
+                true,
+                fileName,
+                originalSize,
+                trimmedSize,
+                "Video trimmed successfully"
+            );
+
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError()
+                .body(new CompressionResponse(false, null, 0, 0, "Error: " + e.getMessage()));
+        }
+    }
+
+    @PostMapping("/probe")
+    public ResponseEntity<MediaProbeResponse> probeVideo(@RequestParam("file") MultipartFile file) {
+        try {
+            // Validate file
+            if (file.isEmpty() || !file.getContentType().startsWith("video/")) {
+                return ResponseEntity.badRequest().body(new MediaProbeResponse(false, "Invalid file"));
+            }
+
+            // Reads the container headers only; nothing is decoded or stored
+            return ResponseEntity.ok(videoCompressorService.probe(file));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return ResponseEntity.internalServerError()
+                .body(new MediaProbeResponse(false, "Error: " + e.getMessage()));
         }
     }
+
+    @GetMapping("/download/{fileName:.+}")
+    public void downloadFile(@PathVariable String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Path filePath = videoCompressorService.getCompressedFilePath(fileName);
+        
+        // Determine the content type based on file extension
+        String contentType = determineContentType(fileName);
+        
+        // Serves byte ranges and answers conditional requests from the content hash
+        fileDownloadHandler.serve(filePath, contentType, fileName, request, response);
+    }
     
+    // The playlist and segments of an HLS output, available while it is still being encoded
+    @GetMapping("/stream/{streamName}/{fileName:.+}")
+    public void streamFile(@PathVariable String streamName, @PathVariable String fileName,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path filePath = videoCompressorService.getStreamFilePath(streamName, fileName);
+        if (filePath == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (fileName.endsWith(".m3u8")) {
+            // Grows until the encode finishes; revalidated against its ETag on every reload
+            response.setHeader("Cache-Control", "no-cache");
+        }
+        fileDownloadHandler.serveInline(filePath, determineContentType(fileName), request, response);
+    }
+
+    @GetMapping("/preview/{fileName:.+}")
+    public void previewFile(@PathVariable String fileName,
+                            @RequestParam(value = "page", defaultValue = "1") int page,
+                            @RequestParam(value = "size", defaultValue = "256") int size,
+                            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        Path filePath = videoCompressorService.getCompressedFilePath(fileName);
+
+        // A cached thumbnail of the page instead of the whole file
+        fileDownloadHandler.servePreview(filePath, page, size, request, response);
+    }
+
     @DeleteMapping("/delete/{fileName:.+}")
     public ResponseEntity<Map<String, Object>> deleteFile(@PathVariable String fileName) {
         Map<String, Object> response = new HashMap<>();
@@ -127,6 +229,10 @@ public class VideoCompressorController {
                 return "video/x-matroska";
             case "webm":
                 return "video/webm";
+            case "m3u8":
+                return "application/vnd.apple.mpegurl";
+            case "m4s":
+                return "video/iso.segment";
             default:
                 return "application/octet-stream";
         }
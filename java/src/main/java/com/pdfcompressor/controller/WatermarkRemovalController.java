@@ -2,16 +2,14 @@ package com.pdfcompressor.controller;
 
 import com.pdfcompressor.model.WatermarkRemovalResponse;
 import com.pdfcompressor.service.WatermarkRemovalService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 
-import java.net.MalformedURLException;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.Map;
@@ -22,10 +20,12 @@ import java.util.Map;
 public class WatermarkRemovalController {
 
     private final WatermarkRemovalService watermarkRemovalService;
+    private final FileDownloadHandler fileDownloadHandler;
 
     @Autowired
-    public WatermarkRemovalController(WatermarkRemovalService watermarkRemovalService) {
+    public WatermarkRemovalController(WatermarkRemovalService watermarkRemovalService, FileDownloadHandler fileDownloadHandler) {
         this.watermarkRemovalService = watermarkRemovalService;
+        this.fileDownloadHandler = fileDownloadHandler;
     }
 
     @PostMapping("/remove/image")
@@ -95,25 +95,15 @@ public class WatermarkRemovalController {
     }
 
     @GetMapping("/download/{fileName:.+}")
-    public ResponseEntity<Resource> downloadFile(@PathVariable String fileName) {
-        try {
-            Path filePath = watermarkRemovalService.getProcessedFilePath(fileName);
-            Resource resource = new UrlResource(filePath.toUri());
-            
-            if (resource.exists()) {
-                // Determine content type based on file extension
-                String contentType = determineContentType(fileName);
-                
-                return ResponseEntity.ok()
-                    .contentType(MediaType.parseMediaType(contentType))
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileName + "\"")
-                    .body(resource);
-            } else {
-                return ResponseEntity.notFound().build();
-            }
-        } catch (MalformedURLException e) {
-            return ResponseEntity.badRequest().build();
-        }
+    public void downloadFile(@PathVariable String fileName, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        Path filePath = watermarkRemovalService.getProcessedFilePath(fileName);
+        
+        // Determine content type based on file extension
+        String contentType = determineContentType(fileName);
+        
+        // Serves byte ranges and answers conditional requests from the content hash
+        fileDownloadHandler.serve(filePath, contentType, fileName, request, response);
     }
     
     @DeleteMapping("/delete/{fileName:.+}")
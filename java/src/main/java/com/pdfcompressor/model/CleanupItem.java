@@ -0,0 +1,38 @@
+package com.pdfcompressor.model;
+
+public class CleanupItem {
+    private String name;
+    private int count;
+    private long bytesSaved;
+
+    public CleanupItem(String name, int count, long bytesSaved) {
+        this.name = name;
+        this.count = count;
+        this.bytesSaved = bytesSaved;
+    }
+
+    // Getters and setters
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public void setCount(int count) {
+        this.count = count;
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved;
+    }
+
+    public void setBytesSaved(long bytesSaved) {
+        this.bytesSaved = bytesSaved;
+    }
+}
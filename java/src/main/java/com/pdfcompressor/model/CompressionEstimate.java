@@ -0,0 +1,60 @@
+package com.pdfcompressor.model;
+
+public class CompressionEstimate {
+    private int compressionLevel;
+    private String preset;
+    // "copy" or "re-encode"
+    private String videoAction;
+    private long estimatedSize;
+    // null until this node has measured a job with the same preset
+    private Double estimatedSeconds;
+
+    public CompressionEstimate(int compressionLevel, String preset, String videoAction, long estimatedSize, Double estimatedSeconds) {
+        this.compressionLevel = compressionLevel;
+        this.preset = preset;
+        this.videoAction = videoAction;
+        this.estimatedSize = estimatedSize;
+        this.estimatedSeconds = estimatedSeconds;
+    }
+
+    // Getters and setters
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public String getPreset() {
+        return preset;
+    }
+
+    public void setPreset(String preset) {
+        this.preset = preset;
+    }
+
+    public String getVideoAction() {
+        return videoAction;
+    }
+
+    public void setVideoAction(String videoAction) {
+        this.videoAction = videoAction;
+    }
+
+    public long getEstimatedSize() {
+        return estimatedSize;
+    }
+
+    public void setEstimatedSize(long estimatedSize) {
+        this.estimatedSize = estimatedSize;
+    }
+
+    public Double getEstimatedSeconds() {
+        return estimatedSeconds;
+    }
+
+    public void setEstimatedSeconds(Double estimatedSeconds) {
+        this.estimatedSeconds = estimatedSeconds;
+    }
+}
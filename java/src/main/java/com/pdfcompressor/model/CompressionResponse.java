@@ -1,11 +1,15 @@
 package com.pdfcompressor.model;
 
+import java.util.List;
+
 public class CompressionResponse {
     private boolean success;
     private String fileName;
     private long originalSize;
     private long compressedSize;
     private String message;
+    // Only set when the structural cleanup pass removed something
+    private List<CleanupItem> cleanup;
 
     public CompressionResponse(boolean success, String fileName, long originalSize, long compressedSize, String message) {
         this.success = success;
@@ -55,4 +59,12 @@ public class CompressionResponse {
     public void setMessage(String message) {
         this.message = message;
     }
+
+    public List<CleanupItem> getCleanup() {
+        return cleanup;
+    }
+
+    public void setCleanup(List<CleanupItem> cleanup) {
+        this.cleanup = cleanup;
+    }
 }
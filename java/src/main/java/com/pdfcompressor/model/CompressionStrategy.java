@@ -0,0 +1,10 @@
+package com.pdfcompressor.model;
+
+public enum CompressionStrategy {
+    // Sample a few pages, trial every candidate and run only the predicted winner
+    AUTO,
+    // Render pages to JPEG images
+    RASTER,
+    // Keep the PDF structure and rewrite it
+    STRUCTURAL
+}
@@ -0,0 +1,38 @@
+package com.pdfcompressor.model;
+
+public class CompressionVariant {
+    private int compressionLevel;
+    private String fileName;
+    private long compressedSize;
+
+    public CompressionVariant(int compressionLevel, String fileName, long compressedSize) {
+        this.compressionLevel = compressionLevel;
+        this.fileName = fileName;
+        this.compressedSize = compressedSize;
+    }
+
+    // Getters and setters
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public void setCompressedSize(long compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+}
@@ -0,0 +1,66 @@
+package com.pdfcompressor.model;
+
+public class ImageCompressionOptions {
+    private float quality;
+    // 0 for no limit
+    private int maxWidth;
+    private int maxHeight;
+    private boolean lossless;
+    // SSIM the output must reach; 0 uses quality as given
+    private double targetSsim;
+    // Format to convert to, e.g. "webp"; null keeps the upload's format
+    private String outputFormat;
+
+    public ImageCompressionOptions(float quality) {
+        this.quality = quality;
+    }
+
+    // Getters and setters
+    public float getQuality() {
+        return quality;
+    }
+
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public void setMaxWidth(int maxWidth) {
+        this.maxWidth = maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public void setMaxHeight(int maxHeight) {
+        this.maxHeight = maxHeight;
+    }
+
+    public boolean isLossless() {
+        return lossless;
+    }
+
+    public void setLossless(boolean lossless) {
+        this.lossless = lossless;
+    }
+
+    public double getTargetSsim() {
+        return targetSsim;
+    }
+
+    public void setTargetSsim(double targetSsim) {
+        this.targetSsim = targetSsim;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+}
@@ -0,0 +1,157 @@
+package com.pdfcompressor.model;
+
+import java.util.List;
+
+public class MediaProbeResponse {
+    private boolean success;
+    private String message;
+    private long fileSize;
+    private String format;
+    private double duration;
+    private String videoCodec;
+    private int width;
+    private int height;
+    private double frameRate;
+    private long videoBitrate;
+    // Average seconds between keyframes; 0 when unknown
+    private double keyframeInterval;
+    private String audioCodec;
+    private int audioChannels;
+    private int sampleRate;
+    private long audioBitrate;
+    private List<CompressionEstimate> estimates;
+
+    public MediaProbeResponse(boolean success, String message) {
+        this.success = success;
+        this.message = message;
+    }
+
+    // Getters and setters
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    public double getDuration() {
+        return duration;
+    }
+
+    public void setDuration(double duration) {
+        this.duration = duration;
+    }
+
+    public String getVideoCodec() {
+        return videoCodec;
+    }
+
+    public void setVideoCodec(String videoCodec) {
+        this.videoCodec = videoCodec;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+    public void setFrameRate(double frameRate) {
+        this.frameRate = frameRate;
+    }
+
+    public long getVideoBitrate() {
+        return videoBitrate;
+    }
+
+    public void setVideoBitrate(long videoBitrate) {
+        this.videoBitrate = videoBitrate;
+    }
+
+    public double getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public void setKeyframeInterval(double keyframeInterval) {
+        this.keyframeInterval = keyframeInterval;
+    }
+
+    public String getAudioCodec() {
+        return audioCodec;
+    }
+
+    public void setAudioCodec(String audioCodec) {
+        this.audioCodec = audioCodec;
+    }
+
+    public int getAudioChannels() {
+        return audioChannels;
+    }
+
+    public void setAudioChannels(int audioChannels) {
+        this.audioChannels = audioChannels;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    public long getAudioBitrate() {
+        return audioBitrate;
+    }
+
+    public void setAudioBitrate(long audioBitrate) {
+        this.audioBitrate = audioBitrate;
+    }
+
+    public List<CompressionEstimate> getEstimates() {
+        return estimates;
+    }
+
+    public void setEstimates(List<CompressionEstimate> estimates) {
+        this.estimates = estimates;
+    }
+}
@@ -0,0 +1,91 @@
+package com.pdfcompressor.model;
+
+// Which payloads the structural cleanup pass strips. Unreferenced objects are always dropped.
+// Attachments, scripts, metadata, named destinations and structure trees (tagged PDF, used by
+// screen readers) change what the document does or says about itself, so they are only removed on request
+public class PDFCleanupOptions {
+    private boolean removeThumbnails = true;
+    private boolean removeEmbeddedFiles = false;
+    private boolean removeJavaScript = false;
+    private boolean removePieceInfo = true;
+    private boolean removeMetadata = false;
+    // Names that nothing in the file links to; links from other files by name will no longer resolve
+    private boolean removeUnusedDestinations = false;
+    private boolean removeStructureTree = false;
+    private boolean removeUnusedFonts = true;
+    // Rewrites embedded TrueType CID fonts to hold only the glyphs the document shows
+    private boolean subsetFonts = true;
+
+    // Getters and setters
+    public boolean isRemoveThumbnails() {
+        return removeThumbnails;
+    }
+
+    public void setRemoveThumbnails(boolean removeThumbnails) {
+        this.removeThumbnails = removeThumbnails;
+    }
+
+    public boolean isRemoveEmbeddedFiles() {
+        return removeEmbeddedFiles;
+    }
+
+    public void setRemoveEmbeddedFiles(boolean removeEmbeddedFiles) {
+        this.removeEmbeddedFiles = removeEmbeddedFiles;
+    }
+
+    public boolean isRemoveJavaScript() {
+        return removeJavaScript;
+    }
+
+    public void setRemoveJavaScript(boolean removeJavaScript) {
+        this.removeJavaScript = removeJavaScript;
+    }
+
+    public boolean isRemovePieceInfo() {
+        return removePieceInfo;
+    }
+
+    public void setRemovePieceInfo(boolean removePieceInfo) {
+        this.removePieceInfo = removePieceInfo;
+    }
+
+    public boolean isRemoveMetadata() {
+        return removeMetadata;
+    }
+
+    public void setRemoveMetadata(boolean removeMetadata) {
+        this.removeMetadata = removeMetadata;
+    }
+
+    public boolean isRemoveUnusedDestinations() {
+        return removeUnusedDestinations;
+    }
+
+    public void setRemoveUnusedDestinations(boolean removeUnusedDestinations) {
+        this.removeUnusedDestinations = removeUnusedDestinations;
+    }
+
+    public boolean isRemoveStructureTree() {
+        return removeStructureTree;
+    }
+
+    public void setRemoveStructureTree(boolean removeStructureTree) {
+        this.removeStructureTree = removeStructureTree;
+    }
+
+    public boolean isRemoveUnusedFonts() {
+        return removeUnusedFonts;
+    }
+
+    public void setRemoveUnusedFonts(boolean removeUnusedFonts) {
+        this.removeUnusedFonts = removeUnusedFonts;
+    }
+
+    public boolean isSubsetFonts() {
+        return subsetFonts;
+    }
+
+    public void setSubsetFonts(boolean subsetFonts) {
+        this.subsetFonts = subsetFonts;
+    }
+}
@@ -0,0 +1,45 @@
+package com.pdfcompressor.model;
+
+public class PDFCompressionOptions {
+    private float quality;
+    private boolean linearize;
+    private CompressionStrategy strategy = CompressionStrategy.AUTO;
+    private PDFCleanupOptions cleanup = new PDFCleanupOptions();
+
+    public PDFCompressionOptions(float quality) {
+        this.quality = quality;
+    }
+
+    // Getters and setters
+    public float getQuality() {
+        return quality;
+    }
+
+    public void setQuality(float quality) {
+        this.quality = quality;
+    }
+
+    public boolean isLinearize() {
+        return linearize;
+    }
+
+    public void setLinearize(boolean linearize) {
+        this.linearize = linearize;
+    }
+
+    public CompressionStrategy getStrategy() {
+        return strategy;
+    }
+
+    public void setStrategy(CompressionStrategy strategy) {
+        this.strategy = strategy;
+    }
+
+    public PDFCleanupOptions getCleanup() {
+        return cleanup;
+    }
+
+    public void setCleanup(PDFCleanupOptions cleanup) {
+        this.cleanup = cleanup;
+    }
+}
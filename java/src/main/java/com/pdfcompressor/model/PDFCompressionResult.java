@@ -0,0 +1,30 @@
+package com.pdfcompressor.model;
+
+import java.util.List;
+
+public class PDFCompressionResult {
+    private String fileName;
+    private List<CleanupItem> cleanup;
+
+    public PDFCompressionResult(String fileName, List<CleanupItem> cleanup) {
+        this.fileName = fileName;
+        this.cleanup = cleanup;
+    }
+
+    // Getters and setters
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public List<CleanupItem> getCleanup() {
+        return cleanup;
+    }
+
+    public void setCleanup(List<CleanupItem> cleanup) {
+        this.cleanup = cleanup;
+    }
+}
@@ -0,0 +1,50 @@
+package com.pdfcompressor.model;
+
+import java.util.List;
+
+public class ResponsiveImageResponse {
+    private boolean success;
+    private long originalSize;
+    private List<ResponsiveImageVariant> variants;
+    private String message;
+
+    public ResponsiveImageResponse(boolean success, long originalSize, List<ResponsiveImageVariant> variants, String message) {
+        this.success = success;
+        this.originalSize = originalSize;
+        this.variants = variants;
+        this.message = message;
+    }
+
+    // Getters and setters
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    public void setOriginalSize(long originalSize) {
+        this.originalSize = originalSize;
+    }
+
+    public List<ResponsiveImageVariant> getVariants() {
+        return variants;
+    }
+
+    public void setVariants(List<ResponsiveImageVariant> variants) {
+        this.variants = variants;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,48 @@
+package com.pdfcompressor.model;
+
+public class ResponsiveImageVariant {
+    private int width;
+    private int height;
+    private String fileName;
+    private long compressedSize;
+
+    public ResponsiveImageVariant(int width, int height, String fileName, long compressedSize) {
+        this.width = width;
+        this.height = height;
+        this.fileName = fileName;
+        this.compressedSize = compressedSize;
+    }
+
+    // Getters and setters
+    public int getWidth() {
+        return width;
+    }
+
+    public void setWidth(int width) {
+        this.width = width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setHeight(int height) {
+        this.height = height;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    public void setCompressedSize(long compressedSize) {
+        this.compressedSize = compressedSize;
+    }
+}
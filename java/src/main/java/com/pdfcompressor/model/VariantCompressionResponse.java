@@ -0,0 +1,50 @@
+package com.pdfcompressor.model;
+
+import java.util.List;
+
+public class VariantCompressionResponse {
+    private boolean success;
+    private long originalSize;
+    private List<CompressionVariant> variants;
+    private String message;
+
+    public VariantCompressionResponse(boolean success, long originalSize, List<CompressionVariant> variants, String message) {
+        this.success = success;
+        this.originalSize = originalSize;
+        this.variants = variants;
+        this.message = message;
+    }
+
+    // Getters and setters
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    public void setOriginalSize(long originalSize) {
+        this.originalSize = originalSize;
+    }
+
+    public List<CompressionVariant> getVariants() {
+        return variants;
+    }
+
+    public void setVariants(List<CompressionVariant> variants) {
+        this.variants = variants;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -0,0 +1,76 @@
+package com.pdfcompressor.model;
+
+public class VideoCompressionOptions {
+    private int compressionLevel;
+    // 0 for no limit
+    private int maxWidth;
+    private int maxHeight;
+    private double maxFps;
+    // Output size in bytes or average bitrate in bits per second to aim for; 0 uses compressionLevel
+    private long targetSize;
+    private int targetBitrate;
+    // "hls" for a playlist of segments written while encoding, "fmp4" for a fragmented MP4; null writes
+    // an ordinary file
+    private String outputFormat;
+
+    public VideoCompressionOptions(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    // Getters and setters
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public void setMaxWidth(int maxWidth) {
+        this.maxWidth = maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public void setMaxHeight(int maxHeight) {
+        this.maxHeight = maxHeight;
+    }
+
+    public double getMaxFps() {
+        return maxFps;
+    }
+
+    public void setMaxFps(double maxFps) {
+        this.maxFps = maxFps;
+    }
+
+    public long getTargetSize() {
+        return targetSize;
+    }
+
+    public void setTargetSize(long targetSize) {
+        this.targetSize = targetSize;
+    }
+
+    public int getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    public void setTargetBitrate(int targetBitrate) {
+        this.targetBitrate = targetBitrate;
+    }
+
+    public String getOutputFormat() {
+        return outputFormat;
+    }
+
+    public void setOutputFormat(String outputFormat) {
+        this.outputFormat = outputFormat;
+    }
+}
@@ -0,0 +1,184 @@
+package com.pdfcompressor.service;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avutil.AVOption;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.List;
+
+// Picks the encoder settings for a video job from the level's, the number of video jobs running and
+// the throughput this node has measured. When sharing the node with the other jobs would add more than
+// max-delay-seconds to the job's estimated encode time on an idle node, the job takes a bounded number
+// of steps towards cheaper settings, stopping at the first that fits. With an encoder that has presets
+// (x264) a step is a faster preset, with CRF lowered a step for each preset skipped so quality holds
+// while the file grows a little. OpenH264, the H.264 encoder of the bundled FFmpeg, ignores preset and
+// CRF and encodes at one speed, so there a step scales the output down instead, each one to 0.8 of the
+// width and height (about two thirds of the pixels), never below min-width. Under load each encoder
+// also gets an equal share of the cores as its thread count rather than all of them. A long video on
+// an idle node keeps its level's settings however long it takes. The choice is made once when a job
+// starts: running jobs keep theirs, and jobs started after the queue drains get the level's again
+@Component
+public class AdaptivePresetPolicy {
+
+    static final class Choice {
+        final String preset;
+        final int crf;
+        // Of the output width and height, at most 1
+        final double scale;
+        // Encoder threads, 0 for the encoder's default
+        final int threads;
+
+        Choice(String preset, int crf, double scale, int threads) {
+            this.preset = preset;
+            this.crf = crf;
+            this.scale = scale;
+            this.threads = threads;
+        }
+    }
+
+    // x264's presets from slowest to fastest
+    private static final List<String> PRESETS = Arrays.asList(
+        "veryslow", "slower", "slow", "medium", "fast", "faster", "veryfast", "superfast", "ultrafast");
+
+    // Typical speed of each preset relative to medium, only used for a preset this node has not
+    // measured yet, scaled from one that it has
+    private static final double[] RELATIVE_SPEED = {0.2, 0.4, 0.65, 1.0, 1.3, 1.7, 2.7, 3.7, 5.0};
+
+    // Output width and height kept by each downscaling step, for encoders without presets
+    private static final double SCALE_STEP = 0.8;
+
+    private final EncoderThroughputStats throughputStats;
+    private final boolean enabled;
+    private final boolean presets;
+    private final double maxDelaySeconds;
+    private final int maxSteps;
+    private final int minWidth;
+    private final int processors = Runtime.getRuntime().availableProcessors();
+
+    @Autowired
+    public AdaptivePresetPolicy(EncoderThroughputStats throughputStats,
+                                @Value("${video.adaptive-preset.enabled:true}") boolean enabled,
+                                @Value("${video.adaptive-preset.max-delay-seconds:300}") double maxDelaySeconds,
+                                @Value("${video.adaptive-preset.max-steps:3}") int maxSteps,
+                                @Value("${video.adaptive-preset.min-width:480}") int minWidth) {
+        this.throughputStats = throughputStats;
+        this.enabled = enabled;
+        this.presets = h264EncoderHasPresets();
+        this.maxDelaySeconds = maxDelaySeconds;
+        this.maxSteps = Math.max(0, maxSteps);
+        this.minWidth = Math.max(2, minWidth);
+    }
+
+    // The recorder asks for H.264 by codec id, so this is the encoder it will get
+    private static boolean h264EncoderHasPresets() {
+        AVCodec encoder = avcodec.avcodec_find_encoder(avcodec.AV_CODEC_ID_H264);
+        if (encoder == null || encoder.priv_class() == null) {
+            return false;
+        }
+        AVOption option = encoder.priv_class().option();
+        for (int i = 0; option != null && option.position(i).name() != null; i++) {
+            if ("preset".equals(option.position(i).name().getString())) {
+                return true;
+            }
+        }
+        System.out.println("H.264 encoder " + encoder.name().getString() + " has no presets; load adapts the output size instead");
+        return false;
+    }
+
+    // pixels is the output pixel count of the job and width its output width; activeJobs counts it too
+    Choice choose(String preset, int crf, long pixels, int width, int activeJobs) {
+        int base = PRESETS.indexOf(preset);
+        if (!enabled || base < 0 || pixels <= 0) {
+            return new Choice(preset, crf, 1.0, 0);
+        }
+        // Running jobs share the encoder's cores
+        int load = Math.max(1, activeJobs);
+        int threads = load > 1 ? Math.max(1, processors / load) : 0;
+        if (!presets) {
+            return chooseScale(preset, crf, pixels, width, load, threads);
+        }
+
+        int best = base;
+        Double bestSeconds = estimateSeconds(base, pixels, load);
+        if (bestSeconds == null) {
+            // Nothing measured yet to base a decision on
+            return new Choice(preset, crf, 1.0, threads);
+        }
+        // Only the slowdown caused by the other jobs counts, not the length of the video
+        double targetSeconds = estimateSeconds(base, pixels, 1) + maxDelaySeconds;
+        for (int index = base; index <= Math.min(PRESETS.size() - 1, base + maxSteps); index++) {
+            Double seconds = estimateSeconds(index, pixels, load);
+            if (seconds == null) {
+                continue;
+            }
+            if (seconds <= targetSeconds) {
+                best = index;
+                bestSeconds = seconds;
+                break;
+            }
+            // Only worth the larger file when it is actually faster
+            if (seconds < bestSeconds) {
+                best = index;
+                bestSeconds = seconds;
+            }
+        }
+
+        int steps = best - base;
+        if (steps > 0) {
+            System.out.println("Video load " + load + ": preset " + preset + " -> " + PRESETS.get(best)
+                + ", estimated " + String.format("%.0f", bestSeconds) + " s against a target of "
+                + String.format("%.0f", targetSeconds) + " s");
+        }
+        return new Choice(PRESETS.get(best), Math.max(0, crf - steps), 1.0, threads);
+    }
+
+    // An encoder without presets runs at one speed, so only fewer pixels make it faster
+    private Choice chooseScale(String preset, int crf, long pixels, int width, int load, int threads) {
+        // The preset is only a label here, so any measured one is this encoder's speed
+        Double throughput = throughputStats.getPixelsPerSecond(preset);
+        for (int index = 0; index < PRESETS.size() && throughput == null; index++) {
+            throughput = throughputStats.getPixelsPerSecond(PRESETS.get(index));
+        }
+        if (throughput == null) {
+            return new Choice(preset, crf, 1.0, threads);
+        }
+
+        double targetSeconds = pixels / throughput + maxDelaySeconds;
+        double scale = 1.0;
+        double seconds = pixels * load / throughput;
+        for (int step = 1; step <= maxSteps && seconds > targetSeconds; step++) {
+            double next = Math.pow(SCALE_STEP, step);
+            if (width * next < minWidth) {
+                break;
+            }
+            scale = next;
+            seconds = pixels * scale * scale * load / throughput;
+        }
+        if (scale < 1.0) {
+            System.out.println("Video load " + load + ": output scaled to " + String.format("%.2f", scale)
+                + ", estimated " + String.format("%.0f", seconds) + " s against a target of "
+                + String.format("%.0f", targetSeconds) + " s");
+        }
+        return new Choice(preset, crf, scale, threads);
+    }
+
+    private Double estimateSeconds(int index, long pixels, int load) {
+        Double throughput = throughputStats.getPixelsPerSecond(PRESETS.get(index));
+        if (throughput == null) {
+            // Scaled from the nearest measured preset
+            for (int distance = 1; distance < PRESETS.size() && throughput == null; distance++) {
+                for (int other : new int[] {index - distance, index + distance}) {
+                    Double measured = other >= 0 && other < PRESETS.size() ? throughputStats.getPixelsPerSecond(PRESETS.get(other)) : null;
+                    if (measured != null && throughput == null) {
+                        throughput = measured * RELATIVE_SPEED[index] / RELATIVE_SPEED[other];
+                    }
+                }
+            }
+        }
+        return throughput == null ? null : pixels * load / throughput;
+    }
+}
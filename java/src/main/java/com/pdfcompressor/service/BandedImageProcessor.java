@@ -0,0 +1,107 @@
+package com.pdfcompressor.service;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+// Runs a local image operation over horizontal bands of an image that is too large to decode at
+// once. Each band is decoded with a margin of halo rows above and below, so an operation that
+// only looks at pixels within halo rows of the one it computes gives exactly the result it would
+// give on the whole image. The output is a BufferedImage whose pixels are computed on demand, one
+// band at a time, as an ImageWriter pulls rows from the top; heap use is bounded by the band size
+final class BandedImageProcessor {
+
+    interface BandOperation {
+        // Returns an image of the same size as the band
+        BufferedImage apply(BufferedImage band);
+    }
+
+    interface BandVisitor {
+        void visit(BufferedImage band);
+    }
+
+    private final ImageRegionReader reader;
+    private final int width;
+    private final int height;
+    private final int bandHeight;
+    private final int halo;
+
+    BandedImageProcessor(ImageRegionReader reader, long bandPixels, int halo) throws IOException {
+        this.reader = reader;
+        this.width = reader.getWidth();
+        this.height = reader.getHeight();
+        this.halo = halo;
+        // Bands stay several times taller than the halo so the margins are not most of the work
+        this.bandHeight = (int) Math.max(4L * halo, bandPixels / width);
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("Image is too large to process: " + width + "x" + height);
+        }
+    }
+
+    int getBandCount() {
+        return (height + bandHeight - 1) / bandHeight;
+    }
+
+    // Decodes the image band by band without margins, for whole-image statistics
+    void forEachBand(BandVisitor visitor) throws IOException {
+        for (int top = 0; top < height; top += bandHeight) {
+            visitor.visit(reader.read(new Rectangle(0, top, width, Math.min(bandHeight, height - top))));
+        }
+    }
+
+    // An RGB image of the operation's output. Rows must be read from the top down; going back to an
+    // earlier band recomputes it. Decoding errors surface as UncheckedIOException
+    BufferedImage processedImage(BandOperation operation) {
+        BandDataBuffer buffer = new BandDataBuffer(operation);
+        WritableRaster raster = Raster.createPackedRaster(buffer, width, height, width,
+            new int[] {0xFF0000, 0xFF00, 0xFF}, null);
+        return new BufferedImage(new DirectColorModel(24, 0xFF0000, 0xFF00, 0xFF), raster, false, null);
+    }
+
+    private final class BandDataBuffer extends DataBuffer {
+
+        private final BandOperation operation;
+        private int bandTop = -1;
+        private int bandRows;
+        private int[] pixels;
+
+        BandDataBuffer(BandOperation operation) {
+            super(DataBuffer.TYPE_INT, width * height);
+            this.operation = operation;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            int y = i / width;
+            if (y < bandTop || y >= bandTop + bandRows) {
+                loadBand(y / bandHeight * bandHeight);
+            }
+            return pixels[(y - bandTop) * width + i % width];
+        }
+
+        @Override
+        public void setElem(int bank, int i, int val) {
+            throw new UnsupportedOperationException("Processed image is read-only");
+        }
+
+        private void loadBand(int top) {
+            int rows = Math.min(bandHeight, height - top);
+            int readTop = Math.max(0, top - halo);
+            int readBottom = Math.min(height, top + rows + halo);
+            try {
+                BufferedImage band = reader.read(new Rectangle(0, readTop, width, readBottom - readTop));
+                BufferedImage result = operation.apply(band);
+                pixels = result.getRGB(0, top - readTop, width, rows, pixels != null && pixels.length == width * rows ? pixels : null, 0, width);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bandTop = top;
+            bandRows = rows;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.pdfcompressor.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Median-cut palette quantizer for ARGB pixels. Colours are first binned into a 5-5-5 bit RGB
+// histogram with 8 alpha levels; boxes of bins are split at the weighted median of their widest
+// channel until the palette is full, and each palette entry is the exact mean of its pixels.
+// Fully transparent pixels get a palette entry of their own and opaque pixels are only ever mapped
+// to opaque entries, so the alpha channel keeps its hard edges
+final class ColorQuantizer {
+
+    private static final int ALPHA_LEVELS = 8;
+    private static final int BINS = 32 * 32 * 32 * ALPHA_LEVELS;
+
+    // Alpha differences count double when choosing a split, so translucent and opaque colours separate early
+    private static final int ALPHA_WEIGHT = 2;
+
+    private ColorQuantizer() {
+    }
+
+    // Returns the distinct colours when there are at most maxColors of them, otherwise null
+    static int[] exactPalette(int[] argb, int maxColors) {
+        Map<Integer, Integer> colors = new HashMap<>();
+        for (int pixel : argb) {
+            int color = normalize(pixel);
+            if (!colors.containsKey(color)) {
+                if (colors.size() == maxColors) {
+                    return null;
+                }
+                colors.put(color, colors.size());
+            }
+        }
+        int[] palette = new int[colors.size()];
+        for (Map.Entry<Integer, Integer> entry : colors.entrySet()) {
+            palette[entry.getValue()] = entry.getKey();
+        }
+        return palette;
+    }
+
+    // Maps every pixel to its entry in an exact palette
+    static byte[] mapExact(int[] argb, int[] palette) {
+        Map<Integer, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < palette.length; i++) {
+            indexes.put(palette[i], i);
+        }
+        byte[] indices = new byte[argb.length];
+        for (int i = 0; i < argb.length; i++) {
+            indices[i] = (byte) (int) indexes.get(normalize(argb[i]));
+        }
+        return indices;
+    }
+
+    static int[] buildPalette(int[] argb, int maxColors) {
+        long[] counts = new long[BINS];
+        long[] sumA = new long[BINS];
+        long[] sumR = new long[BINS];
+        long[] sumG = new long[BINS];
+        long[] sumB = new long[BINS];
+        boolean hasTransparent = false;
+        for (int pixel : argb) {
+            int alpha = pixel >>> 24;
+            if (alpha == 0) {
+                hasTransparent = true;
+                continue;
+            }
+            int bin = bin(pixel);
+            counts[bin]++;
+            sumA[bin] += alpha;
+            sumR[bin] += (pixel >> 16) & 0xFF;
+            sumG[bin] += (pixel >> 8) & 0xFF;
+            sumB[bin] += pixel & 0xFF;
+        }
+
+        int[] used = new int[BINS];
+        int usedCount = 0;
+        for (int bin = 0; bin < BINS; bin++) {
+            if (counts[bin] > 0) {
+                used[usedCount++] = bin;
+            }
+        }
+        used = Arrays.copyOf(used, usedCount);
+
+        // Opaque bins sort after translucent ones and start in a box of their own, so no palette
+        // entry mixes the two
+        int opaqueStart = 0;
+        while (opaqueStart < usedCount && used[opaqueStart] >> 15 != ALPHA_LEVELS - 1) {
+            opaqueStart++;
+        }
+        int colorBudget = hasTransparent ? maxColors - 1 : maxColors;
+        List<Box> boxes = new ArrayList<>();
+        if (opaqueStart > 0) {
+            boxes.add(new Box(used, 0, opaqueStart, counts, sumA, sumR, sumG, sumB));
+        }
+        if (opaqueStart < usedCount) {
+            boxes.add(new Box(used, opaqueStart, usedCount, counts, sumA, sumR, sumG, sumB));
+        }
+        while (boxes.size() < colorBudget) {
+            Box widest = null;
+            for (Box box : boxes) {
+                if (box.size() > 1 && (widest == null || box.priority() > widest.priority())) {
+                    widest = box;
+                }
+            }
+            if (widest == null) {
+                break;
+            }
+            boxes.remove(widest);
+            Box[] halves = widest.split(used, counts, sumA, sumR, sumG, sumB);
+            boxes.add(halves[0]);
+            boxes.add(halves[1]);
+        }
+
+        int[] palette = new int[boxes.size() + (hasTransparent ? 1 : 0)];
+        int index = 0;
+        if (hasTransparent) {
+            palette[index++] = 0;
+        }
+        for (Box box : boxes) {
+            palette[index++] = box.meanColor();
+        }
+        return palette;
+    }
+
+    // Maps pixels to the nearest palette entry, optionally spreading the RGB error with Floyd-Steinberg
+    static byte[] mapToPalette(int[] argb, int width, int height, int[] palette, boolean dither) {
+        // Nearest entries are looked up once per histogram bin rather than once per pixel
+        short[] nearestByBin = new short[BINS];
+        Arrays.fill(nearestByBin, (short) -1);
+        int transparentIndex = -1;
+        for (int i = 0; i < palette.length; i++) {
+            if (palette[i] == 0) {
+                transparentIndex = i;
+            }
+        }
+
+        byte[] indices = new byte[argb.length];
+        float[] errors = dither ? new float[(width + 2) * 3] : null;
+        float[] nextErrors = dither ? new float[(width + 2) * 3] : null;
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int offset = y * width + x;
+                int pixel = argb[offset];
+                int alpha = pixel >>> 24;
+                if (alpha == 0 && transparentIndex >= 0) {
+                    indices[offset] = (byte) transparentIndex;
+                    continue;
+                }
+
+                int red = (pixel >> 16) & 0xFF;
+                int green = (pixel >> 8) & 0xFF;
+                int blue = pixel & 0xFF;
+                if (dither) {
+                    int e = (x + 1) * 3;
+                    red = clamp(Math.round(red + errors[e]));
+                    green = clamp(Math.round(green + errors[e + 1]));
+                    blue = clamp(Math.round(blue + errors[e + 2]));
+                }
+
+                int adjusted = (alpha << 24) | (red << 16) | (green << 8) | blue;
+                int bin = bin(adjusted);
+                int nearest = nearestByBin[bin];
+                if (nearest < 0) {
+                    nearest = nearest(palette, adjusted);
+                    nearestByBin[bin] = (short) nearest;
+                }
+                indices[offset] = (byte) nearest;
+
+                if (dither) {
+                    int chosen = palette[nearest];
+                    float errorRed = red - ((chosen >> 16) & 0xFF);
+                    float errorGreen = green - ((chosen >> 8) & 0xFF);
+                    float errorBlue = blue - (chosen & 0xFF);
+                    spread(errors, (x + 2) * 3, errorRed, errorGreen, errorBlue, 7 / 16f);
+                    spread(nextErrors, x * 3, errorRed, errorGreen, errorBlue, 3 / 16f);
+                    spread(nextErrors, (x + 1) * 3, errorRed, errorGreen, errorBlue, 5 / 16f);
+                    spread(nextErrors, (x + 2) * 3, errorRed, errorGreen, errorBlue, 1 / 16f);
+                }
+            }
+            if (dither) {
+                float[] swap = errors;
+                errors = nextErrors;
+                nextErrors = swap;
+                Arrays.fill(nextErrors, 0);
+            }
+        }
+        return indices;
+    }
+
+    private static void spread(float[] errors, int offset, float red, float green, float blue, float weight) {
+        errors[offset] += red * weight;
+        errors[offset + 1] += green * weight;
+        errors[offset + 2] += blue * weight;
+    }
+
+    private static int nearest(int[] palette, int color) {
+        int alpha = color >>> 24;
+        int red = (color >> 16) & 0xFF;
+        int green = (color >> 8) & 0xFF;
+        int blue = color & 0xFF;
+        int best = 0;
+        long bestDistance = Long.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            int entry = palette[i];
+            // Opaque pixels stay opaque
+            if (alpha == 255 && (entry >>> 24) != 255) {
+                continue;
+            }
+            long da = (alpha - (entry >>> 24)) * ALPHA_WEIGHT;
+            long dr = red - ((entry >> 16) & 0xFF);
+            long dg = green - ((entry >> 8) & 0xFF);
+            long db = blue - (entry & 0xFF);
+            long distance = da * da + dr * dr + dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    // Fully transparent pixels all look the same, whatever their colour bits say
+    private static int normalize(int pixel) {
+        return (pixel >>> 24) == 0 ? 0 : pixel;
+    }
+
+    private static int bin(int pixel) {
+        int alpha = pixel >>> 24;
+        // Opaque pixels get a level of their own
+        int alphaLevel = alpha == 255 ? ALPHA_LEVELS - 1 : alpha * (ALPHA_LEVELS - 1) / 255;
+        return (alphaLevel << 15) | (((pixel >> 19) & 0x1F) << 10) | (((pixel >> 11) & 0x1F) << 5) | ((pixel >> 3) & 0x1F);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    // A range [start, end) of the shared bin array, with the bounds of its pixels
+    private static final class Box {
+        final int start;
+        final int end;
+        long pixelCount;
+        final int[] min = {255, 255, 255, 255};
+        final int[] max = {0, 0, 0, 0};
+        long sumA;
+        long sumR;
+        long sumG;
+        long sumB;
+
+        Box(int[] bins, int start, int end, long[] counts, long[] sumA, long[] sumR, long[] sumG, long[] sumB) {
+            this.start = start;
+            this.end = end;
+            for (int i = start; i < end; i++) {
+                int bin = bins[i];
+                long count = counts[bin];
+                pixelCount += count;
+                this.sumA += sumA[bin];
+                this.sumR += sumR[bin];
+                this.sumG += sumG[bin];
+                this.sumB += sumB[bin];
+                int[] mean = binMean(bin, counts, sumA, sumR, sumG, sumB);
+                for (int channel = 0; channel < 4; channel++) {
+                    min[channel] = Math.min(min[channel], mean[channel]);
+                    max[channel] = Math.max(max[channel], mean[channel]);
+                }
+            }
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        int widestChannel() {
+            int widest = 0;
+            int widestRange = -1;
+            for (int channel = 0; channel < 4; channel++) {
+                int range = (max[channel] - min[channel]) * (channel == 0 ? ALPHA_WEIGHT : 1);
+                if (range > widestRange) {
+                    widestRange = range;
+                    widest = channel;
+                }
+            }
+            return widest;
+        }
+
+        // Boxes covering many pixels over a wide range are split first
+        double priority() {
+            int channel = widestChannel();
+            return (max[channel] - min[channel]) * (channel == 0 ? ALPHA_WEIGHT : 1) * Math.sqrt(pixelCount);
+        }
+
+        Box[] split(int[] bins, long[] counts, long[] sumA, long[] sumR, long[] sumG, long[] sumB) {
+            int channel = widestChannel();
+            // Bins fit in 18 bits, so sorting on (channel value << 18 | bin) orders them by the channel
+            int[] order = new int[size()];
+            for (int i = 0; i < order.length; i++) {
+                int bin = bins[start + i];
+                order[i] = (binMean(bin, counts, sumA, sumR, sumG, sumB)[channel] << 18) | bin;
+            }
+            Arrays.sort(order);
+            for (int i = 0; i < order.length; i++) {
+                bins[start + i] = order[i] & (BINS - 1);
+            }
+
+            // Weighted median, keeping at least one bin on each side
+            long half = pixelCount / 2;
+            long running = 0;
+            int splitAt = end - 1;
+            for (int i = start; i < end - 1; i++) {
+                running += counts[bins[i]];
+                if (running >= half) {
+                    splitAt = i + 1;
+                    break;
+                }
+            }
+            return new Box[] {
+                new Box(bins, start, splitAt, counts, sumA, sumR, sumG, sumB),
+                new Box(bins, splitAt, end, counts, sumA, sumR, sumG, sumB)
+            };
+        }
+
+        int meanColor() {
+            int alpha = (int) Math.round(sumA / (double) pixelCount);
+            int red = (int) Math.round(sumR / (double) pixelCount);
+            int green = (int) Math.round(sumG / (double) pixelCount);
+            int blue = (int) Math.round(sumB / (double) pixelCount);
+            return (alpha << 24) | (red << 16) | (green << 8) | blue;
+        }
+
+        private static int[] binMean(int bin, long[] counts, long[] sumA, long[] sumR, long[] sumG, long[] sumB) {
+            long count = counts[bin];
+            return new int[] {
+                (int) (sumA[bin] / count), (int) (sumR[bin] / count), (int) (sumG[bin] / count), (int) (sumB[bin] / count)
+            };
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.pdfcompressor.service;
+
+import com.pdfcompressor.model.CompressionStrategy;
+import com.pdfcompressor.model.PDFCleanupOptions;
+import com.pdfcompressor.model.PDFCompressionOptions;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Picks a compression strategy by running each candidate on a few sample pages and
+// extrapolating the output size and run time to the whole document
+@Component
+public class CompressionStrategyAnalyzer {
+
+    // Pages trialled per strategy: the first, middle and last page
+    private static final int SAMPLE_PAGES = 3;
+
+    // Size estimates within this fraction of each other count as a tie, decided by estimated time
+    private static final double SIZE_TIE_RATIO = 0.02;
+
+    // Returns the strategy expected to produce the smallest file, or null when no candidate is
+    // expected to come out smaller than the original
+    public CompressionStrategy chooseStrategy(PDDocument document, long originalSize,
+                                              PDFCompressionOptions options) throws IOException {
+        float quality = options.getQuality();
+        int pageCount = document.getNumberOfPages();
+        if (pageCount == 0) {
+            return CompressionStrategy.STRUCTURAL;
+        }
+        List<Integer> samplePages = samplePages(pageCount);
+
+        List<StrategyEstimate> estimates = new ArrayList<>();
+        estimates.add(estimateStructural(document, samplePages, options.getCleanup()));
+        // Rasterizing loses text and vector sharpness, so it stays limited to the low quality settings
+        if (quality < PDFCompressorService.RASTER_QUALITY_THRESHOLD) {
+            estimates.add(estimateRaster(document, samplePages, quality));
+        }
+
+        StrategyEstimate best = null;
+        for (StrategyEstimate estimate : estimates) {
+            System.out.println("Strategy estimate: " + estimate.strategy + " ~" + estimate.size
+                + " bytes, ~" + estimate.millis + " ms (sampled " + samplePages.size() + " of " + pageCount + " pages)");
+            if (best == null || isBetter(estimate, best)) {
+                best = estimate;
+            }
+        }
+
+        if (best.size >= originalSize) {
+            System.out.println("No strategy is expected to beat the original size of " + originalSize + " bytes.");
+            return null;
+        }
+        return best.strategy;
+    }
+
+    private boolean isBetter(StrategyEstimate candidate, StrategyEstimate current) {
+        if (Math.abs(candidate.size - current.size) <= current.size * SIZE_TIE_RATIO) {
+            return candidate.millis < current.millis;
+        }
+        return candidate.size < current.size;
+    }
+
+    private List<Integer> samplePages(int pageCount) {
+        int count = Math.min(SAMPLE_PAGES, pageCount);
+        List<Integer> pages = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pages.add(count == 1 ? 0 : (int) Math.round(i * (pageCount - 1) / (double) (count - 1)));
+        }
+        return pages;
+    }
+
+    private StrategyEstimate estimateStructural(PDDocument document, List<Integer> samplePages,
+                                                PDFCleanupOptions cleanupOptions) throws IOException {
+        int pageCount = document.getNumberOfPages();
+        long start = System.nanoTime();
+        long sampleSize = structuralSampleSize(document, samplePages, cleanupOptions);
+
+        long estimatedSize = sampleSize;
+        if (samplePages.size() < pageCount) {
+            // Fonts and images shared between pages are only written once, so fit
+            // size = fixed + perPage * pages from a one-page and a full sample
+            long singlePageSize = structuralSampleSize(document, samplePages.subList(0, 1), cleanupOptions);
+            double perPage = Math.max(0, (sampleSize - singlePageSize) / (double) (samplePages.size() - 1));
+            double fixed = Math.max(0, singlePageSize - perPage);
+            estimatedSize = Math.round(fixed + perPage * pageCount);
+        }
+        if (cleanupOptions.isSubsetFonts()) {
+            // Embedded fonts are part of the fixed size but the rewrite keeps only the glyphs in use;
+            // subsets built from the sample pages stand in for the subsets of the whole document
+            estimatedSize = Math.max(0, estimatedSize - fontSubsetSavings(document, samplePages));
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        return new StrategyEstimate(CompressionStrategy.STRUCTURAL, estimatedSize,
+            elapsedMillis * pageCount / samplePages.size());
+    }
+
+    private long structuralSampleSize(PDDocument document, List<Integer> pageIndexes,
+                                      PDFCleanupOptions cleanupOptions) throws IOException {
+        try (PDDocument sample = new PDDocument()) {
+            for (int pageIndex : pageIndexes) {
+                PDPage sourcePage = document.getPage(pageIndex);
+                COSDictionary pageCopy = new COSDictionary(sourcePage.getCOSObject());
+
+                // Annotations can point back at their source page and drag the whole document into the sample
+                pageCopy.removeItem(COSName.ANNOTS);
+
+                // Page thumbnails and editor data would be stripped by the cleanup pass as well
+                PDFCleanupPass.stripPageEntries(pageCopy, cleanupOptions);
+
+                // Inherited attributes live on the source page tree, which the sample does not include
+                PDPage samplePage = new PDPage(pageCopy);
+                samplePage.setResources(sourcePage.getResources());
+                samplePage.setMediaBox(sourcePage.getMediaBox());
+                samplePage.setRotation(sourcePage.getRotation());
+                sample.addPage(samplePage);
+            }
+            return savedSize(sample);
+        }
+    }
+
+    private long fontSubsetSavings(PDDocument document, List<Integer> pageIndexes) {
+        List<PDPage> pages = new ArrayList<>();
+        for (int pageIndex : pageIndexes) {
+            pages.add(document.getPage(pageIndex));
+        }
+        try {
+            return PDFFontSubsetter.scan(document, pages).estimateSubsetSavings();
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    private StrategyEstimate estimateRaster(PDDocument document, List<Integer> samplePages, float quality) throws IOException {
+        int pageCount = document.getNumberOfPages();
+        long start = System.nanoTime();
+        long sampleSize;
+        try (PDDocument sample = new PDDocument()) {
+            // Same rendering and encoding as the full raster pass, limited to the sample pages
+            PDFRenderer pdfRenderer = new PDFRenderer(document);
+            int dpi = PDFCompressorService.dpiForQuality(quality);
+            for (int pageIndex : samplePages) {
+                JPEGPassthrough passthrough = JPEGPassthrough.find(document.getPage(pageIndex), dpi, quality);
+                if (passthrough != null) {
+                    passthrough.addPage(sample, document.getPage(pageIndex));
+                    continue;
+                }
+                BufferedImage image = pdfRenderer.renderImageWithDPI(pageIndex, dpi, ImageType.RGB);
+                PDImageXObject pdImage = JPEGFactory.createFromImage(sample, image, quality);
+                PDFCompressorService.addImagePage(sample, pdImage, document.getPage(pageIndex).getMediaBox());
+            }
+            sampleSize = savedSize(sample);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        // Rasterized pages share nothing, so size and time scale with the page count
+        return new StrategyEstimate(CompressionStrategy.RASTER, sampleSize * pageCount / samplePages.size(),
+            elapsedMillis * pageCount / samplePages.size());
+    }
+
+    private long savedSize(PDDocument document) throws IOException {
+        PDFObjectWriter.CountingOutputStream counter = new PDFObjectWriter.CountingOutputStream(OutputStream.nullOutputStream());
+        document.save(counter);
+        return counter.getCount();
+    }
+
+    private static final class StrategyEstimate {
+        final CompressionStrategy strategy;
+        final long size;
+        final long millis;
+
+        StrategyEstimate(CompressionStrategy strategy, long size, long millis) {
+            this.strategy = strategy;
+            this.size = size;
+            this.millis = millis;
+        }
+    }
+}
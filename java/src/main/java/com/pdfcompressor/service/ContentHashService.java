@@ -0,0 +1,79 @@
+package com.pdfcompressor.service;
+
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+@Service
+public class ContentHashService {
+
+    private static final int MAX_CACHED_HASHES = 10000;
+
+    // Hashes keyed by absolute path, remembered with the size and modification time they were computed for
+    private final Map<String, CachedHash> cache = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedHash> eldest) {
+            return size() > MAX_CACHED_HASHES;
+        }
+    };
+
+    public String sha256(Path file) throws IOException {
+        String key = file.toAbsolutePath().normalize().toString();
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        synchronized (cache) {
+            CachedHash cached = cache.get(key);
+            if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+                return cached.hash;
+            }
+        }
+
+        String hash = computeSha256(file);
+        synchronized (cache) {
+            cache.put(key, new CachedHash(size, lastModified, hash));
+        }
+        return hash;
+    }
+
+    private String computeSha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    private static final class CachedHash {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        CachedHash(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+}
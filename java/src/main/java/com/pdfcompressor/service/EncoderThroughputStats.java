@@ -0,0 +1,66 @@
+package com.pdfcompressor.service;
+
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// What this node has actually measured about its video jobs: encoding throughput per preset in
+// output pixels per second of wall time, copy throughput in bytes per second, and how far the
+// encoder's output strays from the bitrate it was asked for. Each is a moving average that favours
+// recent jobs, so it follows changes in load and hardware. Estimates are null until a job has been
+// measured; nothing is guessed
+@Component
+public class EncoderThroughputStats {
+
+    // Weight of the newest measurement
+    private static final double SMOOTHING = 0.3;
+
+    private final Map<String, Double> pixelsPerSecond = new HashMap<>();
+    private Double copyBytesPerSecond;
+    private Double bitrateAccuracy;
+
+    public synchronized void recordEncode(String preset, long pixels, long nanos) {
+        if (pixels <= 0 || nanos <= 0) {
+            return;
+        }
+        pixelsPerSecond.merge(preset, pixels / (nanos / 1e9), EncoderThroughputStats::smooth);
+    }
+
+    public synchronized void recordCopy(long bytes, long nanos) {
+        if (bytes <= 0 || nanos <= 0) {
+            return;
+        }
+        copyBytesPerSecond = copyBytesPerSecond == null ? bytes / (nanos / 1e9) : smooth(copyBytesPerSecond, bytes / (nanos / 1e9));
+    }
+
+    // Achieved over requested video bitrate of one encode
+    public synchronized void recordBitrate(long requested, long achieved) {
+        if (requested <= 0 || achieved <= 0) {
+            return;
+        }
+        bitrateAccuracy = bitrateAccuracy == null ? achieved / (double) requested : smooth(bitrateAccuracy, achieved / (double) requested);
+    }
+
+    public synchronized Double getPixelsPerSecond(String preset) {
+        return pixelsPerSecond.get(preset);
+    }
+
+    public synchronized Double estimateEncodeSeconds(String preset, long pixels) {
+        Double throughput = pixelsPerSecond.get(preset);
+        return throughput == null ? null : pixels / throughput;
+    }
+
+    public synchronized Double estimateCopySeconds(long bytes) {
+        return copyBytesPerSecond == null ? null : bytes / copyBytesPerSecond;
+    }
+
+    // 1.0 until an encode has been measured
+    public synchronized double getBitrateAccuracy() {
+        return bitrateAccuracy == null ? 1.0 : bitrateAccuracy;
+    }
+
+    private static double smooth(double average, double sample) {
+        return average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,551 @@
+package com.pdfcompressor.service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Compresses every frame of a multi-page TIFF or an animated GIF rather than just the first. Frames
+// are decoded one at a time through the reader, prepared on a thread pool and written in order, with
+// at most a pool's worth of frames in flight, so memory follows a few frames rather than the file.
+// GIF frames are composited to full frames first and then re-encoded as the rectangle that changed
+// since the previous one, with unchanged pixels inside it transparent; TIFF pages each get the
+// compression that suits their content
+final class FrameSequenceCompressor {
+
+    // Work done on the writer's thread once a frame is prepared
+    private interface FrameWrite {
+        void writeTo(ImageWriter writer) throws IOException;
+    }
+
+    private static final String GIF_IMAGE_METADATA = "javax_imageio_gif_image_1.0";
+    private static final String GIF_STREAM_METADATA = "javax_imageio_gif_stream_1.0";
+
+    // At or above this quality TIFF pages are compressed losslessly
+    private static final float LOSSLESS_QUALITY = 0.95f;
+
+    private FrameSequenceCompressor() {
+    }
+
+    static boolean handles(String formatName) {
+        return formatName.equalsIgnoreCase("gif") || isTiff(formatName);
+    }
+
+    // maxWidth and maxHeight bound every frame (0 for no limit) as in ImageRegionReader.readScaled
+    static void compress(Path inputPath, Path outputPath, String formatName, float quality, int maxWidth,
+                         int maxHeight, ExecutorService executor, int framesInFlight) throws IOException {
+        ImageWriter writer = writerFor(formatName);
+        Files.deleteIfExists(outputPath);
+        try (ImageInputStream input = ImageIO.createImageInputStream(inputPath.toFile());
+             ImageOutputStream output = ImageIO.createImageOutputStream(outputPath.toFile())) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader found for image: " + inputPath);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, false);
+                writer.setOutput(output);
+                Deque<Future<FrameWrite>> pending = new ArrayDeque<>();
+                int frames;
+                if (isTiff(formatName)) {
+                    frames = compressTiffPages(reader, writer, quality, maxWidth, maxHeight, executor, framesInFlight, pending);
+                } else {
+                    frames = compressGifFrames(reader, writer, quality, maxWidth, maxHeight, executor, framesInFlight, pending);
+                }
+                System.out.println("Compressed " + frames + " frame(s) of " + inputPath.getFileName());
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // A single image written as a one-frame sequence, for callers that only have pixels
+    static byte[] encode(BufferedImage image, String formatName, float quality) throws IOException {
+        ImageWriter writer = writerFor(formatName);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(output);
+            int width = image.getWidth();
+            int height = image.getHeight();
+            FrameWrite frame;
+            if (isTiff(formatName)) {
+                writer.prepareWriteSequence(null);
+                frame = prepareTiffPage(image, quality);
+            } else {
+                writer.prepareWriteSequence(gifStreamMetadata(writer, width, height));
+                int[] pixels = binaryAlpha(image.getRGB(0, 0, width, height, null, 0, width));
+                GifFrame gifFrame = new GifFrame(pixels, null, new int[pixels.length], width, height, 0, null);
+                frame = gifFrame.prepare(quality);
+            }
+            frame.writeTo(writer);
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static int compressTiffPages(ImageReader reader, ImageWriter writer, float quality, int maxWidth,
+                                         int maxHeight, ExecutorService executor, int framesInFlight,
+                                         Deque<Future<FrameWrite>> pending) throws IOException {
+        writer.prepareWriteSequence(null);
+        int page = 0;
+        BufferedImage image;
+        while ((image = readFrame(reader, page)) != null) {
+            BufferedImage decoded = scaled(image, maxWidth, maxHeight);
+            submit(() -> prepareTiffPage(decoded, quality), writer, executor, framesInFlight, pending);
+            page++;
+        }
+        drain(writer, pending);
+        writer.endWriteSequence();
+        return page;
+    }
+
+    // Bilevel pages get CCITT G4, opaque pages with at most 256 colours an exact palette with LZW; the rest
+    // are JPEG at the requested quality, or Deflate when the quality asks for lossless or there is alpha
+    private static FrameWrite prepareTiffPage(BufferedImage image, float quality) {
+        String compressionType;
+        BufferedImage page = image;
+        if (image.getColorModel().getPixelSize() == 1) {
+            compressionType = "CCITT T.6";
+        } else {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+            int[] palette = ColorQuantizer.exactPalette(argb, 256);
+            // TIFF palettes have no alpha
+            if (palette != null && !image.getColorModel().hasAlpha()) {
+                page = indexedImage(ColorQuantizer.mapExact(argb, palette), width, height, palette);
+                compressionType = "LZW";
+            } else if (quality >= LOSSLESS_QUALITY || image.getColorModel().hasAlpha()) {
+                compressionType = "Deflate";
+            } else {
+                compressionType = "JPEG";
+                if (image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_3BYTE_BGR
+                        && image.getType() != BufferedImage.TYPE_BYTE_GRAY) {
+                    page = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                    page.setRGB(0, 0, width, height, argb, 0, width);
+                }
+            }
+        }
+
+        BufferedImage output = page;
+        return writer -> {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionType(compressionType);
+            if (compressionType.equals("JPEG")) {
+                param.setCompressionQuality(quality);
+            }
+            writer.writeToSequence(new IIOImage(output, null, null), param);
+        };
+    }
+
+    private static int compressGifFrames(ImageReader reader, ImageWriter writer, float quality, int maxWidth,
+                                         int maxHeight, ExecutorService executor, int framesInFlight,
+                                         Deque<Future<FrameWrite>> pending) throws IOException {
+        IIOMetadataNode screen = child(streamTree(reader), "LogicalScreenDescriptor");
+        BufferedImage first = readFrame(reader, 0);
+        if (first == null) {
+            throw new IOException("GIF has no frames");
+        }
+        int screenWidth = intAttribute(screen, "logicalScreenWidth", first.getWidth());
+        int screenHeight = intAttribute(screen, "logicalScreenHeight", first.getHeight());
+        // Frames may extend past a logical screen that is too small; viewers grow it to fit the first one
+        screenWidth = Math.max(screenWidth, first.getWidth());
+        screenHeight = Math.max(screenHeight, first.getHeight());
+
+        BufferedImage canvas = new BufferedImage(screenWidth, screenHeight, BufferedImage.TYPE_INT_ARGB);
+        int[] outputSize = scaledSize(screenWidth, screenHeight, maxWidth, maxHeight);
+        int outputWidth = outputSize[0];
+        int outputHeight = outputSize[1];
+        writer.prepareWriteSequence(gifStreamMetadata(writer, outputWidth, outputHeight));
+
+        // The canvas a viewer shows before the frame about to be written, in output pixels
+        int[] base = new int[outputWidth * outputHeight];
+        int[] previous = null;
+        int previousDelay = 0;
+        byte[] loop = null;
+
+        int index = 0;
+        BufferedImage frame = first;
+        while (frame != null) {
+            IIOMetadataNode metadata = (IIOMetadataNode) reader.getImageMetadata(index).getAsTree(GIF_IMAGE_METADATA);
+            IIOMetadataNode descriptor = child(metadata, "ImageDescriptor");
+            IIOMetadataNode control = child(metadata, "GraphicControlExtension");
+            String disposal = control.getAttribute("disposalMethod");
+            if (index == 0) {
+                loop = loopExtension(metadata);
+            }
+
+            // Composite the frame the way a viewer would, then undo it as its disposal method says
+            BufferedImage saved = disposal.equals("restoreToPrevious") ? copy(canvas) : null;
+            int left = intAttribute(descriptor, "imageLeftPosition", 0);
+            int top = intAttribute(descriptor, "imageTopPosition", 0);
+            Graphics2D graphics = canvas.createGraphics();
+            graphics.drawImage(frame, left, top, null);
+            int[] current = binaryAlpha(scaled(copy(canvas), maxWidth, maxHeight)
+                .getRGB(0, 0, outputWidth, outputHeight, null, 0, outputWidth));
+            if (disposal.equals("restoreToBackgroundColor")) {
+                graphics.setComposite(AlphaComposite.Clear);
+                graphics.fillRect(left, top, frame.getWidth(), frame.getHeight());
+            } else if (saved != null) {
+                graphics.setComposite(AlphaComposite.Src);
+                graphics.drawImage(saved, 0, 0, null);
+            }
+            graphics.dispose();
+
+            // Which rectangle a frame needs, and how it is disposed, depends on the frame after it
+            if (previous != null) {
+                GifFrame gifFrame = new GifFrame(previous, current, base, outputWidth, outputHeight, previousDelay,
+                    index == 1 ? loop : null);
+                base = gifFrame.nextBase();
+                submit(() -> gifFrame.prepare(quality), writer, executor, framesInFlight, pending);
+            }
+            previous = current;
+            previousDelay = intAttribute(control, "delayTime", 0);
+            index++;
+            frame = readFrame(reader, index);
+        }
+        GifFrame last = new GifFrame(previous, null, base, outputWidth, outputHeight, previousDelay, index == 1 ? loop : null);
+        submit(() -> last.prepare(quality), writer, executor, framesInFlight, pending);
+
+        drain(writer, pending);
+        writer.endWriteSequence();
+        return index;
+    }
+
+    // One output GIF frame: the part of a composited frame that differs from what is already on screen
+    private static final class GifFrame {
+        private final int[] pixels;
+        private final int[] base;
+        private final int width;
+        private final int delay;
+        private final byte[] loop;
+        private final int left;
+        private final int top;
+        private final int right;
+        private final int bottom;
+        private final boolean clear;
+        private final int[] nextBase;
+
+        // next is the frame after this one, or null for the last
+        GifFrame(int[] pixels, int[] next, int[] base, int width, int height, int delay, byte[] loop) {
+            this.pixels = pixels;
+            this.width = width;
+            this.delay = delay;
+            this.loop = loop;
+
+            // Pixels that change, and pixels the next frame turns transparent: a frame cannot erase what is
+            // on screen, so this one has to be disposed to the background over them
+            int minX = width, minY = height, maxX = -1, maxY = -1;
+            boolean needsClear = false;
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    boolean erased = next != null && pixels[i] != 0 && next[i] == 0;
+                    if (pixels[i] != base[i] || erased) {
+                        needsClear |= erased;
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x);
+                        maxY = Math.max(maxY, y);
+                    }
+                }
+            }
+            if (maxX < 0) {
+                // Nothing changed: a single transparent pixel still carries the delay
+                minX = 0;
+                minY = 0;
+                maxX = 0;
+                maxY = 0;
+            }
+            this.left = minX;
+            this.top = minY;
+            this.right = maxX + 1;
+            this.bottom = maxY + 1;
+            this.clear = needsClear;
+
+            this.nextBase = pixels.clone();
+            if (needsClear) {
+                for (int y = top; y < bottom; y++) {
+                    Arrays.fill(nextBase, y * width + left, y * width + right, 0);
+                }
+            }
+            this.base = base;
+        }
+
+        int[] nextBase() {
+            return nextBase;
+        }
+
+        FrameWrite prepare(float quality) {
+            int frameWidth = right - left;
+            int frameHeight = bottom - top;
+            int[] region = new int[frameWidth * frameHeight];
+            for (int y = 0; y < frameHeight; y++) {
+                for (int x = 0; x < frameWidth; x++) {
+                    int i = (top + y) * width + left + x;
+                    // Unchanged pixels are left transparent so the screen shows through and they compress well
+                    region[y * frameWidth + x] = pixels[i] == base[i] ? 0 : pixels[i];
+                }
+            }
+
+            int maxColors = quality >= LOSSLESS_QUALITY ? 256 : PNGOptimizer.paletteSize(quality);
+            int[] palette = ColorQuantizer.exactPalette(region, maxColors);
+            byte[] indices;
+            if (palette != null) {
+                indices = ColorQuantizer.mapExact(region, palette);
+            } else {
+                palette = ColorQuantizer.buildPalette(region, maxColors);
+                indices = ColorQuantizer.mapToPalette(region, frameWidth, frameHeight, palette, false);
+            }
+            int transparentIndex = -1;
+            for (int i = 0; i < palette.length; i++) {
+                if (palette[i] >>> 24 == 0) {
+                    transparentIndex = i;
+                }
+            }
+
+            BufferedImage image = indexedImage(indices, frameWidth, frameHeight, palette);
+            int transparent = transparentIndex;
+            int[] colors = palette;
+            return writer -> {
+                IIOMetadata metadata = writer.getDefaultImageMetadata(ImageTypeSpecifier.createFromRenderedImage(image), null);
+                IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(GIF_IMAGE_METADATA);
+                IIOMetadataNode descriptor = child(root, "ImageDescriptor");
+                descriptor.setAttribute("imageLeftPosition", Integer.toString(left));
+                descriptor.setAttribute("imageTopPosition", Integer.toString(top));
+                descriptor.setAttribute("imageWidth", Integer.toString(frameWidth));
+                descriptor.setAttribute("imageHeight", Integer.toString(frameHeight));
+                descriptor.setAttribute("interlaceFlag", "FALSE");
+                // The default metadata carries a fixed colour table that would override the frame's palette
+                root.removeChild(child(root, "LocalColorTable"));
+                root.insertBefore(colorTable(colors), control(root));
+                IIOMetadataNode control = control(root);
+                control.setAttribute("disposalMethod", clear ? "restoreToBackgroundColor" : "doNotDispose");
+                control.setAttribute("userInputFlag", "FALSE");
+                control.setAttribute("transparentColorFlag", transparent >= 0 ? "TRUE" : "FALSE");
+                control.setAttribute("transparentColorIndex", Integer.toString(Math.max(0, transparent)));
+                control.setAttribute("delayTime", Integer.toString(delay));
+                if (loop != null) {
+                    IIOMetadataNode extension = new IIOMetadataNode("ApplicationExtension");
+                    extension.setAttribute("applicationID", "NETSCAPE");
+                    extension.setAttribute("authenticationCode", "2.0");
+                    extension.setUserObject(loop);
+                    child(root, "ApplicationExtensions").appendChild(extension);
+                }
+                metadata.setFromTree(GIF_IMAGE_METADATA, root);
+                writer.writeToSequence(new IIOImage(image, null, metadata), null);
+            };
+        }
+    }
+
+    private static IIOMetadataNode control(IIOMetadataNode root) {
+        return child(root, "GraphicControlExtension");
+    }
+
+    // GIF colour tables hold a power of two entries
+    private static IIOMetadataNode colorTable(int[] palette) {
+        int size = 2;
+        while (size < palette.length) {
+            size *= 2;
+        }
+        IIOMetadataNode table = new IIOMetadataNode("LocalColorTable");
+        table.setAttribute("sizeOfLocalColorTable", Integer.toString(size));
+        table.setAttribute("sortFlag", "FALSE");
+        for (int i = 0; i < size; i++) {
+            int color = i < palette.length ? palette[i] : 0;
+            IIOMetadataNode entry = new IIOMetadataNode("ColorTableEntry");
+            entry.setAttribute("index", Integer.toString(i));
+            entry.setAttribute("red", Integer.toString((color >> 16) & 0xFF));
+            entry.setAttribute("green", Integer.toString((color >> 8) & 0xFF));
+            entry.setAttribute("blue", Integer.toString(color & 0xFF));
+            table.appendChild(entry);
+        }
+        return table;
+    }
+
+    private static void submit(Callable<FrameWrite> job, ImageWriter writer, ExecutorService executor,
+                               int framesInFlight, Deque<Future<FrameWrite>> pending) throws IOException {
+        pending.add(executor.submit(job));
+        while (pending.size() > framesInFlight) {
+            writeNext(writer, pending);
+        }
+    }
+
+    private static void drain(ImageWriter writer, Deque<Future<FrameWrite>> pending) throws IOException {
+        while (!pending.isEmpty()) {
+            writeNext(writer, pending);
+        }
+    }
+
+    private static void writeNext(ImageWriter writer, Deque<Future<FrameWrite>> pending) throws IOException {
+        try {
+            pending.removeFirst().get().writeTo(writer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Frame compression interrupted", e);
+        } catch (ExecutionException e) {
+            for (Future<FrameWrite> future : pending) {
+                future.cancel(true);
+            }
+            throw new IOException("Could not compress frame: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Null past the last frame
+    private static BufferedImage readFrame(ImageReader reader, int index) throws IOException {
+        try {
+            return reader.read(index);
+        } catch (IndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private static BufferedImage scaled(BufferedImage image, int maxWidth, int maxHeight) {
+        int[] size = scaledSize(image.getWidth(), image.getHeight(), maxWidth, maxHeight);
+        if (size[0] == image.getWidth() && size[1] == image.getHeight()) {
+            return image;
+        }
+        return ImageRegionReader.scaleDown(image, size[0], size[1]);
+    }
+
+    private static int[] scaledSize(int width, int height, int maxWidth, int maxHeight) {
+        double scale = 1.0;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, maxWidth / (double) width);
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, maxHeight / (double) height);
+        }
+        if (scale >= 1.0) {
+            return new int[] {width, height};
+        }
+        return new int[] {Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    // GIF transparency is all or nothing; scaling leaves soft edges that are rounded either way here
+    private static int[] binaryAlpha(int[] argb) {
+        for (int i = 0; i < argb.length; i++) {
+            argb[i] = (argb[i] >>> 24) < 128 ? 0 : argb[i] | 0xFF000000;
+        }
+        return argb;
+    }
+
+    private static BufferedImage indexedImage(byte[] indices, int width, int height, int[] palette) {
+        byte[] red = new byte[palette.length];
+        byte[] green = new byte[palette.length];
+        byte[] blue = new byte[palette.length];
+        int transparentIndex = -1;
+        for (int i = 0; i < palette.length; i++) {
+            red[i] = (byte) (palette[i] >> 16);
+            green[i] = (byte) (palette[i] >> 8);
+            blue[i] = (byte) palette[i];
+            if (palette[i] >>> 24 == 0) {
+                transparentIndex = i;
+            }
+        }
+        IndexColorModel colorModel = new IndexColorModel(8, palette.length, red, green, blue, transparentIndex);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+        byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        System.arraycopy(indices, 0, data, 0, indices.length);
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = copy.createGraphics();
+        graphics.setComposite(AlphaComposite.Src);
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return copy;
+    }
+
+    private static IIOMetadata gifStreamMetadata(ImageWriter writer, int width, int height) throws IOException {
+        IIOMetadata metadata = writer.getDefaultStreamMetadata(null);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(GIF_STREAM_METADATA);
+        child(root, "Version").setAttribute("value", "89a");
+        IIOMetadataNode screen = child(root, "LogicalScreenDescriptor");
+        screen.setAttribute("logicalScreenWidth", Integer.toString(width));
+        screen.setAttribute("logicalScreenHeight", Integer.toString(height));
+        screen.setAttribute("colorResolution", "8");
+        screen.setAttribute("pixelAspectRatio", "0");
+        metadata.setFromTree(GIF_STREAM_METADATA, root);
+        return metadata;
+    }
+
+    private static IIOMetadataNode streamTree(ImageReader reader) throws IOException {
+        IIOMetadata metadata = reader.getStreamMetadata();
+        return metadata == null ? new IIOMetadataNode(GIF_STREAM_METADATA)
+            : (IIOMetadataNode) metadata.getAsTree(GIF_STREAM_METADATA);
+    }
+
+    // The NETSCAPE2.0 block that makes the animation loop, if the source has one
+    private static byte[] loopExtension(IIOMetadataNode metadata) {
+        IIOMetadataNode extensions = child(metadata, "ApplicationExtensions");
+        for (int i = 0; i < extensions.getLength(); i++) {
+            IIOMetadataNode extension = (IIOMetadataNode) extensions.item(i);
+            if (extension.getAttribute("applicationID").equals("NETSCAPE")
+                    && extension.getUserObject() instanceof byte[]) {
+                return (byte[]) extension.getUserObject();
+            }
+        }
+        return null;
+    }
+
+    // Finds a child node by name, adding an empty one if it is missing
+    private static IIOMetadataNode child(IIOMetadataNode parent, String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) parent.item(i);
+            }
+        }
+        IIOMetadataNode node = new IIOMetadataNode(name);
+        parent.appendChild(node);
+        return node;
+    }
+
+    private static int intAttribute(IIOMetadataNode node, String name, int defaultValue) {
+        String value = node.getAttribute(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static ImageWriter writerFor(String formatName) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(isTiff(formatName) ? "tiff" : formatName);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer found for format: " + formatName);
+        }
+        return writers.next();
+    }
+
+    private static boolean isTiff(String formatName) {
+        return formatName.equalsIgnoreCase("tif") || formatName.equalsIgnoreCase("tiff");
+    }
+}
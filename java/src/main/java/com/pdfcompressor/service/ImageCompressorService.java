@@ -1,5 +1,9 @@
 package com.pdfcompressor.service;
 
+import com.pdfcompressor.model.ImageCompressionOptions;
+import com.pdfcompressor.model.ResponsiveImageVariant;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -8,16 +12,26 @@ import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
 import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Service
 public class ImageCompressorService {
@@ -25,7 +39,25 @@ public class ImageCompressorService {
     private final Path uploadDir = Paths.get("uploads");
     private final Path outputDir = Paths.get("outputs");
 
-    public ImageCompressorService() {
+    // "_compressed" plus the width of a responsive variant, before the extension
+    private static final Pattern COMPRESSED_SUFFIX = Pattern.compile("_compressed(_w\\d+)?\\.([^.]+)$");
+
+    private final PNGOptimizer pngOptimizer;
+    private final PerceptualQualitySearch qualitySearch;
+    private final WebPEncoder webpEncoder;
+    private final ExecutorService encodeExecutor;
+
+    @Autowired
+    public ImageCompressorService(PNGOptimizer pngOptimizer, PerceptualQualitySearch qualitySearch,
+                                  WebPEncoder webpEncoder) {
+        this.pngOptimizer = pngOptimizer;
+        this.qualitySearch = qualitySearch;
+        this.webpEncoder = webpEncoder;
+        this.encodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "image-encode");
+            thread.setDaemon(true);
+            return thread;
+        });
         try {
             Files.createDirectories(uploadDir);
             Files.createDirectories(outputDir);
@@ -35,13 +67,26 @@ public class ImageCompressorService {
     }
 
     public String compressImage(MultipartFile file, float quality) throws IOException {
+        return compressImage(file, new ImageCompressionOptions(quality));
+    }
+
+    // maxWidth and maxHeight bound the output size (0 for no limit); the aspect ratio is kept.
+    // lossless keeps every pixel and ignores quality; a resize is never lossless, so it only applies
+    // when no bounds are given. A target SSIM replaces quality with the lowest one that reaches it.
+    // An output format converts the image; WebP output is lossless when lossless is set. The returned
+    // name has the original's extension when the original is handed back instead
+    public String compressImage(MultipartFile file, ImageCompressionOptions options) throws IOException {
         // Generate unique file names
         String originalFileName = file.getOriginalFilename();
         String fileExtension = getFileExtension(originalFileName);
         String fileId = file.getOriginalFilename();
-        
+        String outputExtension = options.getOutputFormat() == null || options.getOutputFormat().isBlank()
+            ? fileExtension : options.getOutputFormat().toLowerCase();
+        boolean converting = !outputExtension.equals(fileExtension);
+
         Path inputPath = uploadDir.resolve(fileId + "." + fileExtension);
-        Path outputPath = outputDir.resolve(fileId + "_compressed." + fileExtension);
+        Path outputPath = outputDir.resolve(fileId + "_compressed." + outputExtension);
+        String compressedFileName = outputPath.getFileName().toString();
 
         // Save the uploaded file
         Files.write(inputPath, file.getBytes());
@@ -51,80 +96,225 @@ public class ImageCompressorService {
 
         try {
             // Compress the image
-            compressImageFile(inputPath.toString(), outputPath.toString(), fileExtension, quality);
+            if (options.isLossless() && !converting && options.getMaxWidth() <= 0 && options.getMaxHeight() <= 0) {
+                compressLossless(inputPath, outputPath, fileExtension);
+            } else {
+                compressImageFile(inputPath.toString(), outputPath.toString(), fileExtension, outputExtension, options);
+            }
 
             // Check if compression actually reduced the file size
             long compressedSize = Files.size(outputPath);
             
             // If compression increased the file size, use the original file instead
             if (compressedSize > originalSize) {
-                Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+                compressedFileName = useOriginal(inputPath, outputPath, fileId, fileExtension);
                 System.out.println("Compression increased file size. Using original file instead.");
             }
         } catch (Exception e) {
             // If any error occurs during compression, use the original file
-            Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+            compressedFileName = useOriginal(inputPath, outputPath, fileId, fileExtension);
             System.out.println("Error during compression: " + e.getMessage() + ". Using original file instead.");
         }
 
         // Return the ID of the compressed file
-        return fileId + "_compressed." + fileExtension;
+        return compressedFileName;
+    }
+
+    // A converted output is replaced by the original under its own extension
+    private String useOriginal(Path inputPath, Path outputPath, String fileId, String fileExtension) throws IOException {
+        Path originalOutputPath = outputDir.resolve(fileId + "_compressed." + fileExtension);
+        if (!originalOutputPath.equals(outputPath)) {
+            Files.deleteIfExists(outputPath);
+        }
+        Files.copy(inputPath, originalOutputPath, StandardCopyOption.REPLACE_EXISTING);
+        return originalOutputPath.getFileName().toString();
+    }
+
+    // WebP, or any format an ImageIO writer is installed for
+    public boolean isSupportedOutputFormat(String formatName) {
+        return formatName.equalsIgnoreCase("webp") || ImageIO.getImageWritersByFormatName(formatName).hasNext();
+    }
+
+    // Produces the image at each of the given widths for a srcset, from a single decode. The widths
+    // are built largest first, each scaled down from the one above it, and every width is encoded
+    // in parallel as soon as it exists. Widths above the original's are capped to it
+    public List<ResponsiveImageVariant> compressResponsive(MultipartFile file, List<Integer> widths,
+                                                           float quality) throws IOException {
+        String originalFileName = file.getOriginalFilename();
+        String fileExtension = getFileExtension(originalFileName);
+        String fileId = file.getOriginalFilename();
+
+        Path inputPath = uploadDir.resolve(fileId + "." + fileExtension);
+        try (var inputStream = file.getInputStream()) {
+            Files.copy(inputStream, inputPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+        long originalSize = Files.size(inputPath);
+
+        try (ImageRegionReader reader = ImageRegionReader.open(inputPath)) {
+            int originalWidth = reader.getWidth();
+            int originalHeight = reader.getHeight();
+            TreeSet<Integer> targetWidths = new TreeSet<>();
+            for (int width : widths) {
+                targetWidths.add(Math.min(width, originalWidth));
+            }
+
+            // Decodes with subsampling when even the largest width is well below the original
+            BufferedImage level = reader.readScaled(targetWidths.last(), 0);
+            List<Future<ResponsiveImageVariant>> futures = new ArrayList<>();
+            for (int width : targetWidths.descendingSet()) {
+                int height = Math.max(1, (int) Math.round(originalHeight * (width / (double) originalWidth)));
+                level = ImageRegionReader.scaleDown(level, width, height);
+                BufferedImage image = level;
+                Path outputPath = outputDir.resolve(fileId + "_compressed_w" + width + "." + fileExtension);
+                futures.add(encodeExecutor.submit(() -> {
+                    Files.write(outputPath, encodeImage(image, fileExtension, quality));
+                    // Same rule as a single compression: the full-size variant is never larger than the upload
+                    if (width == originalWidth && Files.size(outputPath) > originalSize) {
+                        Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    return new ResponsiveImageVariant(width, image.getHeight(), outputPath.getFileName().toString(),
+                        Files.size(outputPath));
+                }));
+            }
+
+            List<ResponsiveImageVariant> variants = new ArrayList<>();
+            for (Future<ResponsiveImageVariant> future : futures) {
+                variants.add(0, future.get());
+            }
+            System.out.println("Created " + variants.size() + " responsive variants of " + originalWidth + "x"
+                + originalHeight + " image " + fileId);
+            return variants;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Responsive image generation interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not encode variant: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // JPEGs are optimized at the marker and DCT coefficient level without decoding pixels, PNGs are
+    // re-encoded without quantizing; other formats, and PNGs deeper than 8 bits, are kept as they are
+    private void compressLossless(Path inputPath, Path outputPath, String formatName) throws IOException {
+        byte[] optimized = null;
+        if (formatName.equalsIgnoreCase("jpg") || formatName.equalsIgnoreCase("jpeg")) {
+            optimized = JPEGLosslessOptimizer.optimize(Files.readAllBytes(inputPath));
+        } else if (formatName.equalsIgnoreCase("png")) {
+            BufferedImage image = ImageIO.read(inputPath.toFile());
+            if (image.getColorModel().getComponentSize(0) <= 8) {
+                optimized = pngOptimizer.optimize(image, 1.0f);
+            }
+        }
+
+        if (optimized == null) {
+            System.out.println("No lossless optimization for " + inputPath.getFileName() + ", keeping it as is");
+            Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+        Files.write(outputPath, optimized);
+    }
+
+    private void compressImageFile(String inputPath, String outputPath, String inputFormat, String formatName,
+                                   ImageCompressionOptions options) throws IOException {
+        int maxWidth = options.getMaxWidth();
+        int maxHeight = options.getMaxHeight();
+        // Every frame of a multi-page TIFF or animated GIF is kept; a quality target is not searched for them
+        if (FrameSequenceCompressor.handles(formatName) && formatName.equals(inputFormat)) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            FrameSequenceCompressor.compress(Paths.get(inputPath), Paths.get(outputPath), formatName,
+                options.getQuality(), maxWidth, maxHeight, encodeExecutor, threads + 1);
+            return;
+        }
+
+        // Read the image, decoding only as many pixels as the output needs when it is being scaled down
+        BufferedImage image;
+        if (maxWidth > 0 || maxHeight > 0) {
+            try (ImageRegionReader reader = ImageRegionReader.open(Paths.get(inputPath))) {
+                image = reader.readScaled(maxWidth, maxHeight);
+            }
+        } else {
+            image = ImageIO.read(new java.io.File(inputPath));
+        }
+
+        byte[] compressedImageData;
+        if (formatName.equals("webp") && options.isLossless()) {
+            compressedImageData = webpEncoder.encode(image, options.getQuality(), true);
+        } else if (options.getTargetSsim() > 0 && supportsQuality(formatName)) {
+            PerceptualQualitySearch.Candidate best = qualitySearch.search(image,
+                quality -> encodeImage(image, formatName, quality), options.getTargetSsim());
+            compressedImageData = best.data;
+        } else {
+            compressedImageData = encodeImage(image, formatName, options.getQuality());
+        }
+
+        // Write the compressed image to file
+        Files.write(Paths.get(outputPath), compressedImageData);
     }
 
-    private void compressImageFile(String inputPath, String outputPath, String formatName, float quality) throws IOException {
-        // Read the image
-        BufferedImage image = ImageIO.read(new java.io.File(inputPath));
-        
+    private boolean supportsQuality(String formatName) {
+        if (formatName.equalsIgnoreCase("png") || formatName.equalsIgnoreCase("webp")) {
+            return true;
+        }
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
+        if (!writers.hasNext()) {
+            return false;
+        }
+        ImageWriter writer = writers.next();
+        try {
+            return writer.getDefaultWriteParam().canWriteCompressed();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    // Safe to call from several threads at once on the same image
+    private byte[] encodeImage(BufferedImage image, String formatName, float quality) throws IOException {
         // For PNG files with transparency, we need special handling
         if (formatName.equalsIgnoreCase("png")) {
-            compressPNG(image, outputPath, quality);
-            return;
+            // Stays in PNG: palette quantization or lossless re-encoding, with alpha kept
+            return pngOptimizer.optimize(image, quality);
+        }
+        if (FrameSequenceCompressor.handles(formatName)) {
+            return FrameSequenceCompressor.encode(image, formatName, quality);
+        }
+        if (formatName.equalsIgnoreCase("webp")) {
+            return webpEncoder.encode(image, quality, false);
+        }
+        // JPEG has no alpha; transparent areas become white when converting
+        if ((formatName.equalsIgnoreCase("jpg") || formatName.equalsIgnoreCase("jpeg")) && image.getColorModel().hasAlpha()) {
+            BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = opaque.createGraphics();
+            graphics.drawImage(image, 0, 0, Color.WHITE, null);
+            graphics.dispose();
+            image = opaque;
         }
-        
+
         // For other formats, use standard compression
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(formatName);
-        
+
         if (!writers.hasNext()) {
             throw new IOException("No writer found for format: " + formatName);
         }
-        
+
         ImageWriter writer = writers.next();
         ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(outputStream);
         writer.setOutput(imageOutputStream);
-        
+
         ImageWriteParam param = writer.getDefaultWriteParam();
-        
+
         // Not all formats support compression
         if (param.canWriteCompressed()) {
             param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
             param.setCompressionQuality(quality);
         }
-        
+
         writer.write(null, new IIOImage(image, null, null), param);
         writer.dispose();
         imageOutputStream.close();
-        
-        // Write the compressed image to file
-        byte[] compressedImageData = outputStream.toByteArray();
-        Files.write(Paths.get(outputPath), compressedImageData);
-    }
-    
-    private void compressPNG(BufferedImage image, String outputPath, float quality) throws IOException {
-        // For PNG, we don't use compression quality directly
-        // Instead, we can reduce the color depth or use a different compression method
-        
-        // Convert to a format that can be compressed, then back to PNG
-        ByteArrayOutputStream jpgOutput = new ByteArrayOutputStream();
-        ImageIO.write(image, "jpg", jpgOutput);
-        
-        // Read the JPG back in (this loses transparency)
-        BufferedImage jpgImage = ImageIO.read(new ByteArrayInputStream(jpgOutput.toByteArray()));
-        
-        // Write as PNG
-        ImageIO.write(jpgImage, "png", new java.io.File(outputPath));
+
+        return outputStream.toByteArray();
     }
-    
+
     private String getFileExtension(String filename) {
         if (filename == null) {
             return "jpg";
@@ -147,7 +337,7 @@ public class ImageCompressorService {
     
     public long getOriginalFileSize(String fileName) throws IOException {
         // Extract the original file ID and extension from the compressed file name
-        String originalFileName = fileName.replace("_compressed.", ".");
+        String originalFileName = originalFileName(fileName);
         Path filePath = uploadDir.resolve(originalFileName);
         return Files.size(filePath);
     }
@@ -165,17 +355,18 @@ public class ImageCompressorService {
             Path compressedUploadPath = uploadDir.resolve(fileName);
             boolean compressedUploadDeleted = Files.deleteIfExists(compressedUploadPath);
             
-            // Delete the original file from the upload directory
-            String originalFileName = fileName.replace("_compressed.", ".");
+            // Delete the original file from the upload directory, unless other variants still need it
+            String originalFileName = originalFileName(fileName);
             Path originalFilePath = uploadDir.resolve(originalFileName);
-            boolean originalDeleted = Files.deleteIfExists(originalFilePath);
-            allDeleted = allDeleted && originalDeleted;
+            boolean originalKept = hasRemainingOutputs(fileName);
+            boolean originalDeleted = !originalKept && Files.deleteIfExists(originalFilePath);
+            allDeleted = allDeleted && (originalKept || originalDeleted);
             
             // Log deletion results
             System.out.println("File deletion results:");
             System.out.println("- Compressed file (output): " + (compressedOutputDeleted ? "Deleted" : "Not found"));
             System.out.println("- Compressed file (upload): " + (compressedUploadDeleted ? "Deleted" : "Not found"));
-            System.out.println("- Original file (upload): " + (originalDeleted ? "Deleted" : "Not found"));
+            System.out.println("- Original file (upload): " + (originalKept ? "Kept for remaining variants" : originalDeleted ? "Deleted" : "Not found"));
             
             return allDeleted;
         } catch (IOException e) {
@@ -183,4 +374,24 @@ public class ImageCompressorService {
             return false;
         }
     }
+
+    // The upload is stored under the extension of its own name, whatever format the output is in
+    private String originalFileName(String fileName) {
+        String fileId = COMPRESSED_SUFFIX.matcher(fileName).replaceFirst("");
+        return fileId + "." + getFileExtension(fileId);
+    }
+
+    private boolean hasRemainingOutputs(String fileName) throws IOException {
+        String fileId = COMPRESSED_SUFFIX.matcher(fileName).replaceFirst("");
+        try (Stream<Path> outputs = Files.list(outputDir)) {
+            return outputs.map(path -> path.getFileName().toString())
+                .anyMatch(name -> name.startsWith(fileId)
+                    && COMPRESSED_SUFFIX.matcher(name.substring(fileId.length())).matches());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        encodeExecutor.shutdownNow();
+    }
 }
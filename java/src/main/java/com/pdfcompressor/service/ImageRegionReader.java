@@ -0,0 +1,121 @@
+package com.pdfcompressor.service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+// Decodes parts of an image file without decoding all of it: the size comes from the header,
+// rows can be read a region at a time, and downscaled copies are decoded with reader-level
+// subsampling. Formats with strips or tiles (TIFF) seek straight to a region; JPEG and PNG
+// readers still decode the rows above it, but only keep the region in memory
+final class ImageRegionReader implements Closeable {
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+
+    private ImageRegionReader(ImageInputStream input, ImageReader reader) {
+        this.input = input;
+        this.reader = reader;
+    }
+
+    static ImageRegionReader open(Path path) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(path.toFile());
+        if (input == null) {
+            throw new IOException("Cannot open image: " + path);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("No reader found for image: " + path);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, false, true);
+        return new ImageRegionReader(input, reader);
+    }
+
+    int getWidth() throws IOException {
+        return reader.getWidth(0);
+    }
+
+    int getHeight() throws IOException {
+        return reader.getHeight(0);
+    }
+
+    long getPixelCount() throws IOException {
+        return (long) getWidth() * getHeight();
+    }
+
+    BufferedImage read(Rectangle region) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        return reader.read(0, param);
+    }
+
+    // Decodes the image scaled to fit within maxWidth x maxHeight (0 for no limit), keeping the
+    // aspect ratio and never enlarging. Only every n-th pixel is decoded while the image is still
+    // at least twice the target, so peak memory follows the output size rather than the input's
+    BufferedImage readScaled(int maxWidth, int maxHeight) throws IOException {
+        return readScaled(0, maxWidth, maxHeight);
+    }
+
+    // The same for one page of a multi-page TIFF or frame of a GIF; the index starts at 0
+    BufferedImage readScaled(int imageIndex, int maxWidth, int maxHeight) throws IOException {
+        int width = reader.getWidth(imageIndex);
+        int height = reader.getHeight(imageIndex);
+        double scale = 1.0;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, maxWidth / (double) width);
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, maxHeight / (double) height);
+        }
+        if (scale >= 1.0) {
+            return reader.read(imageIndex);
+        }
+
+        int targetWidth = Math.max(1, (int) Math.round(width * scale));
+        int targetHeight = Math.max(1, (int) Math.round(height * scale));
+        int subsampling = Math.max(1, (int) Math.floor(1 / scale / 2));
+
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        BufferedImage decoded = reader.read(imageIndex, param);
+        System.out.println("Decoded " + width + "x" + height + " image at 1/" + subsampling + " as "
+            + decoded.getWidth() + "x" + decoded.getHeight() + " for a " + targetWidth + "x" + targetHeight + " output");
+        return scaleDown(decoded, targetWidth, targetHeight);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+
+    // Halves with bilinear filtering until within 2x of the target, then scales the rest of the way,
+    // which avoids the aliasing of a single large bilinear step
+    static BufferedImage scaleDown(BufferedImage image, int targetWidth, int targetHeight) {
+        BufferedImage current = image;
+        while (current.getWidth() != targetWidth || current.getHeight() != targetHeight) {
+            int nextWidth = Math.max(targetWidth, current.getWidth() / 2);
+            int nextHeight = Math.max(targetHeight, current.getHeight() / 2);
+            int type = current.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+            BufferedImage next = new BufferedImage(nextWidth, nextHeight, type);
+            Graphics2D graphics = next.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(current, 0, 0, nextWidth, nextHeight, null);
+            graphics.dispose();
+            current = next;
+        }
+        return current;
+    }
+}
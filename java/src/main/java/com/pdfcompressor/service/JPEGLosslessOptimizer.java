@@ -0,0 +1,1076 @@
+package com.pdfcompressor.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Shrinks a JPEG without touching its pixels. Metadata segments are stripped (EXIF, XMP, comments,
+// Photoshop data and thumbnails), keeping the JFIF header, the Adobe colour transform flag, one
+// copy of the ICC profile and the EXIF orientation. Baseline Huffman files are then entropy-decoded
+// to their quantized DCT coefficients and re-encoded with Huffman tables built for this image, both
+// as baseline and as a progressive (spectral selection) file, keeping whichever is smaller. Other
+// JPEG variants only get the metadata stripped. The coefficients are never dequantized, so the
+// decoded pixels are exactly those of the original
+final class JPEGLosslessOptimizer {
+
+    private static final int SOI = 0xD8;
+    private static final int EOI = 0xD9;
+    private static final int SOS = 0xDA;
+    private static final int DQT = 0xDB;
+    private static final int DHT = 0xC4;
+    private static final int DRI = 0xDD;
+    private static final int COM = 0xFE;
+    private static final int APP0 = 0xE0;
+    private static final int APP1 = 0xE1;
+    private static final int APP2 = 0xE2;
+    private static final int APP14 = 0xEE;
+
+    private JPEGLosslessOptimizer() {
+    }
+
+    // Returns the optimized file, or null if the data is not a JPEG this class can read
+    static byte[] optimize(byte[] jpeg) {
+        Parsed parsed;
+        try {
+            parsed = parse(jpeg);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not parse JPEG for lossless optimization: " + e.getMessage());
+            return null;
+        }
+
+        byte[] best = parsed.markerOnly();
+        if (parsed.frame != null && parsed.coefficientsDecoded) {
+            try {
+                byte[] reencoded = parsed.encode();
+                if (reencoded.length < best.length) {
+                    best = reencoded;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not re-encode JPEG coefficients: " + e.getMessage());
+            }
+        }
+        return best;
+    }
+
+    private static Parsed parse(byte[] data) throws IOException {
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != SOI) {
+            throw new IOException("Not a JPEG file");
+        }
+        Parsed parsed = new Parsed();
+        HuffmanDecoder[] dcTables = new HuffmanDecoder[4];
+        HuffmanDecoder[] acTables = new HuffmanDecoder[4];
+        int restartInterval = 0;
+        boolean decodable = true;
+        IccChunks icc = new IccChunks();
+
+        int pos = 2;
+        while (true) {
+            if (pos + 1 >= data.length) {
+                throw new IOException("Missing end of image");
+            }
+            if ((data[pos] & 0xFF) != 0xFF) {
+                throw new IOException("Corrupt marker at offset " + pos);
+            }
+            int marker = data[pos + 1] & 0xFF;
+            if (marker == 0xFF) {
+                pos++;
+                continue;
+            }
+            if (marker == EOI) {
+                break;
+            }
+            int length = u16(data, pos + 2);
+            int end = pos + 2 + length;
+            if (end > data.length) {
+                throw new IOException("Truncated segment");
+            }
+            byte[] segment = slice(data, pos, end);
+
+            if ((marker >= APP0 && marker <= 0xEF) || marker == COM) {
+                byte[] kept = filterMetadata(marker, segment, icc);
+                if (kept != null) {
+                    parsed.metadata.add(kept);
+                    parsed.rawSegments.add(kept);
+                }
+            } else if (marker == DQT) {
+                parsed.quantTables.add(segment);
+                parsed.rawSegments.add(segment);
+            } else if (marker == DHT) {
+                parseHuffmanTables(segment, dcTables, acTables);
+                parsed.rawSegments.add(segment);
+            } else if (marker == DRI) {
+                restartInterval = u16(data, pos + 4);
+                parsed.rawSegments.add(segment);
+            } else if (isFrameMarker(marker)) {
+                parsed.frame = new Frame(segment);
+                parsed.rawSegments.add(segment);
+                // Only 8-bit sequential Huffman frames are re-encoded
+                decodable = (marker == 0xC0 || marker == 0xC1) && parsed.frame.precision == 8
+                    && parsed.frame.height > 0;
+            } else if (marker == SOS) {
+                int scanEnd = findScanEnd(data, end);
+                parsed.rawSegments.add(slice(data, pos, scanEnd));
+                if (decodable && parsed.frame != null) {
+                    try {
+                        decodeScan(data, segment, end, parsed.frame, dcTables, acTables, restartInterval);
+                    } catch (IOException | RuntimeException e) {
+                        System.out.println("Keeping JPEG entropy data as is: " + e.getMessage());
+                        decodable = false;
+                    }
+                }
+                pos = scanEnd;
+                continue;
+            } else {
+                // DNL, DAC, EXP and the like: readers need them, and the coefficient path does not handle them
+                decodable = false;
+                parsed.rawSegments.add(segment);
+            }
+            pos = end;
+        }
+
+        parsed.coefficientsDecoded = decodable && parsed.frame != null && parsed.frame.allComponentsDecoded();
+        return parsed;
+    }
+
+    // Everything a decoder needs from the original file, after metadata stripping
+    private static final class Parsed {
+        final List<byte[]> metadata = new ArrayList<>();
+        final List<byte[]> quantTables = new ArrayList<>();
+        final List<byte[]> rawSegments = new ArrayList<>();
+        Frame frame;
+        boolean coefficientsDecoded;
+
+        byte[] markerOnly() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0xFF);
+            out.write(SOI);
+            for (byte[] segment : rawSegments) {
+                out.writeBytes(segment);
+            }
+            out.write(0xFF);
+            out.write(EOI);
+            return out.toByteArray();
+        }
+
+        // Counts symbols for both layouts, then writes only the one whose optimal codes come out smaller
+        byte[] encode() throws IOException {
+            List<Scan> progressive = frame.progressiveScans();
+            long progressiveBits = 0;
+            for (Scan scan : progressive) {
+                progressiveBits += scan.prepare(frame);
+            }
+            List<Scan> scans = progressive;
+            if (frame.components.length == 1 || frame.blocksPerMcu() <= 10) {
+                Scan baseline = new Scan(frame.components, 0, 63);
+                if (baseline.prepare(frame) <= progressiveBits) {
+                    scans = List.of(baseline);
+                }
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(0xFF);
+            out.write(SOI);
+            for (byte[] segment : metadata) {
+                out.writeBytes(segment);
+            }
+            for (byte[] segment : quantTables) {
+                out.writeBytes(segment);
+            }
+            byte[] sof = frame.segment.clone();
+            sof[1] = (byte) (scans == progressive ? 0xC2 : 0xC0);
+            out.writeBytes(sof);
+            for (Scan scan : scans) {
+                scan.write(frame, out);
+            }
+            out.write(0xFF);
+            out.write(EOI);
+            return out.toByteArray();
+        }
+    }
+
+    private static final class Component {
+        final int id;
+        final int h;
+        final int v;
+        int blocksPerLine;
+        int blockRows;
+        // Blocks covered by a scan of this component alone, which skips the MCU padding
+        int scanBlocksPerLine;
+        int scanBlockRows;
+        short[] coefficients;
+        boolean decoded;
+
+        Component(int id, int h, int v) {
+            this.id = id;
+            this.h = h;
+            this.v = v;
+        }
+
+        int offset(int blockRow, int blockColumn) {
+            return (blockRow * blocksPerLine + blockColumn) * 64;
+        }
+    }
+
+    private static final class Frame {
+        final byte[] segment;
+        final int precision;
+        final int height;
+        final int width;
+        final Component[] components;
+        final int maxH;
+        final int maxV;
+        final int mcusPerLine;
+        final int mcuRows;
+
+        Frame(byte[] segment) throws IOException {
+            this.segment = segment;
+            precision = segment[4] & 0xFF;
+            height = u16(segment, 5);
+            width = u16(segment, 7);
+            int count = segment[9] & 0xFF;
+            if (count < 1 || count > 4 || width == 0 || segment.length < 10 + count * 3) {
+                throw new IOException("Unsupported frame header");
+            }
+            components = new Component[count];
+            int h = 1;
+            int v = 1;
+            for (int i = 0; i < count; i++) {
+                int offset = 10 + i * 3;
+                int sampling = segment[offset + 1] & 0xFF;
+                components[i] = new Component(segment[offset] & 0xFF, Math.max(1, sampling >> 4),
+                    Math.max(1, sampling & 0x0F));
+                h = Math.max(h, components[i].h);
+                v = Math.max(v, components[i].v);
+            }
+            maxH = h;
+            maxV = v;
+            mcusPerLine = ceilDiv(width, 8 * maxH);
+            mcuRows = height > 0 ? ceilDiv(height, 8 * maxV) : 0;
+            if (height > 0) {
+                for (Component component : components) {
+                    component.blocksPerLine = mcusPerLine * component.h;
+                    component.blockRows = mcuRows * component.v;
+                    component.scanBlocksPerLine = ceilDiv(ceilDiv(width * component.h, maxH), 8);
+                    component.scanBlockRows = ceilDiv(ceilDiv(height * component.v, maxV), 8);
+                }
+            }
+        }
+
+        Component component(int id) throws IOException {
+            for (Component component : components) {
+                if (component.id == id) {
+                    if (component.coefficients == null) {
+                        long size = (long) component.blocksPerLine * component.blockRows * 64;
+                        if (size > Integer.MAX_VALUE) {
+                            throw new IOException("Image too large");
+                        }
+                        component.coefficients = new short[(int) size];
+                    }
+                    return component;
+                }
+            }
+            throw new IOException("Scan refers to unknown component " + id);
+        }
+
+        boolean allComponentsDecoded() {
+            for (Component component : components) {
+                if (!component.decoded) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int blocksPerMcu() {
+            int blocks = 0;
+            for (Component component : components) {
+                blocks += component.h * component.v;
+            }
+            return blocks;
+        }
+
+        // The spectral-selection part of the usual progressive script: all DC first, then the low
+        // luma frequencies, the chroma, and the rest of the luma
+        List<Scan> progressiveScans() {
+            List<Scan> scans = new ArrayList<>();
+            if (components.length == 1 || blocksPerMcu() <= 10) {
+                scans.add(new Scan(components, 0, 0));
+            } else {
+                for (Component component : components) {
+                    scans.add(new Scan(new Component[] {component}, 0, 0));
+                }
+            }
+            if (components.length == 3) {
+                scans.add(new Scan(new Component[] {components[0]}, 1, 5));
+                scans.add(new Scan(new Component[] {components[2]}, 1, 63));
+                scans.add(new Scan(new Component[] {components[1]}, 1, 63));
+                scans.add(new Scan(new Component[] {components[0]}, 6, 63));
+            } else if (components.length == 1) {
+                scans.add(new Scan(components, 1, 5));
+                scans.add(new Scan(components, 6, 63));
+            } else {
+                for (Component component : components) {
+                    scans.add(new Scan(new Component[] {component}, 1, 63));
+                }
+            }
+            return scans;
+        }
+    }
+
+    private static boolean isFrameMarker(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != DHT && marker != 0xC8 && marker != 0xCC;
+    }
+
+    // ---- Decoding ----
+
+    private static void parseHuffmanTables(byte[] segment, HuffmanDecoder[] dcTables, HuffmanDecoder[] acTables)
+            throws IOException {
+        int pos = 4;
+        while (pos < segment.length) {
+            int classAndId = segment[pos] & 0xFF;
+            int[] counts = new int[17];
+            int total = 0;
+            for (int i = 1; i <= 16; i++) {
+                counts[i] = segment[pos + i] & 0xFF;
+                total += counts[i];
+            }
+            if (pos + 17 + total > segment.length) {
+                throw new IOException("Truncated Huffman table");
+            }
+            int[] values = new int[total];
+            for (int i = 0; i < total; i++) {
+                values[i] = segment[pos + 17 + i] & 0xFF;
+            }
+            HuffmanDecoder table = new HuffmanDecoder(counts, values);
+            if ((classAndId >> 4) == 0) {
+                dcTables[classAndId & 3] = table;
+            } else {
+                acTables[classAndId & 3] = table;
+            }
+            pos += 17 + total;
+        }
+    }
+
+    private static void decodeScan(byte[] data, byte[] header, int dataStart, Frame frame,
+                                   HuffmanDecoder[] dcTables, HuffmanDecoder[] acTables,
+                                   int restartInterval) throws IOException {
+        int count = header[4] & 0xFF;
+        Component[] components = new Component[count];
+        HuffmanDecoder[] dc = new HuffmanDecoder[count];
+        HuffmanDecoder[] ac = new HuffmanDecoder[count];
+        for (int i = 0; i < count; i++) {
+            components[i] = frame.component(header[5 + i * 2] & 0xFF);
+            int tables = header[6 + i * 2] & 0xFF;
+            dc[i] = dcTables[tables >> 4];
+            ac[i] = acTables[tables & 3];
+            if (dc[i] == null || ac[i] == null) {
+                throw new IOException("Scan uses an undefined Huffman table");
+            }
+        }
+        int spectralStart = header[5 + count * 2] & 0xFF;
+        int spectralEnd = header[6 + count * 2] & 0xFF;
+        int approximation = header[7 + count * 2] & 0xFF;
+        if (spectralStart != 0 || spectralEnd != 63 || approximation != 0) {
+            throw new IOException("Not a sequential scan");
+        }
+
+        BitReader reader = new BitReader(data, dataStart);
+        int[] predictors = new int[count];
+        int mcuCount;
+        int mcusPerLine;
+        if (count == 1) {
+            mcusPerLine = components[0].scanBlocksPerLine;
+            mcuCount = mcusPerLine * components[0].scanBlockRows;
+        } else {
+            mcusPerLine = frame.mcusPerLine;
+            mcuCount = mcusPerLine * frame.mcuRows;
+        }
+
+        for (int mcu = 0; mcu < mcuCount; mcu++) {
+            if (restartInterval > 0 && mcu > 0 && mcu % restartInterval == 0) {
+                reader.restart();
+                Arrays.fill(predictors, 0);
+            }
+            int mcuRow = mcu / mcusPerLine;
+            int mcuColumn = mcu % mcusPerLine;
+            for (int i = 0; i < count; i++) {
+                Component component = components[i];
+                if (count == 1) {
+                    predictors[i] = decodeBlock(reader, dc[i], ac[i], component.coefficients,
+                        component.offset(mcuRow, mcuColumn), predictors[i]);
+                    continue;
+                }
+                for (int v = 0; v < component.v; v++) {
+                    for (int h = 0; h < component.h; h++) {
+                        predictors[i] = decodeBlock(reader, dc[i], ac[i], component.coefficients,
+                            component.offset(mcuRow * component.v + v, mcuColumn * component.h + h), predictors[i]);
+                    }
+                }
+            }
+        }
+        for (Component component : components) {
+            component.decoded = true;
+        }
+    }
+
+    // Coefficients are stored in zigzag order, which is also the order they are written in
+    private static int decodeBlock(BitReader reader, HuffmanDecoder dc, HuffmanDecoder ac, short[] coefficients,
+                                   int offset, int predictor) throws IOException {
+        int size = dc.decode(reader);
+        int value = predictor + (size == 0 ? 0 : extend(reader.readBits(size), size));
+        coefficients[offset] = (short) value;
+        for (int k = 1; k < 64; ) {
+            int symbol = ac.decode(reader);
+            int run = symbol >> 4;
+            int bits = symbol & 0x0F;
+            if (bits == 0) {
+                if (run != 15) {
+                    break;
+                }
+                k += 16;
+                continue;
+            }
+            k += run;
+            if (k > 63) {
+                throw new IOException("Coefficient index out of range");
+            }
+            coefficients[offset + k] = (short) extend(reader.readBits(bits), bits);
+            k++;
+        }
+        return value;
+    }
+
+    private static int extend(int value, int size) {
+        return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+    }
+
+    // Offset of the first marker after the entropy-coded data, skipping stuffed bytes and restart markers
+    private static int findScanEnd(byte[] data, int pos) throws IOException {
+        while (pos + 1 < data.length) {
+            if ((data[pos] & 0xFF) == 0xFF) {
+                int next = data[pos + 1] & 0xFF;
+                if (next != 0 && next != 0xFF && (next < 0xD0 || next > 0xD7)) {
+                    return pos;
+                }
+                pos += next == 0xFF ? 1 : 2;
+            } else {
+                pos++;
+            }
+        }
+        throw new IOException("Scan is not terminated");
+    }
+
+    private static final class HuffmanDecoder {
+        private static final int LOOKAHEAD = 9;
+
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final int[] values;
+        // (length << 8 | value) for codes of up to LOOKAHEAD bits, 0 otherwise
+        final int[] lookup = new int[1 << LOOKAHEAD];
+
+        HuffmanDecoder(int[] counts, int[] values) {
+            this.values = values;
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; length++) {
+                valueOffset[length] = index - code;
+                for (int i = 0; i < counts[length]; i++) {
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        for (int fill = 0; fill < (1 << shift); fill++) {
+                            lookup[(code << shift) | fill] = (length << 8) | values[index];
+                        }
+                    }
+                    code++;
+                    index++;
+                }
+                maxCode[length] = counts[length] > 0 ? code - 1 : -1;
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+
+        int decode(BitReader reader) throws IOException {
+            int entry = lookup[reader.peekBits(LOOKAHEAD)];
+            if (entry != 0) {
+                reader.skipBits(entry >> 8);
+                return entry & 0xFF;
+            }
+            int code = reader.readBits(LOOKAHEAD);
+            int length = LOOKAHEAD;
+            while (code > maxCode[length]) {
+                code = (code << 1) | reader.readBits(1);
+                length++;
+                if (length > 16) {
+                    throw new IOException("Invalid Huffman code");
+                }
+            }
+            return values[valueOffset[length] + code];
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] data;
+        private int pos;
+        private long buffer;
+        private int bits;
+
+        BitReader(byte[] data, int pos) {
+            this.data = data;
+            this.pos = pos;
+        }
+
+        private void fill() {
+            while (bits <= 56) {
+                int value = 0;
+                if (pos < data.length) {
+                    value = data[pos] & 0xFF;
+                    if (value == 0xFF) {
+                        int next = pos + 1 < data.length ? data[pos + 1] & 0xFF : 0xD9;
+                        if (next == 0) {
+                            pos += 2;
+                        } else {
+                            // A marker: feed zeros and leave it for restart() or the caller
+                            value = 0;
+                        }
+                    } else {
+                        pos++;
+                    }
+                }
+                buffer = (buffer << 8) | value;
+                bits += 8;
+            }
+        }
+
+        int peekBits(int count) {
+            if (bits < count) {
+                fill();
+            }
+            return (int) (buffer >>> (bits - count)) & ((1 << count) - 1);
+        }
+
+        void skipBits(int count) {
+            bits -= count;
+        }
+
+        int readBits(int count) {
+            int value = peekBits(count);
+            bits -= count;
+            return value;
+        }
+
+        void restart() throws IOException {
+            buffer = 0;
+            bits = 0;
+            while (pos < data.length && (data[pos] & 0xFF) != 0xFF) {
+                pos++;
+            }
+            while (pos + 1 < data.length && (data[pos + 1] & 0xFF) == 0xFF) {
+                pos++;
+            }
+            if (pos + 1 >= data.length || (data[pos + 1] & 0xF8) != 0xD0) {
+                throw new IOException("Missing restart marker");
+            }
+            pos += 2;
+        }
+    }
+
+    // ---- Encoding ----
+
+    // One output scan, all components interleaved or a single one, with luma on table 0 and chroma on
+    // table 1. prepare() counts its symbols and builds its tables; write() encodes it with them
+    private static final class Scan {
+        final Component[] components;
+        final int spectralStart;
+        final int spectralEnd;
+        final int[] tableOf;
+        final HuffmanEncoder encoder = new HuffmanEncoder();
+
+        Scan(Component[] components, int spectralStart, int spectralEnd) {
+            this.components = components;
+            this.spectralStart = spectralStart;
+            this.spectralEnd = spectralEnd;
+            this.tableOf = new int[components.length];
+        }
+
+        // Returns the size of the entropy-coded data in bits, before byte stuffing
+        long prepare(Frame frame) {
+            for (int i = 0; i < components.length; i++) {
+                tableOf[i] = components[i] == frame.components[0] ? 0 : 1;
+            }
+            run(frame, encoder, tableOf);
+            encoder.buildTables();
+            return encoder.estimatedBits();
+        }
+
+        void write(Frame frame, ByteArrayOutputStream out) {
+            ByteArrayOutputStream tables = new ByteArrayOutputStream();
+            for (int table = 0; table < 2; table++) {
+                if (spectralStart == 0) {
+                    encoder.writeTable(tables, 0, table);
+                }
+                if (spectralEnd > 0) {
+                    encoder.writeTable(tables, 1, table);
+                }
+            }
+            writeSegment(out, DHT, tables.toByteArray());
+
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.write(components.length);
+            for (int i = 0; i < components.length; i++) {
+                header.write(components[i].id);
+                header.write((tableOf[i] << 4) | tableOf[i]);
+            }
+            header.write(spectralStart);
+            header.write(spectralEnd);
+            header.write(0);
+            writeSegment(out, SOS, header.toByteArray());
+
+            encoder.startWriting();
+            run(frame, encoder, tableOf);
+            encoder.flush();
+            out.write(encoder.output, 0, encoder.outputLength);
+        }
+
+        private void run(Frame frame, HuffmanEncoder encoder, int[] tableOf) {
+            int[] predictors = new int[components.length];
+            int eobRun = 0;
+            if (components.length == 1) {
+                Component component = components[0];
+                for (int row = 0; row < component.scanBlockRows; row++) {
+                    for (int column = 0; column < component.scanBlocksPerLine; column++) {
+                        int offset = component.offset(row, column);
+                        if (spectralStart == 0) {
+                            predictors[0] = encodeDC(encoder, tableOf[0], component.coefficients, offset, predictors[0]);
+                            if (spectralEnd == 63) {
+                                encodeAC(encoder, tableOf[0], component.coefficients, offset);
+                            }
+                        } else {
+                            eobRun = encodeACFirst(encoder, tableOf[0], component.coefficients, offset, eobRun);
+                        }
+                    }
+                }
+                if (eobRun > 0) {
+                    encoder.writeEOBRun(tableOf[0], eobRun);
+                }
+                return;
+            }
+
+            for (int mcuRow = 0; mcuRow < frame.mcuRows; mcuRow++) {
+                for (int mcuColumn = 0; mcuColumn < frame.mcusPerLine; mcuColumn++) {
+                    for (int i = 0; i < components.length; i++) {
+                        Component component = components[i];
+                        for (int v = 0; v < component.v; v++) {
+                            for (int h = 0; h < component.h; h++) {
+                                int offset = component.offset(mcuRow * component.v + v, mcuColumn * component.h + h);
+                                predictors[i] = encodeDC(encoder, tableOf[i], component.coefficients, offset, predictors[i]);
+                                if (spectralEnd == 63) {
+                                    encodeAC(encoder, tableOf[i], component.coefficients, offset);
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int encodeDC(HuffmanEncoder encoder, int table, short[] coefficients, int offset, int predictor) {
+            int value = coefficients[offset];
+            int difference = value - predictor;
+            int size = bitSize(difference);
+            encoder.writeSymbol(0, table, size);
+            encoder.writeValue(difference, size);
+            return value;
+        }
+
+        private static void encodeAC(HuffmanEncoder encoder, int table, short[] coefficients, int offset) {
+            int run = 0;
+            for (int k = 1; k < 64; k++) {
+                int value = coefficients[offset + k];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                while (run > 15) {
+                    encoder.writeSymbol(1, table, 0xF0);
+                    run -= 16;
+                }
+                int size = bitSize(value);
+                encoder.writeSymbol(1, table, (run << 4) | size);
+                encoder.writeValue(value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                encoder.writeSymbol(1, table, 0x00);
+            }
+        }
+
+        // First AC scan of a progressive file, where runs of empty block tails are coded as one EOBRUN
+        private int encodeACFirst(HuffmanEncoder encoder, int table, short[] coefficients, int offset, int eobRun) {
+            int run = 0;
+            for (int k = spectralStart; k <= spectralEnd; k++) {
+                int value = coefficients[offset + k];
+                if (value == 0) {
+                    run++;
+                    continue;
+                }
+                if (eobRun > 0) {
+                    encoder.writeEOBRun(table, eobRun);
+                    eobRun = 0;
+                }
+                while (run > 15) {
+                    encoder.writeSymbol(1, table, 0xF0);
+                    run -= 16;
+                }
+                int size = bitSize(value);
+                encoder.writeSymbol(1, table, (run << 4) | size);
+                encoder.writeValue(value, size);
+                run = 0;
+            }
+            if (run > 0) {
+                eobRun++;
+                if (eobRun == 0x7FFF) {
+                    encoder.writeEOBRun(table, eobRun);
+                    eobRun = 0;
+                }
+            }
+            return eobRun;
+        }
+    }
+
+    private static int bitSize(int value) {
+        return value == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    // Counts symbols on the first pass, then writes with the optimal tables (JPEG Annex K.2)
+    private static final class HuffmanEncoder {
+        // [class][table][symbol], class 0 for DC and 1 for AC
+        final long[][][] frequencies = new long[2][2][257];
+        final int[][][] codes = new int[2][2][256];
+        final int[][][] sizes = new int[2][2][256];
+        final int[][][] bitCounts = new int[2][2][];
+        final int[][][] symbolOrder = new int[2][2][];
+        byte[] output;
+        int outputLength;
+        long extraBits;
+        boolean writing;
+        long buffer;
+        int bits;
+
+        void writeSymbol(int tableClass, int table, int symbol) {
+            if (!writing) {
+                frequencies[tableClass][table][symbol]++;
+                return;
+            }
+            writeBits(codes[tableClass][table][symbol], sizes[tableClass][table][symbol]);
+        }
+
+        void writeValue(int value, int size) {
+            if (!writing) {
+                extraBits += size;
+            } else if (size > 0) {
+                writeBits(value < 0 ? value - 1 : value, size);
+            }
+        }
+
+        void writeEOBRun(int table, int eobRun) {
+            int size = 31 - Integer.numberOfLeadingZeros(eobRun);
+            writeSymbol(1, table, size << 4);
+            if (!writing) {
+                extraBits += size;
+            } else if (size > 0) {
+                writeBits(eobRun, size);
+            }
+        }
+
+        void buildTables() {
+            for (int tableClass = 0; tableClass < 2; tableClass++) {
+                for (int table = 0; table < 2; table++) {
+                    buildTable(tableClass, table);
+                }
+            }
+        }
+
+        long estimatedBits() {
+            long total = extraBits;
+            for (int tableClass = 0; tableClass < 2; tableClass++) {
+                for (int table = 0; table < 2; table++) {
+                    for (int symbol = 0; symbol < 256; symbol++) {
+                        total += frequencies[tableClass][table][symbol] * sizes[tableClass][table][symbol];
+                    }
+                }
+            }
+            return total;
+        }
+
+        void startWriting() {
+            writing = true;
+            // Room for the estimate plus a little for stuffed bytes
+            output = new byte[(int) Math.min(Integer.MAX_VALUE - 8, estimatedBits() / 8 + estimatedBits() / 512 + 1024)];
+        }
+
+        void writeTable(ByteArrayOutputStream out, int tableClass, int table) {
+            int[] counts = bitCounts[tableClass][table];
+            if (counts == null) {
+                return;
+            }
+            out.write((tableClass << 4) | table);
+            for (int length = 1; length <= 16; length++) {
+                out.write(counts[length]);
+            }
+            for (int symbol : symbolOrder[tableClass][table]) {
+                out.write(symbol);
+            }
+        }
+
+        private void writeBits(int value, int size) {
+            buffer = (buffer << size) | (value & ((1L << size) - 1));
+            bits += size;
+            while (bits >= 8) {
+                int b = (int) (buffer >> (bits - 8)) & 0xFF;
+                if (outputLength + 2 > output.length) {
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                output[outputLength++] = (byte) b;
+                if (b == 0xFF) {
+                    output[outputLength++] = 0;
+                }
+                bits -= 8;
+            }
+            buffer &= (1L << bits) - 1;
+        }
+
+        void flush() {
+            if (bits > 0) {
+                writeBits((1 << (8 - bits)) - 1, 8 - bits);
+            }
+        }
+
+        private void buildTable(int tableClass, int table) {
+            long[] frequency = frequencies[tableClass][table].clone();
+            boolean used = false;
+            for (int symbol = 0; symbol < 256; symbol++) {
+                used |= frequency[symbol] > 0;
+            }
+            if (!used) {
+                return;
+            }
+            // A reserved symbol keeps any code from being all ones
+            frequency[256] = 1;
+            int[] codeSize = new int[257];
+            int[] others = new int[257];
+            Arrays.fill(others, -1);
+
+            while (true) {
+                int c1 = -1;
+                long v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequency[i] > 0 && frequency[i] <= v) {
+                        v = frequency[i];
+                        c1 = i;
+                    }
+                }
+                int c2 = -1;
+                v = Long.MAX_VALUE;
+                for (int i = 0; i <= 256; i++) {
+                    if (frequency[i] > 0 && frequency[i] <= v && i != c1) {
+                        v = frequency[i];
+                        c2 = i;
+                    }
+                }
+                if (c2 < 0) {
+                    break;
+                }
+                frequency[c1] += frequency[c2];
+                frequency[c2] = 0;
+                codeSize[c1]++;
+                while (others[c1] >= 0) {
+                    c1 = others[c1];
+                    codeSize[c1]++;
+                }
+                others[c1] = c2;
+                codeSize[c2]++;
+                while (others[c2] >= 0) {
+                    c2 = others[c2];
+                    codeSize[c2]++;
+                }
+            }
+
+            int[] counts = new int[33];
+            for (int i = 0; i <= 256; i++) {
+                if (codeSize[i] > 0) {
+                    counts[codeSize[i]]++;
+                }
+            }
+            // Limit code lengths to 16 bits
+            for (int i = 32; i > 16; i--) {
+                while (counts[i] > 0) {
+                    int j = i - 2;
+                    while (counts[j] == 0) {
+                        j--;
+                    }
+                    counts[i] -= 2;
+                    counts[i - 1]++;
+                    counts[j + 1] += 2;
+                    counts[j]--;
+                }
+            }
+            // Drop the reserved symbol's code
+            int longest = 16;
+            while (counts[longest] == 0) {
+                longest--;
+            }
+            counts[longest]--;
+
+            List<Integer> order = new ArrayList<>();
+            for (int length = 1; length <= 32; length++) {
+                for (int symbol = 0; symbol < 256; symbol++) {
+                    if (codeSize[symbol] == length) {
+                        order.add(symbol);
+                    }
+                }
+            }
+            int[] symbols = order.stream().mapToInt(Integer::intValue).toArray();
+
+            int code = 0;
+            int index = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int i = 0; i < counts[length]; i++) {
+                    codes[tableClass][table][symbols[index]] = code++;
+                    sizes[tableClass][table][symbols[index]] = length;
+                    index++;
+                }
+                code <<= 1;
+            }
+            bitCounts[tableClass][table] = Arrays.copyOf(counts, 17);
+            symbolOrder[tableClass][table] = Arrays.copyOf(symbols, index);
+        }
+    }
+
+    // ---- Metadata ----
+
+    // ICC profiles split over several APP2 segments; a second copy of the same chunks is dropped
+    private static final class IccChunks {
+        final Set<Integer> seen = new HashSet<>();
+    }
+
+    private static byte[] filterMetadata(int marker, byte[] segment, IccChunks icc) {
+        if (marker == APP0 && startsWith(segment, "JFIF\0")) {
+            // Keep the header, drop any embedded thumbnail
+            if (segment.length < 18) {
+                return segment;
+            }
+            byte[] header = slice(segment, 0, 18);
+            header[2] = 0;
+            header[3] = 16;
+            header[16] = 0;
+            header[17] = 0;
+            return header;
+        }
+        if (marker == APP14 && startsWith(segment, "Adobe")) {
+            // Tells decoders whether the data is YCbCr or RGB/CMYK
+            return segment;
+        }
+        if (marker == APP2 && startsWith(segment, "ICC_PROFILE\0") && segment.length > 18) {
+            int sequence = segment[16] & 0xFF;
+            return icc.seen.add(sequence) ? segment : null;
+        }
+        if (marker == APP1 && startsWith(segment, "Exif\0")) {
+            int orientation = exifOrientation(segment);
+            return orientation > 1 ? orientationOnlyExif(orientation) : null;
+        }
+        return null;
+    }
+
+    private static boolean startsWith(byte[] segment, String identifier) {
+        byte[] id = identifier.getBytes(StandardCharsets.US_ASCII);
+        if (segment.length < 4 + id.length) {
+            return false;
+        }
+        for (int i = 0; i < id.length; i++) {
+            if (segment[4 + i] != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Reads tag 0x0112 from IFD0, or returns 0
+    private static int exifOrientation(byte[] segment) {
+        int tiff = 10;
+        if (segment.length < tiff + 8) {
+            return 0;
+        }
+        boolean littleEndian = segment[tiff] == 'I';
+        int ifd = tiff + read32(segment, tiff + 4, littleEndian);
+        if (ifd + 2 > segment.length) {
+            return 0;
+        }
+        int entries = read16(segment, ifd, littleEndian);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd + 2 + i * 12;
+            if (entry + 12 > segment.length) {
+                return 0;
+            }
+            if (read16(segment, entry, littleEndian) == 0x0112) {
+                return read16(segment, entry + 8, littleEndian);
+            }
+        }
+        return 0;
+    }
+
+    private static byte[] orientationOnlyExif(int orientation) {
+        byte[] payload = {
+            'E', 'x', 'i', 'f', 0, 0,
+            'M', 'M', 0, 42, 0, 0, 0, 8,
+            0, 1,
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0,
+            0, 0, 0, 0
+        };
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeSegment(out, APP1, payload);
+        return out.toByteArray();
+    }
+
+    // ---- Helpers ----
+
+    private static void writeSegment(ByteArrayOutputStream out, int marker, byte[] payload) {
+        out.write(0xFF);
+        out.write(marker);
+        out.write((payload.length + 2) >> 8);
+        out.write((payload.length + 2) & 0xFF);
+        out.writeBytes(payload);
+    }
+
+    private static int read16(byte[] data, int pos, boolean littleEndian) {
+        int a = data[pos] & 0xFF;
+        int b = data[pos + 1] & 0xFF;
+        return littleEndian ? (b << 8) | a : (a << 8) | b;
+    }
+
+    private static int read32(byte[] data, int pos, boolean littleEndian) {
+        int high = read16(data, littleEndian ? pos + 2 : pos, littleEndian);
+        int low = read16(data, littleEndian ? pos : pos + 2, littleEndian);
+        return (high << 16) | low;
+    }
+
+    private static int u16(byte[] data, int pos) {
+        return ((data[pos] & 0xFF) << 8) | (data[pos + 1] & 0xFF);
+    }
+
+    private static byte[] slice(byte[] data, int start, int end) {
+        byte[] result = new byte[end - start];
+        System.arraycopy(data, start, result, 0, result.length);
+        return result;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -0,0 +1,159 @@
+package com.pdfcompressor.service;
+
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.pdfparser.PDFStreamParser;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.graphics.PDXObject;
+import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
+import org.apache.pdfbox.util.Matrix;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// Detects pages whose only content is one DCT (JPEG) image that is already at or below the
+// requested quality and resolution; the raster path then keeps that JPEG byte-for-byte instead
+// of rendering the page and encoding it again
+final class JPEGPassthrough {
+
+    // Images up to this much above the target DPI still count as "at the target resolution"
+    private static final float DPI_TOLERANCE = 1.05f;
+
+    private final PDImageXObject image;
+    private final Matrix matrix;
+
+    private JPEGPassthrough(PDImageXObject image, Matrix matrix) {
+        this.image = image;
+        this.matrix = matrix;
+    }
+
+    // Returns null unless the page qualifies
+    static JPEGPassthrough find(PDPage page, int targetDpi, float targetQuality) {
+        try {
+            JPEGPassthrough candidate = findSingleImage(page);
+            if (candidate == null || !isDCTOnly(candidate.image) || candidate.image.isStencil()) {
+                return null;
+            }
+
+            JPEGQualityEstimator.JPEGHeader header;
+            try (InputStream raw = candidate.image.getCOSObject().createRawInputStream()) {
+                header = JPEGQualityEstimator.estimate(raw);
+            }
+            if (header == null || header.width != candidate.image.getWidth()
+                    || header.height != candidate.image.getHeight()) {
+                return null;
+            }
+
+            // Resolution the image is shown at on the page, in pixels per inch
+            float shownWidth = Math.abs(candidate.matrix.getScalingFactorX()) / 72f;
+            float shownHeight = Math.abs(candidate.matrix.getScalingFactorY()) / 72f;
+            if (shownWidth <= 0 || shownHeight <= 0) {
+                return null;
+            }
+            float dpi = Math.max(header.width / shownWidth, header.height / shownHeight);
+
+            if (header.quality > Math.round(targetQuality * 100) || dpi > targetDpi * DPI_TOLERANCE) {
+                return null;
+            }
+            return candidate;
+        } catch (IOException e) {
+            // Anything unexpected in the page just means it is rendered as usual
+            return null;
+        }
+    }
+
+    // Adds a page showing the same image the same way; the image stream is copied unchanged on save
+    void addPage(PDDocument targetDocument, PDPage sourcePage) throws IOException {
+        PDPage newPage = new PDPage(sourcePage.getMediaBox());
+        newPage.setCropBox(sourcePage.getCropBox());
+        newPage.setRotation(sourcePage.getRotation());
+        targetDocument.addPage(newPage);
+
+        try (PDPageContentStream contentStream = new PDPageContentStream(targetDocument, newPage)) {
+            contentStream.drawImage(image, matrix);
+        }
+    }
+
+    // Walks the content stream, accepting only state changes and a single image draw
+    private static JPEGPassthrough findSingleImage(PDPage page) throws IOException {
+        PDResources resources = page.getResources();
+        if (resources == null || !page.hasContents()) {
+            return null;
+        }
+
+        PDFStreamParser parser = new PDFStreamParser(page);
+        parser.parse();
+
+        Deque<Matrix> stack = new ArrayDeque<>();
+        Matrix ctm = new Matrix();
+        List<COSBase> operands = new ArrayList<>();
+        JPEGPassthrough found = null;
+
+        for (Object token : parser.getTokens()) {
+            if (!(token instanceof Operator)) {
+                operands.add((COSBase) token);
+                continue;
+            }
+
+            String operator = ((Operator) token).getName();
+            switch (operator) {
+                case "q":
+                    stack.push(ctm.clone());
+                    break;
+                case "Q":
+                    if (stack.isEmpty()) {
+                        return null;
+                    }
+                    ctm = stack.pop();
+                    break;
+                case "cm":
+                    if (operands.size() != 6) {
+                        return null;
+                    }
+                    COSArray values = new COSArray();
+                    for (COSBase operand : operands) {
+                        if (!(operand instanceof COSNumber)) {
+                            return null;
+                        }
+                        values.add(operand);
+                    }
+                    ctm = Matrix.concatenate(Matrix.createMatrix(values), ctm);
+                    break;
+                case "Do":
+                    if (found != null || operands.size() != 1 || !(operands.get(0) instanceof COSName)) {
+                        return null;
+                    }
+                    PDXObject xObject = resources.getXObject((COSName) operands.get(0));
+                    if (!(xObject instanceof PDImageXObject)) {
+                        return null;
+                    }
+                    found = new JPEGPassthrough((PDImageXObject) xObject, ctm.clone());
+                    break;
+                case "ri":
+                case "i":
+                    // Rendering intent and flatness do not change how a JPEG looks
+                    break;
+                default:
+                    // Text, paths, shadings and other graphics state make the page more than an image
+                    return null;
+            }
+            operands.clear();
+        }
+        return found;
+    }
+
+    private static boolean isDCTOnly(PDImageXObject image) {
+        List<COSName> filters = image.getStream().getFilters();
+        return filters != null && filters.size() == 1 && COSName.DCT_DECODE.equals(filters.get(0));
+    }
+}
@@ -0,0 +1,157 @@
+package com.pdfcompressor.service;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Reads the dimensions and quantization tables from a JPEG's header segments, without decoding
+// any image data, and estimates the IJG quality (1-100) the tables were produced with
+final class JPEGQualityEstimator {
+
+    // IJG standard tables (ITU T.81 Annex K) in natural order; quality 50 uses them unscaled
+    private static final int[] STANDARD_LUMINANCE = {
+        16, 11, 10, 16, 24, 40, 51, 61,
+        12, 12, 14, 19, 26, 58, 60, 55,
+        14, 13, 16, 24, 40, 57, 69, 56,
+        14, 17, 22, 29, 51, 87, 80, 62,
+        18, 22, 37, 56, 68, 109, 103, 77,
+        24, 35, 55, 64, 81, 104, 113, 92,
+        49, 64, 78, 87, 103, 121, 120, 101,
+        72, 92, 95, 98, 112, 100, 103, 99
+    };
+
+    // DQT segments store coefficients in zigzag order; this maps each position to its natural index
+    private static final int[] ZIGZAG = {
+        0, 1, 8, 16, 9, 2, 3, 10, 17, 24, 32, 25, 18, 11, 4, 5,
+        12, 19, 26, 33, 40, 48, 41, 34, 27, 20, 13, 6, 7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36, 29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46, 53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    private JPEGQualityEstimator() {
+    }
+
+    // Returns null when the data is not a JPEG this estimator understands
+    static JPEGHeader estimate(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        try {
+            if (in.readUnsignedShort() != 0xFFD8) {
+                return null;
+            }
+
+            int[][] tables = new int[4][];
+            int width = -1;
+            int height = -1;
+            int components = -1;
+            int luminanceTable = -1;
+
+            while (true) {
+                int marker = readMarker(in);
+                if (marker == 0xDA || marker == 0xD9) {
+                    // Start of scan: every table the image needs has been defined by now
+                    break;
+                }
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7)) {
+                    // Markers without a length field
+                    continue;
+                }
+
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) {
+                    return null;
+                }
+
+                if (marker == 0xDB) {
+                    readQuantizationTables(in, length, tables);
+                } else if (isStartOfFrame(marker)) {
+                    in.readUnsignedByte(); // sample precision
+                    height = in.readUnsignedShort();
+                    width = in.readUnsignedShort();
+                    components = in.readUnsignedByte();
+                    for (int i = 0; i < components; i++) {
+                        in.readUnsignedByte(); // component id
+                        in.readUnsignedByte(); // sampling factors
+                        int tableId = in.readUnsignedByte() & 0x03;
+                        if (i == 0) {
+                            luminanceTable = tableId;
+                        }
+                    }
+                    in.skipNBytes(length - 6 - 3 * components);
+                } else {
+                    in.skipNBytes(length);
+                }
+            }
+
+            if (width <= 0 || height <= 0 || luminanceTable < 0 || tables[luminanceTable] == null) {
+                return null;
+            }
+            return new JPEGHeader(width, height, components, estimateQuality(tables[luminanceTable]));
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static int readMarker(DataInputStream in) throws IOException {
+        int value = in.readUnsignedByte();
+        if (value != 0xFF) {
+            throw new EOFException("Expected a marker");
+        }
+        // Any number of 0xFF fill bytes may precede the marker code
+        while (value == 0xFF) {
+            value = in.readUnsignedByte();
+        }
+        return value;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static void readQuantizationTables(DataInputStream in, int length, int[][] tables) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            int info = in.readUnsignedByte();
+            boolean sixteenBit = (info >> 4) != 0;
+            int[] table = new int[64];
+            for (int i = 0; i < 64; i++) {
+                table[ZIGZAG[i]] = sixteenBit ? in.readUnsignedShort() : in.readUnsignedByte();
+            }
+            tables[info & 0x03] = table;
+            remaining -= 1 + (sixteenBit ? 128 : 64);
+        }
+    }
+
+    // Finds the IJG quality whose scaled standard table is closest to the actual one
+    static int estimateQuality(int[] luminance) {
+        int bestQuality = 100;
+        long bestError = Long.MAX_VALUE;
+        for (int quality = 1; quality <= 100; quality++) {
+            int scale = quality < 50 ? 5000 / quality : 200 - 2 * quality;
+            long error = 0;
+            for (int i = 0; i < 64; i++) {
+                int expected = Math.max(1, Math.min(255, (STANDARD_LUMINANCE[i] * scale + 50) / 100));
+                error += Math.abs(luminance[i] - expected);
+            }
+            if (error < bestError) {
+                bestError = error;
+                bestQuality = quality;
+            }
+        }
+        return bestQuality;
+    }
+
+    static final class JPEGHeader {
+        final int width;
+        final int height;
+        final int components;
+        final int quality;
+
+        JPEGHeader(int width, int height, int components, int quality) {
+            this.width = width;
+            this.height = height;
+            this.components = components;
+            this.quality = quality;
+        }
+    }
+}
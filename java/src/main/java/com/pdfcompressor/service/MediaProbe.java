@@ -0,0 +1,168 @@
+package com.pdfcompressor.service;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIndexEntry;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.PointerPointer;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+// Describes a media file from its container headers without decoding anything, unlike
+// FFmpegFrameGrabber.start(), which decodes frames to fill in stream details. Keyframe spacing comes
+// from the container's index when it has one (MP4, MOV) and otherwise from the flags of the first
+// packets. Only containers whose headers leave the streams undescribed (e.g. MPEG-TS) are probed further
+final class MediaProbe {
+
+    // Packets read for keyframe spacing when the container has no index
+    private static final int MAX_SCANNED_PACKETS = 2000;
+    // From avformat.h; the presets do not map the macro
+    private static final int AVINDEX_KEYFRAME = 0x0001;
+
+    static final class Info {
+        String format;
+        // Microseconds, 0 when unknown
+        long duration;
+        int videoCodec = AV_CODEC_ID_NONE;
+        String videoCodecName;
+        int width;
+        int height;
+        double frameRate;
+        long videoBitrate;
+        // Average seconds between keyframes, 0 when unknown
+        double keyframeInterval;
+        int audioCodec = AV_CODEC_ID_NONE;
+        String audioCodecName;
+        int audioChannels;
+        int sampleRate;
+        long audioBitrate;
+
+        boolean hasVideo() {
+            return videoCodec != AV_CODEC_ID_NONE && width > 0 && height > 0;
+        }
+
+        boolean hasAudio() {
+            return audioCodec != AV_CODEC_ID_NONE && audioChannels > 0;
+        }
+    }
+
+    private MediaProbe() {
+    }
+
+    static Info probe(File source) throws IOException {
+        AVFormatContext context = new AVFormatContext(null);
+        check(avformat_open_input(context, source.getPath(), null, null), "Could not open " + source.getName());
+        try {
+            int video = av_find_best_stream(context, AVMEDIA_TYPE_VIDEO, -1, -1, (AVCodec) null, 0);
+            int audio = av_find_best_stream(context, AVMEDIA_TYPE_AUDIO, -1, -1, (AVCodec) null, 0);
+            if (context.nb_streams() == 0 || (video >= 0 && context.streams(video).codecpar().width() == 0)) {
+                check(avformat_find_stream_info(context, (PointerPointer<?>) null), "Could not read the streams of " + source.getName());
+                video = av_find_best_stream(context, AVMEDIA_TYPE_VIDEO, -1, -1, (AVCodec) null, 0);
+                audio = av_find_best_stream(context, AVMEDIA_TYPE_AUDIO, -1, -1, (AVCodec) null, 0);
+            }
+
+            Info info = new Info();
+            info.format = context.iformat().name().getString();
+            info.duration = duration(context);
+
+            if (video >= 0) {
+                AVStream stream = context.streams(video);
+                AVCodecParameters parameters = stream.codecpar();
+                info.videoCodec = parameters.codec_id();
+                info.videoCodecName = avcodec_get_name(parameters.codec_id()).getString();
+                info.width = parameters.width();
+                info.height = parameters.height();
+                AVRational rate = stream.avg_frame_rate().num() > 0 ? stream.avg_frame_rate() : stream.r_frame_rate();
+                info.frameRate = rate.den() > 0 ? av_q2d(rate) : 0;
+                info.videoBitrate = parameters.bit_rate();
+                info.keyframeInterval = keyframeInterval(context, stream, video);
+            }
+            if (audio >= 0) {
+                AVCodecParameters parameters = context.streams(audio).codecpar();
+                info.audioCodec = parameters.codec_id();
+                info.audioCodecName = avcodec_get_name(parameters.codec_id()).getString();
+                info.audioChannels = parameters.ch_layout().nb_channels();
+                info.sampleRate = parameters.sample_rate();
+                info.audioBitrate = parameters.bit_rate();
+            }
+            // Some containers only know the overall bitrate
+            if (video >= 0 && info.videoBitrate <= 0 && context.bit_rate() > 0) {
+                info.videoBitrate = Math.max(0, context.bit_rate() - info.audioBitrate);
+            }
+            return info;
+        } finally {
+            avformat_close_input(context);
+        }
+    }
+
+    // The overall duration is only filled in by a full stream probe; the streams' own come from the headers
+    private static long duration(AVFormatContext context) {
+        if (context.duration() != AV_NOPTS_VALUE && context.duration() > 0) {
+            return context.duration();
+        }
+        long duration = 0;
+        for (int i = 0; i < context.nb_streams(); i++) {
+            AVStream stream = context.streams(i);
+            if (stream.duration() != AV_NOPTS_VALUE && stream.duration() > 0) {
+                duration = Math.max(duration, av_rescale_q(stream.duration(), stream.time_base(), av_make_q(1, 1000000)));
+            }
+        }
+        return duration;
+    }
+
+    private static double keyframeInterval(AVFormatContext context, AVStream stream, int streamIndex) throws IOException {
+        AVRational timeBase = stream.time_base();
+        long first = AV_NOPTS_VALUE;
+        long last = AV_NOPTS_VALUE;
+        int keyframes = 0;
+
+        int entries = avformat_index_get_entries_count(stream);
+        if (entries > 0) {
+            for (int i = 0; i < entries; i++) {
+                AVIndexEntry entry = avformat_index_get_entry(stream, i);
+                if ((entry.flags() & AVINDEX_KEYFRAME) != 0) {
+                    first = first == AV_NOPTS_VALUE ? entry.timestamp() : first;
+                    last = entry.timestamp();
+                    keyframes++;
+                }
+            }
+        } else {
+            AVPacket packet = av_packet_alloc();
+            try {
+                for (int i = 0; i < MAX_SCANNED_PACKETS && av_read_frame(context, packet) >= 0; i++) {
+                    if (packet.stream_index() == streamIndex && (packet.flags() & AV_PKT_FLAG_KEY) != 0
+                            && packet.pts() != AV_NOPTS_VALUE) {
+                        first = first == AV_NOPTS_VALUE ? packet.pts() : first;
+                        last = packet.pts();
+                        keyframes++;
+                    }
+                    av_packet_unref(packet);
+                }
+            } finally {
+                av_packet_free(packet);
+            }
+        }
+
+        if (keyframes >= 2) {
+            return (last - first) * av_q2d(timeBase) / (keyframes - 1);
+        }
+        // A single keyframe starts one group of pictures that covers the whole file
+        return keyframes == 1 && entries > 0 ? duration(context) / 1000000.0 : 0;
+    }
+
+    private static void check(int result, String message) throws IOException {
+        if (result < 0) {
+            byte[] buffer = new byte[AV_ERROR_MAX_STRING_SIZE];
+            av_strerror(result, buffer, buffer.length);
+            throw new IOException(message + ": " + new String(buffer).trim());
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.pdfcompressor.service;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.PointerPointer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avformat.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+// Copies compressed packets from one or more inputs into a new container without decoding them.
+// FFmpegFrameRecorder can copy packets, but only every stream of a single input, so a video
+// re-encoded on its own and the original audio are put back together here, and separately encoded
+// segments are joined. Each track is the best stream of one media type from one file, or from
+// several files played back to back, optionally cut to a time range; packets are read from whichever
+// track is furthest behind, so the muxer never has to buffer more than a few packets to interleave them
+final class MediaRemuxer {
+
+    // 'avc3': H.264 whose parameter sets may change in the stream, as they do where parts from
+    // different encoders are joined
+    private static final int AVC3_TAG = 'a' | ('v' << 8) | ('c' << 16) | ('3' << 24);
+
+    static final class Track {
+        // Played one after another. H.264 parts from another encoder than the first carry their own
+        // parameter sets in the stream; any other codec must keep the first part's settings
+        final List<File> parts;
+        final int mediaType;
+        // Microseconds on the track's own timeline; Long.MIN_VALUE and Long.MAX_VALUE for no limit
+        final long start;
+        final long end;
+
+        Track(List<File> parts, int mediaType) {
+            this(parts, mediaType, Long.MIN_VALUE, Long.MAX_VALUE);
+        }
+
+        Track(List<File> parts, int mediaType, long start, long end) {
+            this.parts = parts;
+            this.mediaType = mediaType;
+            this.start = start;
+            this.end = end;
+        }
+
+        // Packets shown before start are left out and the rest moved to begin at zero, so a video track
+        // should start at a keyframe. It ends before the first packet in decoding order shown at or after
+        // end; with B-frames a few frames shown just before end go with it, but nothing kept refers to a
+        // frame that was left out
+        Track between(long start, long end) {
+            return new Track(parts, mediaType, start, end);
+        }
+
+        static Track video(File source) {
+            return new Track(Collections.singletonList(source), AVMEDIA_TYPE_VIDEO);
+        }
+
+        static Track video(List<File> parts) {
+            return new Track(parts, AVMEDIA_TYPE_VIDEO);
+        }
+
+        static Track audio(File source) {
+            return new Track(Collections.singletonList(source), AVMEDIA_TYPE_AUDIO);
+        }
+    }
+
+    private MediaRemuxer() {
+    }
+
+    // Timestamps in microseconds of the video keyframes, read from the packet headers alone
+    static List<Long> keyframeTimestamps(File source) throws IOException {
+        List<Long> timestamps = new ArrayList<>();
+        Input input = Input.open(new Track(Collections.singletonList(source), AVMEDIA_TYPE_VIDEO));
+        try {
+            AVRational timeBase = input.timeBase;
+            for (input.readNext(); input.pending != null; input.readNext()) {
+                if ((input.pending.flags() & AV_PKT_FLAG_KEY) != 0 && input.pending.pts() != AV_NOPTS_VALUE) {
+                    timestamps.add(1000000L * input.pending.pts() * timeBase.num() / timeBase.den());
+                }
+            }
+        } finally {
+            input.close();
+        }
+        Collections.sort(timestamps);
+        return timestamps;
+    }
+
+    // The video keyframes nearest to a timestamp, in microseconds: the last at or before it (the first
+    // keyframe when there is none) and the first at or after it (Long.MAX_VALUE when there is none).
+    // Only the packets around the timestamp are read, starting a little further back each time the
+    // demuxer's seek lands after it
+    static long[] keyframesAround(File source, long timestamp) throws IOException {
+        long margin = 0;
+        while (true) {
+            long seekTo = timestamp - margin;
+            long before = Long.MIN_VALUE;
+            long after = Long.MAX_VALUE;
+            AVFormatContext context = new AVFormatContext(null);
+            check(avformat_open_input(context, source.getPath(), null, null), "Could not open " + source.getName());
+            AVPacket packet = av_packet_alloc();
+            try {
+                check(avformat_find_stream_info(context, (PointerPointer<?>) null), "Could not read the streams of " + source.getName());
+                int index = av_find_best_stream(context, AVMEDIA_TYPE_VIDEO, -1, -1, (AVCodec) null, 0);
+                check(index, "No video stream in " + source.getName());
+                AVRational timeBase = context.streams(index).time_base();
+                if (seekTo > 0) {
+                    check(av_seek_frame(context, index, av_rescale_q(seekTo, av_make_q(1, 1000000), timeBase), AVSEEK_FLAG_BACKWARD),
+                        "Could not seek in " + source.getName());
+                }
+                while (after == Long.MAX_VALUE && av_read_frame(context, packet) >= 0) {
+                    if (packet.stream_index() == index && (packet.flags() & AV_PKT_FLAG_KEY) != 0 && packet.pts() != AV_NOPTS_VALUE) {
+                        long keyframe = av_rescale_q(packet.pts(), timeBase, av_make_q(1, 1000000));
+                        if (keyframe <= timestamp) {
+                            before = keyframe;
+                        }
+                        if (keyframe >= timestamp) {
+                            after = keyframe;
+                        }
+                    }
+                    av_packet_unref(packet);
+                }
+            } finally {
+                av_packet_free(packet);
+                avformat_close_input(context);
+            }
+            if (before != Long.MIN_VALUE || seekTo <= 0) {
+                return new long[] {before != Long.MIN_VALUE ? before : after, after};
+            }
+            margin = margin * 2 + 1000000;
+        }
+    }
+
+    // The container format follows the output file's extension
+    static long remux(File output, List<Track> tracks) throws IOException {
+        return remux(output, tracks, Collections.emptyMap());
+    }
+
+    // muxerOptions go to the output container, e.g. movflags for a fragmented MP4. Returns the
+    // microseconds up to the end of the longest track
+    static long remux(File output, List<Track> tracks, Map<String, String> muxerOptions) throws IOException {
+        List<Input> inputs = new ArrayList<>();
+        AVFormatContext outputContext = new AVFormatContext(null);
+        AVDictionary options = new AVDictionary(null);
+        boolean headerWritten = false;
+        try {
+            check(avformat_alloc_output_context2(outputContext, null, null, output.getPath()),
+                "Could not create a container for " + output.getName());
+
+            for (Track track : tracks) {
+                Input input = Input.open(track);
+                inputs.add(input);
+                AVStream stream = avformat_new_stream(outputContext, null);
+                check(avcodec_parameters_copy(stream.codecpar(), input.stream().codecpar()),
+                    "Could not copy stream parameters");
+                // The source container's codec tag may not be valid in the output container
+                stream.codecpar().codec_tag(0);
+                String format = outputContext.oformat().name().getString();
+                if (input.spliced && (format.equals("mp4") || format.equals("mov"))) {
+                    stream.codecpar().codec_tag(AVC3_TAG);
+                }
+                stream.time_base(input.timeBase);
+                input.outputIndex = stream.index();
+            }
+
+            if ((outputContext.oformat().flags() & AVFMT_NOFILE) == 0) {
+                AVIOContext io = new AVIOContext(null);
+                check(avio_open(io, output.getPath(), AVIO_FLAG_WRITE), "Could not open " + output.getName());
+                outputContext.pb(io);
+            }
+            for (Map.Entry<String, String> option : muxerOptions.entrySet()) {
+                av_dict_set(options, option.getKey(), option.getValue(), 0);
+            }
+            check(avformat_write_header(outputContext, options), "Could not write the container header");
+            headerWritten = true;
+
+            for (Input input : inputs) {
+                input.readNext();
+            }
+            while (true) {
+                Input next = null;
+                for (Input input : inputs) {
+                    if (input.pending != null && (next == null || av_compare_ts(input.timestamp(),
+                            input.timeBase, next.timestamp(), next.timeBase) < 0)) {
+                        next = input;
+                    }
+                }
+                if (next == null) {
+                    break;
+                }
+                AVStream outputStream = outputContext.streams(next.outputIndex);
+                av_packet_rescale_ts(next.pending, next.timeBase, outputStream.time_base());
+                next.pending.stream_index(next.outputIndex);
+                next.pending.pos(-1);
+                // Takes over the packet's data and leaves it blank
+                check(av_interleaved_write_frame(outputContext, next.pending), "Could not write a packet");
+                next.readNext();
+            }
+            check(av_write_trailer(outputContext), "Could not finish the container");
+
+            long duration = 0;
+            for (Input input : inputs) {
+                duration = Math.max(duration, av_rescale_q(input.end - input.startOffset(), input.timeBase, av_make_q(1, 1000000)));
+            }
+            return duration;
+        } finally {
+            for (Input input : inputs) {
+                input.close();
+            }
+            if (outputContext.oformat() != null && (outputContext.oformat().flags() & AVFMT_NOFILE) == 0
+                    && outputContext.pb() != null) {
+                avio_closep(outputContext.pb());
+            }
+            avformat_free_context(outputContext);
+            av_dict_free(options);
+            if (!headerWritten) {
+                output.delete();
+            }
+        }
+    }
+
+    private static final class Input {
+        private final Track track;
+        private int part;
+        private AVFormatContext context;
+        private int streamIndex;
+        private int outputIndex;
+        // Of the first part; packets of later parts are rescaled to it
+        private final AVRational timeBase;
+        // Added to the timestamps of the current part so it starts where the previous one ended
+        private long offset;
+        private long end;
+        private long lastDts = AV_NOPTS_VALUE;
+        // The track's range in timeBase, AV_NOPTS_VALUE for no limit
+        private long rangeStart = AV_NOPTS_VALUE;
+        private long rangeEnd = AV_NOPTS_VALUE;
+        // H.264 parts whose parameter sets differ from the first part's, which then go in the stream
+        private boolean spliced;
+        private byte[] firstExtradata;
+        // For the first packet of the current part
+        private byte[] parameterSets;
+        // Next packet of the copied stream, or null at the end of the last part
+        private AVPacket pending;
+
+        private Input(Track track) throws IOException {
+            this.track = track;
+            openPart(0);
+            AVRational first = stream().time_base();
+            this.timeBase = new AVRational().num(first.num()).den(first.den());
+            try {
+                firstExtradata = extradata();
+                if (stream().codecpar().codec_id() == AV_CODEC_ID_H264 && track.parts.size() > 1) {
+                    for (int i = 1; i < track.parts.size(); i++) {
+                        avformat_close_input(context);
+                        openPart(i);
+                        spliced |= !Arrays.equals(firstExtradata, extradata());
+                    }
+                    avformat_close_input(context);
+                    openPart(0);
+                }
+
+                AVRational microseconds = av_make_q(1, 1000000);
+                if (track.start != Long.MIN_VALUE) {
+                    rangeStart = av_rescale_q(track.start, microseconds, timeBase);
+                    // Lands on the keyframe at or before the start
+                    if (rangeStart > 0) {
+                        check(av_seek_frame(context, streamIndex, rangeStart, AVSEEK_FLAG_BACKWARD), "Could not seek to " + track.start + " us");
+                    }
+                }
+                if (track.end != Long.MAX_VALUE) {
+                    rangeEnd = av_rescale_q(track.end, microseconds, timeBase);
+                }
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+        }
+
+        static Input open(Track track) throws IOException {
+            return new Input(track);
+        }
+
+        private void openPart(int part) throws IOException {
+            File source = track.parts.get(part);
+            AVFormatContext context = new AVFormatContext(null);
+            check(avformat_open_input(context, source.getPath(), null, null), "Could not open " + source.getName());
+            try {
+                check(avformat_find_stream_info(context, (PointerPointer<?>) null), "Could not read the streams of " + source.getName());
+                int index = av_find_best_stream(context, track.mediaType, -1, -1, (AVCodec) null, 0);
+                check(index, "No " + av_get_media_type_string(track.mediaType).getString() + " stream in " + source.getName());
+                this.context = context;
+                this.streamIndex = index;
+                this.part = part;
+            } catch (IOException e) {
+                avformat_close_input(context);
+                throw e;
+            }
+        }
+
+        AVStream stream() {
+            return context.streams(streamIndex);
+        }
+
+        long timestamp() {
+            return pending.dts() != AV_NOPTS_VALUE ? pending.dts() : pending.pts();
+        }
+
+        void readNext() throws IOException {
+            if (pending == null) {
+                pending = av_packet_alloc();
+            }
+            while (true) {
+                av_packet_unref(pending);
+                int result = av_read_frame(context, pending);
+                if (result == AVERROR_EOF) {
+                    if (part + 1 < track.parts.size()) {
+                        avformat_close_input(context);
+                        context = null;
+                        openPart(part + 1);
+                        offset = end;
+                        if (spliced) {
+                            parameterSets = parameterSetNalUnits(extradata(), nalLengthSize(firstExtradata));
+                        }
+                        continue;
+                    }
+                    av_packet_free(pending);
+                    pending = null;
+                    return;
+                }
+                check(result, "Could not read a packet");
+                if (pending.stream_index() == streamIndex) {
+                    shift();
+                    long pts = pending.pts();
+                    if (rangeEnd != AV_NOPTS_VALUE && pts != AV_NOPTS_VALUE && pts >= rangeEnd) {
+                        // Packets after it in decoding order may refer to it
+                        av_packet_free(pending);
+                        pending = null;
+                        return;
+                    }
+                    if (rangeStart != AV_NOPTS_VALUE && pts != AV_NOPTS_VALUE && pts < rangeStart) {
+                        continue;
+                    }
+                    if (pts != AV_NOPTS_VALUE) {
+                        end = Math.max(end, pts + pending.duration());
+                    }
+                    if (rangeStart != AV_NOPTS_VALUE) {
+                        pending.pts(pts != AV_NOPTS_VALUE ? pts - rangeStart : pts);
+                        pending.dts(pending.dts() != AV_NOPTS_VALUE ? pending.dts() - rangeStart : pending.dts());
+                    }
+                    if (parameterSets != null) {
+                        prependParameterSets();
+                    }
+                    return;
+                }
+            }
+        }
+
+        long startOffset() {
+            return rangeStart != AV_NOPTS_VALUE ? rangeStart : 0;
+        }
+
+        private byte[] extradata() {
+            AVCodecParameters parameters = stream().codecpar();
+            byte[] data = new byte[Math.max(0, parameters.extradata_size())];
+            if (data.length > 0) {
+                parameters.extradata().get(data);
+            }
+            return data;
+        }
+
+        private void prependParameterSets() throws IOException {
+            check(av_packet_make_writable(pending), "Could not copy a packet");
+            int size = pending.size();
+            byte[] data = new byte[parameterSets.length + size];
+            System.arraycopy(parameterSets, 0, data, 0, parameterSets.length);
+            pending.data().get(data, parameterSets.length, size);
+            check(av_grow_packet(pending, parameterSets.length), "Could not grow a packet");
+            pending.data().put(data);
+            parameterSets = null;
+        }
+
+        // Moves the packet onto the timeline of the whole track
+        private void shift() {
+            av_packet_rescale_ts(pending, stream().time_base(), timeBase);
+            long dts = pending.dts() != AV_NOPTS_VALUE ? pending.dts() + offset : AV_NOPTS_VALUE;
+            // A part that starts with a negative decode time (B-frame delay) would overlap the previous one
+            if (dts != AV_NOPTS_VALUE && lastDts != AV_NOPTS_VALUE && dts <= lastDts) {
+                offset += lastDts + 1 - dts;
+                dts = lastDts + 1;
+            }
+            if (pending.pts() != AV_NOPTS_VALUE) {
+                pending.pts(pending.pts() + offset);
+            }
+            if (dts != AV_NOPTS_VALUE) {
+                pending.dts(dts);
+                lastDts = dts;
+            }
+        }
+
+        void close() {
+            if (pending != null) {
+                av_packet_free(pending);
+                pending = null;
+            }
+            if (context != null) {
+                avformat_close_input(context);
+                context = null;
+            }
+        }
+    }
+
+    // Bytes of the NAL unit length prefixes of H.264 stored as an avcC record
+    private static int nalLengthSize(byte[] avcc) throws IOException {
+        if (avcc.length < 7 || avcc[0] != 1) {
+            throw new IOException("H.264 parameter sets are not stored as avcC");
+        }
+        return (avcc[4] & 0x03) + 1;
+    }
+
+    // The SPS and PPS of an avcC record as length-prefixed NAL units, the layout of the packets
+    private static byte[] parameterSetNalUnits(byte[] avcc, int lengthSize) throws IOException {
+        if (nalLengthSize(avcc) != lengthSize) {
+            throw new IOException("Cannot join H.264 parts with different NAL unit length sizes");
+        }
+        ByteArrayOutputStream units = new ByteArrayOutputStream();
+        int position = 5;
+        for (int set = 0; set < 2; set++) {
+            if (position >= avcc.length) {
+                throw new IOException("Truncated avcC record");
+            }
+            // Five bits count the SPS, a whole byte the PPS
+            int count = set == 0 ? avcc[position++] & 0x1f : avcc[position++] & 0xff;
+            for (int i = 0; i < count; i++) {
+                if (position + 2 > avcc.length) {
+                    throw new IOException("Truncated avcC record");
+                }
+                int length = ((avcc[position] & 0xff) << 8) | (avcc[position + 1] & 0xff);
+                position += 2;
+                if (position + length > avcc.length) {
+                    throw new IOException("Truncated avcC record");
+                }
+                for (int shift = (lengthSize - 1) * 8; shift >= 0; shift -= 8) {
+                    units.write(length >>> shift);
+                }
+                units.write(avcc, position, length);
+                position += length;
+            }
+        }
+        return units.toByteArray();
+    }
+
+    private static void check(int result, String message) throws IOException {
+        if (result < 0) {
+            byte[] buffer = new byte[AV_ERROR_MAX_STRING_SIZE];
+            av_strerror(result, buffer, buffer.length);
+            throw new IOException(message + ": " + new String(buffer).trim());
+        }
+    }
+}
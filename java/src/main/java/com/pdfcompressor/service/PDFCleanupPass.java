@@ -0,0 +1,584 @@
+package com.pdfcompressor.service;
+
+import com.pdfcompressor.model.CleanupItem;
+import com.pdfcompressor.model.PDFCleanupOptions;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSObjectKey;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+// Strips content that never shows on the page (thumbnails, attachments, scripts, editor data, ...)
+// and unused fonts and glyphs before a structural rewrite, and reports how many bytes each removal
+// takes out of the saved file
+@Component
+public class PDFCleanupPass {
+
+    private static final COSName FILE_ATTACHMENT = COSName.getPDFName("FileAttachment");
+
+    public List<CleanupItem> clean(PDDocument document, PDFCleanupOptions options) throws IOException {
+        List<CleanupItem> report = new ArrayList<>();
+        Map<COSBase, Long> reachable = reachableObjects(document);
+
+        // A full save only writes what the trailer can reach, so dead objects are dropped without extra work
+        addUnreferencedObjects(document, reachable, report);
+
+        // Savings are measured as the change in total object size after each removal, which
+        // includes everything the removed entry was the last reference to. Each object is serialized
+        // once, when first reached, so a step costs a walk of the object graph rather than a rewrite
+        // of it; entries taken out of objects that stay are not re-measured
+        Map<COSBase, Long> sizes = new IdentityHashMap<>();
+        long size = measure(reachable, sizes);
+        if (options.isRemoveThumbnails()) {
+            size = record(report, "thumbnails", removeThumbnails(document), document, size, sizes);
+        }
+        if (options.isRemoveEmbeddedFiles()) {
+            size = record(report, "embeddedFiles", removeEmbeddedFiles(document), document, size, sizes);
+        }
+        if (options.isRemoveJavaScript()) {
+            size = record(report, "javaScript", removeJavaScript(document), document, size, sizes);
+        }
+        if (options.isRemovePieceInfo()) {
+            size = record(report, "pieceInfo", removePieceInfo(document), document, size, sizes);
+        }
+        if (options.isRemoveMetadata()) {
+            size = record(report, "xmpMetadata", removeMetadata(document), document, size, sizes);
+            size = record(report, "documentInfo", removeDocumentInfo(document), document, size, sizes);
+        }
+        if (options.isRemoveUnusedDestinations()) {
+            size = record(report, "unusedDestinations", removeUnusedDestinations(document), document, size, sizes);
+        }
+        if (options.isRemoveStructureTree()) {
+            size = record(report, "structureTree", removeStructureTree(document), document, size, sizes);
+        }
+        if (options.isRemoveUnusedFonts() || options.isSubsetFonts()) {
+            PDFFontSubsetter fonts;
+            try {
+                fonts = PDFFontSubsetter.scan(document, document.getPages());
+            } catch (IOException | RuntimeException e) {
+                // Without a complete picture of the glyphs in use, every font stays as it is
+                System.out.println("Skipping font cleanup: " + e.getMessage());
+                return report;
+            }
+            if (options.isRemoveUnusedFonts()) {
+                size = record(report, "unusedFonts", fonts.removeUnusedFonts(), document, size, sizes);
+            }
+            if (options.isSubsetFonts()) {
+                record(report, "fontSubsets", fonts.subsetFonts(), document, size, sizes);
+            }
+        }
+        return report;
+    }
+
+    // Removes the page-level entries selected by the options; used on sample pages by the strategy trial
+    static void stripPageEntries(COSDictionary page, PDFCleanupOptions options) {
+        if (options.isRemoveThumbnails()) {
+            page.removeItem(COSName.THUMB);
+        }
+        if (options.isRemovePieceInfo()) {
+            page.removeItem(COSName.PIECE_INFO);
+        }
+        if (options.isRemoveMetadata()) {
+            page.removeItem(COSName.METADATA);
+        }
+    }
+
+    private long record(List<CleanupItem> report, String name, int count, PDDocument document,
+                        long sizeBefore, Map<COSBase, Long> sizes) throws IOException {
+        if (count == 0) {
+            return sizeBefore;
+        }
+        long sizeAfter = measure(reachableObjects(document), sizes);
+        long saved = Math.max(0, sizeBefore - sizeAfter);
+        report.add(new CleanupItem(name, count, saved));
+        System.out.println("Cleanup removed " + count + " " + name + ", saving " + saved + " bytes");
+        return sizeAfter;
+    }
+
+    private void addUnreferencedObjects(PDDocument document, Map<COSBase, Long> reachable,
+                                        List<CleanupItem> report) throws IOException {
+        COSDocument cosDocument = document.getDocument();
+        Map<COSObjectKey, Long> xrefTable = cosDocument.getXrefTable();
+
+        // Negative offsets name the object stream an object is stored in. Object streams are
+        // only containers and are never written back, so they are not counted themselves
+        Set<Long> objectStreams = new HashSet<>();
+        TreeSet<Long> offsets = new TreeSet<>();
+        for (Long offset : xrefTable.values()) {
+            if (offset == null) {
+                continue;
+            }
+            if (offset < 0) {
+                objectStreams.add(-offset);
+            } else if (offset > 0) {
+                offsets.add(offset);
+            }
+        }
+        long startXref = cosDocument.getStartXref();
+
+        int count = 0;
+        long bytes = 0;
+        for (Map.Entry<COSObjectKey, Long> entry : xrefTable.entrySet()) {
+            COSObjectKey key = entry.getKey();
+            Long offset = entry.getValue();
+            if (offset == null || offset == 0 || offset == startXref || objectStreams.contains(key.getNumber())) {
+                continue;
+            }
+            COSBase object = cosDocument.getObjectFromPool(key).getObject();
+            if (object != null && reachable.containsKey(object)) {
+                continue;
+            }
+            count++;
+            if (offset > 0) {
+                // Sizes are not recorded in the file, so an object is taken to run up to the next one
+                Long next = offsets.higher(offset);
+                long end = next != null ? next : startXref;
+                if (end > offset) {
+                    bytes += end - offset;
+                }
+            }
+        }
+        if (count > 0) {
+            report.add(new CleanupItem("unreferencedObjects", count, bytes));
+            System.out.println("Cleanup dropped " + count + " unreferenced objects, saving ~" + bytes + " bytes");
+        }
+    }
+
+    // Every object a full save writes, numbered so PDFObjectWriter can measure them
+    private Map<COSBase, Long> reachableObjects(PDDocument document) {
+        Map<COSBase, Long> objectNumbers = new IdentityHashMap<>();
+        Set<COSBase> visitedDirect = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSBase> pending = new ArrayDeque<>();
+        addAll(pending, document.getDocument().getTrailer().getValues());
+
+        while (!pending.isEmpty()) {
+            COSBase value = pending.pop();
+            if (value instanceof COSObject) {
+                value = ((COSObject) value).getObject();
+                if (value == null || objectNumbers.containsKey(value)) {
+                    continue;
+                }
+                objectNumbers.put(value, (long) objectNumbers.size() + 1);
+            } else if (value instanceof COSStream) {
+                // Streams are always written as objects of their own, even when held directly
+                if (objectNumbers.containsKey(value)) {
+                    continue;
+                }
+                objectNumbers.put(value, (long) objectNumbers.size() + 1);
+            } else if ((value instanceof COSDictionary || value instanceof COSArray) && !visitedDirect.add(value)) {
+                continue;
+            }
+
+            if (value instanceof COSDictionary) {
+                addAll(pending, ((COSDictionary) value).getValues());
+            } else if (value instanceof COSArray) {
+                for (COSBase element : (COSArray) value) {
+                    if (element != null) {
+                        pending.push(element);
+                    }
+                }
+            }
+        }
+        return objectNumbers;
+    }
+
+    private void addAll(Deque<COSBase> pending, Iterable<COSBase> values) {
+        for (COSBase value : values) {
+            if (value != null) {
+                pending.push(value);
+            }
+        }
+    }
+
+    // Only objects missing from sizes, such as rewritten font programs, are serialized
+    private long measure(Map<COSBase, Long> objectNumbers, Map<COSBase, Long> sizes) throws IOException {
+        PDFObjectWriter writer = new PDFObjectWriter(objectNumbers);
+        long size = 0;
+        for (COSBase object : objectNumbers.keySet()) {
+            Long objectSize = sizes.get(object);
+            if (objectSize == null) {
+                objectSize = writer.measureObject(object);
+                sizes.put(object, objectSize);
+            }
+            size += objectSize;
+        }
+        return size;
+    }
+
+    private int removeThumbnails(PDDocument document) {
+        int count = 0;
+        for (PDPage page : document.getPages()) {
+            count += removeEntry(page.getCOSObject(), COSName.THUMB);
+        }
+        return count;
+    }
+
+    private int removeEmbeddedFiles(PDDocument document) {
+        int count = 0;
+        COSDictionary names = document.getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.NAMES);
+        if (names != null && names.containsKey(COSName.EMBEDDED_FILES)) {
+            // The name tree itself counts once even when it turns out to be empty
+            count += Math.max(1, countNameTreeEntries(names.getCOSDictionary(COSName.EMBEDDED_FILES)));
+            names.removeItem(COSName.EMBEDDED_FILES);
+        }
+
+        // Files can also be attached to a spot on a page
+        for (PDPage page : document.getPages()) {
+            COSArray annotations = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+            if (annotations == null) {
+                continue;
+            }
+            for (int i = annotations.size() - 1; i >= 0; i--) {
+                COSBase annotation = annotations.getObject(i);
+                if (annotation instanceof COSDictionary
+                        && FILE_ATTACHMENT.equals(((COSDictionary) annotation).getCOSName(COSName.SUBTYPE))) {
+                    annotations.remove(i);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int removeJavaScript(PDDocument document) {
+        int count = 0;
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+
+        COSDictionary names = catalog.getCOSDictionary(COSName.NAMES);
+        if (names != null && names.containsKey(COSName.JAVA_SCRIPT)) {
+            count += Math.max(1, countNameTreeEntries(names.getCOSDictionary(COSName.JAVA_SCRIPT)));
+            names.removeItem(COSName.JAVA_SCRIPT);
+        }
+        if (isJavaScriptAction(catalog.getDictionaryObject(COSName.OPEN_ACTION))) {
+            catalog.removeItem(COSName.OPEN_ACTION);
+            count++;
+        }
+        count += removeJavaScriptActions(catalog);
+
+        for (PDPage page : document.getPages()) {
+            count += removeJavaScriptActions(page.getCOSObject());
+            for (COSDictionary annotation : annotations(page)) {
+                count += removeJavaScriptActions(annotation);
+            }
+        }
+
+        // Form field scripts (formatting, validation, calculation) sit on the field hierarchy
+        COSDictionary acroForm = catalog.getCOSDictionary(COSName.ACRO_FORM);
+        if (acroForm != null) {
+            Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<COSArray> fieldArrays = new ArrayDeque<>();
+            COSArray fields = acroForm.getCOSArray(COSName.FIELDS);
+            if (fields != null) {
+                fieldArrays.push(fields);
+            }
+            while (!fieldArrays.isEmpty()) {
+                COSArray array = fieldArrays.pop();
+                for (int i = 0; i < array.size(); i++) {
+                    COSBase field = array.getObject(i);
+                    if (field instanceof COSDictionary && visited.add(field)) {
+                        count += removeJavaScriptActions((COSDictionary) field);
+                        COSArray kids = ((COSDictionary) field).getCOSArray(COSName.KIDS);
+                        if (kids != null) {
+                            fieldArrays.push(kids);
+                        }
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    // Removes script actions from an /A entry and from the trigger events in /AA
+    private int removeJavaScriptActions(COSDictionary owner) {
+        int count = 0;
+        if (isJavaScriptAction(owner.getDictionaryObject(COSName.A))) {
+            owner.removeItem(COSName.A);
+            count++;
+        }
+        COSDictionary additionalActions = owner.getCOSDictionary(COSName.AA);
+        if (additionalActions != null) {
+            for (COSName trigger : new ArrayList<>(additionalActions.keySet())) {
+                if (isJavaScriptAction(additionalActions.getDictionaryObject(trigger))) {
+                    additionalActions.removeItem(trigger);
+                    count++;
+                }
+            }
+            if (additionalActions.size() == 0) {
+                owner.removeItem(COSName.AA);
+            }
+        }
+        return count;
+    }
+
+    private boolean isJavaScriptAction(COSBase action) {
+        return action instanceof COSDictionary
+            && COSName.JAVA_SCRIPT.equals(((COSDictionary) action).getCOSName(COSName.S));
+    }
+
+    private int removePieceInfo(PDDocument document) {
+        int count = 0;
+        for (PDPage page : document.getPages()) {
+            count += removeEntry(page.getCOSObject(), COSName.PIECE_INFO);
+        }
+        for (COSStream xObject : xObjects(document)) {
+            count += removeEntry(xObject, COSName.PIECE_INFO);
+        }
+        return count;
+    }
+
+    private int removeMetadata(PDDocument document) {
+        int count = removeEntry(document.getDocumentCatalog().getCOSObject(), COSName.METADATA);
+        for (PDPage page : document.getPages()) {
+            count += removeEntry(page.getCOSObject(), COSName.METADATA);
+        }
+        for (COSStream xObject : xObjects(document)) {
+            count += removeEntry(xObject, COSName.METADATA);
+        }
+        return count;
+    }
+
+    // The trailer's Info dictionary: title, author, producer and dates
+    private int removeDocumentInfo(PDDocument document) {
+        return removeEntry(document.getDocument().getTrailer(), COSName.INFO);
+    }
+
+    private int removeUnusedDestinations(PDDocument document) {
+        Set<String> used = referencedDestinationNames(document);
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+        int count = 0;
+
+        // PDF 1.2 and later: a name tree under /Names
+        COSDictionary names = catalog.getCOSDictionary(COSName.NAMES);
+        COSDictionary tree = names == null ? null : names.getCOSDictionary(COSName.DESTS);
+        if (tree != null) {
+            TreeMap<String, COSBase[]> entries = new TreeMap<>();
+            collectNameTree(tree, entries, Collections.newSetFromMap(new IdentityHashMap<>()));
+            int before = entries.size();
+            entries.keySet().retainAll(used);
+            int removed = before - entries.size();
+            if (removed > 0) {
+                if (entries.isEmpty()) {
+                    names.removeItem(COSName.DESTS);
+                } else {
+                    // Rebuilt as a single sorted leaf; the original keys are kept byte-for-byte
+                    COSArray pairs = new COSArray();
+                    for (COSBase[] pair : entries.values()) {
+                        pairs.add(pair[0]);
+                        pairs.add(pair[1]);
+                    }
+                    COSDictionary rebuilt = new COSDictionary();
+                    rebuilt.setItem(COSName.NAMES, pairs);
+                    names.setItem(COSName.DESTS, rebuilt);
+                }
+                count += removed;
+            }
+        }
+
+        // PDF 1.1: a plain dictionary keyed by name
+        COSDictionary dests = catalog.getCOSDictionary(COSName.DESTS);
+        if (dests != null) {
+            for (COSName name : new ArrayList<>(dests.keySet())) {
+                if (!used.contains(name.getName())) {
+                    dests.removeItem(name);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Names used by the open action, outline entries and link annotations
+    private Set<String> referencedDestinationNames(PDDocument document) {
+        Set<String> used = new HashSet<>();
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+
+        addDestinationName(catalog.getDictionaryObject(COSName.OPEN_ACTION), used, visited);
+
+        COSDictionary outlines = catalog.getCOSDictionary(COSName.OUTLINES);
+        Deque<COSDictionary> items = new ArrayDeque<>();
+        if (outlines != null && outlines.getCOSDictionary(COSName.FIRST) != null) {
+            items.push(outlines.getCOSDictionary(COSName.FIRST));
+        }
+        while (!items.isEmpty()) {
+            COSDictionary item = items.pop();
+            if (!visited.add(item)) {
+                continue;
+            }
+            addDestinationName(item.getDictionaryObject(COSName.DEST), used, visited);
+            addDestinationName(item.getDictionaryObject(COSName.A), used, visited);
+            for (COSName link : new COSName[] {COSName.FIRST, COSName.NEXT}) {
+                COSDictionary linked = item.getCOSDictionary(link);
+                if (linked != null) {
+                    items.push(linked);
+                }
+            }
+        }
+
+        for (PDPage page : document.getPages()) {
+            for (COSDictionary annotation : annotations(page)) {
+                addDestinationName(annotation.getDictionaryObject(COSName.DEST), used, visited);
+                addDestinationName(annotation.getDictionaryObject(COSName.A), used, visited);
+                COSDictionary additionalActions = annotation.getCOSDictionary(COSName.AA);
+                if (additionalActions != null) {
+                    for (COSBase action : additionalActions.getValues()) {
+                        addDestinationName(action instanceof COSObject ? ((COSObject) action).getObject() : action,
+                            used, visited);
+                    }
+                }
+            }
+        }
+        return used;
+    }
+
+    // Accepts a destination name or a go-to action, following chained /Next actions
+    private void addDestinationName(COSBase value, Set<String> used, Set<COSBase> visited) {
+        if (value instanceof COSString) {
+            used.add(((COSString) value).getString());
+        } else if (value instanceof COSName) {
+            used.add(((COSName) value).getName());
+        } else if (value instanceof COSDictionary && visited.add(value)) {
+            COSDictionary action = (COSDictionary) value;
+            addDestinationName(action.getDictionaryObject(COSName.D), used, visited);
+            addDestinationName(action.getDictionaryObject(COSName.NEXT), used, visited);
+        } else if (value instanceof COSArray && visited.add(value)) {
+            // Either an explicit destination (which names nothing) or a list of /Next actions
+            COSArray array = (COSArray) value;
+            for (int i = 0; i < array.size(); i++) {
+                COSBase element = array.getObject(i);
+                if (element instanceof COSDictionary) {
+                    addDestinationName(element, used, visited);
+                }
+            }
+        }
+    }
+
+    private int removeStructureTree(PDDocument document) {
+        COSDictionary catalog = document.getDocumentCatalog().getCOSObject();
+        if (!catalog.containsKey(COSName.STRUCT_TREE_ROOT)) {
+            return 0;
+        }
+        catalog.removeItem(COSName.STRUCT_TREE_ROOT);
+        catalog.removeItem(COSName.MARK_INFO);
+
+        // Back-references into the removed tree
+        for (PDPage page : document.getPages()) {
+            page.getCOSObject().removeItem(COSName.STRUCT_PARENTS);
+            for (COSDictionary annotation : annotations(page)) {
+                annotation.removeItem(COSName.STRUCT_PARENT);
+            }
+        }
+        for (COSStream xObject : xObjects(document)) {
+            xObject.removeItem(COSName.STRUCT_PARENT);
+            xObject.removeItem(COSName.STRUCT_PARENTS);
+        }
+        return 1;
+    }
+
+    private List<COSDictionary> annotations(PDPage page) {
+        List<COSDictionary> annotations = new ArrayList<>();
+        COSArray array = page.getCOSObject().getCOSArray(COSName.ANNOTS);
+        if (array != null) {
+            for (int i = 0; i < array.size(); i++) {
+                COSBase annotation = array.getObject(i);
+                if (annotation instanceof COSDictionary) {
+                    annotations.add((COSDictionary) annotation);
+                }
+            }
+        }
+        return annotations;
+    }
+
+    // Image and form XObjects used by the pages, including those nested inside forms
+    private List<COSStream> xObjects(PDDocument document) {
+        List<COSStream> found = new ArrayList<>();
+        Set<COSBase> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Deque<COSDictionary> resources = new ArrayDeque<>();
+        for (PDPage page : document.getPages()) {
+            PDResources pageResources = page.getResources();
+            if (pageResources != null && visited.add(pageResources.getCOSObject())) {
+                resources.push(pageResources.getCOSObject());
+            }
+        }
+
+        while (!resources.isEmpty()) {
+            COSDictionary xObjectDictionary = resources.pop().getCOSDictionary(COSName.XOBJECT);
+            if (xObjectDictionary == null) {
+                continue;
+            }
+            for (COSName name : xObjectDictionary.keySet()) {
+                COSBase xObject = xObjectDictionary.getDictionaryObject(name);
+                if (xObject instanceof COSStream && visited.add(xObject)) {
+                    found.add((COSStream) xObject);
+                    COSDictionary nested = ((COSStream) xObject).getCOSDictionary(COSName.RESOURCES);
+                    if (nested != null && visited.add(nested)) {
+                        resources.push(nested);
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    private int countNameTreeEntries(COSDictionary node) {
+        if (node == null) {
+            return 0;
+        }
+        TreeMap<String, COSBase[]> entries = new TreeMap<>();
+        collectNameTree(node, entries, Collections.newSetFromMap(new IdentityHashMap<>()));
+        return entries.size();
+    }
+
+    private void collectNameTree(COSDictionary node, Map<String, COSBase[]> entries, Set<COSBase> visited) {
+        if (!visited.add(node)) {
+            return;
+        }
+        COSArray names = node.getCOSArray(COSName.NAMES);
+        if (names != null) {
+            for (int i = 0; i + 1 < names.size(); i += 2) {
+                COSBase key = names.getObject(i);
+                if (key instanceof COSString) {
+                    entries.put(((COSString) key).getString(), new COSBase[] {key, names.get(i + 1)});
+                }
+            }
+        }
+        COSArray kids = node.getCOSArray(COSName.KIDS);
+        if (kids != null) {
+            for (int i = 0; i < kids.size(); i++) {
+                COSBase kid = kids.getObject(i);
+                if (kid instanceof COSDictionary) {
+                    collectNameTree((COSDictionary) kid, entries, visited);
+                }
+            }
+        }
+    }
+
+    private int removeEntry(COSDictionary dictionary, COSName key) {
+        if (!dictionary.containsKey(key)) {
+            return 0;
+        }
+        dictionary.removeItem(key);
+        return 1;
+    }
+}
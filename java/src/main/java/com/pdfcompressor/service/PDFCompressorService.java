@@ -1,5 +1,12 @@
 package com.pdfcompressor.service;
 
+import com.pdfcompressor.model.CleanupItem;
+import com.pdfcompressor.model.CompressionStrategy;
+import com.pdfcompressor.model.CompressionVariant;
+import com.pdfcompressor.model.PDFCleanupOptions;
+import com.pdfcompressor.model.PDFCompressionOptions;
+import com.pdfcompressor.model.PDFCompressionResult;
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDPageContentStream;
@@ -8,17 +15,30 @@ import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 @Service
 public class PDFCompressorService {
@@ -26,7 +46,27 @@ public class PDFCompressorService {
     private final Path uploadDir = Paths.get("uploads");
     private final Path outputDir = Paths.get("outputs");
 
-    public PDFCompressorService() {
+    // Output names are "<id>_compressed.pdf", or "<id>_compressed_q<level>.pdf" for variants
+    private static final Pattern COMPRESSED_SUFFIX = Pattern.compile("_compressed(_q\\d+)?\\.pdf$");
+
+    // Below this quality pages may be rasterized; above it the PDF structure is always kept
+    static final float RASTER_QUALITY_THRESHOLD = 0.5f;
+
+    private final PDFLinearizer pdfLinearizer;
+    private final CompressionStrategyAnalyzer strategyAnalyzer;
+    private final ShardCoordinator shardCoordinator;
+    private final PDFCleanupPass cleanupPass;
+    private final PageCheckpointStore pageCheckpointStore;
+
+    @Autowired
+    public PDFCompressorService(PDFLinearizer pdfLinearizer, CompressionStrategyAnalyzer strategyAnalyzer,
+                                ShardCoordinator shardCoordinator, PDFCleanupPass cleanupPass,
+                                PageCheckpointStore pageCheckpointStore) {
+        this.pdfLinearizer = pdfLinearizer;
+        this.strategyAnalyzer = strategyAnalyzer;
+        this.shardCoordinator = shardCoordinator;
+        this.cleanupPass = cleanupPass;
+        this.pageCheckpointStore = pageCheckpointStore;
         try {
             Files.createDirectories(uploadDir);
             Files.createDirectories(outputDir);
@@ -35,7 +75,7 @@ public class PDFCompressorService {
         }
     }
 
-    public String compressPDF(MultipartFile file, float quality) throws IOException {
+    public PDFCompressionResult compressPDF(MultipartFile file, PDFCompressionOptions options) throws IOException {
         // Generate unique file names
         String fileId = file.getOriginalFilename();
         Path inputPath = uploadDir.resolve(fileId + ".pdf");
@@ -46,53 +86,206 @@ public class PDFCompressorService {
         }
 
 
+        // Return the ID of the compressed file, with what the cleanup pass removed from it
+        List<CleanupItem> cleanup = compressToOutput(inputPath, outputPath, options);
+        return new PDFCompressionResult(fileId + "_compressed.pdf",
+            cleanup == null || cleanup.isEmpty() ? null : cleanup);
+    }
+
+    // Runs the full pipeline (strategy trial, sharding, checkpoints, cleanup, linearization) for one output.
+    // Returns what the cleanup pass removed, or null when the original file was kept
+    private List<CleanupItem> compressToOutput(Path inputPath, Path outputPath, PDFCompressionOptions options) throws IOException {
         // Get original file size
         long originalSize = Files.size(inputPath);
+        List<CleanupItem> cleanup = null;
 
         try {
             // Compress the PDF
-            compressPDFFile(inputPath.toString(), outputPath.toString(), quality);
+            cleanup = compressPDFFile(inputPath.toString(), outputPath.toString(), options);
 
-            // Check if compression actually reduced the file size
-            long compressedSize = Files.size(outputPath);
-            
-            // If compression increased the file size, use the original file instead
-            if (compressedSize > originalSize) {
+            if (cleanup == null) {
+                // The sampled trial predicted no saving, so no full pass was run
+                Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+                System.out.println("No strategy is expected to reduce the file size. Using original file instead.");
+            } else if (Files.size(outputPath) > originalSize) {
+                // If compression increased the file size, use the original file instead
                 // Use REPLACE_EXISTING to handle the case where the file already exists
                 Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
                 System.out.println("Compression increased file size. Using original file instead.");
+                cleanup = null;
             }
         } catch (Exception e) {
             // If any error occurs during compression, use the original file
+            cleanup = null;
             Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
             System.out.println("Error during compression: " + e.getMessage() + ". Using original file instead.");
         }
 
-        // Return the ID of the compressed file
-        return fileId + "_compressed.pdf";
+        // Rewrite the output for fast web view if requested
+        if (options.isLinearize()) {
+            linearizeOutput(outputPath);
+        }
+        return cleanup;
+    }
+
+    // Maps the UI compression level (0-100) to the quality used by the compressors (0.1-1)
+    public static float qualityForCompressionLevel(int compressionLevel) {
+        return Math.max(0.1f, 1 - (compressionLevel / 100.0f));
     }
 
-    private void compressPDFFile(String inputPath, String outputPath, float quality) throws IOException {
+    // Every page is rendered once, at the resolution of the highest-quality raster level, and encoded
+    // for each raster level from that render; the structural rewrite is done once and shared by every
+    // structural level. The request's strategy, cleanup and linearization settings apply to every level
+    public List<CompressionVariant> compressPDFVariants(MultipartFile file, List<Integer> compressionLevels,
+                                                        PDFCompressionOptions options) throws IOException {
+        String fileId = file.getOriginalFilename();
+        Path inputPath = uploadDir.resolve(fileId + ".pdf");
+
+        try (var inputStream = file.getInputStream()) {
+            Files.copy(inputStream, inputPath, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        long originalSize = Files.size(inputPath);
+
+        // Levels that rasterize share a single render of every page; the rest share one structural rewrite
+        List<Integer> rasterLevels = new ArrayList<>();
+        List<Integer> structuralLevels = new ArrayList<>();
+        Map<Integer, Path> outputPaths = new LinkedHashMap<>();
+        try (PDDocument document = PDDocument.load(inputPath.toFile())) {
+            Map<Float, CompressionStrategy> strategies = new HashMap<>();
+            for (int compressionLevel : new TreeSet<>(compressionLevels)) {
+                Path outputPath = outputDir.resolve(variantFileName(fileId, compressionLevel));
+                Files.deleteIfExists(outputPath);
+                outputPaths.put(compressionLevel, outputPath);
+
+                CompressionStrategy strategy = variantStrategy(document, originalSize, options,
+                    qualityForCompressionLevel(compressionLevel), strategies);
+                if (strategy == CompressionStrategy.RASTER) {
+                    rasterLevels.add(compressionLevel);
+                } else if (strategy == CompressionStrategy.STRUCTURAL) {
+                    structuralLevels.add(compressionLevel);
+                }
+            }
+
+            if (!rasterLevels.isEmpty()) {
+                compressVariantsWithImageConversion(document, rasterLevels, outputPaths);
+            }
+            if (!structuralLevels.isEmpty()) {
+                // The structural rewrite does not depend on quality, so every such level gets the same bytes
+                Path sharedOutput = outputPaths.get(structuralLevels.get(0));
+                compressWithPDFOptimization(document, sharedOutput.toString(), options.getCleanup());
+                for (int i = 1; i < structuralLevels.size(); i++) {
+                    Files.copy(sharedOutput, outputPaths.get(structuralLevels.get(i)), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Error during variant compression: " + e.getMessage() + ". Using original file for missing variants.");
+        }
+
+        List<CompressionVariant> variants = new ArrayList<>();
+        for (Map.Entry<Integer, Path> entry : outputPaths.entrySet()) {
+            Path outputPath = entry.getValue();
+
+            // Same rule as a single compression: never hand back something larger than the upload
+            if (!Files.exists(outputPath) || Files.size(outputPath) > originalSize) {
+                Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (options.isLinearize()) {
+                linearizeOutput(outputPath);
+            }
+
+            variants.add(new CompressionVariant(entry.getKey(), outputPath.getFileName().toString(), Files.size(outputPath)));
+        }
+        return variants;
+    }
+
+    // The request's strategy, or for AUTO the sampled trial's choice at the level's quality; null keeps
+    // the original. Qualities above the raster threshold only trial the structural rewrite, so they share one
+    private CompressionStrategy variantStrategy(PDDocument document, long originalSize, PDFCompressionOptions options,
+                                                float quality, Map<Float, CompressionStrategy> strategies) throws IOException {
+        if (options.getStrategy() != CompressionStrategy.AUTO) {
+            return options.getStrategy();
+        }
+        float key = quality < RASTER_QUALITY_THRESHOLD ? quality : RASTER_QUALITY_THRESHOLD;
+        if (!strategies.containsKey(key)) {
+            PDFCompressionOptions levelOptions = new PDFCompressionOptions(quality);
+            levelOptions.setCleanup(options.getCleanup());
+            strategies.put(key, strategyAnalyzer.chooseStrategy(document, originalSize, levelOptions));
+        }
+        return strategies.get(key);
+    }
+
+    private String variantFileName(String fileId, int compressionLevel) {
+        return fileId + "_compressed_q" + compressionLevel + ".pdf";
+    }
+
+    private void linearizeOutput(Path outputPath) throws IOException {
+        Path linearizedPath = outputPath.resolveSibling(outputPath.getFileName() + ".linearized");
+        try {
+            pdfLinearizer.linearize(outputPath, linearizedPath);
+            Files.move(linearizedPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (Exception e) {
+            // A non-linearized file is still a valid result
+            Files.deleteIfExists(linearizedPath);
+            System.out.println("Error during linearization: " + e.getMessage() + ". Keeping non-linearized output.");
+        }
+    }
+
+    // Returns what the cleanup pass removed (empty for rasterized output), or null when nothing was
+    // written because no strategy is expected to shrink the file
+    private List<CleanupItem> compressPDFFile(String inputPath, String outputPath, PDFCompressionOptions options) throws IOException {
         // Load the PDF document
         File inputFile = new File(inputPath);
         PDDocument document = PDDocument.load(inputFile);
+        float quality = options.getQuality();
         
         try {
-            // Try different compression strategies based on the quality parameter
-            if (quality < 0.5f) {
-                // For higher compression (lower quality), use image-based compression
-                compressWithImageConversion(document, outputPath, quality);
+            CompressionStrategy strategy = options.getStrategy();
+            if (strategy == CompressionStrategy.AUTO) {
+                // Trial the candidates on a few pages rather than running a full pass that may grow the file
+                strategy = strategyAnalyzer.chooseStrategy(document, inputFile.length(), options);
+                if (strategy == null) {
+                    return null;
+                }
+            }
+
+            int pageCount = document.getNumberOfPages();
+            if (strategy == CompressionStrategy.RASTER) {
+                // Rendered pages are checkpointed, so a retry after a restart only renders what is missing
+                try (PageCheckpoint checkpoint = openRasterCheckpoint(inputFile.toPath(), pageCount, quality)) {
+                    if (shardCoordinator.shouldShard(pageCount)) {
+                        // Very large documents are rendered in page ranges by worker processes and merged
+                        shardCoordinator.compress(inputFile.toPath(), Paths.get(outputPath), quality, pageCount,
+                            (task, shardOutput) -> compressWithImageConversion(document, shardOutput.toString(), quality,
+                                task.getStartPage(), task.getEndPage(), checkpoint));
+                    } else {
+                        // For higher compression (lower quality), use image-based compression
+                        compressWithImageConversion(document, outputPath, quality, 0, pageCount, checkpoint);
+                    }
+                    if (checkpoint != null) {
+                        checkpoint.complete();
+                    }
+                }
             } else {
                 // For higher quality, use PDF/A optimization which preserves quality better
-                compressWithPDFOptimization(document, outputPath);
+                return compressWithPDFOptimization(document, outputPath, options.getCleanup());
             }
+            return Collections.emptyList();
         } finally {
             // Close the document
             document.close();
         }
     }
     
-    private void compressWithImageConversion(PDDocument document, String outputPath, float quality) throws IOException {
+    // Shard workers open the same checkpoint for their page ranges; the key includes the input's hash
+    PageCheckpoint openRasterCheckpoint(Path inputPath, int pageCount, float quality) throws IOException {
+        return pageCheckpointStore.open("compress-raster", inputPath, "quality=" + quality, pageCount);
+    }
+
+    // Renders pages [startPage, endPage) into a new document; shard workers call this for their page range.
+    // With a checkpoint, pages finished by an earlier run are reused and new ones are saved as they complete
+    void compressWithImageConversion(PDDocument document, String outputPath, float quality,
+                                     int startPage, int endPage, PageCheckpoint checkpoint) throws IOException {
         
         
         try (PDDocument compressedDocument = new PDDocument()) {
@@ -101,30 +294,41 @@ public class PDFCompressorService {
             
             // Calculate appropriate DPI based on quality
             // Lower quality = lower DPI = smaller file
-            int dpi = Math.max(72, Math.min(150, (int)(72 + (quality * 78))));
+            int dpi = dpiForQuality(quality);
             
             // Process each page
-            for (int pageIndex = 0; pageIndex < document.getNumberOfPages(); pageIndex++) {
-                // Render the page to an image
-                BufferedImage image = pdfRenderer.renderImageWithDPI(
-                    pageIndex, dpi, ImageType.RGB);
-                
-                // Create a JPEG from the image with the specified quality
-                PDImageXObject pdImage = JPEGFactory.createFromImage(
-                    compressedDocument, image, quality);
+            for (int pageIndex = startPage; pageIndex < endPage; pageIndex++) {
+                PDPage originalPage = document.getPage(pageIndex);
+
+                // A page that is just a JPEG at or below the target quality and DPI keeps it as-is
+                JPEGPassthrough passthrough = JPEGPassthrough.find(originalPage, dpi, quality);
+                if (passthrough != null) {
+                    passthrough.addPage(compressedDocument, originalPage);
+                    continue;
+                }
+
+                PDImageXObject pdImage;
+                byte[] savedJpeg = checkpoint != null ? checkpoint.load(pageIndex) : null;
+                if (savedJpeg != null) {
+                    pdImage = JPEGFactory.createFromByteArray(compressedDocument, savedJpeg);
+                } else {
+                    // Render the page to an image
+                    BufferedImage image = pdfRenderer.renderImageWithDPI(
+                        pageIndex, dpi, ImageType.RGB);
+
+                    // Create a JPEG from the image with the specified quality
+                    pdImage = JPEGFactory.createFromImage(
+                        compressedDocument, image, quality);
+                    if (checkpoint != null) {
+                        checkpoint.save(pageIndex, rawImageData(pdImage));
+                    }
+                }
                 
                 // Get the original page dimensions
-                PDPage originalPage = document.getPage(pageIndex);
                 PDRectangle mediaBox = originalPage.getMediaBox();
                 
-                // Create a new page with the same dimensions
-                PDPage newPage = new PDPage(new PDRectangle(mediaBox.getWidth(), mediaBox.getHeight()));
-                compressedDocument.addPage(newPage);
-                
-                // Draw the compressed image on the new page
-                PDPageContentStream contentStream = new PDPageContentStream(compressedDocument, newPage);
-                contentStream.drawImage(pdImage, 0, 0, mediaBox.getWidth(), mediaBox.getHeight());
-                contentStream.close();
+                // Add a page of the same dimensions showing the compressed image
+                addImagePage(compressedDocument, pdImage, mediaBox);
             }
             
             // Save the compressed document
@@ -136,17 +340,113 @@ public class PDFCompressorService {
         }
     }
     
-    private void compressWithPDFOptimization(PDDocument document, String outputPath) throws IOException {
+    // The encoded JPEG exactly as it is stored in the PDF
+    static byte[] rawImageData(PDImageXObject image) throws IOException {
+        try (InputStream raw = image.getCOSObject().createRawInputStream()) {
+            return raw.readAllBytes();
+        }
+    }
+
+    private void compressVariantsWithImageConversion(PDDocument document, List<Integer> compressionLevels,
+                                                     Map<Integer, Path> outputPaths) throws IOException {
+        int variantCount = compressionLevels.size();
+        float[] qualities = new float[variantCount];
+        int[] dpis = new int[variantCount];
+        int maxDpi = 0;
+        for (int i = 0; i < variantCount; i++) {
+            qualities[i] = qualityForCompressionLevel(compressionLevels.get(i));
+            dpis[i] = dpiForQuality(qualities[i]);
+            maxDpi = Math.max(maxDpi, dpis[i]);
+        }
+
+        // Variant pages are buffered in temporary files rather than on the heap until each is saved
+        List<PDDocument> variantDocuments = new ArrayList<>();
+        try {
+            for (int i = 0; i < variantCount; i++) {
+                variantDocuments.add(new PDDocument(MemoryUsageSetting.setupTempFileOnly()));
+            }
+
+            PDFRenderer pdfRenderer = new PDFRenderer(document);
+            for (int pageIndex = 0; pageIndex < document.getNumberOfPages(); pageIndex++) {
+                PDPage originalPage = document.getPage(pageIndex);
+                PDRectangle mediaBox = originalPage.getMediaBox();
+
+                // Variants whose target the page's own JPEG already meets reuse it unchanged
+                JPEGPassthrough[] passthroughs = new JPEGPassthrough[variantCount];
+                boolean needsRender = false;
+                for (int i = 0; i < variantCount; i++) {
+                    passthroughs[i] = JPEGPassthrough.find(originalPage, dpis[i], qualities[i]);
+                    needsRender |= passthroughs[i] == null;
+                }
+
+                // Render once at the highest resolution any variant needs, then downscale for the others
+                BufferedImage image = needsRender ? pdfRenderer.renderImageWithDPI(pageIndex, maxDpi, ImageType.RGB) : null;
+
+                for (int i = 0; i < variantCount; i++) {
+                    if (passthroughs[i] != null) {
+                        passthroughs[i].addPage(variantDocuments.get(i), originalPage);
+                        continue;
+                    }
+                    BufferedImage variantImage = dpis[i] == maxDpi ? image : scaleImage(image, dpis[i] / (float) maxDpi);
+                    PDImageXObject pdImage = JPEGFactory.createFromImage(variantDocuments.get(i), variantImage, qualities[i]);
+                    addImagePage(variantDocuments.get(i), pdImage, mediaBox);
+                }
+            }
+
+            for (int i = 0; i < variantCount; i++) {
+                variantDocuments.get(i).save(outputPaths.get(compressionLevels.get(i)).toFile());
+            }
+        } finally {
+            for (PDDocument variantDocument : variantDocuments) {
+                variantDocument.close();
+            }
+        }
+    }
+
+    // Lower quality = lower DPI = smaller file
+    static int dpiForQuality(float quality) {
+        return Math.max(72, Math.min(150, (int)(72 + (quality * 78))));
+    }
+
+    private BufferedImage scaleImage(BufferedImage image, float scale) {
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    static void addImagePage(PDDocument targetDocument, PDImageXObject pdImage, PDRectangle mediaBox) throws IOException {
+        // Create a new page with the same dimensions
+        PDPage newPage = new PDPage(new PDRectangle(mediaBox.getWidth(), mediaBox.getHeight()));
+        targetDocument.addPage(newPage);
+
+        // Draw the compressed image on the new page
+        PDPageContentStream contentStream = new PDPageContentStream(targetDocument, newPage);
+        contentStream.drawImage(pdImage, 0, 0, mediaBox.getWidth(), mediaBox.getHeight());
+        contentStream.close();
+    }
+
+    private List<CleanupItem> compressWithPDFOptimization(PDDocument document, String outputPath,
+                                                          PDFCleanupOptions cleanupOptions) throws IOException {
         // This method preserves the original PDF structure but applies some optimizations
+
+        // Drop thumbnails, attachments, scripts and other payloads that never show on the page
+        List<CleanupItem> cleanup = cleanupPass.clean(document, cleanupOptions);
         
         // Set the version to PDF 1.5 which has better compression
         document.setVersion(1.5f);
         
-        // Remove metadata to reduce size
-        document.setDocumentInformation(new org.apache.pdfbox.pdmodel.PDDocumentInformation());
-        
         // Save with compression enabled
         document.save(outputPath);
+        return cleanup;
     }
 
     public Path getCompressedFilePath(String fileName) {
@@ -160,7 +460,7 @@ public class PDFCompressorService {
     
     public long getOriginalFileSize(String fileName) throws IOException {
         // Extract the original file ID from the compressed file name
-        String originalFileName = fileName.replace("_compressed.pdf", ".pdf");
+        String originalFileName = originalFileName(fileName);
         Path filePath = uploadDir.resolve(originalFileName);
         return Files.size(filePath);
     }
@@ -178,17 +478,18 @@ public class PDFCompressorService {
             Path compressedUploadPath = uploadDir.resolve(fileName);
             boolean compressedUploadDeleted = Files.deleteIfExists(compressedUploadPath);
             
-            // Delete the original file from the upload directory
-            String originalFileName = fileName.replace("_compressed.pdf", ".pdf");
+            // Delete the original file from the upload directory, unless other variants still need it
+            String originalFileName = originalFileName(fileName);
             Path originalFilePath = uploadDir.resolve(originalFileName);
-            boolean originalDeleted = Files.deleteIfExists(originalFilePath);
-            allDeleted = allDeleted && originalDeleted;
+            boolean originalKept = hasRemainingOutputs(originalFileName);
+            boolean originalDeleted = !originalKept && Files.deleteIfExists(originalFilePath);
+            allDeleted = allDeleted && (originalKept || originalDeleted);
             
             // Log deletion results
             System.out.println("File deletion results:");
             System.out.println("- Compressed file (output): " + (compressedOutputDeleted ? "Deleted" : "Not found"));
             System.out.println("- Compressed file (upload): " + (compressedUploadDeleted ? "Deleted" : "Not found"));
-            System.out.println("- Original file (upload): " + (originalDeleted ? "Deleted" : "Not found"));
+            System.out.println("- Original file (upload): " + (originalKept ? "Kept for remaining variants" : originalDeleted ? "Deleted" : "Not found"));
             
             return allDeleted;
         } catch (IOException e) {
@@ -196,4 +497,16 @@ public class PDFCompressorService {
             return false;
         }
     }
+
+    private String originalFileName(String fileName) {
+        return COMPRESSED_SUFFIX.matcher(fileName).replaceFirst(".pdf");
+    }
+
+    private boolean hasRemainingOutputs(String originalFileName) throws IOException {
+        String fileId = originalFileName.substring(0, originalFileName.length() - ".pdf".length());
+        try (Stream<Path> outputs = Files.list(outputDir)) {
+            return outputs.map(path -> path.getFileName().toString())
+                .anyMatch(name -> name.startsWith(fileId) && COMPRESSED_SUFFIX.matcher(name.substring(fileId.length())).matches());
+        }
+    }
 }
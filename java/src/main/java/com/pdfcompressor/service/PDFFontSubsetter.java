@@ -0,0 +1,443 @@
+package com.pdfcompressor.service;
+
+import org.apache.fontbox.ttf.CmapLookup;
+import org.apache.fontbox.ttf.TTFParser;
+import org.apache.fontbox.ttf.TTFSubsetter;
+import org.apache.fontbox.ttf.TrueTypeFont;
+import org.apache.pdfbox.contentstream.PDFStreamEngine;
+import org.apache.pdfbox.contentstream.operator.DrawObject;
+import org.apache.pdfbox.contentstream.operator.Operator;
+import org.apache.pdfbox.contentstream.operator.state.Concatenate;
+import org.apache.pdfbox.contentstream.operator.state.Restore;
+import org.apache.pdfbox.contentstream.operator.state.Save;
+import org.apache.pdfbox.contentstream.operator.state.SetGraphicsStateParameters;
+import org.apache.pdfbox.contentstream.operator.state.SetMatrix;
+import org.apache.pdfbox.contentstream.operator.text.BeginText;
+import org.apache.pdfbox.contentstream.operator.text.EndText;
+import org.apache.pdfbox.contentstream.operator.text.MoveText;
+import org.apache.pdfbox.contentstream.operator.text.MoveTextSetLeading;
+import org.apache.pdfbox.contentstream.operator.text.NextLine;
+import org.apache.pdfbox.contentstream.operator.text.SetCharSpacing;
+import org.apache.pdfbox.contentstream.operator.text.SetFontAndSize;
+import org.apache.pdfbox.contentstream.operator.text.SetTextHorizontalScaling;
+import org.apache.pdfbox.contentstream.operator.text.SetTextLeading;
+import org.apache.pdfbox.contentstream.operator.text.SetTextRenderingMode;
+import org.apache.pdfbox.contentstream.operator.text.SetTextRise;
+import org.apache.pdfbox.contentstream.operator.text.SetWordSpacing;
+import org.apache.pdfbox.contentstream.operator.text.ShowText;
+import org.apache.pdfbox.contentstream.operator.text.ShowTextAdjusted;
+import org.apache.pdfbox.contentstream.operator.text.ShowTextLine;
+import org.apache.pdfbox.contentstream.operator.text.ShowTextLineAndSpace;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.font.PDCIDFontType2;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDType0Font;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceDictionary;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceEntry;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAppearanceStream;
+import org.apache.pdfbox.util.Matrix;
+import org.apache.pdfbox.util.Vector;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+// Records which font names and glyphs the content of a document actually uses, then drops font
+// resources nothing selects and rewrites embedded TrueType CID fonts (the usual form of embedded
+// CJK fonts) to contain only the glyphs that are shown
+final class PDFFontSubsetter {
+
+    // Same tables PDFBox keeps when it embeds a CID font subset itself; the PDF supplies the cmap and widths
+    private static final List<String> SUBSET_TABLES = Arrays.asList(
+        "head", "hhea", "loca", "maxp", "cvt ", "prep", "glyf", "hmtx", "fpgm", "gasp");
+
+    private static final Pattern SUBSET_TAG = Pattern.compile("^[A-Z]{6}\\+");
+
+    private final PDDocument document;
+
+    // Per /Font resource dictionary, the names content selected from it with Tf
+    private final Map<COSDictionary, Set<COSName>> usedFontNames = new IdentityHashMap<>();
+
+    // Per CIDFont dictionary, each CID shown and the glyph it maps to in the current font program
+    private final Map<COSDictionary, Map<Integer, Integer>> usedGlyphs = new IdentityHashMap<>();
+    private final Map<COSDictionary, COSDictionary> type0Parents = new IdentityHashMap<>();
+
+    // Resource dictionaries of everything the scan ran through
+    private final Set<COSDictionary> scannedResources = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    // Font and resource dictionaries also used by content the scan does not follow
+    private final Set<COSBase> protectedObjects = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private PDFFontSubsetter(PDDocument document) {
+        this.document = document;
+    }
+
+    // Scans the given pages, including their forms and annotation appearances
+    static PDFFontSubsetter scan(PDDocument document, Iterable<PDPage> pages) throws IOException {
+        PDFFontSubsetter subsetter = new PDFFontSubsetter(document);
+        GlyphUsageEngine engine = subsetter.new GlyphUsageEngine();
+        for (PDPage page : pages) {
+            engine.processPage(page);
+            for (PDAnnotation annotation : page.getAnnotations()) {
+                PDAppearanceDictionary appearance = annotation.getAppearance();
+                if (appearance == null) {
+                    continue;
+                }
+                for (PDAppearanceEntry entry : Arrays.asList(appearance.getNormalAppearance(),
+                        appearance.getRolloverAppearance(), appearance.getDownAppearance())) {
+                    if (entry == null) {
+                        continue;
+                    }
+                    if (entry.isStream()) {
+                        engine.showForm(entry.getAppearanceStream());
+                    } else if (entry.isSubDictionary()) {
+                        for (PDAppearanceStream state : entry.getSubDictionary().values()) {
+                            engine.showForm(state);
+                        }
+                    }
+                }
+            }
+        }
+        subsetter.protectUnscannedContent();
+        return subsetter;
+    }
+
+    int removeUnusedFonts() {
+        int count = 0;
+        for (Map.Entry<COSDictionary, Set<COSName>> entry : usedFontNames.entrySet()) {
+            COSDictionary fonts = entry.getKey();
+            if (protectedObjects.contains(fonts)) {
+                continue;
+            }
+            for (COSName name : new HashSet<>(fonts.keySet())) {
+                if (!entry.getValue().contains(name)) {
+                    fonts.removeItem(name);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    int subsetFonts() {
+        int count = 0;
+        for (FontSubset subset : buildSubsets()) {
+            subset.apply();
+            count++;
+        }
+        return count;
+    }
+
+    // Bytes the subsets would save, without changing the document
+    long estimateSubsetSavings() {
+        long saved = 0;
+        for (FontSubset subset : buildSubsets()) {
+            saved += subset.savedBytes();
+        }
+        return saved;
+    }
+
+    private List<FontSubset> buildSubsets() {
+        // A font program shared by several CIDFonts would need one subset covering all of them
+        Map<COSBase, Integer> programUsers = new IdentityHashMap<>();
+        for (COSDictionary cidFont : usedGlyphs.keySet()) {
+            COSStream program = fontProgram(cidFont);
+            if (program != null) {
+                programUsers.merge(program, 1, Integer::sum);
+            }
+        }
+
+        List<FontSubset> subsets = new ArrayList<>();
+        for (Map.Entry<COSDictionary, Map<Integer, Integer>> entry : usedGlyphs.entrySet()) {
+            COSDictionary cidFont = entry.getKey();
+            COSStream program = fontProgram(cidFont);
+            if (program == null || programUsers.get(program) > 1 || protectedObjects.contains(cidFont)
+                    || protectedObjects.contains(type0Parents.get(cidFont))) {
+                continue;
+            }
+            try {
+                FontSubset subset = buildSubset(cidFont, program, entry.getValue());
+                if (subset != null) {
+                    subsets.add(subset);
+                }
+            } catch (IOException | RuntimeException e) {
+                // The font is kept whole
+                System.out.println("Could not subset font " + cidFont.getNameAsString(COSName.BASE_FONT) + ": " + e.getMessage());
+            }
+        }
+        return subsets;
+    }
+
+    private COSStream fontProgram(COSDictionary cidFont) {
+        COSDictionary descriptor = cidFont.getCOSDictionary(COSName.FONT_DESC);
+        COSBase program = descriptor == null ? null : descriptor.getDictionaryObject(COSName.FONT_FILE2);
+        return program instanceof COSStream ? (COSStream) program : null;
+    }
+
+    private FontSubset buildSubset(COSDictionary cidFont, COSStream program, Map<Integer, Integer> cidToGid) throws IOException {
+        TrueTypeFont font;
+        try (InputStream in = program.createInputStream()) {
+            font = new TTFParser(true).parse(in);
+        }
+        try {
+            // TTFSubsetter selects glyphs by Unicode value, so every used glyph needs one in the font's cmap
+            CmapLookup cmap = font.getUnicodeCmapLookup();
+            TTFSubsetter subsetter = new TTFSubsetter(font, SUBSET_TABLES);
+            for (int gid : new HashSet<>(cidToGid.values())) {
+                List<Integer> codePoints = cmap.getCharCodes(gid);
+                if (codePoints == null || codePoints.isEmpty()) {
+                    if (gid == 0) {
+                        continue;
+                    }
+                    return null;
+                }
+                subsetter.add(codePoints.get(0));
+            }
+
+            // The subset renumbers glyphs, so CIDs are mapped to the new numbers
+            Map<Integer, Integer> newGids = new HashMap<>();
+            for (Map.Entry<Integer, Integer> entry : subsetter.getGIDMap().entrySet()) {
+                newGids.put(entry.getValue(), entry.getKey());
+            }
+            int maxCid = 0;
+            for (Map.Entry<Integer, Integer> entry : cidToGid.entrySet()) {
+                if (entry.getValue() != 0 && !newGids.containsKey(entry.getValue())) {
+                    return null;
+                }
+                maxCid = Math.max(maxCid, entry.getKey());
+            }
+            byte[] cidToGidMap = new byte[(maxCid + 1) * 2];
+            for (Map.Entry<Integer, Integer> entry : cidToGid.entrySet()) {
+                int newGid = newGids.getOrDefault(entry.getValue(), 0);
+                cidToGidMap[entry.getKey() * 2] = (byte) (newGid >> 8);
+                cidToGidMap[entry.getKey() * 2 + 1] = (byte) newGid;
+            }
+
+            ByteArrayOutputStream subsetProgram = new ByteArrayOutputStream();
+            subsetter.writeToStream(subsetProgram);
+            COSStream subsetStream = flateStream(subsetProgram.toByteArray());
+            subsetStream.setInt(COSName.LENGTH1, subsetProgram.size());
+            COSStream mapStream = flateStream(cidToGidMap);
+
+            if (subsetStream.getLength() + mapStream.getLength() >= program.getLength()) {
+                return null;
+            }
+            return new FontSubset(cidFont, program, subsetStream, mapStream, subsetTag(newGids.keySet()));
+        } finally {
+            font.close();
+        }
+    }
+
+    private COSStream flateStream(byte[] data) throws IOException {
+        COSStream stream = document.getDocument().createCOSStream();
+        try (OutputStream out = stream.createOutputStream(COSName.FLATE_DECODE)) {
+            out.write(data);
+        }
+        return stream;
+    }
+
+    // Six capital letters and a plus sign, as the PDF specification requires for subset font names
+    private String subsetTag(Set<Integer> gids) {
+        long hash = gids.hashCode() & 0xffffffffL;
+        StringBuilder tag = new StringBuilder();
+        for (int i = 0; i < 6; i++) {
+            tag.append((char) ('A' + hash % 26));
+            hash /= 26;
+        }
+        return tag.append('+').toString();
+    }
+
+    // Viewers regenerate form field appearances from the AcroForm default resources with any glyph,
+    // and patterns, soft masks and Type 3 glyph procedures draw content the scan does not follow
+    private void protectUnscannedContent() {
+        COSDictionary acroForm = document.getDocumentCatalog().getCOSObject().getCOSDictionary(COSName.ACRO_FORM);
+        if (acroForm != null) {
+            protectResources(acroForm.getCOSDictionary(COSName.DR));
+        }
+        for (COSDictionary resources : new ArrayList<>(scannedResources)) {
+            for (COSDictionary pattern : values(resources.getCOSDictionary(COSName.PATTERN))) {
+                protectResources(pattern.getCOSDictionary(COSName.RESOURCES));
+            }
+            for (COSDictionary state : values(resources.getCOSDictionary(COSName.EXT_G_STATE))) {
+                COSDictionary softMask = state.getCOSDictionary(COSName.SMASK);
+                COSDictionary group = softMask == null ? null : softMask.getCOSDictionary(COSName.G);
+                if (group != null) {
+                    protectResources(group.getCOSDictionary(COSName.RESOURCES));
+                }
+            }
+            for (COSDictionary font : values(resources.getCOSDictionary(COSName.FONT))) {
+                protectResources(font.getCOSDictionary(COSName.RESOURCES));
+            }
+        }
+    }
+
+    private void protectResources(COSDictionary root) {
+        Deque<COSDictionary> pending = new ArrayDeque<>();
+        if (root != null) {
+            pending.push(root);
+        }
+        while (!pending.isEmpty()) {
+            COSDictionary resources = pending.pop();
+            if (!protectedObjects.add(resources)) {
+                continue;
+            }
+            COSDictionary fonts = resources.getCOSDictionary(COSName.FONT);
+            if (fonts != null) {
+                protectedObjects.add(fonts);
+                for (COSDictionary font : values(fonts)) {
+                    protectedObjects.add(font);
+                    COSArray descendants = font.getCOSArray(COSName.DESCENDANT_FONTS);
+                    if (descendants != null && descendants.size() > 0
+                            && descendants.getObject(0) instanceof COSDictionary) {
+                        protectedObjects.add(descendants.getObject(0));
+                    }
+                    addIfPresent(pending, font.getCOSDictionary(COSName.RESOURCES));
+                }
+            }
+            for (COSDictionary xObject : values(resources.getCOSDictionary(COSName.XOBJECT))) {
+                addIfPresent(pending, xObject.getCOSDictionary(COSName.RESOURCES));
+            }
+            for (COSDictionary pattern : values(resources.getCOSDictionary(COSName.PATTERN))) {
+                addIfPresent(pending, pattern.getCOSDictionary(COSName.RESOURCES));
+            }
+        }
+    }
+
+    private void addIfPresent(Deque<COSDictionary> pending, COSDictionary dictionary) {
+        if (dictionary != null) {
+            pending.push(dictionary);
+        }
+    }
+
+    private List<COSDictionary> values(COSDictionary dictionary) {
+        List<COSDictionary> values = new ArrayList<>();
+        if (dictionary != null) {
+            for (COSName key : dictionary.keySet()) {
+                COSBase value = dictionary.getDictionaryObject(key);
+                if (value instanceof COSDictionary) {
+                    values.add((COSDictionary) value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private final class FontSubset {
+        final COSDictionary cidFont;
+        final COSStream program;
+        final COSStream subsetProgram;
+        final COSStream cidToGidMap;
+        final String tag;
+
+        FontSubset(COSDictionary cidFont, COSStream program, COSStream subsetProgram, COSStream cidToGidMap, String tag) {
+            this.cidFont = cidFont;
+            this.program = program;
+            this.subsetProgram = subsetProgram;
+            this.cidToGidMap = cidToGidMap;
+            this.tag = tag;
+        }
+
+        long savedBytes() {
+            return program.getLength() - subsetProgram.getLength() - cidToGidMap.getLength();
+        }
+
+        void apply() {
+            COSDictionary descriptor = cidFont.getCOSDictionary(COSName.FONT_DESC);
+            descriptor.setItem(COSName.FONT_FILE2, subsetProgram);
+            // A CIDSet lists the glyphs of the full font and would now be wrong
+            descriptor.removeItem(COSName.CID_SET);
+            cidFont.setItem(COSName.CID_TO_GID_MAP, cidToGidMap);
+
+            addTag(descriptor, COSName.FONT_NAME);
+            addTag(cidFont, COSName.BASE_FONT);
+            if (type0Parents.get(cidFont) != null) {
+                addTag(type0Parents.get(cidFont), COSName.BASE_FONT);
+            }
+        }
+
+        private void addTag(COSDictionary dictionary, COSName key) {
+            String name = dictionary.getNameAsString(key);
+            if (name != null && !SUBSET_TAG.matcher(name).find()) {
+                dictionary.setName(key, tag + name);
+            }
+        }
+    }
+
+    // Runs the text operators only, recording font selections and the glyphs each show operator draws
+    private final class GlyphUsageEngine extends PDFStreamEngine {
+
+        GlyphUsageEngine() {
+            addOperator(new BeginText());
+            addOperator(new EndText());
+            addOperator(new SetFontAndSize());
+            addOperator(new ShowText());
+            addOperator(new ShowTextAdjusted());
+            addOperator(new ShowTextLine());
+            addOperator(new ShowTextLineAndSpace());
+            addOperator(new MoveText());
+            addOperator(new MoveTextSetLeading());
+            addOperator(new NextLine());
+            addOperator(new SetMatrix());
+            addOperator(new SetTextLeading());
+            addOperator(new SetCharSpacing());
+            addOperator(new SetWordSpacing());
+            addOperator(new SetTextHorizontalScaling());
+            addOperator(new SetTextRenderingMode());
+            addOperator(new SetTextRise());
+            addOperator(new Save());
+            addOperator(new Restore());
+            addOperator(new Concatenate());
+            addOperator(new SetGraphicsStateParameters());
+            addOperator(new DrawObject());
+        }
+
+        @Override
+        protected void processOperator(Operator operator, List<COSBase> operands) throws IOException {
+            PDResources resources = getResources();
+            if (resources != null) {
+                COSDictionary resourcesDictionary = resources.getCOSObject();
+                scannedResources.add(resourcesDictionary);
+                COSDictionary fonts = resourcesDictionary.getCOSDictionary(COSName.FONT);
+                if (fonts != null) {
+                    Set<COSName> names = usedFontNames.computeIfAbsent(fonts, key -> new HashSet<>());
+                    if ("Tf".equals(operator.getName()) && !operands.isEmpty() && operands.get(0) instanceof COSName) {
+                        names.add((COSName) operands.get(0));
+                    }
+                }
+            }
+            super.processOperator(operator, operands);
+        }
+
+        @Override
+        protected void showFontGlyph(Matrix textRenderingMatrix, PDFont font, int code, Vector displacement)
+                throws IOException {
+            if (font instanceof PDType0Font && ((PDType0Font) font).getDescendantFont() instanceof PDCIDFontType2) {
+                PDType0Font type0 = (PDType0Font) font;
+                COSDictionary cidFont = type0.getDescendantFont().getCOSObject();
+                usedGlyphs.computeIfAbsent(cidFont, key -> new HashMap<>()).put(type0.codeToCID(code), type0.codeToGID(code));
+                type0Parents.put(cidFont, type0.getCOSObject());
+            }
+        }
+    }
+}
@@ -0,0 +1,722 @@
+package com.pdfcompressor.service;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.springframework.stereotype.Component;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static com.pdfcompressor.service.PDFObjectWriter.ascii;
+
+// Rewrites a PDF in linearized ("fast web view") form as described in Annex F of the PDF
+// specification: the catalog, a hint stream and everything the first page needs come first,
+// followed by the remaining pages in order, so a viewer fetching byte ranges can show page
+// one before the rest of the file arrives.
+@Component
+public class PDFLinearizer {
+
+    // Fixed width for numbers we can only fill in once the whole layout is known
+    private static final int NUMBER_WIDTH = 10;
+
+    // Catalog entries a viewer needs when opening the document
+    private static final List<COSName> DOCUMENT_LEVEL_KEYS = Arrays.asList(
+        COSName.getPDFName("ViewerPreferences"),
+        COSName.getPDFName("PageMode"),
+        COSName.getPDFName("Threads"),
+        COSName.getPDFName("OpenAction"),
+        COSName.ACRO_FORM
+    );
+
+    public void linearize(Path inputPath, Path outputPath) throws IOException {
+        try (PDDocument document = PDDocument.load(inputPath.toFile(), MemoryUsageSetting.setupTempFileOnly())) {
+            if (document.isEncrypted()) {
+                throw new IOException("Encrypted documents cannot be linearized");
+            }
+            if (document.getNumberOfPages() == 0) {
+                throw new IOException("Document has no pages");
+            }
+            new Layout(document).write(outputPath);
+        }
+    }
+
+    private static final class Layout {
+        private final PDDocument document;
+        private final COSDictionary trailer;
+        private final COSDictionary catalog;
+        private final List<COSDictionary> pages = new ArrayList<>();
+
+        // Parts 4, 6, 7, 8 and 9 of a linearized file
+        private final List<COSBase> documentLevel = new ArrayList<>();
+        private final List<COSBase> firstPage = new ArrayList<>();
+        private final List<List<COSBase>> otherPages = new ArrayList<>();
+        private final List<COSBase> sharedSection = new ArrayList<>();
+        private final List<COSBase> remaining = new ArrayList<>();
+
+        // Shared object identifiers referenced by each page, as indexes into the shared object hint table
+        private final List<List<Integer>> sharedReferences = new ArrayList<>();
+
+        private final Map<COSBase, Long> objectNumbers = new IdentityHashMap<>();
+        private final Map<COSBase, Long> objectSizes = new IdentityHashMap<>();
+        private final PDFObjectWriter objectWriter = new PDFObjectWriter(objectNumbers);
+
+        private long linearizationDictNumber;
+        private long hintStreamNumber;
+        private long mainSectionSize;
+
+        Layout(PDDocument document) throws IOException {
+            this.document = document;
+            this.trailer = document.getDocument().getTrailer();
+            this.catalog = document.getDocumentCatalog().getCOSObject();
+            for (PDPage page : document.getPages()) {
+                pages.add(page.getCOSObject());
+            }
+            partition();
+            assignNumbers();
+            for (COSBase object : objectNumbers.keySet()) {
+                objectSizes.put(object, objectWriter.measureObject(object));
+            }
+        }
+
+        private void partition() throws IOException {
+            // Everything reachable from the trailer gets written somewhere
+            Collector all = new Collector(Collections.emptySet(), null, false);
+            all.addIndirect(catalog);
+            all.addValue(trailer.getItem(COSName.INFO));
+            List<COSBase> allObjects = all.run();
+            Set<COSBase> allSet = identitySet(allObjects);
+            for (COSDictionary page : pages) {
+                if (!allSet.contains(page)) {
+                    throw new IOException("Page is not reachable from the document catalog");
+                }
+            }
+
+            // Part 4: the catalog and the objects needed to open the document
+            Collector openCollector = new Collector(Collections.emptySet(), null, true);
+            openCollector.found.add(catalog);
+            openCollector.seen.add(catalog);
+            for (COSName key : DOCUMENT_LEVEL_KEYS) {
+                openCollector.addValue(catalog.getItem(key));
+            }
+            if (COSName.getPDFName("UseOutlines").equals(catalog.getCOSName(COSName.getPDFName("PageMode")))) {
+                openCollector.addValue(catalog.getItem(COSName.OUTLINES));
+            }
+            documentLevel.addAll(openCollector.run());
+            Set<COSBase> documentLevelSet = identitySet(documentLevel);
+
+            // Part 6: the first page and everything it uses
+            firstPage.addAll(new Collector(documentLevelSet, pages.get(0), true).run());
+            Set<COSBase> firstPageSet = identitySet(firstPage);
+
+            // Objects used by the other pages, counted so private and shared ones can be told apart
+            List<List<COSBase>> pageObjects = new ArrayList<>();
+            Map<COSBase, Integer> usage = new IdentityHashMap<>();
+            for (int i = 1; i < pages.size(); i++) {
+                List<COSBase> objects = new Collector(documentLevelSet, pages.get(i), true).run();
+                pageObjects.add(objects);
+                for (COSBase object : objects) {
+                    usage.merge(object, 1, Integer::sum);
+                }
+            }
+
+            // Part 7: each page followed by its private objects; part 8: objects several pages share
+            Set<COSBase> sharedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (List<COSBase> objects : pageObjects) {
+                List<COSBase> section = new ArrayList<>();
+                for (COSBase object : objects) {
+                    if (firstPageSet.contains(object)) {
+                        continue;
+                    }
+                    if (usage.get(object) == 1) {
+                        section.add(object);
+                    } else if (sharedSet.add(object)) {
+                        sharedSection.add(object);
+                    }
+                }
+                otherPages.add(section);
+            }
+
+            // Shared object identifiers: first page objects come first, then the shared section
+            Map<COSBase, Integer> sharedIds = new IdentityHashMap<>();
+            for (int i = 0; i < firstPage.size(); i++) {
+                sharedIds.put(firstPage.get(i), i);
+            }
+            for (int i = 0; i < sharedSection.size(); i++) {
+                sharedIds.put(sharedSection.get(i), firstPage.size() + i);
+            }
+            List<Integer> firstPageShared = new ArrayList<>();
+            for (COSBase object : firstPage) {
+                if (usage.containsKey(object)) {
+                    firstPageShared.add(sharedIds.get(object));
+                }
+            }
+            sharedReferences.add(firstPageShared);
+            for (List<COSBase> objects : pageObjects) {
+                List<Integer> references = new ArrayList<>();
+                for (COSBase object : objects) {
+                    if (firstPageSet.contains(object) || sharedSet.contains(object)) {
+                        references.add(sharedIds.get(object));
+                    }
+                }
+                sharedReferences.add(references);
+            }
+
+            // Part 9: whatever is left (page tree nodes, outlines, document information...)
+            Set<COSBase> placed = identitySet(documentLevel);
+            placed.addAll(firstPage);
+            placed.addAll(sharedSection);
+            for (List<COSBase> section : otherPages) {
+                placed.addAll(section);
+            }
+            for (COSBase object : allObjects) {
+                if (!placed.contains(object)) {
+                    remaining.add(object);
+                }
+            }
+        }
+
+        private void assignNumbers() {
+            // Objects listed in the main cross-reference table are numbered from 1 ...
+            long next = 1;
+            for (List<COSBase> section : otherPages) {
+                for (COSBase object : section) {
+                    objectNumbers.put(object, next++);
+                }
+            }
+            for (COSBase object : sharedSection) {
+                objectNumbers.put(object, next++);
+            }
+            for (COSBase object : remaining) {
+                objectNumbers.put(object, next++);
+            }
+            mainSectionSize = next;
+
+            // ... and the first page section follows on, in file order
+            linearizationDictNumber = next++;
+            for (COSBase object : documentLevel) {
+                objectNumbers.put(object, next++);
+            }
+            hintStreamNumber = next++;
+            for (COSBase object : firstPage) {
+                objectNumbers.put(object, next++);
+            }
+        }
+
+        void write(Path outputPath) throws IOException {
+            // First pass: lay the file out without the hint stream, since hint table
+            // offsets are defined as if the hint stream were not present
+            Offsets withoutHints = computeOffsets(0);
+            byte[] hintStream = buildHintStream(withoutHints);
+            Offsets offsets = computeOffsets(hintStream.length);
+
+            try (PDFObjectWriter.CountingOutputStream out = new PDFObjectWriter.CountingOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(outputPath), 65536))) {
+                out.write(header());
+                out.write(linearizationDictionary(offsets, hintStream.length));
+                out.write(firstPageXref(offsets));
+                writeObjects(documentLevel, offsets, out);
+                out.write(hintStream);
+                writeObjects(firstPage, offsets, out);
+                for (List<COSBase> section : otherPages) {
+                    writeObjects(section, offsets, out);
+                }
+                writeObjects(sharedSection, offsets, out);
+                writeObjects(remaining, offsets, out);
+                checkPosition(out, offsets.mainXref);
+                out.write(mainXref(offsets));
+                checkPosition(out, offsets.fileLength);
+            }
+        }
+
+        private void writeObjects(List<COSBase> objects, Offsets offsets, PDFObjectWriter.CountingOutputStream out)
+                throws IOException {
+            for (COSBase object : objects) {
+                checkPosition(out, offsets.of(object));
+                objectWriter.writeObject(object, out);
+            }
+        }
+
+        private void checkPosition(PDFObjectWriter.CountingOutputStream out, long expected) throws IOException {
+            if (out.getCount() != expected) {
+                throw new IOException("Linearized layout mismatch at offset " + out.getCount() + ", expected " + expected);
+            }
+        }
+
+        private Offsets computeOffsets(long hintStreamLength) {
+            Offsets offsets = new Offsets();
+            long position = header().length;
+            offsets.linearizationDict = position;
+            position += linearizationDictionary(null, 0).length;
+            offsets.firstPageXref = position;
+            position += firstPageXref(null).length;
+            position = place(documentLevel, position, offsets);
+            offsets.hintStream = position;
+            position += hintStreamLength;
+            offsets.firstPage = position;
+            position = place(firstPage, position, offsets);
+            offsets.endOfFirstPage = position;
+            for (List<COSBase> section : otherPages) {
+                offsets.pageStarts.add(position);
+                position = place(section, position, offsets);
+            }
+            offsets.sharedSection = position;
+            position = place(sharedSection, position, offsets);
+            position = place(remaining, position, offsets);
+            offsets.mainXref = position;
+            position += mainXref(offsets).length;
+            offsets.fileLength = position;
+            return offsets;
+        }
+
+        private long place(List<COSBase> objects, long position, Offsets offsets) {
+            for (COSBase object : objects) {
+                offsets.objects.put(object, position);
+                position += objectSizes.get(object);
+            }
+            return position;
+        }
+
+        private byte[] header() {
+            String version = String.format(Locale.ROOT, "%.1f", document.getVersion());
+            byte[] text = ascii("%PDF-" + version + "\n%");
+            byte[] header = Arrays.copyOf(text, text.length + 5);
+            // Binary comment so transfer tools treat the file as binary
+            header[text.length] = (byte) 0xE2;
+            header[text.length + 1] = (byte) 0xE3;
+            header[text.length + 2] = (byte) 0xCF;
+            header[text.length + 3] = (byte) 0xD3;
+            header[text.length + 4] = '\n';
+            return header;
+        }
+
+        private byte[] linearizationDictionary(Offsets offsets, long hintStreamLength) {
+            long fileLength = offsets == null ? 0 : offsets.fileLength;
+            long hintOffset = offsets == null ? 0 : offsets.hintStream;
+            long endOfFirstPage = offsets == null ? 0 : offsets.endOfFirstPage;
+            long mainXrefEntry = offsets == null ? 0 : offsets.mainXref + mainXrefHeader().length - 1;
+            String dictionary = linearizationDictNumber + " 0 obj\n<< /Linearized 1"
+                + " /L " + pad(fileLength)
+                + " /H [ " + pad(hintOffset) + " " + pad(hintStreamLength) + " ]"
+                + " /O " + pad(objectNumbers.get(pages.get(0)))
+                + " /E " + pad(endOfFirstPage)
+                + " /N " + pad(pages.size())
+                + " /T " + pad(mainXrefEntry)
+                + " >>\nendobj\n";
+            return ascii(dictionary);
+        }
+
+        private byte[] firstPageXref(Offsets offsets) {
+            long firstNumber = linearizationDictNumber;
+            long count = 2 + documentLevel.size() + firstPage.size();
+            StringBuilder xref = new StringBuilder();
+            xref.append("xref\n").append(firstNumber).append(' ').append(count).append('\n');
+            xref.append(xrefEntry(offsets == null ? 0 : offsets.linearizationDict));
+            for (COSBase object : documentLevel) {
+                xref.append(xrefEntry(offsets == null ? 0 : offsets.of(object)));
+            }
+            xref.append(xrefEntry(offsets == null ? 0 : offsets.hintStream));
+            for (COSBase object : firstPage) {
+                xref.append(xrefEntry(offsets == null ? 0 : offsets.of(object)));
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                bytes.write(ascii(xref.toString()));
+                bytes.write(ascii("trailer\n<< /Size " + (hintStreamNumber + firstPage.size() + 1)));
+                bytes.write(ascii(" /Root " + objectNumbers.get(catalog) + " 0 R"));
+                COSBase info = trailer.getItem(COSName.INFO);
+                if (info != null) {
+                    bytes.write(ascii(" /Info "));
+                    objectWriter.writeValue(info, bytes);
+                }
+                bytes.write(ascii(" /ID "));
+                objectWriter.writeValue(documentId(), bytes);
+                bytes.write(ascii(" /Prev " + pad(offsets == null ? 0 : offsets.mainXref)));
+                bytes.write(ascii(" >>\nstartxref\n0\n%%EOF\n"));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private byte[] mainXrefHeader() {
+            return ascii("xref\n0 " + mainSectionSize + "\n");
+        }
+
+        private byte[] mainXref(Offsets offsets) {
+            StringBuilder xref = new StringBuilder(new String(mainXrefHeader(), StandardCharsets.US_ASCII));
+            xref.append("0000000000 65535 f\r\n");
+            for (List<COSBase> section : otherPages) {
+                for (COSBase object : section) {
+                    xref.append(xrefEntry(offsets.of(object)));
+                }
+            }
+            for (COSBase object : sharedSection) {
+                xref.append(xrefEntry(offsets.of(object)));
+            }
+            for (COSBase object : remaining) {
+                xref.append(xrefEntry(offsets.of(object)));
+            }
+            xref.append("trailer\n<< /Size ").append(mainSectionSize).append(" >>\n");
+            // Readers starting from the end of the file are sent to the first page cross-reference table
+            xref.append("startxref\n").append(offsets.firstPageXref).append("\n%%EOF\n");
+            return ascii(xref.toString());
+        }
+
+        private COSArray documentId() {
+            COSBase id = trailer.getDictionaryObject(COSName.ID);
+            if (id instanceof COSArray && ((COSArray) id).size() == 2) {
+                return (COSArray) id;
+            }
+            byte[] value = new byte[16];
+            new SecureRandom().nextBytes(value);
+            COSArray generated = new COSArray();
+            generated.add(new COSString(value));
+            generated.add(new COSString(value));
+            trailer.setItem(COSName.ID, generated);
+            return generated;
+        }
+
+        private byte[] buildHintStream(Offsets offsets) throws IOException {
+            BitWriter bits = new BitWriter();
+            writePageOffsetHints(offsets, bits);
+            byte[] pageTable = bits.toByteArray();
+            bits = new BitWriter();
+            writeSharedObjectHints(offsets, bits);
+            byte[] sharedTable = bits.toByteArray();
+
+            byte[] data = new byte[pageTable.length + sharedTable.length];
+            System.arraycopy(pageTable, 0, data, 0, pageTable.length);
+            System.arraycopy(sharedTable, 0, data, pageTable.length, sharedTable.length);
+            byte[] compressed = deflate(data);
+
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            stream.write(ascii(hintStreamNumber + " 0 obj\n<< /Filter /FlateDecode /Length " + compressed.length
+                + " /S " + pageTable.length + " >>\nstream\n"));
+            stream.write(compressed);
+            stream.write(ascii("\nendstream\nendobj\n"));
+            return stream.toByteArray();
+        }
+
+        private void writePageOffsetHints(Offsets offsets, BitWriter bits) {
+            int pageCount = pages.size();
+            long[] objectCounts = new long[pageCount];
+            long[] pageLengths = new long[pageCount];
+            long[] contentOffsets = new long[pageCount];
+            long[] contentLengths = new long[pageCount];
+
+            objectCounts[0] = firstPage.size();
+            pageLengths[0] = offsets.endOfFirstPage - offsets.firstPage;
+            fillContentHints(pages.get(0), offsets.firstPage, identitySet(firstPage), offsets, contentOffsets, contentLengths, 0);
+            for (int i = 1; i < pageCount; i++) {
+                List<COSBase> section = otherPages.get(i - 1);
+                long start = offsets.pageStarts.get(i - 1);
+                long end = i < pageCount - 1 ? offsets.pageStarts.get(i) : offsets.sharedSection;
+                objectCounts[i] = section.size();
+                pageLengths[i] = end - start;
+                fillContentHints(pages.get(i), start, identitySet(section), offsets, contentOffsets, contentLengths, i);
+            }
+
+            long leastObjects = min(objectCounts);
+            long leastLength = min(pageLengths);
+            long leastContentOffset = min(contentOffsets);
+            long leastContentLength = min(contentLengths);
+            long mostShared = 0;
+            long greatestSharedId = 0;
+            for (List<Integer> references : sharedReferences) {
+                mostShared = Math.max(mostShared, references.size());
+                for (int id : references) {
+                    greatestSharedId = Math.max(greatestSharedId, id);
+                }
+            }
+
+            int objectBits = bitsFor(max(objectCounts) - leastObjects);
+            int lengthBits = bitsFor(max(pageLengths) - leastLength);
+            int contentOffsetBits = bitsFor(max(contentOffsets) - leastContentOffset);
+            int contentLengthBits = bitsFor(max(contentLengths) - leastContentLength);
+            int sharedCountBits = bitsFor(mostShared);
+            int sharedIdBits = bitsFor(greatestSharedId);
+
+            // Header (Table F.3)
+            bits.write(leastObjects, 32);
+            bits.write(offsets.firstPage, 32);
+            bits.write(objectBits, 16);
+            bits.write(leastLength, 32);
+            bits.write(lengthBits, 16);
+            bits.write(leastContentOffset, 32);
+            bits.write(contentOffsetBits, 16);
+            bits.write(leastContentLength, 32);
+            bits.write(contentLengthBits, 16);
+            bits.write(sharedCountBits, 16);
+            bits.write(sharedIdBits, 16);
+            bits.write(0, 16);
+            bits.write(1, 16);
+
+            // Per-page entries (Table F.4), one item at a time for all pages
+            for (long count : objectCounts) {
+                bits.write(count - leastObjects, objectBits);
+            }
+            bits.align();
+            for (long length : pageLengths) {
+                bits.write(length - leastLength, lengthBits);
+            }
+            bits.align();
+            for (List<Integer> references : sharedReferences) {
+                bits.write(references.size(), sharedCountBits);
+            }
+            bits.align();
+            for (List<Integer> references : sharedReferences) {
+                for (int id : references) {
+                    bits.write(id, sharedIdBits);
+                }
+            }
+            bits.align();
+            // Numerators take zero bits
+            for (long contentOffset : contentOffsets) {
+                bits.write(contentOffset - leastContentOffset, contentOffsetBits);
+            }
+            bits.align();
+            for (long contentLength : contentLengths) {
+                bits.write(contentLength - leastContentLength, contentLengthBits);
+            }
+            bits.align();
+        }
+
+        private void fillContentHints(COSDictionary page, long pageStart, Set<COSBase> section, Offsets offsets,
+                                      long[] contentOffsets, long[] contentLengths, int index) {
+            COSBase contents = page.getDictionaryObject(COSName.CONTENTS);
+            if (contents instanceof COSArray && ((COSArray) contents).size() > 0) {
+                contents = ((COSArray) contents).getObject(0);
+            }
+            if (contents != null && section.contains(contents)) {
+                contentOffsets[index] = offsets.of(contents) - pageStart;
+                contentLengths[index] = objectSizes.get(contents);
+            }
+        }
+
+        private void writeSharedObjectHints(Offsets offsets, BitWriter bits) {
+            List<COSBase> groups = new ArrayList<>(firstPage);
+            groups.addAll(sharedSection);
+            long[] lengths = new long[groups.size()];
+            for (int i = 0; i < groups.size(); i++) {
+                lengths[i] = objectSizes.get(groups.get(i));
+            }
+            long leastLength = min(lengths);
+            int lengthBits = bitsFor(max(lengths) - leastLength);
+
+            // Header (Table F.5); every group holds a single object
+            boolean hasSharedSection = !sharedSection.isEmpty();
+            bits.write(hasSharedSection ? objectNumbers.get(sharedSection.get(0)) : 0, 32);
+            bits.write(hasSharedSection ? offsets.sharedSection : 0, 32);
+            bits.write(firstPage.size(), 32);
+            bits.write(groups.size(), 32);
+            bits.write(0, 16);
+            bits.write(leastLength, 32);
+            bits.write(lengthBits, 16);
+
+            // Per-group entries (Table F.6)
+            for (long length : lengths) {
+                bits.write(length - leastLength, lengthBits);
+            }
+            bits.align();
+            for (int i = 0; i < lengths.length; i++) {
+                bits.write(0, 1);
+            }
+            bits.align();
+        }
+
+        private static byte[] deflate(byte[] data) {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            deflater.end();
+            return out.toByteArray();
+        }
+
+        private static String xrefEntry(long offset) {
+            return String.format(Locale.ROOT, "%010d 00000 n\r\n", offset);
+        }
+
+        private static String pad(long value) {
+            StringBuilder text = new StringBuilder(Long.toString(value));
+            while (text.length() < NUMBER_WIDTH) {
+                text.append(' ');
+            }
+            return text.toString();
+        }
+
+        private static int bitsFor(long value) {
+            return value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+        }
+
+        private static long min(long[] values) {
+            return values.length == 0 ? 0 : Arrays.stream(values).min().getAsLong();
+        }
+
+        private static long max(long[] values) {
+            return values.length == 0 ? 0 : Arrays.stream(values).max().getAsLong();
+        }
+
+        private static Set<COSBase> identitySet(List<COSBase> objects) {
+            Set<COSBase> set = Collections.newSetFromMap(new IdentityHashMap<>());
+            set.addAll(objects);
+            return set;
+        }
+    }
+
+    // Byte offsets of every part of the file
+    private static final class Offsets {
+        long linearizationDict;
+        long firstPageXref;
+        long hintStream;
+        long firstPage;
+        long endOfFirstPage;
+        final List<Long> pageStarts = new ArrayList<>();
+        long sharedSection;
+        long mainXref;
+        long fileLength;
+
+        final Map<COSBase, Long> objects = new IdentityHashMap<>();
+
+        long of(COSBase object) {
+            return objects.get(object);
+        }
+    }
+
+    // Walks the object graph and collects indirect objects in breadth-first order
+    private static final class Collector {
+        final List<COSBase> found = new ArrayList<>();
+        final Set<COSBase> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        private final Set<COSBase> exclude;
+        private final COSDictionary ownPage;
+        private final boolean stopAtPages;
+        private final Deque<COSBase> queue = new ArrayDeque<>();
+
+        Collector(Set<COSBase> exclude, COSDictionary ownPage, boolean stopAtPages) {
+            this.exclude = exclude;
+            this.ownPage = ownPage;
+            this.stopAtPages = stopAtPages;
+            if (ownPage != null) {
+                addIndirect(ownPage);
+            }
+        }
+
+        void addIndirect(COSBase target) {
+            if (target == null || target instanceof COSNull || exclude.contains(target)) {
+                return;
+            }
+            if (stopAtPages && target != ownPage && isPageTreeNode(target)) {
+                // Other pages are reached through their own traversal
+                return;
+            }
+            if (seen.add(target)) {
+                found.add(target);
+                queue.add(target);
+            }
+        }
+
+        void addValue(COSBase value) {
+            if (value instanceof COSObject) {
+                addIndirect(((COSObject) value).getObject());
+            } else if (value instanceof COSDictionary || value instanceof COSArray) {
+                scanChildren(value, false);
+            }
+        }
+
+        List<COSBase> run() {
+            while (!queue.isEmpty()) {
+                COSBase object = queue.poll();
+                scanChildren(object, object == ownPage);
+            }
+            return found;
+        }
+
+        private void scanChildren(COSBase container, boolean skipParent) {
+            if (container instanceof COSDictionary) {
+                boolean isStream = container instanceof COSStream;
+                for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) container).entrySet()) {
+                    if (isStream && COSName.LENGTH.equals(entry.getKey())) {
+                        // Stream lengths are written inline
+                        continue;
+                    }
+                    if (skipParent && COSName.PARENT.equals(entry.getKey())) {
+                        continue;
+                    }
+                    addValue(entry.getValue());
+                }
+            } else if (container instanceof COSArray) {
+                for (COSBase item : (COSArray) container) {
+                    addValue(item);
+                }
+            }
+        }
+
+        private static boolean isPageTreeNode(COSBase object) {
+            if (!(object instanceof COSDictionary)) {
+                return false;
+            }
+            COSName type = ((COSDictionary) object).getCOSName(COSName.TYPE);
+            return COSName.PAGE.equals(type) || COSName.PAGES.equals(type);
+        }
+    }
+
+    // Writes big-endian bit fields as used by the hint tables
+    private static final class BitWriter {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int current;
+        private int bitCount;
+
+        void write(long value, int bits) {
+            for (int i = bits - 1; i >= 0; i--) {
+                current = (current << 1) | (int) ((value >>> i) & 1);
+                bitCount++;
+                if (bitCount == 8) {
+                    bytes.write(current);
+                    current = 0;
+                    bitCount = 0;
+                }
+            }
+        }
+
+        void align() {
+            if (bitCount > 0) {
+                write(0, 8 - bitCount);
+            }
+        }
+
+        byte[] toByteArray() {
+            align();
+            return bytes.toByteArray();
+        }
+    }
+}
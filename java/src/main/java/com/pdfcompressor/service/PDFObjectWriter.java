@@ -0,0 +1,200 @@
+package com.pdfcompressor.service;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdfwriter.COSWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+// Serializes COS objects under caller-assigned object numbers, so the caller controls
+// the order objects appear in the file and can know every object's size before writing it
+final class PDFObjectWriter {
+
+    private final Map<COSBase, Long> objectNumbers;
+
+    PDFObjectWriter(Map<COSBase, Long> objectNumbers) {
+        this.objectNumbers = objectNumbers;
+    }
+
+    long measureObject(COSBase object) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream(OutputStream.nullOutputStream());
+        if (object instanceof COSStream) {
+            COSStream stream = (COSStream) object;
+            writeObjectHeader(stream, counter);
+            writeStreamDictionary(stream, stream.getLength(), counter);
+            counter.write(ascii("\nstream\n"));
+            long length = counter.getCount() + stream.getLength();
+            return length + ascii("\nendstream\nendobj\n").length;
+        }
+        writeObject(object, counter);
+        return counter.getCount();
+    }
+
+    void writeObject(COSBase object, OutputStream out) throws IOException {
+        writeObjectHeader(object, out);
+        if (object instanceof COSStream) {
+            COSStream stream = (COSStream) object;
+            long expectedLength = stream.getLength();
+            writeStreamDictionary(stream, expectedLength, out);
+            out.write(ascii("\nstream\n"));
+            long written = 0;
+            try (InputStream raw = stream.createRawInputStream()) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = raw.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                    written += read;
+                }
+            }
+            if (written != expectedLength) {
+                // The layout was computed from /Length, so a mismatch would corrupt every later offset
+                throw new IOException("Stream length mismatch: expected " + expectedLength + " but read " + written);
+            }
+            out.write(ascii("\nendstream\nendobj\n"));
+        } else {
+            writeValue(object, out, true);
+            out.write(ascii("\nendobj\n"));
+        }
+    }
+
+    void writeValue(COSBase value, OutputStream out) throws IOException {
+        writeValue(value, out, false);
+    }
+
+    private void writeObjectHeader(COSBase object, OutputStream out) throws IOException {
+        Long number = objectNumbers.get(object);
+        if (number == null) {
+            throw new IOException("Object has no assigned number");
+        }
+        out.write(ascii(number + " 0 obj\n"));
+    }
+
+    private void writeStreamDictionary(COSStream stream, long length, OutputStream out) throws IOException {
+        out.write(COSWriter.DICT_OPEN);
+        for (Map.Entry<COSName, COSBase> entry : stream.entrySet()) {
+            if (COSName.LENGTH.equals(entry.getKey())) {
+                continue;
+            }
+            entry.getKey().writePDF(out);
+            out.write(COSWriter.SPACE);
+            writeValue(entry.getValue(), out, false);
+            out.write(COSWriter.SPACE);
+        }
+        COSName.LENGTH.writePDF(out);
+        out.write(ascii(" " + length));
+        out.write(COSWriter.DICT_CLOSE);
+    }
+
+    private void writeValue(COSBase value, OutputStream out, boolean topLevel) throws IOException {
+        if (value instanceof COSObject) {
+            COSBase target = ((COSObject) value).getObject();
+            writeReference(target, out);
+            return;
+        }
+        if (!topLevel && (value instanceof COSDictionary || value instanceof COSArray)
+                && objectNumbers.containsKey(value)) {
+            // An indirect object that was handed to us already dereferenced
+            writeReference(value, out);
+            return;
+        }
+
+        if (value == null || value instanceof COSNull) {
+            COSNull.NULL.writePDF(out);
+        } else if (value instanceof COSStream) {
+            throw new IOException("Stream objects must be written indirectly");
+        } else if (value instanceof COSDictionary) {
+            out.write(COSWriter.DICT_OPEN);
+            for (Map.Entry<COSName, COSBase> entry : ((COSDictionary) value).entrySet()) {
+                entry.getKey().writePDF(out);
+                out.write(COSWriter.SPACE);
+                writeValue(entry.getValue(), out, false);
+                out.write(COSWriter.SPACE);
+            }
+            out.write(COSWriter.DICT_CLOSE);
+        } else if (value instanceof COSArray) {
+            out.write(COSWriter.ARRAY_OPEN);
+            COSArray array = (COSArray) value;
+            for (int i = 0; i < array.size(); i++) {
+                if (i > 0) {
+                    out.write(COSWriter.SPACE);
+                }
+                writeValue(array.get(i), out, false);
+            }
+            out.write(COSWriter.ARRAY_CLOSE);
+        } else if (value instanceof COSString) {
+            COSWriter.writeString((COSString) value, out);
+        } else if (value instanceof COSName) {
+            ((COSName) value).writePDF(out);
+        } else if (value instanceof COSInteger) {
+            ((COSInteger) value).writePDF(out);
+        } else if (value instanceof COSFloat) {
+            ((COSFloat) value).writePDF(out);
+        } else if (value instanceof COSBoolean) {
+            ((COSBoolean) value).writePDF(out);
+        } else {
+            throw new IOException("Unsupported object type: " + value.getClass().getSimpleName());
+        }
+    }
+
+    private void writeReference(COSBase target, OutputStream out) throws IOException {
+        Long number = target == null ? null : objectNumbers.get(target);
+        if (number == null) {
+            // Dangling references are equivalent to null
+            COSNull.NULL.writePDF(out);
+        } else {
+            out.write(ascii(number + " 0 R"));
+        }
+    }
+
+    static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static final class CountingOutputStream extends OutputStream {
+        private final OutputStream delegate;
+        private long count;
+
+        CountingOutputStream(OutputStream delegate) {
+            this.delegate = delegate;
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            delegate.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            delegate.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            delegate.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+    }
+}
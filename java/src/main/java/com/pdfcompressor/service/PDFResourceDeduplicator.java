@@ -0,0 +1,177 @@
+package com.pdfcompressor.service;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Makes page resources with identical content (fonts, images, forms, ...) share one object,
+// so documents assembled from independently written parts store each resource once
+final class PDFResourceDeduplicator {
+
+    private static final COSName[] RESOURCE_CATEGORIES = {
+        COSName.FONT, COSName.XOBJECT, COSName.EXT_G_STATE, COSName.COLORSPACE, COSName.PATTERN, COSName.SHADING
+    };
+
+    private final Map<COSBase, String> hashes = new IdentityHashMap<>();
+    private final Map<String, COSBase> canonicalResources = new HashMap<>();
+    private final Set<COSDictionary> visitedResources = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int replacedCount;
+
+    // Returns the number of resource references that now point at a shared copy
+    int deduplicate(PDDocument document) throws IOException {
+        for (PDPage page : document.getPages()) {
+            if (page.getResources() != null) {
+                deduplicateResources(page.getResources().getCOSObject());
+            }
+        }
+        return replacedCount;
+    }
+
+    private void deduplicateResources(COSDictionary resources) throws IOException {
+        if (resources == null || !visitedResources.add(resources)) {
+            return;
+        }
+        for (COSName category : RESOURCE_CATEGORIES) {
+            COSBase entriesBase = resources.getDictionaryObject(category);
+            if (!(entriesBase instanceof COSDictionary)) {
+                continue;
+            }
+            COSDictionary entries = (COSDictionary) entriesBase;
+            for (COSName name : new ArrayList<>(entries.keySet())) {
+                COSBase value = entries.getDictionaryObject(name);
+                if (!(value instanceof COSDictionary)) {
+                    continue;
+                }
+                COSDictionary resource = (COSDictionary) value;
+
+                // Forms, patterns and Type 3 fonts carry resources of their own
+                COSBase nestedResources = resource.getDictionaryObject(COSName.RESOURCES);
+                if (nestedResources instanceof COSDictionary) {
+                    deduplicateResources((COSDictionary) nestedResources);
+                }
+
+                COSBase canonical = canonicalResources.computeIfAbsent(hash(resource), hash -> resource);
+                if (canonical != resource) {
+                    entries.setItem(name, canonical);
+                    replacedCount++;
+                }
+            }
+        }
+    }
+
+    private String hash(COSBase value) throws IOException {
+        String cached = hashes.get(value);
+        if (cached != null) {
+            return cached;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        update(digest, value, Collections.newSetFromMap(new IdentityHashMap<>()));
+        String hash = HexFormat.of().formatHex(digest.digest());
+        hashes.put(value, hash);
+        return hash;
+    }
+
+    // Feeds a canonical form of the object graph to the digest; references are followed, so
+    // two copies of the same font hash alike whatever their object numbers
+    private void update(MessageDigest digest, COSBase value, Set<COSBase> path) throws IOException {
+        if (value instanceof COSObject) {
+            value = ((COSObject) value).getObject();
+        }
+        if (value == null) {
+            digest.update((byte) 'n');
+            return;
+        }
+        if (!path.add(value)) {
+            // Cycle back to an object already being hashed
+            digest.update((byte) 'c');
+            return;
+        }
+
+        if (value instanceof COSDictionary) {
+            COSDictionary dictionary = (COSDictionary) value;
+            digest.update((byte) (value instanceof COSStream ? 's' : 'd'));
+            List<COSName> keys = new ArrayList<>(dictionary.keySet());
+            keys.sort((a, b) -> a.getName().compareTo(b.getName()));
+            for (COSName key : keys) {
+                // Length follows from the data; Parent would pull in the page tree
+                if (COSName.LENGTH.equals(key) || COSName.PARENT.equals(key)) {
+                    continue;
+                }
+                updateText(digest, key.getName());
+                update(digest, dictionary.getItem(key), path);
+            }
+            if (value instanceof COSStream) {
+                try (InputStream raw = ((COSStream) value).createRawInputStream()) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = raw.read(buffer)) != -1) {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+            }
+            digest.update((byte) 'e');
+        } else if (value instanceof COSArray) {
+            COSArray array = (COSArray) value;
+            digest.update((byte) 'a');
+            updateText(digest, String.valueOf(array.size()));
+            for (int i = 0; i < array.size(); i++) {
+                update(digest, array.get(i), path);
+            }
+        } else if (value instanceof COSString) {
+            digest.update((byte) 't');
+            byte[] bytes = ((COSString) value).getBytes();
+            updateText(digest, String.valueOf(bytes.length));
+            digest.update(bytes);
+        } else if (value instanceof COSName) {
+            digest.update((byte) '/');
+            updateText(digest, ((COSName) value).getName());
+        } else if (value instanceof COSInteger) {
+            digest.update((byte) 'i');
+            updateText(digest, String.valueOf(((COSInteger) value).longValue()));
+        } else if (value instanceof COSFloat) {
+            digest.update((byte) 'f');
+            updateText(digest, String.valueOf(((COSFloat) value).floatValue()));
+        } else if (value instanceof COSBoolean) {
+            digest.update((byte) (((COSBoolean) value).getValue() ? 'T' : 'F'));
+        } else {
+            digest.update((byte) 'n');
+        }
+
+        path.remove(value);
+    }
+
+    private void updateText(MessageDigest digest, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        digest.update(bytes);
+        // Separator, so adjacent values cannot run into each other
+        digest.update((byte) 0);
+    }
+}
@@ -0,0 +1,201 @@
+package com.pdfcompressor.service;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+// Minimal PNG writer: IHDR, PLTE/tRNS for palette images, a single IDAT and IEND. Truecolor and
+// greyscale rows get their own filter, picked by the usual minimum-sum-of-absolute-differences
+// heuristic; palette rows are left unfiltered, since filtering indices rarely helps deflate
+final class PNGEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+
+    private static final int COLOR_GREY = 0;
+    private static final int COLOR_RGB = 2;
+    private static final int COLOR_PALETTE = 3;
+    private static final int COLOR_GREY_ALPHA = 4;
+    private static final int COLOR_RGBA = 6;
+
+    private PNGEncoder() {
+    }
+
+    static byte[] encodePalette(byte[] indices, int width, int height, int[] palette, int deflateLevel) throws IOException {
+        int bitDepth = palette.length <= 2 ? 1 : palette.length <= 4 ? 2 : palette.length <= 16 ? 4 : 8;
+        int pixelsPerByte = 8 / bitDepth;
+        int rowBytes = (width + pixelsPerByte - 1) / pixelsPerByte;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(deflateLevel);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, 64 * 1024)) {
+            byte[] row = new byte[rowBytes + 1];
+            for (int y = 0; y < height; y++) {
+                Arrays.fill(row, (byte) 0);
+                for (int x = 0; x < width; x++) {
+                    int index = indices[y * width + x] & 0xFF;
+                    int shift = 8 - bitDepth * (x % pixelsPerByte + 1);
+                    row[1 + x / pixelsPerByte] |= (byte) (index << shift);
+                }
+                out.write(row);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        // Only entries up to the last translucent one need a tRNS value
+        int alphaEntries = 0;
+        for (int i = 0; i < palette.length; i++) {
+            if ((palette[i] >>> 24) != 255) {
+                alphaEntries = i + 1;
+            }
+        }
+        byte[] plte = new byte[palette.length * 3];
+        byte[] trns = new byte[alphaEntries];
+        for (int i = 0; i < palette.length; i++) {
+            plte[i * 3] = (byte) (palette[i] >> 16);
+            plte[i * 3 + 1] = (byte) (palette[i] >> 8);
+            plte[i * 3 + 2] = (byte) palette[i];
+            if (i < alphaEntries) {
+                trns[i] = (byte) (palette[i] >>> 24);
+            }
+        }
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream(compressed.size() + plte.length + trns.length + 128);
+        DataOutputStream data = new DataOutputStream(png);
+        data.write(SIGNATURE);
+        writeChunk(data, "IHDR", header(width, height, bitDepth, COLOR_PALETTE));
+        writeChunk(data, "PLTE", plte);
+        if (alphaEntries > 0) {
+            writeChunk(data, "tRNS", trns);
+        }
+        writeChunk(data, "IDAT", compressed.toByteArray());
+        writeChunk(data, "IEND", new byte[0]);
+        return png.toByteArray();
+    }
+
+    // Lossless 8-bit encoding, dropping the alpha and colour channels the image does not use
+    static byte[] encodeTruecolor(int[] argb, int width, int height, boolean alpha, boolean grey, int deflateLevel) throws IOException {
+        int channels = (grey ? 1 : 3) + (alpha ? 1 : 0);
+        int colorType = grey ? (alpha ? COLOR_GREY_ALPHA : COLOR_GREY) : (alpha ? COLOR_RGBA : COLOR_RGB);
+        int rowBytes = width * channels;
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater(deflateLevel);
+        try (DeflaterOutputStream out = new DeflaterOutputStream(compressed, deflater, 64 * 1024)) {
+            byte[] previous = new byte[rowBytes];
+            byte[] current = new byte[rowBytes];
+            byte[][] candidates = new byte[5][rowBytes + 1];
+            for (int y = 0; y < height; y++) {
+                int offset = 0;
+                for (int x = 0; x < width; x++) {
+                    int pixel = argb[y * width + x];
+                    if (grey) {
+                        current[offset++] = (byte) (pixel >> 8);
+                    } else {
+                        current[offset++] = (byte) (pixel >> 16);
+                        current[offset++] = (byte) (pixel >> 8);
+                        current[offset++] = (byte) pixel;
+                    }
+                    if (alpha) {
+                        current[offset++] = (byte) (pixel >>> 24);
+                    }
+                }
+                out.write(candidates[filterRow(current, previous, channels, candidates)]);
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        } finally {
+            deflater.end();
+        }
+
+        ByteArrayOutputStream png = new ByteArrayOutputStream(compressed.size() + 128);
+        DataOutputStream data = new DataOutputStream(png);
+        data.write(SIGNATURE);
+        writeChunk(data, "IHDR", header(width, height, 8, colorType));
+        writeChunk(data, "IDAT", compressed.toByteArray());
+        writeChunk(data, "IEND", new byte[0]);
+        return png.toByteArray();
+    }
+
+    // Fills one candidate row per filter type and returns the one with the smallest sum of
+    // absolute differences
+    private static int filterRow(byte[] row, byte[] prior, int bpp, byte[][] candidates) {
+        int best = 0;
+        long bestSum = Long.MAX_VALUE;
+        for (int type = 0; type < 5; type++) {
+            byte[] out = candidates[type];
+            out[0] = (byte) type;
+            long sum = 0;
+            for (int i = 0; i < row.length; i++) {
+                int raw = row[i] & 0xFF;
+                int left = i >= bpp ? row[i - bpp] & 0xFF : 0;
+                int up = prior[i] & 0xFF;
+                int upLeft = i >= bpp ? prior[i - bpp] & 0xFF : 0;
+                int predicted;
+                switch (type) {
+                    case 1:
+                        predicted = left;
+                        break;
+                    case 2:
+                        predicted = up;
+                        break;
+                    case 3:
+                        predicted = (left + up) >> 1;
+                        break;
+                    case 4:
+                        predicted = paeth(left, up, upLeft);
+                        break;
+                    default:
+                        predicted = 0;
+                }
+                byte filtered = (byte) (raw - predicted);
+                out[i + 1] = filtered;
+                sum += Math.abs(filtered);
+                if (sum >= bestSum) {
+                    break;
+                }
+            }
+            if (sum < bestSum) {
+                bestSum = sum;
+                best = type;
+            }
+        }
+        return best;
+    }
+
+    private static int paeth(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    private static byte[] header(int width, int height, int bitDepth, int colorType) {
+        return new byte[] {
+            (byte) (width >>> 24), (byte) (width >>> 16), (byte) (width >>> 8), (byte) width,
+            (byte) (height >>> 24), (byte) (height >>> 16), (byte) (height >>> 8), (byte) height,
+            (byte) bitDepth, (byte) colorType, 0, 0, 0
+        };
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,64 @@
+package com.pdfcompressor.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+// Re-encodes PNGs without leaving the format, so transparency survives. Images with few enough
+// colours get an exact palette; otherwise high qualities stay lossless truecolor and lower ones are
+// quantized to a palette whose size follows the quality. Images are re-encoded at 8 bits per
+// channel and ancillary chunks are not carried over
+@Component
+public class PNGOptimizer {
+
+    // At or above this quality the pixels are kept exactly
+    private static final float LOSSLESS_QUALITY = 0.95f;
+
+    private final boolean dither;
+    private final int deflateLevel;
+
+    public PNGOptimizer(@Value("${image.png.dither:false}") boolean dither,
+                        @Value("${image.png.deflate-level:6}") int deflateLevel) {
+        this.dither = dither;
+        this.deflateLevel = Math.max(0, Math.min(9, deflateLevel));
+    }
+
+    public byte[] optimize(BufferedImage image, float quality) throws IOException {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] argb = image.getRGB(0, 0, width, height, null, 0, width);
+
+        boolean lossless = quality >= LOSSLESS_QUALITY;
+        int maxColors = paletteSize(quality);
+
+        int[] exact = ColorQuantizer.exactPalette(argb, lossless ? 256 : maxColors);
+        if (exact != null) {
+            System.out.println("PNG has " + exact.length + " colours, writing an exact palette");
+            return PNGEncoder.encodePalette(ColorQuantizer.mapExact(argb, exact), width, height, exact, deflateLevel);
+        }
+
+        if (lossless) {
+            boolean alpha = false;
+            boolean grey = true;
+            for (int pixel : argb) {
+                alpha |= (pixel >>> 24) != 255;
+                int red = (pixel >> 16) & 0xFF;
+                grey &= red == ((pixel >> 8) & 0xFF) && red == (pixel & 0xFF);
+            }
+            return PNGEncoder.encodeTruecolor(argb, width, height, alpha, grey, deflateLevel);
+        }
+
+        int[] palette = ColorQuantizer.buildPalette(argb, maxColors);
+        byte[] indices = ColorQuantizer.mapToPalette(argb, width, height, palette, dither);
+        System.out.println("Quantized PNG to " + palette.length + " colours" + (dither ? " with dithering" : ""));
+        return PNGEncoder.encodePalette(indices, width, height, palette, deflateLevel);
+    }
+
+    // 16 colours at the lowest quality, doubling every quarter step up to 256
+    static int paletteSize(float quality) {
+        int colors = (int) Math.round(Math.pow(2, 4 + 4 * quality));
+        return Math.max(16, Math.min(256, colors));
+    }
+}
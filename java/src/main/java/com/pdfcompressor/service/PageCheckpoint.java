@@ -0,0 +1,145 @@
+package com.pdfcompressor.service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// One job's workspace: a file per finished page and an append-only journal. A page file is synced
+// and renamed into place before its journal line is written, and a page only counts as done when
+// its journal line and file agree on length and checksum. Several processes may write disjoint
+// pages of the same job (shard workers), and writing a page twice is harmless
+final class PageCheckpoint implements AutoCloseable {
+
+    private final PageCheckpointStore store;
+    private final Path workspace;
+    private final Path journal;
+
+    // Pages the journal recorded before this run, with their length and CRC-32
+    private final Map<Integer, long[]> journaledPages = new HashMap<>();
+    private boolean completed;
+    private boolean closed;
+
+    PageCheckpoint(PageCheckpointStore store, Path workspace) throws IOException {
+        this.store = store;
+        this.workspace = workspace;
+        this.journal = workspace.resolve(PageCheckpointStore.JOURNAL_FILE);
+        readJournal();
+    }
+
+    int completedPages() {
+        return journaledPages.size();
+    }
+
+    // Returns the saved result of a page finished by an earlier run, or null if it has to be redone
+    byte[] load(int pageIndex) {
+        long[] entry = journaledPages.get(pageIndex);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            byte[] data = Files.readAllBytes(pagePath(pageIndex));
+            if (data.length != entry[0] || crc32(data) != entry[1]) {
+                return null;
+            }
+            return data;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Best effort: a page that cannot be saved is simply redone if the job has to be resumed
+    void save(int pageIndex, byte[] data) {
+        try {
+            Path pagePath = pagePath(pageIndex);
+            Path tempPath = workspace.resolve(pagePath.getFileName() + ".tmp-" + ProcessHandle.current().pid()
+                + "-" + Thread.currentThread().getId());
+            try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(tempPath, pagePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+            String line = "page " + pageIndex + " " + data.length + " " + Long.toHexString(crc32(data)) + "\n";
+            Files.write(journal, line.getBytes(StandardCharsets.US_ASCII),
+                StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+        } catch (IOException e) {
+            System.out.println("Could not checkpoint page " + pageIndex + ": " + e.getMessage());
+        }
+    }
+
+    // The job's output is assembled, so its pages are no longer needed once every identical job
+    // running alongside has closed its checkpoint too
+    void complete() {
+        completed = true;
+    }
+
+    // Without complete() the pages stay for a retry
+    @Override
+    public void close() {
+        if (!closed) {
+            closed = true;
+            store.release(workspace, completed);
+        }
+    }
+
+    static void deleteWorkspace(Path workspace) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(workspace)) {
+            paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        for (Path path : paths) {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private void readJournal() throws IOException {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(journal, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        for (String line : lines) {
+            // A crash can leave the last line incomplete; anything that does not parse is ignored
+            String[] fields = line.split(" ");
+            if (fields.length != 4 || !"page".equals(fields[0])) {
+                continue;
+            }
+            try {
+                journaledPages.put(Integer.parseInt(fields[1]),
+                    new long[] {Long.parseLong(fields[2]), Long.parseLong(fields[3], 16)});
+            } catch (NumberFormatException e) {
+                // Partial line
+            }
+        }
+    }
+
+    private Path pagePath(int pageIndex) {
+        return workspace.resolve(String.format("page-%05d", pageIndex));
+    }
+
+    private static long crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+}
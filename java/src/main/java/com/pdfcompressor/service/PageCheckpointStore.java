@@ -0,0 +1,161 @@
+package com.pdfcompressor.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Workspaces for page-by-page jobs. A job is identified by its operation, its settings and the
+// SHA-256 of its input, so running the same job again after a restart finds the pages the earlier
+// run finished. Workspaces are removed once the job's output is assembled, or after max-age-hours.
+// Identical jobs running at the same time share a workspace, so it is only removed when the last
+// of them closes its checkpoint
+@Component
+public class PageCheckpointStore {
+
+    static final String JOURNAL_FILE = "journal";
+
+    // Open checkpoints of a workspace, and whether any of them assembled the job's output
+    private static final class WorkspaceUse {
+        int holders;
+        boolean completed;
+    }
+
+    private final ContentHashService contentHashService;
+    private final Path checkpointDir;
+    private final boolean enabled;
+    private final int minPages;
+    private final long maxAgeMillis;
+    private final Map<Path, WorkspaceUse> workspacesInUse = new HashMap<>();
+
+    @Autowired
+    public PageCheckpointStore(ContentHashService contentHashService,
+                               @Value("${pdf.checkpoint.enabled:true}") boolean enabled,
+                               @Value("${pdf.checkpoint.dir:work/checkpoints}") String checkpointDir,
+                               @Value("${pdf.checkpoint.min-pages:50}") int minPages,
+                               @Value("${pdf.checkpoint.max-age-hours:24}") long maxAgeHours) {
+        this.contentHashService = contentHashService;
+        this.enabled = enabled;
+        this.checkpointDir = Paths.get(checkpointDir);
+        this.minPages = minPages;
+        this.maxAgeMillis = TimeUnit.HOURS.toMillis(maxAgeHours);
+        try {
+            Files.createDirectories(this.checkpointDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create checkpoint directory", e);
+        }
+    }
+
+    Path getCheckpointDir() {
+        return checkpointDir;
+    }
+
+    // Returns null when checkpointing is off or the job is too short to be worth the disk writes.
+    // The checkpoint has to be closed, whether or not the job completed
+    PageCheckpoint open(String operation, Path input, String settings, int pageCount) throws IOException {
+        if (!enabled || pageCount < minPages) {
+            return null;
+        }
+        purgeExpired();
+
+        String jobKey = jobKey(operation, settings, contentHashService.sha256(input));
+        Path workspace = checkpointDir.resolve(jobKey);
+        PageCheckpoint checkpoint;
+        synchronized (workspacesInUse) {
+            workspacesInUse.computeIfAbsent(workspace, key -> new WorkspaceUse()).holders++;
+            try {
+                Files.createDirectories(workspace);
+
+                Path journal = workspace.resolve(JOURNAL_FILE);
+                if (!Files.exists(journal)) {
+                    String header = "job " + operation + " " + settings + " pages=" + pageCount + "\n";
+                    Files.write(journal, header.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+                }
+                checkpoint = new PageCheckpoint(this, workspace);
+            } catch (IOException e) {
+                release(workspace, false);
+                throw e;
+            }
+        }
+        if (checkpoint.completedPages() > 0) {
+            System.out.println("Resuming " + operation + " job " + jobKey + ": " + checkpoint.completedPages()
+                + " of " + pageCount + " pages already done");
+        }
+        return checkpoint;
+    }
+
+    // Called once per checkpoint; the last one out removes the workspace if any of them completed
+    void release(Path workspace, boolean completed) {
+        synchronized (workspacesInUse) {
+            WorkspaceUse use = workspacesInUse.get(workspace);
+            if (use == null) {
+                return;
+            }
+            use.completed |= completed;
+            if (--use.holders > 0) {
+                return;
+            }
+            workspacesInUse.remove(workspace);
+            if (use.completed) {
+                try {
+                    PageCheckpoint.deleteWorkspace(workspace);
+                } catch (IOException e) {
+                    System.out.println("Could not remove checkpoint workspace " + workspace + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private String jobKey(String operation, String settings, String inputHash) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((operation + "\n" + settings + "\n" + inputHash).getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    // Workspaces of jobs that were never retried
+    private void purgeExpired() {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        List<Path> workspaces;
+        try (Stream<Path> entries = Files.list(checkpointDir)) {
+            workspaces = entries.filter(Files::isDirectory).collect(Collectors.toList());
+        } catch (IOException e) {
+            return;
+        }
+        for (Path workspace : workspaces) {
+            synchronized (workspacesInUse) {
+                if (workspacesInUse.containsKey(workspace)) {
+                    continue;
+                }
+            }
+            try {
+                Path journal = workspace.resolve(JOURNAL_FILE);
+                Path marker = Files.exists(journal) ? journal : workspace;
+                if (Files.getLastModifiedTime(marker).toMillis() < cutoff) {
+                    PageCheckpoint.deleteWorkspace(workspace);
+                }
+            } catch (IOException e) {
+                // Another process may be deleting the same workspace
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.pdfcompressor.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Finds the smallest encoding of an image that still reaches a target SSIM. Candidate qualities
+// are encoded in parallel in two rounds: one spread over the whole range, then one between the
+// two candidates that bracket the target. SSIM is measured on the luma of a proxy about 1024
+// pixels across: candidates are decoded with reader-level subsampling and the original is sampled
+// at the same pixels, so scoring costs a fraction of an encode
+@Component
+public class PerceptualQualitySearch {
+
+    interface Encoder {
+        byte[] encode(float quality) throws IOException;
+    }
+
+    static final class Candidate {
+        final float quality;
+        // Only kept for the best candidate so far
+        final byte[] data;
+        final int size;
+        final double ssim;
+
+        Candidate(float quality, byte[] data, double ssim) {
+            this(quality, data, data.length, ssim);
+        }
+
+        private Candidate(float quality, byte[] data, int size, double ssim) {
+            this.quality = quality;
+            this.data = data;
+            this.size = size;
+            this.ssim = ssim;
+        }
+
+        Candidate withoutData() {
+            return new Candidate(quality, null, size, ssim);
+        }
+    }
+
+    // The smallest candidate reaching the target, or the closest to it while none does; every other
+    // candidate's bytes are dropped as soon as it is scored
+    private static final class BestCandidate {
+        private final double targetSsim;
+        private Candidate candidate;
+
+        BestCandidate(double targetSsim) {
+            this.targetSsim = targetSsim;
+        }
+
+        synchronized void offer(Candidate offered) {
+            if (candidate == null) {
+                candidate = offered;
+                return;
+            }
+            boolean offeredPasses = offered.ssim >= targetSsim;
+            boolean currentPasses = candidate.ssim >= targetSsim;
+            if (offeredPasses != currentPasses ? offeredPasses
+                    : offeredPasses ? offered.size < candidate.size : offered.ssim > candidate.ssim) {
+                candidate = offered;
+            }
+        }
+
+        synchronized Candidate get() {
+            return candidate;
+        }
+    }
+
+    private static final float MIN_QUALITY = 0.05f;
+    private static final float MAX_QUALITY = 1.0f;
+    private static final int PROXY_SIZE = 1024;
+
+    // SSIM over 8x8 windows moved 4 pixels at a time, with the usual constants for 8-bit data
+    private static final int WINDOW = 8;
+    private static final int STRIDE = 4;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    private final int candidatesPerRound;
+    private final ExecutorService executor;
+
+    @Autowired
+    public PerceptualQualitySearch(@Value("${image.quality-search.candidates-per-round:0}") int candidatesPerRound) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        // One round costs about one encode when each candidate has a core of its own; a round needs
+        // at least both ends of its range, and more than eight adds encodes without much precision
+        this.candidatesPerRound = Math.max(2, candidatesPerRound > 0 ? candidatesPerRound : Math.min(8, Math.max(4, processors)));
+        this.executor = Executors.newFixedThreadPool(processors, runnable -> {
+            Thread thread = new Thread(runnable, "quality-search");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Falls back to the best-scoring candidate when no quality reaches the target
+    Candidate search(BufferedImage image, Encoder encoder, double targetSsim) throws IOException {
+        int subsampling = Math.max(1, (int) Math.ceil(Math.max(image.getWidth(), image.getHeight()) / (double) PROXY_SIZE));
+        int proxyWidth = (image.getWidth() + subsampling - 1) / subsampling;
+        int proxyHeight = (image.getHeight() + subsampling - 1) / subsampling;
+        float[] reference = luma(image, subsampling, proxyWidth, proxyHeight);
+
+        float[] firstRound = new float[candidatesPerRound];
+        for (int i = 0; i < candidatesPerRound; i++) {
+            firstRound[i] = MIN_QUALITY + (MAX_QUALITY - MIN_QUALITY) * i / (candidatesPerRound - 1);
+        }
+        BestCandidate best = new BestCandidate(targetSsim);
+        List<Candidate> candidates = evaluate(firstRound, encoder, reference, subsampling, proxyWidth, proxyHeight, best);
+
+        // The lowest passing and highest failing qualities bracket the target
+        Candidate passing = null;
+        Candidate failing = null;
+        for (Candidate candidate : candidates) {
+            if (candidate.ssim >= targetSsim) {
+                if (passing == null || candidate.quality < passing.quality) {
+                    passing = candidate;
+                }
+            }
+        }
+        for (Candidate candidate : candidates) {
+            if (candidate.ssim < targetSsim && (passing == null || candidate.quality < passing.quality)) {
+                if (failing == null || candidate.quality > failing.quality) {
+                    failing = candidate;
+                }
+            }
+        }
+
+        if (passing != null && failing != null) {
+            float[] secondRound = new float[candidatesPerRound];
+            for (int i = 0; i < candidatesPerRound; i++) {
+                secondRound[i] = failing.quality + (passing.quality - failing.quality) * (i + 1) / (candidatesPerRound + 1);
+            }
+            candidates.addAll(evaluate(secondRound, encoder, reference, subsampling, proxyWidth, proxyHeight, best));
+        }
+
+        Candidate chosen = best.get();
+        if (chosen.ssim < targetSsim) {
+            System.out.println("No quality reached SSIM " + targetSsim + ", using the closest at " + chosen.ssim);
+        }
+        System.out.println("Tried " + candidates.size() + " qualities; chose " + String.format("%.3f", chosen.quality)
+            + " with SSIM " + String.format("%.4f", chosen.ssim) + " at " + chosen.size + " bytes");
+        return chosen;
+    }
+
+    // Returns the scored candidates without their bytes; the best one so far is kept in best
+    private List<Candidate> evaluate(float[] qualities, Encoder encoder, float[] reference, int subsampling,
+                                     int proxyWidth, int proxyHeight, BestCandidate best) throws IOException {
+        List<Future<Candidate>> futures = new ArrayList<>();
+        for (float quality : qualities) {
+            futures.add(executor.submit(() -> {
+                byte[] data = encoder.encode(quality);
+                float[] decoded = decodeLuma(data, subsampling, proxyWidth, proxyHeight);
+                Candidate candidate = new Candidate(quality, data, ssim(reference, decoded, proxyWidth, proxyHeight));
+                best.offer(candidate);
+                return candidate.withoutData();
+            }));
+        }
+
+        List<Candidate> candidates = new ArrayList<>();
+        try {
+            for (Future<Candidate> future : futures) {
+                candidates.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Quality search interrupted", e);
+        } catch (ExecutionException e) {
+            for (Future<Candidate> future : futures) {
+                future.cancel(true);
+            }
+            throw new IOException("Could not encode candidate: " + e.getCause().getMessage(), e.getCause());
+        }
+        return candidates;
+    }
+
+    private static float[] decodeLuma(byte[] data, int subsampling, int proxyWidth, int proxyHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(data))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No reader for the encoded candidate");
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                BufferedImage decoded = reader.read(0, param);
+                // Some readers (WebP) ignore subsampling and return every pixel
+                return luma(decoded, decoded.getWidth() > proxyWidth ? subsampling : 1, proxyWidth, proxyHeight);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // Luma of every subsampling-th pixel, with transparency composited over white
+    private static float[] luma(BufferedImage image, int subsampling, int width, int height) {
+        float[] luma = new float[width * height];
+        int[] row = new int[image.getWidth()];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y * subsampling, image.getWidth(), 1, row, 0, image.getWidth());
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x * subsampling];
+                float alpha = (pixel >>> 24) / 255f;
+                float value = 0.299f * ((pixel >> 16) & 0xFF) + 0.587f * ((pixel >> 8) & 0xFF) + 0.114f * (pixel & 0xFF);
+                luma[y * width + x] = value * alpha + 255 * (1 - alpha);
+            }
+        }
+        return luma;
+    }
+
+    static double ssim(float[] a, float[] b, int width, int height) {
+        int window = Math.min(WINDOW, Math.min(width, height));
+        double total = 0;
+        int windows = 0;
+        for (int top = 0; top + window <= height; top += STRIDE) {
+            for (int left = 0; left + window <= width; left += STRIDE) {
+                double sumA = 0, sumB = 0, sumAA = 0, sumBB = 0, sumAB = 0;
+                for (int y = top; y < top + window; y++) {
+                    int offset = y * width;
+                    for (int x = left; x < left + window; x++) {
+                        double va = a[offset + x];
+                        double vb = b[offset + x];
+                        sumA += va;
+                        sumB += vb;
+                        sumAA += va * va;
+                        sumBB += vb * vb;
+                        sumAB += va * vb;
+                    }
+                }
+                int n = window * window;
+                double meanA = sumA / n;
+                double meanB = sumB / n;
+                double varianceA = sumAA / n - meanA * meanA;
+                double varianceB = sumBB / n - meanB * meanB;
+                double covariance = sumAB / n - meanA * meanB;
+                total += ((2 * meanA * meanB + C1) * (2 * covariance + C2))
+                    / ((meanA * meanA + meanB * meanB + C1) * (varianceA + varianceB + C2));
+                windows++;
+            }
+        }
+        return windows == 0 ? 1.0 : total / windows;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
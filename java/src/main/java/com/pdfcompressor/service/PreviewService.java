@@ -0,0 +1,268 @@
+package com.pdfcompressor.service;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.rendering.ImageType;
+import org.apache.pdfbox.rendering.PDFRenderer;
+import org.bytedeco.javacv.FFmpegFrameGrabber;
+import org.bytedeco.javacv.Frame;
+import org.bytedeco.javacv.Java2DFrameConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Thumbnails of outputs, so clients can show a page without downloading the whole file. PDF pages
+// are rendered at the DPI the thumbnail needs with subsampled image decoding, images are decoded
+// subsampled and videos contribute their first keyframe. Sizes snap up to a pyramid of power-of-two
+// levels, and a missing level is scaled down from a larger cached one when there is one rather
+// than rendered again. Thumbnails are cached on disk keyed by the source's content hash, page and
+// level, and the least recently used are evicted once the cache exceeds max-bytes
+@Service
+public class PreviewService {
+
+    public static final int MIN_SIZE = 64;
+    public static final int MAX_SIZE = 1024;
+
+    private static final float JPEG_QUALITY = 0.8f;
+    private static final float PNG_QUALITY = 0.8f;
+
+    private final ContentHashService contentHashService;
+    private final PNGOptimizer pngOptimizer;
+    private final Path cacheDir;
+    private final long maxBytes;
+
+    // File name to size, least recently used first
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalBytes;
+
+    @Autowired
+    public PreviewService(ContentHashService contentHashService, PNGOptimizer pngOptimizer,
+                          @Value("${preview.cache.dir:work/previews}") String cacheDir,
+                          @Value("${preview.cache.max-bytes:67108864}") long maxBytes) {
+        this.contentHashService = contentHashService;
+        this.pngOptimizer = pngOptimizer;
+        this.cacheDir = Paths.get(cacheDir);
+        this.maxBytes = maxBytes;
+        try {
+            Files.createDirectories(this.cacheDir);
+            // Thumbnails from an earlier run stay usable, oldest first in the eviction order
+            List<Path> existing;
+            try (Stream<Path> files = Files.list(this.cacheDir)) {
+                existing = files.filter(Files::isRegularFile).collect(Collectors.toList());
+            }
+            existing.sort(Comparator.comparingLong(path -> path.toFile().lastModified()));
+            for (Path path : existing) {
+                if (path.getFileName().toString().endsWith(".tmp")) {
+                    Files.deleteIfExists(path);
+                } else {
+                    entries.put(path.getFileName().toString(), Files.size(path));
+                    totalBytes += Files.size(path);
+                }
+            }
+            evict();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create preview cache directory", e);
+        }
+    }
+
+    // Smallest pyramid level that fits size
+    public static int level(int size) {
+        int level = MIN_SIZE;
+        while (level < size && level < MAX_SIZE) {
+            level *= 2;
+        }
+        return level;
+    }
+
+    // A thumbnail of the page (from 1) of a PDF, image or video that fits in a square of size pixels.
+    // Throws IllegalArgumentException when the page does not exist
+    public Path getPreview(Path source, int page, int size) throws IOException {
+        if (page < 1) {
+            throw new IllegalArgumentException("Pages start at 1");
+        }
+        int level = level(size);
+        String prefix = contentHashService.sha256(source) + "_p" + page + "_";
+
+        Path cached = lookup(prefix, level);
+        if (cached != null) {
+            return cached;
+        }
+
+        // A larger level of the same page only needs scaling down
+        BufferedImage image = null;
+        for (int larger = level * 2; larger <= MAX_SIZE && image == null; larger *= 2) {
+            Path largerPreview = lookup(prefix, larger);
+            if (largerPreview != null) {
+                image = ImageIO.read(largerPreview.toFile());
+            }
+        }
+        if (image == null) {
+            image = render(source, page - 1, level);
+        }
+        image = fit(image, level);
+
+        boolean alpha = image.getColorModel().hasAlpha();
+        byte[] data = alpha ? pngOptimizer.optimize(image, PNG_QUALITY) : encodeJpeg(image);
+        return store(prefix + level + (alpha ? ".png" : ".jpg"), data);
+    }
+
+    public static String contentType(Path preview) {
+        return preview.getFileName().toString().endsWith(".png") ? "image/png" : "image/jpeg";
+    }
+
+    private BufferedImage render(Path source, int pageIndex, int level) throws IOException {
+        if (source.getFileName().toString().toLowerCase().endsWith(".pdf")) {
+            return renderPdfPage(source, pageIndex, level);
+        }
+        if (hasImageReader(source)) {
+            try (ImageRegionReader reader = ImageRegionReader.open(source)) {
+                return reader.readScaled(pageIndex, level, level);
+            } catch (IndexOutOfBoundsException e) {
+                throw new IllegalArgumentException("No page " + (pageIndex + 1) + " in " + source.getFileName());
+            }
+        }
+        return grabKeyFrame(source);
+    }
+
+    private BufferedImage renderPdfPage(Path source, int pageIndex, int level) throws IOException {
+        try (PDDocument document = PDDocument.load(source.toFile(), MemoryUsageSetting.setupTempFileOnly())) {
+            if (pageIndex >= document.getNumberOfPages()) {
+                throw new IllegalArgumentException("No page " + (pageIndex + 1) + " in " + source.getFileName());
+            }
+            PDPage page = document.getPage(pageIndex);
+            PDRectangle box = page.getCropBox();
+            float scale = level / Math.max(box.getWidth(), box.getHeight());
+
+            PDFRenderer renderer = new PDFRenderer(document);
+            // Embedded images are decoded at no more than the resolution the thumbnail shows them at
+            renderer.setSubsamplingAllowed(true);
+            return renderer.renderImage(pageIndex, scale, ImageType.RGB);
+        }
+    }
+
+    // Videos have no pages; the first keyframe stands for the whole file
+    private BufferedImage grabKeyFrame(Path source) throws IOException {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(source.toFile());
+        try {
+            grabber.start();
+            Frame frame = grabber.grabKeyFrame();
+            if (frame == null || frame.image == null) {
+                throw new IOException("No video frame in " + source.getFileName());
+            }
+            BufferedImage converted = new Java2DFrameConverter().convert(frame);
+            // The converter's image shares the grabber's buffer, which stop() releases
+            BufferedImage image = new BufferedImage(converted.getWidth(), converted.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.drawImage(converted, 0, 0, null);
+            graphics.dispose();
+            return image;
+        } finally {
+            grabber.stop();
+            grabber.release();
+        }
+    }
+
+    private static BufferedImage fit(BufferedImage image, int level) {
+        double scale = Math.min(1.0, level / (double) Math.max(image.getWidth(), image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        if (width == image.getWidth() && height == image.getHeight()) {
+            return image;
+        }
+        return ImageRegionReader.scaleDown(image, width, height);
+    }
+
+    private static boolean hasImageReader(Path source) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            return input != null && ImageIO.getImageReaders(input).hasNext();
+        }
+    }
+
+    private static byte[] encodeJpeg(BufferedImage image) throws IOException {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB && image.getType() != BufferedImage.TYPE_3BYTE_BGR) {
+            BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = rgb.createGraphics();
+            graphics.drawImage(image, 0, 0, null);
+            graphics.dispose();
+            image = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (ImageOutputStream output = ImageIO.createImageOutputStream(outputStream)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return outputStream.toByteArray();
+    }
+
+    // Returns the cached thumbnail of one level, in either format, marking it recently used
+    private Path lookup(String prefix, int level) {
+        synchronized (entries) {
+            for (String extension : new String[] {".jpg", ".png"}) {
+                String name = prefix + level + extension;
+                if (entries.get(name) != null) {
+                    Path path = cacheDir.resolve(name);
+                    if (Files.isRegularFile(path)) {
+                        return path;
+                    }
+                    totalBytes -= entries.remove(name);
+                }
+            }
+        }
+        return null;
+    }
+
+    private Path store(String name, byte[] data) throws IOException {
+        // Written aside and moved into place, so a concurrent request never serves half a file
+        Path path = cacheDir.resolve(name);
+        Path temporary = cacheDir.resolve(name + "." + Thread.currentThread().getId() + ".tmp");
+        Files.write(temporary, data);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (entries) {
+            Long previous = entries.put(name, (long) data.length);
+            totalBytes += data.length - (previous == null ? 0 : previous);
+            evict();
+        }
+        return path;
+    }
+
+    // Callers hold the entries lock, except the constructor. The newest thumbnail is never evicted
+    private void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxBytes && entries.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            Files.deleteIfExists(cacheDir.resolve(eldest.getKey()));
+            totalBytes -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.pdfcompressor.service;
+
+import com.pdfcompressor.PdfCompressorApplication;
+import jakarta.annotation.PreDestroy;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.multipdf.PDFMergerUtility;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+// Splits the raster compression of very large PDFs into page ranges, hands them to shard workers
+// through the work queue and merges the results in page order. The calling thread works on the
+// same queue, so a job completes even when no worker is running
+@Component
+public class ShardCoordinator {
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final ShardWorkQueue shardWorkQueue;
+    private final PageCheckpointStore pageCheckpointStore;
+    private final boolean enabled;
+    private final int minPages;
+    private final int pagesPerShard;
+    private final int localWorkers;
+    private final long localWorkerIdleSeconds;
+
+    private final List<Process> localWorkerProcesses = new ArrayList<>();
+
+    @Autowired
+    public ShardCoordinator(ShardWorkQueue shardWorkQueue, PageCheckpointStore pageCheckpointStore,
+                            @Value("${pdf.shard.enabled:false}") boolean enabled,
+                            @Value("${pdf.shard.min-pages:500}") int minPages,
+                            @Value("${pdf.shard.pages-per-shard:100}") int pagesPerShard,
+                            @Value("${pdf.shard.local-workers:2}") int localWorkers,
+                            @Value("${pdf.shard.local-worker-idle-seconds:300}") long localWorkerIdleSeconds) {
+        this.shardWorkQueue = shardWorkQueue;
+        this.pageCheckpointStore = pageCheckpointStore;
+        this.enabled = enabled;
+        this.minPages = minPages;
+        this.pagesPerShard = Math.max(1, pagesPerShard);
+        this.localWorkers = localWorkers;
+        this.localWorkerIdleSeconds = localWorkerIdleSeconds;
+    }
+
+    public boolean shouldShard(int pageCount) {
+        return enabled && pageCount >= minPages && pageCount > pagesPerShard;
+    }
+
+    void compress(Path inputPath, Path outputPath, float quality, int pageCount,
+                  ShardProcessor inProcessProcessor) throws IOException {
+        String jobId = UUID.randomUUID().toString();
+        long start = System.currentTimeMillis();
+        try {
+            // Workers read the source from the queue directory, which may be shared with other nodes
+            Path jobInput = shardWorkQueue.inputPath(jobId);
+            try {
+                Files.createLink(jobInput, inputPath.toAbsolutePath());
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(inputPath, jobInput);
+            }
+
+            List<ShardTask> tasks = new ArrayList<>();
+            for (int startPage = 0; startPage < pageCount; startPage += pagesPerShard) {
+                ShardTask task = new ShardTask(jobId, tasks.size(), startPage,
+                    Math.min(pageCount, startPage + pagesPerShard), quality);
+                shardWorkQueue.enqueue(task);
+                tasks.add(task);
+            }
+
+            ensureLocalWorkers();
+            awaitShards(jobId, tasks, inProcessProcessor);
+            mergeShards(tasks, outputPath);
+
+            System.out.println("Sharded compression of " + pageCount + " pages in " + tasks.size()
+                + " shards took " + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            shardWorkQueue.cleanUp(jobId);
+        }
+    }
+
+    private void awaitShards(String jobId, List<ShardTask> tasks, ShardProcessor inProcessProcessor) throws IOException {
+        Set<String> retriedTasks = new HashSet<>();
+        while (true) {
+            boolean allDone = true;
+            for (ShardTask task : tasks) {
+                if (shardWorkQueue.isDone(task)) {
+                    continue;
+                }
+                allDone = false;
+
+                String failure = shardWorkQueue.readFailure(task);
+                if (failure != null) {
+                    if (!retriedTasks.add(task.getTaskId())) {
+                        throw new IOException("Shard " + task.getShardIndex() + " failed: " + failure);
+                    }
+                    // Give a failed shard one more attempt before failing the job
+                    shardWorkQueue.clearFailure(task);
+                    shardWorkQueue.enqueue(task);
+                }
+            }
+            if (allDone) {
+                return;
+            }
+
+            shardWorkQueue.requeueStale(jobId);
+            ShardTask next = shardWorkQueue.claimNext(jobId);
+            if (next != null) {
+                shardWorkQueue.process(next, inProcessProcessor);
+            } else {
+                try {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for shards", e);
+                }
+            }
+        }
+    }
+
+    private void mergeShards(List<ShardTask> tasks, Path outputPath) throws IOException {
+        List<PDDocument> shardDocuments = new ArrayList<>();
+        try (PDDocument merged = new PDDocument(MemoryUsageSetting.setupTempFileOnly())) {
+            PDFMergerUtility merger = new PDFMergerUtility();
+            for (ShardTask task : tasks) {
+                // Shard documents must stay open until the merged document is saved
+                PDDocument shard = PDDocument.load(shardWorkQueue.outputPath(task).toFile(),
+                    MemoryUsageSetting.setupTempFileOnly());
+                shardDocuments.add(shard);
+                merger.appendDocument(merged, shard);
+            }
+
+            // Each shard was written on its own, so identical resources are only shared from here on
+            int deduplicated = new PDFResourceDeduplicator().deduplicate(merged);
+            System.out.println("Merged " + tasks.size() + " shards, " + deduplicated + " duplicate resources shared");
+
+            merged.save(outputPath.toFile());
+        } finally {
+            for (PDDocument shard : shardDocuments) {
+                shard.close();
+            }
+        }
+    }
+
+    private synchronized void ensureLocalWorkers() {
+        localWorkerProcesses.removeIf(process -> !process.isAlive());
+        while (localWorkerProcesses.size() < localWorkers) {
+            try {
+                localWorkerProcesses.add(startLocalWorker());
+            } catch (IOException e) {
+                System.out.println("Could not start shard worker: " + e.getMessage() + ". Continuing in-process.");
+                return;
+            }
+        }
+    }
+
+    // Starts this application again as a queue worker without the web server
+    private Process startLocalWorker() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command()
+            .orElse(Paths.get(System.getProperty("java.home"), "bin", "java").toString()));
+        // The parent's JVM options (heap, system properties, agents), except a debugger, whose port
+        // the parent already holds
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-agentlib:jdwp") && !argument.startsWith("-Xrunjdwp")) {
+                command.add(argument);
+            }
+        }
+
+        String classPath = System.getProperty("java.class.path");
+        if (classPath.endsWith(".jar") && !classPath.contains(File.pathSeparator)) {
+            // Packaged Spring Boot jar
+            command.add("-jar");
+            command.add(classPath);
+        } else {
+            command.add("-cp");
+            command.add(classPath);
+            command.add(PdfCompressorApplication.class.getName());
+        }
+
+        command.add("--spring.main.web-application-type=none");
+        command.add("--pdf.shard.worker.enabled=true");
+        command.add("--pdf.shard.worker.idle-exit-seconds=" + localWorkerIdleSeconds);
+        command.add("--pdf.shard.worker.parent-pid=" + ProcessHandle.current().pid());
+        command.add("--pdf.shard.queue-dir=" + shardWorkQueue.getQueueDir().toAbsolutePath());
+        command.add("--pdf.checkpoint.dir=" + pageCheckpointStore.getCheckpointDir().toAbsolutePath());
+        command.add("--pdf.shard.local-workers=0");
+
+        return new ProcessBuilder(command).inheritIO().start();
+    }
+
+    @PreDestroy
+    public synchronized void stopLocalWorkers() {
+        for (Process process : localWorkerProcesses) {
+            process.destroy();
+        }
+        localWorkerProcesses.clear();
+    }
+}
@@ -0,0 +1,9 @@
+package com.pdfcompressor.service;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+// Compresses the page range of one shard task into the given output file
+interface ShardProcessor {
+    void process(ShardTask task, Path output) throws IOException;
+}
@@ -0,0 +1,76 @@
+package com.pdfcompressor.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+// One page range of a sharded compression job, stored as a properties file in the work queue
+final class ShardTask {
+
+    private final String jobId;
+    private final int shardIndex;
+    private final int startPage;
+    private final int endPage;
+    private final float quality;
+
+    ShardTask(String jobId, int shardIndex, int startPage, int endPage, float quality) {
+        this.jobId = jobId;
+        this.shardIndex = shardIndex;
+        this.startPage = startPage;
+        this.endPage = endPage;
+        this.quality = quality;
+    }
+
+    static ShardTask load(Path file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        }
+        return new ShardTask(
+            properties.getProperty("jobId"),
+            Integer.parseInt(properties.getProperty("shardIndex")),
+            Integer.parseInt(properties.getProperty("startPage")),
+            Integer.parseInt(properties.getProperty("endPage")),
+            Float.parseFloat(properties.getProperty("quality")));
+    }
+
+    void store(Path file) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("jobId", jobId);
+        properties.setProperty("shardIndex", String.valueOf(shardIndex));
+        properties.setProperty("startPage", String.valueOf(startPage));
+        properties.setProperty("endPage", String.valueOf(endPage));
+        properties.setProperty("quality", String.valueOf(quality));
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+
+    // Zero-padded so a sorted directory listing hands out shards in page order
+    String getTaskId() {
+        return jobId + "-" + String.format("%05d", shardIndex);
+    }
+
+    String getJobId() {
+        return jobId;
+    }
+
+    int getShardIndex() {
+        return shardIndex;
+    }
+
+    int getStartPage() {
+        return startPage;
+    }
+
+    int getEndPage() {
+        return endPage;
+    }
+
+    float getQuality() {
+        return quality;
+    }
+}
@@ -0,0 +1,212 @@
+package com.pdfcompressor.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// File-system work queue for sharded PDF jobs. A task moves pending -> claimed -> done (or failed);
+// the claim is an atomic rename, so any number of local or remote workers can share the directory
+@Component
+public class ShardWorkQueue {
+
+    private static final String TASK_SUFFIX = ".properties";
+
+    private final Path queueDir;
+    private final Path inputDir;
+    private final Path pendingDir;
+    private final Path claimedDir;
+    private final Path doneDir;
+    private final Path failedDir;
+    private final long claimTimeoutMillis;
+
+    // Keeps claims of running tasks fresh so the coordinator does not hand them out again
+    private final ScheduledExecutorService heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "shard-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @Autowired
+    public ShardWorkQueue(@Value("${pdf.shard.queue-dir:work/shards}") String queueDir,
+                          @Value("${pdf.shard.claim-timeout-seconds:600}") long claimTimeoutSeconds) {
+        this.queueDir = Paths.get(queueDir);
+        this.inputDir = this.queueDir.resolve("input");
+        this.pendingDir = this.queueDir.resolve("pending");
+        this.claimedDir = this.queueDir.resolve("claimed");
+        this.doneDir = this.queueDir.resolve("done");
+        this.failedDir = this.queueDir.resolve("failed");
+        this.claimTimeoutMillis = TimeUnit.SECONDS.toMillis(claimTimeoutSeconds);
+        try {
+            Files.createDirectories(inputDir);
+            Files.createDirectories(pendingDir);
+            Files.createDirectories(claimedDir);
+            Files.createDirectories(doneDir);
+            Files.createDirectories(failedDir);
+        } catch (IOException e) {
+            throw new RuntimeException("Could not create shard queue directories", e);
+        }
+    }
+
+    Path getQueueDir() {
+        return queueDir;
+    }
+
+    // The job's source PDF, readable by every worker sharing the queue directory
+    Path inputPath(String jobId) {
+        return inputDir.resolve(jobId + ".pdf");
+    }
+
+    Path outputPath(ShardTask task) {
+        return doneDir.resolve(task.getTaskId() + ".pdf");
+    }
+
+    void enqueue(ShardTask task) throws IOException {
+        // Written under a temporary name so workers never read a half-written task
+        Path temporary = pendingDir.resolve(task.getTaskId() + ".tmp");
+        task.store(temporary);
+        Files.move(temporary, pendingDir.resolve(task.getTaskId() + TASK_SUFFIX), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Claims the first pending task whose id starts with the prefix (any task when null), or returns null
+    ShardTask claimNext(String prefix) throws IOException {
+        for (Path candidate : listTasks(pendingDir, prefix)) {
+            Path claimed = claimedDir.resolve(candidate.getFileName());
+            try {
+                Files.move(candidate, claimed, StandardCopyOption.ATOMIC_MOVE);
+            } catch (NoSuchFileException e) {
+                // Another worker won this one
+                continue;
+            }
+            Files.setLastModifiedTime(claimed, FileTime.fromMillis(System.currentTimeMillis()));
+            return ShardTask.load(claimed);
+        }
+        return null;
+    }
+
+    // Runs a claimed task with a heartbeat on its claim, then publishes the output or the failure
+    void process(ShardTask task, ShardProcessor processor) {
+        Path claimed = claimedDir.resolve(task.getTaskId() + TASK_SUFFIX);
+        long heartbeatMillis = Math.max(1000, claimTimeoutMillis / 4);
+        ScheduledFuture<?> heartbeat = heartbeatExecutor.scheduleAtFixedRate(
+            () -> touch(claimed), heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+        Path temporary = null;
+        try {
+            if (!Files.exists(inputPath(task.getJobId()))) {
+                // The job finished or was abandoned while this task sat in the queue
+                return;
+            }
+            // A name of its own per attempt, so a requeued or duplicate attempt of the same task never
+            // writes into this one's file; whichever finishes renames its complete output into place
+            temporary = Files.createTempFile(doneDir, task.getTaskId() + ".", ".tmp");
+            processor.process(task, temporary);
+            Files.move(temporary, outputPath(task), StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.out.println("Error processing shard " + task.getTaskId() + ": " + e.getMessage());
+            try {
+                if (temporary != null) {
+                    Files.deleteIfExists(temporary);
+                }
+                Files.writeString(failedDir.resolve(task.getTaskId() + ".txt"), String.valueOf(e.getMessage()),
+                    StandardCharsets.UTF_8);
+            } catch (IOException writeError) {
+                System.out.println("Could not record shard failure: " + writeError.getMessage());
+            }
+        } finally {
+            heartbeat.cancel(false);
+            deleteQuietly(claimed);
+        }
+    }
+
+    boolean isDone(ShardTask task) {
+        return Files.exists(outputPath(task));
+    }
+
+    // Returns the recorded failure message for the task, or null if it has not failed
+    String readFailure(ShardTask task) throws IOException {
+        Path failed = failedDir.resolve(task.getTaskId() + ".txt");
+        try {
+            return Files.readString(failed, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    void clearFailure(ShardTask task) throws IOException {
+        Files.deleteIfExists(failedDir.resolve(task.getTaskId() + ".txt"));
+    }
+
+    // Puts claims of the job whose worker stopped sending heartbeats back in the pending queue
+    void requeueStale(String jobId) throws IOException {
+        long now = System.currentTimeMillis();
+        for (Path claimed : listTasks(claimedDir, jobId)) {
+            try {
+                if (now - Files.getLastModifiedTime(claimed).toMillis() > claimTimeoutMillis) {
+                    Files.move(claimed, pendingDir.resolve(claimed.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+                    System.out.println("Requeued stale shard " + claimed.getFileName());
+                }
+            } catch (NoSuchFileException e) {
+                // Finished in the meantime
+            }
+        }
+    }
+
+    void cleanUp(String jobId) {
+        for (Path dir : List.of(inputDir, pendingDir, claimedDir, doneDir, failedDir)) {
+            try (Stream<Path> files = Files.list(dir)) {
+                files.filter(file -> file.getFileName().toString().startsWith(jobId)).forEach(this::deleteQuietly);
+            } catch (IOException e) {
+                System.out.println("Could not clean up shard files in " + dir + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private List<Path> listTasks(Path dir, String prefix) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files
+                .filter(file -> {
+                    String name = file.getFileName().toString();
+                    return name.endsWith(TASK_SUFFIX) && (prefix == null || name.startsWith(prefix));
+                })
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    private void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // The claim was requeued or the job cleaned up; the next heartbeat will try again
+        }
+    }
+
+    private void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println("Could not delete " + file + ": " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        heartbeatExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,125 @@
+package com.pdfcompressor.service;
+
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+// Polls the shard work queue and renders page ranges for whichever coordinator enqueued them.
+// Enabled with pdf.shard.worker.enabled=true: the coordinator starts local child JVMs this way,
+// and other nodes mounting the same queue directory can run it as peers
+@Component
+public class ShardWorker implements ApplicationRunner {
+
+    private static final long POLL_INTERVAL_MILLIS = 250;
+    // How long the open document outlives its last shard; the queue runs dry between a job's shards
+    // whenever workers outpace the coordinator or a shard is retried
+    private static final long DOCUMENT_IDLE_MILLIS = 30000;
+
+    private final ShardWorkQueue shardWorkQueue;
+    private final PDFCompressorService pdfCompressorService;
+    private final boolean enabled;
+    private final long idleExitMillis;
+    private final long parentPid;
+
+    // The current job's document stays open across its shards instead of being parsed per task, until
+    // a shard of another job arrives or no shard has come for DOCUMENT_IDLE_MILLIS
+    private String openJobId;
+    private PDDocument openDocument;
+    private PageCheckpoint openCheckpoint;
+
+    @Autowired
+    public ShardWorker(ShardWorkQueue shardWorkQueue, PDFCompressorService pdfCompressorService,
+                       @Value("${pdf.shard.worker.enabled:false}") boolean enabled,
+                       @Value("${pdf.shard.worker.idle-exit-seconds:0}") long idleExitSeconds,
+                       @Value("${pdf.shard.worker.parent-pid:0}") long parentPid) {
+        this.shardWorkQueue = shardWorkQueue;
+        this.pdfCompressorService = pdfCompressorService;
+        this.enabled = enabled;
+        this.idleExitMillis = idleExitSeconds * 1000;
+        this.parentPid = parentPid;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        // Non-daemon, so a worker-only JVM lives exactly as long as the polling loop
+        Thread thread = new Thread(this::pollQueue, "shard-worker");
+        thread.start();
+    }
+
+    private void pollQueue() {
+        System.out.println("Shard worker polling " + shardWorkQueue.getQueueDir().toAbsolutePath());
+        long idleSince = System.currentTimeMillis();
+        while (isParentAlive()) {
+            try {
+                ShardTask task = shardWorkQueue.claimNext(null);
+                if (task != null) {
+                    shardWorkQueue.process(task, this::compressShard);
+                    idleSince = System.currentTimeMillis();
+                    continue;
+                }
+                if (System.currentTimeMillis() - idleSince > DOCUMENT_IDLE_MILLIS) {
+                    closeOpenDocument();
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading shard queue: " + e.getMessage());
+            }
+
+            if (idleExitMillis > 0 && System.currentTimeMillis() - idleSince > idleExitMillis) {
+                System.out.println("Shard worker idle, exiting.");
+                break;
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        closeOpenDocument();
+    }
+
+    private void compressShard(ShardTask task, Path output) throws IOException {
+        if (!task.getJobId().equals(openJobId)) {
+            closeOpenDocument();
+            Path input = shardWorkQueue.inputPath(task.getJobId());
+            openDocument = PDDocument.load(input.toFile(), MemoryUsageSetting.setupTempFileOnly());
+            openCheckpoint = pdfCompressorService.openRasterCheckpoint(input, openDocument.getNumberOfPages(),
+                task.getQuality());
+            openJobId = task.getJobId();
+        }
+        pdfCompressorService.compressWithImageConversion(openDocument, output.toString(), task.getQuality(),
+            task.getStartPage(), task.getEndPage(), openCheckpoint);
+    }
+
+    // Child workers stop when the JVM that started them is gone
+    private boolean isParentAlive() {
+        return parentPid <= 0 || ProcessHandle.of(parentPid).map(ProcessHandle::isAlive).orElse(false);
+    }
+
+    private void closeOpenDocument() {
+        if (openDocument == null) {
+            return;
+        }
+        try {
+            openDocument.close();
+        } catch (IOException e) {
+            System.out.println("Error closing shard input: " + e.getMessage());
+        }
+        if (openCheckpoint != null) {
+            openCheckpoint.close();
+        }
+        openDocument = null;
+        openCheckpoint = null;
+        openJobId = null;
+    }
+}
@@ -1,8 +1,16 @@
 package com.pdfcompressor.service;
 
+import com.pdfcompressor.model.CompressionEstimate;
+import com.pdfcompressor.model.MediaProbeResponse;
+import com.pdfcompressor.model.VideoCompressionOptions;
+import jakarta.annotation.PreDestroy;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.swscale;
 import org.bytedeco.javacv.FFmpegFrameGrabber;
 import org.bytedeco.javacv.FFmpegFrameRecorder;
 import org.bytedeco.javacv.Frame;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -12,7 +20,20 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 @Service
 public class VideoCompressorService {
@@ -20,7 +41,79 @@ public class VideoCompressorService {
     private final Path uploadDir = Paths.get("uploads");
     private final Path outputDir = Paths.get("outputs");
 
-    public VideoCompressorService() {
+    // Share of a target size kept back for the container
+    private static final double CONTAINER_OVERHEAD = 0.02;
+
+    // One level from each preset band, for the probe's estimates
+    private static final int[] PROBE_LEVELS = {10, 30, 50, 70, 90};
+
+    // Preset of the reduced-size pass that calibrates rate control before encoding to a budget
+    private static final String ANALYSIS_PRESET = "ultrafast";
+    // Longer videos are calibrated on this many evenly spread windows of this length rather than whole
+    private static final int ANALYSIS_WINDOWS = 6;
+    private static final int ANALYSIS_WINDOW_SECONDS = 2;
+    // How far over a target size or bitrate an output may land, how many more encodes may be tried to
+    // get there, and the most of the width and height and the least width kept when a retry has to
+    // lower the resolution
+    private static final double BUDGET_TOLERANCE = 0.03;
+    private static final int MAX_BUDGET_RETRIES = 4;
+    private static final double BUDGET_SCALE_STEP = 0.8;
+    private static final int MIN_BUDGET_WIDTH = 320;
+
+    // Output formats a player can start on before the whole file is there
+    private static final String OUTPUT_HLS = "hls";
+    private static final String OUTPUT_FMP4 = "fmp4";
+    // An HLS output is a directory of segments and their playlist, named after the upload
+    private static final String HLS_SUFFIX = "_hls";
+    private static final String HLS_PLAYLIST = "index.m3u8";
+
+    private final EncoderThroughputStats throughputStats;
+    private final AdaptivePresetPolicy presetPolicy;
+    // Video jobs running on this node, the queue depth the preset policy reacts to
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final boolean passthroughEnabled;
+    private final int passthroughAudioMaxBitrate;
+    private final double passthroughVideoMaxBitsPerPixel;
+    private final boolean segmentEnabled;
+    private final int segmentWorkers;
+    private final int segmentMinSeconds;
+    private final int analysisWidth;
+    private final int hlsSegmentSeconds;
+    private final ExecutorService segmentExecutor;
+    // HLS jobs carry on here after the request has returned with the first segment
+    private final ExecutorService streamExecutor;
+
+    @Autowired
+    public VideoCompressorService(EncoderThroughputStats throughputStats, AdaptivePresetPolicy presetPolicy,
+                                  @Value("${video.passthrough.enabled:true}") boolean passthroughEnabled,
+                                  @Value("${video.passthrough.audio-max-bitrate:160000}") int passthroughAudioMaxBitrate,
+                                  @Value("${video.passthrough.video-max-bits-per-pixel:0.1}") double passthroughVideoMaxBitsPerPixel,
+                                  @Value("${video.segment.enabled:true}") boolean segmentEnabled,
+                                  @Value("${video.segment.workers:0}") int segmentWorkers,
+                                  @Value("${video.segment.min-seconds:60}") int segmentMinSeconds,
+                                  @Value("${video.two-pass.analysis-width:640}") int analysisWidth,
+                                  @Value("${video.hls.segment-seconds:4}") int hlsSegmentSeconds) {
+        this.throughputStats = throughputStats;
+        this.presetPolicy = presetPolicy;
+        this.passthroughEnabled = passthroughEnabled;
+        this.passthroughAudioMaxBitrate = passthroughAudioMaxBitrate;
+        this.passthroughVideoMaxBitsPerPixel = passthroughVideoMaxBitsPerPixel;
+        this.segmentEnabled = segmentEnabled;
+        this.segmentWorkers = segmentWorkers > 0 ? segmentWorkers : Runtime.getRuntime().availableProcessors();
+        this.segmentMinSeconds = Math.max(1, segmentMinSeconds);
+        this.analysisWidth = Math.max(64, analysisWidth);
+        this.hlsSegmentSeconds = Math.max(1, hlsSegmentSeconds);
+        // One extra thread for the audio, which is encoded whole next to the segments
+        this.segmentExecutor = Executors.newFixedThreadPool(this.segmentWorkers + 1, runnable -> {
+            Thread thread = new Thread(runnable, "video-segment");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.streamExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "video-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
         try {
             Files.createDirectories(uploadDir);
             Files.createDirectories(outputDir);
@@ -30,6 +123,10 @@ public class VideoCompressorService {
     }
 
     public String compressVideo(MultipartFile file, int compressionLevel) throws IOException {
+        return compressVideo(file, new VideoCompressionOptions(compressionLevel));
+    }
+
+    public String compressVideo(MultipartFile file, VideoCompressionOptions options) throws IOException {
         // Generate unique file names
         String originalFileName = file.getOriginalFilename();
         String fileExtension = getFileExtension(originalFileName);
@@ -41,98 +138,964 @@ public class VideoCompressorService {
         // Save the uploaded file
         Files.write(inputPath, file.getBytes());
 
+        if (isHls(options)) {
+            return startHlsJob(inputPath, fileId, options);
+        }
+
         // Get original file size
         long originalSize = Files.size(inputPath);
 
+        activeJobs.incrementAndGet();
+        String failure = null;
         try {
             // Compress the video
-            compressVideoFile(inputPath.toFile(), outputPath.toFile(), compressionLevel);
+            compressVideoFile(inputPath.toFile(), outputPath.toFile(), options);
 
             // Check if compression actually reduced the file size
             long compressedSize = Files.size(outputPath);
             
             // If compression increased the file size, use the original file instead
             if (compressedSize > originalSize) {
-                Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+                useOriginal(inputPath, outputPath, options);
                 System.out.println("Compression increased file size. Using original file instead.");
             }
         } catch (Exception e) {
             // If any error occurs during compression, use the original file
-            Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
-            System.out.println("Error during compression: " + e.getMessage() + ". Using original file instead.");
+            useOriginal(inputPath, outputPath, options);
+            failure = e.getMessage();
+            System.out.println("Error during compression: " + failure + ". Using original file instead.");
+        } finally {
+            activeJobs.decrementAndGet();
+        }
+
+        // A target size or bitrate is a limit: a file over it, the original included, is an error
+        if (options.getTargetSize() > 0 || options.getTargetBitrate() > 0) {
+            long targetBytes = targetBytes(options, MediaProbe.probe(inputPath.toFile()).duration);
+            if (Files.size(outputPath) > targetBytes * (1 + BUDGET_TOLERANCE)) {
+                Files.deleteIfExists(outputPath);
+                throw new IOException(failure != null ? failure
+                    : "Could not reach the target of " + targetBytes + " bytes");
+            }
         }
 
         // Return the ID of the compressed file
         return fileId + "_compressed." + fileExtension;
     }
 
-    private void compressVideoFile(File inputFile, File outputFile, int compressionLevel) throws Exception {
-        // Load the video
+    // Keeps the part of the video between start and end seconds (end 0 for the rest of it). Packets
+    // are copied from the keyframe at or before start, so the cut costs little more than reading the
+    // part that is kept; accurate also starts and ends on the exact frames, re-encoding only what lies
+    // between start and the next keyframe and whatever the copy has to leave out before end
+    public String trimVideo(MultipartFile file, double start, double end, boolean accurate) throws IOException {
+        String originalFileName = file.getOriginalFilename();
+        String fileExtension = getFileExtension(originalFileName);
+        String fileId = file.getOriginalFilename();
+
+        Path inputPath = uploadDir.resolve(fileId + "." + fileExtension);
+        Path outputPath = outputDir.resolve(fileId + "_trimmed." + fileExtension);
+
+        // Streamed to disk; long uploads are the point of trimming
+        file.transferTo(inputPath);
+
+        try {
+            trimVideoFile(inputPath.toFile(), outputPath.toFile(), (long) (start * 1000000),
+                end > 0 ? (long) (end * 1000000) : Long.MAX_VALUE, accurate);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        // Return the ID of the trimmed file
+        return fileId + "_trimmed." + fileExtension;
+    }
+
+    private void trimVideoFile(File inputFile, File outputFile, long start, long end, boolean accurate) throws Exception {
+        long begin = System.currentTimeMillis();
+        MediaProbe.Info info = MediaProbe.probe(inputFile);
+        if (info.duration > 0) {
+            end = Math.min(end, info.duration);
+        }
+        if (start >= end) {
+            throw new IOException("Nothing to keep between " + start / 1000000.0 + " s and " + end / 1000000.0 + " s");
+        }
+        if (!info.hasVideo()) {
+            MediaRemuxer.remux(outputFile, Arrays.asList(MediaRemuxer.Track.audio(inputFile).between(start, end)));
+            return;
+        }
+
+        // Timestamps within half a frame of each other are the same frame
+        long halfFrame = (long) (500000 / (info.frameRate > 0 ? info.frameRate : 25));
+        if (accurate) {
+            try {
+                trimAccurate(inputFile, outputFile, info, start, end, halfFrame);
+                System.out.println("Trimmed to exact frames " + start / 1000000.0 + " s - " + end / 1000000.0
+                    + " s in " + (System.currentTimeMillis() - begin) + " ms");
+                return;
+            } catch (IOException e) {
+                System.out.println("Frame-accurate cut failed: " + e.getMessage() + ". Cutting at keyframes instead.");
+            }
+        }
+
+        long keyframe = MediaRemuxer.keyframesAround(inputFile, start + halfFrame)[0];
+        List<MediaRemuxer.Track> tracks = new ArrayList<>();
+        tracks.add(MediaRemuxer.Track.video(inputFile).between(keyframe, end));
+        if (info.hasAudio()) {
+            tracks.add(MediaRemuxer.Track.audio(inputFile).between(keyframe, end));
+        }
+        MediaRemuxer.remux(outputFile, tracks);
+        System.out.println("Trimmed from keyframe at " + keyframe / 1000000.0 + " s to " + end / 1000000.0
+            + " s in " + (System.currentTimeMillis() - begin) + " ms");
+    }
+
+    // The frames from start up to the first keyframe are re-encoded, the video from that keyframe to end
+    // is copied, and any frames the copy leaves out before end (B-frames shown before a frame it had to
+    // stop at) are re-encoded after it. The parts are joined with their own parameter sets and the audio
+    // is copied from start to end
+    private void trimAccurate(File inputFile, File outputFile, MediaProbe.Info info, long start, long end, long halfFrame) throws Exception {
+        if (info.videoCodec != avcodec.AV_CODEC_ID_H264) {
+            throw new IOException("exact cuts need H.264 video, not " + info.videoCodecName);
+        }
+        // The edges are encoded as close to the source as the encoder allows
+        EncoderSettings settings = new EncoderSettings();
+        settings.format = info.format;
+        settings.sourceWidth = settings.width = info.width;
+        settings.sourceHeight = settings.height = info.height;
+        settings.sourceFrameRate = settings.frameRate = info.frameRate;
+        settings.videoBitrate = info.videoBitrate > 0 ? (int) info.videoBitrate : calculateDefaultVideoBitrate(info.width, info.height, 1.0);
+        settings.crf = 18;
+        settings.preset = "medium";
+
+        long keyframe = MediaRemuxer.keyframesAround(inputFile, start - halfFrame)[1];
+        File head = temporaryFile(outputFile, "head");
+        File middle = temporaryFile(outputFile, "middle");
+        File tail = temporaryFile(outputFile, "tail");
+        List<File> parts = new ArrayList<>();
+        try {
+            if (keyframe >= end - halfFrame) {
+                // No keyframe inside the cut, so all of it is encoded
+                encodeSegment(inputFile, head, settings, start - halfFrame, end - halfFrame);
+                parts.add(head);
+            } else {
+                if (keyframe > start + halfFrame) {
+                    encodeSegment(inputFile, head, settings, start - halfFrame, keyframe - halfFrame);
+                    parts.add(head);
+                }
+                long copied = MediaRemuxer.remux(middle, Arrays.asList(MediaRemuxer.Track.video(inputFile).between(keyframe, end)));
+                parts.add(middle);
+                long copiedEnd = keyframe + copied;
+                if (copiedEnd < end - halfFrame) {
+                    encodeSegment(inputFile, tail, settings, copiedEnd - halfFrame, end - halfFrame);
+                    parts.add(tail);
+                }
+            }
+            System.out.println("Exact cut: " + parts.size() + " parts, copied from keyframe at " + keyframe / 1000000.0 + " s");
+
+            List<MediaRemuxer.Track> tracks = new ArrayList<>();
+            tracks.add(MediaRemuxer.Track.video(parts));
+            if (info.hasAudio()) {
+                tracks.add(MediaRemuxer.Track.audio(inputFile).between(start, end));
+            }
+            MediaRemuxer.remux(outputFile, tracks);
+        } finally {
+            Files.deleteIfExists(head.toPath());
+            Files.deleteIfExists(middle.toPath());
+            Files.deleteIfExists(tail.toPath());
+        }
+    }
+
+    public boolean isSupportedOutputFormat(String outputFormat, String originalFileName) {
+        if (OUTPUT_HLS.equalsIgnoreCase(outputFormat)) {
+            return true;
+        }
+        // Fragmenting keeps the upload's container, which has to be an MP4
+        String extension = getFileExtension(originalFileName);
+        return OUTPUT_FMP4.equalsIgnoreCase(outputFormat)
+            && (extension.equals("mp4") || extension.equals("m4v") || extension.equals("mov"));
+    }
+
+    // Encodes into a directory of fragmented MP4 segments and an event playlist that gains an entry as
+    // each segment is finished, and returns once the first one is listed, leaving the encode running.
+    // Players reload the playlist until the encoder closes it with #EXT-X-ENDLIST
+    private String startHlsJob(Path inputPath, String fileId, VideoCompressionOptions options) throws IOException {
+        String name = fileId + HLS_SUFFIX;
+        Path directory = outputDir.resolve(name);
+        deleteDirectory(directory);
+        Files.createDirectories(directory);
+        Path playlist = directory.resolve(HLS_PLAYLIST);
+
+        activeJobs.incrementAndGet();
+        Future<?> job = streamExecutor.submit(() -> {
+            try {
+                compressVideoFile(inputPath.toFile(), playlist.toFile(), options);
+                System.out.println("HLS output finished: " + name);
+            } catch (Exception e) {
+                System.out.println("Error during HLS encoding of " + name + ": " + e.getMessage());
+                closePlaylist(playlist);
+                throw e;
+            } finally {
+                activeJobs.decrementAndGet();
+            }
+            return null;
+        });
+
+        // The muxer writes the playlist when the first segment is complete
+        try {
+            while (!Files.exists(playlist) && !job.isDone()) {
+                Thread.sleep(100);
+            }
+            if (!Files.exists(playlist)) {
+                job.get();
+                throw new IOException("No segments were written");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the first segment", e);
+        } catch (ExecutionException e) {
+            deleteDirectory(directory);
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        } catch (IOException e) {
+            deleteDirectory(directory);
+            throw e;
+        }
+        System.out.println("HLS playback can start: " + name + "/" + HLS_PLAYLIST);
+        return name;
+    }
+
+    // Ends a playlist the encoder gave up on, so players stop at the last segment instead of waiting
+    private void closePlaylist(Path playlist) {
+        try {
+            if (Files.exists(playlist) && !Files.readString(playlist).contains("#EXT-X-ENDLIST")) {
+                Files.writeString(playlist, "#EXT-X-ENDLIST\n", StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            System.out.println("Could not close playlist " + playlist + ": " + e.getMessage());
+        }
+    }
+
+    // The original in place of the output, still fragmented when that was asked for
+    private void useOriginal(Path inputPath, Path outputPath, VideoCompressionOptions options) throws IOException {
+        if (OUTPUT_FMP4.equalsIgnoreCase(options.getOutputFormat())) {
+            try {
+                MediaProbe.Info info = MediaProbe.probe(inputPath.toFile());
+                List<MediaRemuxer.Track> tracks = new ArrayList<>();
+                if (info.hasVideo()) {
+                    tracks.add(MediaRemuxer.Track.video(inputPath.toFile()));
+                }
+                if (info.hasAudio()) {
+                    tracks.add(MediaRemuxer.Track.audio(inputPath.toFile()));
+                }
+                MediaRemuxer.remux(outputPath.toFile(), tracks, muxerOptions(options, outputPath.toFile()));
+                return;
+            } catch (IOException e) {
+                System.out.println("Could not fragment the original: " + e.getMessage());
+            }
+        }
+        Files.copy(inputPath, outputPath, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Describes an upload from its container headers alone and estimates the output size and processing
+    // time at each compression level from what this node has measured
+    public MediaProbeResponse probe(MultipartFile file) throws IOException {
+        Path probePath = Files.createTempFile(uploadDir, "probe_", "." + getFileExtension(file.getOriginalFilename()));
+        try {
+            file.transferTo(probePath);
+            long fileSize = Files.size(probePath);
+            MediaProbe.Info info = MediaProbe.probe(probePath.toFile());
+            double seconds = info.duration / 1000000.0;
+
+            MediaProbeResponse response = new MediaProbeResponse(true, "Video probed successfully");
+            response.setFileSize(fileSize);
+            response.setFormat(info.format);
+            response.setDuration(seconds);
+            response.setVideoCodec(info.videoCodecName);
+            response.setWidth(info.width);
+            response.setHeight(info.height);
+            response.setFrameRate(info.frameRate);
+            response.setVideoBitrate(info.videoBitrate);
+            response.setKeyframeInterval(info.keyframeInterval);
+            response.setAudioCodec(info.audioCodecName);
+            response.setAudioChannels(info.audioChannels);
+            response.setSampleRate(info.sampleRate);
+            response.setAudioBitrate(info.audioBitrate);
+
+            List<CompressionEstimate> estimates = new ArrayList<>();
+            for (int level : PROBE_LEVELS) {
+                double qualityFactor = (100 - level) / 100.0;
+                String preset = getPresetForQuality(level);
+                boolean copyVideo = info.hasVideo() && canCopyVideo(info.videoCodec, info.videoBitrate,
+                    info.width, info.height, info.frameRate, qualityFactor);
+                boolean copyAudio = info.hasAudio() && canCopyAudio(info.audioCodec, info.audioBitrate);
+
+                // The same bitrates compressVideoFile would ask for, corrected by how closely the encoder has met them
+                double videoBitrate = !info.hasVideo() ? 0 : copyVideo ? info.videoBitrate
+                    : (info.videoBitrate > 0 ? info.videoBitrate * qualityFactor
+                        : calculateDefaultVideoBitrate(info.width, info.height, qualityFactor)) * throughputStats.getBitrateAccuracy();
+                double audioBitrate = !info.hasAudio() ? 0 : copyAudio ? info.audioBitrate
+                    : info.audioBitrate > 0 ? info.audioBitrate * qualityFactor : 128000;
+                // The original is kept when compression would not make it smaller
+                long size = Math.min(fileSize, (long) ((videoBitrate + audioBitrate) * seconds / 8 * (1 + CONTAINER_OVERHEAD)));
+
+                Double time = !info.hasVideo() || copyVideo
+                    ? throughputStats.estimateCopySeconds(fileSize)
+                    : throughputStats.estimateEncodeSeconds(preset, (long) ((double) info.width * info.height * info.frameRate * seconds));
+                estimates.add(new CompressionEstimate(level, preset, copyVideo ? "copy" : "re-encode", size, time));
+            }
+            response.setEstimates(estimates);
+            return response;
+        } finally {
+            Files.deleteIfExists(probePath);
+        }
+    }
+
+    private void compressVideoFile(File inputFile, File outputFile, VideoCompressionOptions options) throws Exception {
+        int compressionLevel = options.getCompressionLevel();
+
+        // Load the video; whichever grabber is current is released however the method exits, and
+        // releasing one that was already stopped and released is a no-op
         FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
-        grabber.start();
+        try {
+            grabber.start();
         
-        // Calculate target bitrate based on compression level (1-100)
-        // Higher compression level means lower bitrate
-        double qualityFactor = (100 - compressionLevel) / 100.0;
+            // Calculate target bitrate based on compression level (1-100)
+            // Higher compression level means lower bitrate
+            double qualityFactor = (100 - compressionLevel) / 100.0;
         
-        // Get original video parameters
-        int originalWidth = grabber.getImageWidth();
-        int originalHeight = grabber.getImageHeight();
-        double frameRate = grabber.getVideoFrameRate();
-        int originalVideoBitrate = grabber.getVideoBitrate();
-        int originalAudioBitrate = grabber.getAudioBitrate();
+            // Get original video parameters
+            int originalWidth = grabber.getImageWidth();
+            int originalHeight = grabber.getImageHeight();
+            double frameRate = grabber.getVideoFrameRate();
+            int originalVideoBitrate = grabber.getVideoBitrate();
+            int originalAudioBitrate = grabber.getAudioBitrate();
+
+            // Fit within the size and frame rate limits; H.264 needs even dimensions
+            double scale = 1.0;
+            if (options.getMaxWidth() > 0 && originalWidth > options.getMaxWidth()) {
+                scale = Math.min(scale, options.getMaxWidth() / (double) originalWidth);
+            }
+            if (options.getMaxHeight() > 0 && originalHeight > options.getMaxHeight()) {
+                scale = Math.min(scale, options.getMaxHeight() / (double) originalHeight);
+            }
+            int newWidth = scale < 1.0 ? Math.max(2, (int) (originalWidth * scale) & ~1) : originalWidth;
+            int newHeight = scale < 1.0 ? Math.max(2, (int) (originalHeight * scale) & ~1) : originalHeight;
+            double newFrameRate = options.getMaxFps() > 0 && frameRate > options.getMaxFps() ? options.getMaxFps() : frameRate;
+            boolean reshaped = newWidth != originalWidth || newHeight != originalHeight || newFrameRate != frameRate;
         
-        // Calculate new parameters
-        int newVideoBitrate = originalVideoBitrate > 0 ? 
-            (int)(originalVideoBitrate * qualityFactor) : 
-            calculateDefaultVideoBitrate(originalWidth, originalHeight, qualityFactor);
+            // Calculate new parameters
+            int newVideoBitrate = originalVideoBitrate > 0 ? 
+                (int)(originalVideoBitrate * qualityFactor) : 
+                calculateDefaultVideoBitrate(originalWidth, originalHeight, qualityFactor);
+            if (reshaped && frameRate > 0) {
+                // Fewer pixels per second need fewer bits, though not proportionally fewer
+                double pixelRateRatio = ((double) newWidth * newHeight * newFrameRate) / ((double) originalWidth * originalHeight * frameRate);
+                newVideoBitrate = (int) (newVideoBitrate * Math.pow(pixelRateRatio, 0.75));
+            }
             
-        int newAudioBitrate = originalAudioBitrate > 0 ? 
-            (int)(originalAudioBitrate * qualityFactor) : 
-            128000; // Default audio bitrate
-        
-        // Create a recorder with the calculated parameters
+            int newAudioBitrate = originalAudioBitrate > 0 ? 
+                (int)(originalAudioBitrate * qualityFactor) : 
+                128000; // Default audio bitrate
+
+            // HLS segments come out of a single encoder as it goes, so nothing is copied or split
+            boolean hls = isHls(options);
+            Map<String, String> muxerOptions = muxerOptions(options, outputFile);
+
+            // Streams that already meet the target are copied packet for packet instead of re-encoded
+            boolean hasVideo = originalWidth > 0 && originalHeight > 0;
+            boolean hasAudio = grabber.getAudioChannels() > 0;
+            boolean copyAudio = !hls && hasAudio && canCopyAudio(grabber.getAudioCodec(), grabber.getAudioBitrate());
+
+            // A target size or bitrate replaces the level's bitrate and CRF with a budget for the video stream
+            int videoBudget = 0;
+            if (hasVideo && (options.getTargetSize() > 0 || options.getTargetBitrate() > 0)) {
+                int audioBitrate = !hasAudio ? 0 : copyAudio ? originalAudioBitrate : newAudioBitrate;
+                videoBudget = videoBudget(options, grabber.getLengthInTime(), audioBitrate);
+                newVideoBitrate = videoBudget;
+            }
+
+            boolean copyVideo = !hls && hasVideo && !reshaped && (videoBudget > 0
+                ? grabber.getVideoCodec() == avcodec.AV_CODEC_ID_H264 && originalVideoBitrate > 0 && originalVideoBitrate <= videoBudget
+                : canCopyVideo(grabber.getVideoCodec(), originalVideoBitrate, originalWidth, originalHeight, frameRate, qualityFactor));
+            boolean encodeVideo = hasVideo && !copyVideo;
+            boolean encodeAudio = hasAudio && !copyAudio;
+            System.out.println("Video: " + (copyVideo ? "copy" : encodeVideo ? "re-encode" : "none")
+                + ", audio: " + (copyAudio ? "copy" : encodeAudio ? "re-encode" : "none"));
+
+            if (!encodeVideo && !encodeAudio) {
+                grabber.stop();
+                grabber.release();
+                List<MediaRemuxer.Track> tracks = new ArrayList<>();
+                if (copyVideo) {
+                    tracks.add(MediaRemuxer.Track.video(inputFile));
+                }
+                if (copyAudio) {
+                    tracks.add(MediaRemuxer.Track.audio(inputFile));
+                }
+                long copyStart = System.nanoTime();
+                MediaRemuxer.remux(outputFile, tracks, muxerOptions);
+                throughputStats.recordCopy(inputFile.length(), System.nanoTime() - copyStart);
+                return;
+            }
+
+            EncoderSettings settings = new EncoderSettings();
+            settings.format = grabber.getFormat();
+            settings.sourceWidth = originalWidth;
+            settings.sourceHeight = originalHeight;
+            settings.sourceFrameRate = frameRate;
+            settings.width = newWidth;
+            settings.height = newHeight;
+            settings.frameRate = newFrameRate;
+            settings.videoBitrate = newVideoBitrate;
+            settings.audioChannels = grabber.getAudioChannels();
+            settings.audioBitrate = newAudioBitrate;
+            settings.sampleRate = grabber.getSampleRate();
+            settings.crf = Math.min(51, Math.max(18, 18 + (compressionLevel / 3)));
+            settings.preset = getPresetForQuality(compressionLevel);
+            long duration = grabber.getLengthInTime();
+
+            if (encodeVideo) {
+                // Under load the preset moves towards faster ones, with CRF lowered to hold quality, or
+                // with an encoder that has no presets the output is scaled down
+                long pixels = (long) ((double) newWidth * newHeight * newFrameRate * duration / 1000000.0);
+                AdaptivePresetPolicy.Choice choice = presetPolicy.choose(settings.preset, settings.crf, pixels,
+                    newWidth, activeJobs.get());
+                settings.preset = choice.preset;
+                settings.crf = choice.crf;
+                settings.threads = choice.threads;
+                if (choice.scale < 1.0) {
+                    int scaledWidth = Math.max(2, (int) (newWidth * choice.scale) & ~1);
+                    int scaledHeight = Math.max(2, (int) (newHeight * choice.scale) & ~1);
+                    // Same rule as a size limit: fewer pixels need fewer bits, though not proportionally fewer
+                    double pixelRatio = ((double) scaledWidth * scaledHeight) / ((double) newWidth * newHeight);
+                    settings.videoBitrate = (int) (settings.videoBitrate * Math.pow(pixelRatio, 0.75));
+                    newWidth = scaledWidth;
+                    newHeight = scaledHeight;
+                    settings.width = newWidth;
+                    settings.height = newHeight;
+                }
+            }
+
+            if (encodeVideo && videoBudget > 0) {
+                settings.rateControlled = true;
+                settings.videoBitrate = calibrateBitrate(inputFile, outputFile, settings, videoBudget, duration);
+            }
+
+            // Every pass opens its own grabber, scaling on the way out when needed
+            grabber.stop();
+            grabber.release();
+            encodeOutput(inputFile, outputFile, settings, duration, copyVideo, copyAudio, encodeVideo, encodeAudio,
+                hls, muxerOptions);
+            if (encodeVideo && videoBudget > 0 && !hls) {
+                meetBudget(inputFile, outputFile, options, settings, videoBudget, duration, copyVideo, copyAudio,
+                    encodeAudio, muxerOptions);
+            }
+        } finally {
+            grabber.release();
+        }
+    }
+
+    // One encode of the whole output: in segments when the video is long enough, otherwise in a single
+    // pass, with a copied stream muxed in afterwards
+    private void encodeOutput(File inputFile, File outputFile, EncoderSettings settings, long duration,
+                              boolean copyVideo, boolean copyAudio, boolean encodeVideo, boolean encodeAudio,
+                              boolean hls, Map<String, String> muxerOptions) throws Exception {
+        long encodeStart = System.nanoTime();
+        long segmentedFrames = encodeVideo && !hls
+            ? encodeSegmented(inputFile, outputFile, settings, duration, copyAudio, encodeAudio, muxerOptions) : -1;
+        if (segmentedFrames >= 0) {
+            recordEncode(outputFile, settings, segmentedFrames, encodeStart, duration);
+            return;
+        }
+
+        FFmpegFrameGrabber grabber = newGrabber(inputFile, settings);
+        try {
+            grabber.start();
+
+            // When one stream is copied the other is encoded on its own and the two are muxed afterwards
+            boolean mixed = copyVideo || copyAudio;
+            File encodedFile = mixed ? temporaryFile(outputFile, encodeVideo ? "video" : "audio") : outputFile;
+
+            // Create a recorder with the calculated parameters
+            FFmpegFrameRecorder recorder = newRecorder(encodedFile, settings, encodeVideo, encodeAudio);
+            if (!mixed) {
+                muxerOptions.forEach(recorder::setOption);
+            }
+            if (hls) {
+                recorder.setFormat("hls");
+                // A keyframe at every segment boundary, so each segment can be played on its own
+                recorder.setGopSize((int) Math.max(1, Math.round(settings.frameRate * hlsSegmentSeconds)));
+            }
+
+            try {
+                // Start the recorder
+                recorder.start();
+
+                // Process each frame; a copied stream is skipped without being decoded
+                Frame frame;
+                long frames = 0;
+                while ((frame = encodeVideo && encodeAudio ? grabber.grab()
+                        : encodeVideo ? grabber.grabImage() : grabber.grabSamples()) != null) {
+                    if (frame.image == null || settings.keepFrame(frame.timestamp)) {
+                        recorder.record(frame);
+                        frames += frame.image != null ? 1 : 0;
+                    }
+                }
+
+                // Close resources
+                recorder.stop();
+                recorder.release();
+                grabber.stop();
+                grabber.release();
+
+                if (mixed) {
+                    MediaRemuxer.remux(outputFile, Arrays.asList(
+                        MediaRemuxer.Track.video(copyVideo ? inputFile : encodedFile),
+                        MediaRemuxer.Track.audio(copyAudio ? inputFile : encodedFile)), muxerOptions);
+                }
+                if (encodeVideo) {
+                    recordEncode(hls ? null : outputFile, settings, frames, encodeStart, duration);
+                }
+            } finally {
+                // Released on the way out too when a frame fails to encode
+                recorder.release();
+                if (mixed) {
+                    Files.deleteIfExists(encodedFile.toPath());
+                }
+            }
+        } finally {
+            grabber.release();
+        }
+    }
+
+    // Checks the encoded file against the target and encodes again while it is more than
+    // BUDGET_TOLERANCE over: first with the bitrate corrected by how far the last pass missed. Rate
+    // control cannot go below some bitrate for a given size and frame rate however little it is asked
+    // for, so when that pass still misses, or the first one came out far over its bitrate, the next is
+    // at the budget and a resolution lowered by the miss (down to MIN_BUDGET_WIDTH), and the ones
+    // after that let the encoder skip frames. Fails rather than returning a file over the target
+    private void meetBudget(File inputFile, File outputFile, VideoCompressionOptions options, EncoderSettings settings,
+                            int budget, long duration, boolean copyVideo, boolean copyAudio, boolean encodeAudio,
+                            Map<String, String> muxerOptions) throws Exception {
+        long targetBytes = targetBytes(options, duration);
+        boolean scaled = false;
+        for (int attempt = 1; ; attempt++) {
+            long size = Files.size(outputFile.toPath());
+            if (size <= targetBytes * (1 + BUDGET_TOLERANCE)) {
+                return;
+            }
+            if (attempt > MAX_BUDGET_RETRIES) {
+                throw new IOException("Could not reach the target of " + targetBytes + " bytes; the last attempt was "
+                    + size + " bytes at " + settings.width + "x" + settings.height);
+            }
+
+            long achieved = MediaProbe.probe(outputFile).videoBitrate;
+            double miss = achieved > 0 ? achieved / (double) budget : size / (double) targetBytes;
+            // Far over what it was asked for, rate control is at its floor and a lower bitrate would change nothing
+            boolean following = achieved > 0 && achieved <= 2L * settings.videoBitrate;
+            if (settings.skipFrames || (attempt == 1 && following)) {
+                settings.videoBitrate = (int) Math.max(1000, settings.videoBitrate / Math.max(1 + BUDGET_TOLERANCE, miss));
+            } else if (!scaled && settings.width > MIN_BUDGET_WIDTH) {
+                scaled = true;
+                // The lowest bitrate rate control reaches falls about in proportion to the pixels
+                double scale = Math.max(MIN_BUDGET_WIDTH / (double) settings.width,
+                    Math.min(BUDGET_SCALE_STEP, Math.sqrt(1 / miss)));
+                settings.width = Math.max(2, (int) (settings.width * scale) & ~1);
+                settings.height = Math.max(2, (int) (settings.height * scale) & ~1);
+                settings.videoBitrate = budget;
+            } else {
+                // Rate control that may skip frames holds the bitrate it is given
+                settings.skipFrames = true;
+                settings.videoBitrate = budget;
+            }
+            System.out.println("Output is " + size + " bytes for a target of " + targetBytes + "; encoding again at "
+                + settings.width + "x" + settings.height + " and " + settings.videoBitrate + " bps"
+                + (settings.skipFrames ? " with frame skipping" : ""));
+            encodeOutput(inputFile, outputFile, settings, duration, copyVideo, copyAudio, true, encodeAudio,
+                false, muxerOptions);
+        }
+    }
+
+    // The whole file's size limit from a target size or bitrate
+    static long targetBytes(VideoCompressionOptions options, long duration) {
+        return options.getTargetSize() > 0 ? options.getTargetSize()
+            : (long) (options.getTargetBitrate() / 8.0 * duration / 1000000.0);
+    }
+
+    // Encoder parameters shared by every recorder of one job, so separately encoded parts match
+    private static final class EncoderSettings {
+        String format;
+        int sourceWidth;
+        int sourceHeight;
+        double sourceFrameRate;
+        // Of the output, at most the source's
+        int width;
+        int height;
+        double frameRate;
+        int videoBitrate;
+        int audioChannels;
+        int audioBitrate;
+        int sampleRate;
+        int crf;
+        String preset;
+        // Encoder threads, 0 for the encoder's default
+        int threads;
+        // Lets rate control drop frames to stay within the bitrate (OpenH264)
+        boolean skipFrames;
+        // Average bitrate only, without CRF, for a target size
+        boolean rateControlled;
+
+        EncoderSettings copy() {
+            EncoderSettings copy = new EncoderSettings();
+            copy.format = format;
+            copy.sourceWidth = sourceWidth;
+            copy.sourceHeight = sourceHeight;
+            copy.sourceFrameRate = sourceFrameRate;
+            copy.width = width;
+            copy.height = height;
+            copy.frameRate = frameRate;
+            copy.videoBitrate = videoBitrate;
+            copy.audioChannels = audioChannels;
+            copy.audioBitrate = audioBitrate;
+            copy.sampleRate = sampleRate;
+            copy.crf = crf;
+            copy.preset = preset;
+            copy.threads = threads;
+            copy.skipFrames = skipFrames;
+            copy.rateControlled = rateControlled;
+            return copy;
+        }
+
+        // Keeps a frame when it is the first of the source to fall in an interval of the output frame
+        // rate. Needs no state, so segments encoded separately drop exactly the frames a single pass would.
+        // Works on the source frame index, as timestamps rounded to microseconds sit on either side of
+        // interval edges
+        boolean keepFrame(long timestamp) {
+            if (frameRate >= sourceFrameRate || sourceFrameRate <= 0) {
+                return true;
+            }
+            double index = Math.rint(timestamp * sourceFrameRate / 1000000.0);
+            return Math.floor(index * frameRate / sourceFrameRate + 1e-9)
+                != Math.floor((index - 1) * frameRate / sourceFrameRate + 1e-9);
+        }
+    }
+
+    // Frames come out of the decoder already scaled to the output size
+    private FFmpegFrameGrabber newGrabber(File inputFile, EncoderSettings settings) {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
+        if (settings.width != settings.sourceWidth || settings.height != settings.sourceHeight) {
+            grabber.setImageWidth(settings.width);
+            grabber.setImageHeight(settings.height);
+            grabber.setImageScalingFlags(swscale.SWS_AREA);
+        }
+        return grabber;
+    }
+
+    private FFmpegFrameRecorder newRecorder(File file, EncoderSettings settings, boolean video, boolean audio) {
         FFmpegFrameRecorder recorder = new FFmpegFrameRecorder(
-            outputFile,
-            originalWidth,
-            originalHeight,
-            grabber.getAudioChannels()
+            file,
+            video ? settings.width : 0,
+            video ? settings.height : 0,
+            audio ? settings.audioChannels : 0
         );
-        
+
         // Set video parameters
-        recorder.setFormat(grabber.getFormat());
-        recorder.setFrameRate(frameRate);
-        recorder.setVideoBitrate(newVideoBitrate);
-        
+        recorder.setFormat(settings.format);
+        recorder.setFrameRate(settings.frameRate);
+        recorder.setVideoBitrate(settings.videoBitrate);
+
         // Set audio parameters if the video has audio
-        if (grabber.getAudioChannels() > 0) {
-            recorder.setAudioChannels(grabber.getAudioChannels());
-            recorder.setAudioBitrate(newAudioBitrate);
-            recorder.setSampleRate(grabber.getSampleRate());
+        if (audio) {
+            recorder.setAudioChannels(settings.audioChannels);
+            recorder.setAudioBitrate(settings.audioBitrate);
+            recorder.setSampleRate(settings.sampleRate);
         }
-        
+
         // Use H.264 for video and AAC for audio (widely compatible)
-        recorder.setVideoCodec(org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_H264);
-        recorder.setAudioCodec(org.bytedeco.ffmpeg.global.avcodec.AV_CODEC_ID_AAC);
-        
+        recorder.setVideoCodec(avcodec.AV_CODEC_ID_H264);
+        recorder.setAudioCodec(avcodec.AV_CODEC_ID_AAC);
+
         // Add quality-related options
-        recorder.setVideoOption("crf", String.valueOf(Math.min(51, Math.max(18, 18 + (compressionLevel / 3)))));
-        recorder.setVideoOption("preset", getPresetForQuality(compressionLevel));
-        
-        // Start the recorder
-        recorder.start();
-        
-        // Process each frame
-        Frame frame;
-        while ((frame = grabber.grab()) != null) {
-            recorder.record(frame);
+        if (settings.rateControlled) {
+            // CRF would override the bitrate; the full quantizer range lets rate control reach small budgets
+            recorder.setVideoOption("rc_mode", "bitrate");
+            recorder.setVideoOption("qmin", "10");
+            recorder.setVideoOption("qmax", "51");
+        } else {
+            recorder.setVideoOption("crf", String.valueOf(settings.crf));
+        }
+        recorder.setVideoOption("preset", settings.preset);
+        if (settings.threads > 0) {
+            recorder.setVideoOption("threads", String.valueOf(settings.threads));
+        }
+        if (settings.skipFrames) {
+            recorder.setVideoOption("allow_skip_frames", "1");
+        }
+        return recorder;
+    }
+
+    // Feeds the probe's estimates: wall-time throughput of the preset and, for level-based encodes to a
+    // single file, how far the video stream's bitrate ended up from the one requested
+    private void recordEncode(File outputFile, EncoderSettings settings, long frames, long startNanos, long duration) {
+        throughputStats.recordEncode(settings.preset, frames * settings.width * settings.height, System.nanoTime() - startNanos);
+        if (!settings.rateControlled && outputFile != null) {
+            try {
+                throughputStats.recordBitrate(settings.videoBitrate, MediaProbe.probe(outputFile).videoBitrate);
+            } catch (IOException e) {
+                System.out.println("Could not measure the output bitrate: " + e.getMessage());
+            }
+        }
+    }
+
+    // Bits per second left for the video once the audio and container overhead are taken out
+    private int videoBudget(VideoCompressionOptions options, long duration, int audioBitrate) throws IOException {
+        double seconds = duration / 1000000.0;
+        if (seconds <= 0) {
+            throw new IOException("Unknown duration; cannot aim for a target size");
+        }
+        double totalBitrate = options.getTargetSize() > 0 ? options.getTargetSize() * 8 / seconds : options.getTargetBitrate();
+        int budget = (int) (totalBitrate * (1 - CONTAINER_OVERHEAD) - audioBitrate);
+        if (budget <= 0) {
+            throw new IOException("Target leaves no room for the video after " + audioBitrate + " bps of audio");
+        }
+        System.out.println("Video budget: " + budget + " bps over " + String.format("%.1f", seconds) + " s");
+        return budget;
+    }
+
+    // First pass: the video encoded at a reduced resolution with the same bits per pixel, which shows
+    // how far the encoder's rate control strays from the budget on this content. A video longer than
+    // twice the windows is sampled in ANALYSIS_WINDOWS evenly spread windows, so the pass decodes and
+    // encodes a bounded amount however long the video is. The second pass asks for the budget
+    // corrected by that error, and meetBudget checks what it produced
+    private int calibrateBitrate(File inputFile, File outputFile, EncoderSettings settings, int budget, long duration) throws Exception {
+        EncoderSettings analysis = settings.copy();
+        // Only rate control's miss is measured, so the level's (possibly very slow) preset is not needed
+        analysis.preset = ANALYSIS_PRESET;
+        double scale = Math.min(1.0, analysisWidth / (double) settings.width);
+        analysis.width = Math.max(2, (int) (settings.width * scale) & ~1);
+        analysis.height = Math.max(2, (int) (settings.height * scale) & ~1);
+        double pixelRatio = (double) analysis.width * analysis.height / ((double) settings.width * settings.height);
+        analysis.videoBitrate = (int) Math.max(1000, budget * pixelRatio);
+
+        File analysisFile = temporaryFile(outputFile, "analysis");
+        long start = System.currentTimeMillis();
+        long frames = 0;
+        try {
+            FFmpegFrameGrabber grabber = newGrabber(inputFile, analysis);
+            FFmpegFrameRecorder recorder = newRecorder(analysisFile, analysis, true, false);
+            try {
+                grabber.start();
+                recorder.start();
+                long window = ANALYSIS_WINDOW_SECONDS * 1000000L;
+                int windows = duration > 2L * ANALYSIS_WINDOWS * window ? ANALYSIS_WINDOWS : 1;
+                for (int i = 0; i < windows; i++) {
+                    long from = windows > 1 ? duration * (2 * i + 1) / (2 * windows) - window / 2 : 0;
+                    long to = windows > 1 ? from + window : Long.MAX_VALUE;
+                    if (from > 0) {
+                        grabber.setVideoTimestamp(from);
+                    }
+                    Frame frame;
+                    while ((frame = grabber.grabImage()) != null && frame.timestamp < to) {
+                        if (frame.timestamp >= from && analysis.keepFrame(frame.timestamp)) {
+                            recorder.record(frame);
+                            frames++;
+                        }
+                    }
+                }
+                recorder.stop();
+            } finally {
+                recorder.release();
+                grabber.release();
+            }
+            if (frames == 0) {
+                return budget;
+            }
+
+            double achieved = Files.size(analysisFile.toPath()) * 8 / (frames / analysis.frameRate);
+            double error = Math.max(0.25, Math.min(4.0, achieved / analysis.videoBitrate));
+            int bitrate = (int) (budget / error);
+            System.out.println("Analysis pass at " + analysis.width + "x" + analysis.height + " reached "
+                + String.format("%.2f", achieved / analysis.videoBitrate) + "x its bitrate in "
+                + (System.currentTimeMillis() - start) + " ms; asking for " + bitrate + " bps");
+            return bitrate;
+        } finally {
+            Files.deleteIfExists(analysisFile.toPath());
+        }
+    }
+
+    // Splits the video at keyframes into one segment per worker and encodes the segments in parallel,
+    // each starting with a keyframe of its own, then joins them at the container level. The audio is
+    // copied or encoded whole alongside. Returns the number of frames encoded, or -1, having done
+    // nothing, when the video is too short to be worth splitting
+    private long encodeSegmented(File inputFile, File outputFile, EncoderSettings settings, long duration,
+                                    boolean copyAudio, boolean encodeAudio, Map<String, String> muxerOptions) throws Exception {
+        if (!segmentEnabled || duration <= 0) {
+            return -1;
+        }
+        int count = (int) Math.min(segmentWorkers, duration / (segmentMinSeconds * 1000000L));
+        if (count < 2) {
+            return -1;
+        }
+
+        // Boundaries at the keyframes nearest to equal shares of the duration
+        List<Long> keyframes = MediaRemuxer.keyframeTimestamps(inputFile);
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(Long.MIN_VALUE);
+        for (int i = 1; i < count; i++) {
+            long target = duration * i / count;
+            long nearest = -1;
+            for (long keyframe : keyframes) {
+                if (keyframe > 0 && (nearest < 0 || Math.abs(keyframe - target) < Math.abs(nearest - target))) {
+                    nearest = keyframe;
+                }
+            }
+            if (nearest > boundaries.get(boundaries.size() - 1)) {
+                boundaries.add(nearest);
+            }
+        }
+        boundaries.add(Long.MAX_VALUE);
+        if (boundaries.size() < 3) {
+            return -1;
+        }
+        System.out.println("Encoding " + (boundaries.size() - 1) + " segments split at keyframes " + boundaries.subList(1, boundaries.size() - 1));
+
+        List<File> segmentFiles = new ArrayList<>();
+        File audioFile = encodeAudio ? temporaryFile(outputFile, "audio") : null;
+        List<Future<Long>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i + 1 < boundaries.size(); i++) {
+                File segmentFile = temporaryFile(outputFile, "segment" + i);
+                segmentFiles.add(segmentFile);
+                long start = boundaries.get(i);
+                long end = boundaries.get(i + 1);
+                futures.add(segmentExecutor.submit(() -> encodeSegment(inputFile, segmentFile, settings, start, end)));
+            }
+            if (encodeAudio) {
+                futures.add(segmentExecutor.submit(() -> {
+                    encodeAudioOnly(inputFile, audioFile, settings);
+                    return 0L;
+                }));
+            }
+            long frames = 0;
+            try {
+                for (Future<Long> future : futures) {
+                    frames += future.get();
+                }
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+
+            List<MediaRemuxer.Track> tracks = new ArrayList<>();
+            tracks.add(MediaRemuxer.Track.video(segmentFiles));
+            if (copyAudio || encodeAudio) {
+                tracks.add(MediaRemuxer.Track.audio(copyAudio ? inputFile : audioFile));
+            }
+            MediaRemuxer.remux(outputFile, tracks, muxerOptions);
+            return frames;
+        } finally {
+            for (Future<Long> future : futures) {
+                future.cancel(true);
+            }
+            for (File segmentFile : segmentFiles) {
+                Files.deleteIfExists(segmentFile.toPath());
+            }
+            if (audioFile != null) {
+                Files.deleteIfExists(audioFile.toPath());
+            }
+        }
+    }
+
+    // Frames from start (a keyframe, when splitting) up to end; returns how many were encoded
+    private long encodeSegment(File inputFile, File segmentFile, EncoderSettings settings, long start, long end) throws Exception {
+        FFmpegFrameGrabber grabber = newGrabber(inputFile, settings);
+        FFmpegFrameRecorder recorder = newRecorder(segmentFile, settings, true, false);
+        try {
+            grabber.start();
+            if (start > 0) {
+                grabber.setVideoTimestamp(start);
+            }
+            recorder.start();
+            Frame frame;
+            long frames = 0;
+            while ((frame = grabber.grabImage()) != null && frame.timestamp < end) {
+                // Seeking may stop short of a start that is not a keyframe
+                if (frame.timestamp >= start && settings.keepFrame(frame.timestamp)) {
+                    recorder.record(frame);
+                    frames++;
+                }
+            }
+            recorder.stop();
+            return frames;
+        } finally {
+            recorder.release();
+            grabber.release();
+        }
+    }
+
+    private void encodeAudioOnly(File inputFile, File audioFile, EncoderSettings settings) throws Exception {
+        FFmpegFrameGrabber grabber = new FFmpegFrameGrabber(inputFile);
+        FFmpegFrameRecorder recorder = newRecorder(audioFile, settings, false, true);
+        try {
+            grabber.start();
+            recorder.start();
+            Frame frame;
+            while ((frame = grabber.grabSamples()) != null) {
+                recorder.record(frame);
+            }
+            recorder.stop();
+        } finally {
+            recorder.release();
+            grabber.release();
         }
-        
-        // Close resources
-        recorder.stop();
-        recorder.release();
-        grabber.stop();
-        grabber.release();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        segmentExecutor.shutdownNow();
+        streamExecutor.shutdownNow();
+    }
+
+    private boolean isHls(VideoCompressionOptions options) {
+        return OUTPUT_HLS.equalsIgnoreCase(options.getOutputFormat());
+    }
+
+    // Container options for the file handed out. A fragmented MP4 has an empty header up front and a
+    // fragment per keyframe, so a player needs only the first fragment instead of an index at the end.
+    // HLS segments are fragmented MP4 too, beside the playlist, which lists each as it is finished
+    private Map<String, String> muxerOptions(VideoCompressionOptions options, File outputFile) {
+        Map<String, String> muxerOptions = new LinkedHashMap<>();
+        if (OUTPUT_FMP4.equalsIgnoreCase(options.getOutputFormat())) {
+            muxerOptions.put("movflags", "frag_keyframe+empty_moov+default_base_moof");
+        } else if (isHls(options)) {
+            muxerOptions.put("hls_time", String.valueOf(hlsSegmentSeconds));
+            muxerOptions.put("hls_playlist_type", "event");
+            muxerOptions.put("hls_segment_type", "fmp4");
+            muxerOptions.put("hls_fmp4_init_filename", "init.mp4");
+            muxerOptions.put("hls_segment_filename", new File(outputFile.getParentFile(), "segment_%05d.m4s").getPath());
+        }
+        return muxerOptions;
+    }
+
+    // AAC at or below the passthrough bitrate gains little from another lossy generation
+    private boolean canCopyAudio(int codec, long bitrate) {
+        return passthroughEnabled
+            && codec == avcodec.AV_CODEC_ID_AAC
+            && bitrate > 0
+            && bitrate <= passthroughAudioMaxBitrate;
+    }
+
+    // H.264 already spending fewer bits per pixel than the level asks for is as lean as a re-encode
+    private boolean canCopyVideo(int codec, long bitrate, int width, int height, double frameRate, double qualityFactor) {
+        double pixelsPerSecond = (double) width * height * frameRate;
+        return passthroughEnabled
+            && codec == avcodec.AV_CODEC_ID_H264
+            && bitrate > 0
+            && pixelsPerSecond > 0
+            && bitrate / pixelsPerSecond <= passthroughVideoMaxBitsPerPixel * qualityFactor;
+    }
+
+    // Beside the output, with its extension so the recorder picks the same container
+    private File temporaryFile(File outputFile, String stream) {
+        String name = outputFile.getName();
+        return new File(outputFile.getParentFile(), name + "." + stream + "." + getFileExtension(name));
     }
     
     private int calculateDefaultVideoBitrate(int width, int height, double qualityFactor) {
@@ -165,21 +1128,67 @@ public class VideoCompressorService {
         return outputDir.resolve(fileName);
     }
 
+    // A playlist, init segment or media segment of an HLS output; null for anything outside one
+    public Path getStreamFilePath(String streamName, String fileName) {
+        if (!streamName.endsWith(HLS_SUFFIX) || streamName.contains("..") || fileName.contains("..")
+                || streamName.contains("/") || fileName.contains("/") || fileName.contains("\\")) {
+            return null;
+        }
+        return outputDir.resolve(streamName).resolve(fileName);
+    }
+
     public long getCompressedFileSize(String fileName) throws IOException {
         Path filePath = outputDir.resolve(fileName);
+        if (Files.isDirectory(filePath)) {
+            // What an HLS job has written so far
+            try (Stream<Path> files = Files.list(filePath)) {
+                long size = 0;
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    size += Files.size(file);
+                }
+                return size;
+            }
+        }
         return Files.size(filePath);
     }
     
     public long getOriginalFileSize(String fileName) throws IOException {
         // Extract the original file ID and extension from the compressed file name
-        String originalFileName = fileName.replace("_compressed.", ".");
+        String originalFileName = getOriginalFileName(fileName);
         Path filePath = uploadDir.resolve(originalFileName);
         return Files.size(filePath);
     }
+
+    private String getOriginalFileName(String fileName) {
+        if (fileName.endsWith(HLS_SUFFIX)) {
+            String fileId = fileName.substring(0, fileName.length() - HLS_SUFFIX.length());
+            return fileId + "." + getFileExtension(fileId);
+        }
+        return fileName.replace("_compressed.", ".").replace("_trimmed.", ".");
+    }
+
+    private void deleteDirectory(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
     
     public boolean deleteFiles(String fileName) {
         try {
             boolean allDeleted = true;
+
+            // An HLS output is a whole directory
+            if (fileName.endsWith(HLS_SUFFIX) && !fileName.contains("..") && Files.isDirectory(outputDir.resolve(fileName))) {
+                deleteDirectory(outputDir.resolve(fileName));
+                boolean originalDeleted = Files.deleteIfExists(uploadDir.resolve(getOriginalFileName(fileName)));
+                System.out.println("HLS output deleted: " + fileName + ", original " + (originalDeleted ? "deleted" : "not found"));
+                return originalDeleted;
+            }
             
             // Delete the compressed file from the output directory
             Path compressedOutputPath = outputDir.resolve(fileName);
@@ -191,7 +1200,7 @@ public class VideoCompressorService {
             boolean compressedUploadDeleted = Files.deleteIfExists(compressedUploadPath);
             
             // Delete the original file from the upload directory
-            String originalFileName = fileName.replace("_compressed.", ".");
+            String originalFileName = getOriginalFileName(fileName);
             Path originalFilePath = uploadDir.resolve(originalFileName);
             boolean originalDeleted = Files.deleteIfExists(originalFilePath);
             allDeleted = allDeleted && originalDeleted;
@@ -8,6 +8,8 @@ import org.apache.pdfbox.pdmodel.graphics.image.JPEGFactory;
 import org.apache.pdfbox.pdmodel.graphics.image.PDImageXObject;
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -17,6 +19,7 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ConvolveOp;
 import java.awt.image.Kernel;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -30,7 +33,21 @@ public class WatermarkRemovalService {
     private final Path uploadDir = Paths.get("uploads");
     private final Path outputDir = Paths.get("outputs");
 
-    public WatermarkRemovalService() {
+    // Rows around a band that the watermark passes read from: 2 for the mask's dilation and erosion,
+    // 49 for the replacement colour search, 1 for the final blur, 6 more for edge detection and density
+    private static final int BAND_HALO = 64;
+
+    private final PageCheckpointStore pageCheckpointStore;
+    private final long tileThresholdPixels;
+    private final long tileBandPixels;
+
+    @Autowired
+    public WatermarkRemovalService(PageCheckpointStore pageCheckpointStore,
+                                   @Value("${image.tile.threshold-pixels:40000000}") long tileThresholdPixels,
+                                   @Value("${image.tile.band-pixels:4000000}") long tileBandPixels) {
+        this.pageCheckpointStore = pageCheckpointStore;
+        this.tileThresholdPixels = tileThresholdPixels;
+        this.tileBandPixels = tileBandPixels;
         try {
             Files.createDirectories(uploadDir);
             Files.createDirectories(outputDir);
@@ -52,6 +69,14 @@ public class WatermarkRemovalService {
         Files.write(inputPath, file.getBytes());
 
         try {
+            // Images too large to hold in memory are processed a band of rows at a time
+            try (ImageRegionReader reader = ImageRegionReader.open(inputPath)) {
+                if (reader.getPixelCount() > tileThresholdPixels) {
+                    removeWatermarkInBands(reader, outputPath, fileExtension, threshold, tolerance);
+                    return fileId + "_nowatermark." + fileExtension;
+                }
+            }
+
             // Process the image to remove watermark
             BufferedImage originalImage = ImageIO.read(inputPath.toFile());
             
@@ -93,42 +118,58 @@ public class WatermarkRemovalService {
             
             // Create a renderer for the original document
             PDFRenderer pdfRenderer = new PDFRenderer(document);
-            
-            // Process each page
-            for (int pageIndex = 0; pageIndex < document.getNumberOfPages(); pageIndex++) {
-                // Render the page to an image
-                BufferedImage pageImage = pdfRenderer.renderImageWithDPI(
-                    pageIndex, 300, ImageType.RGB);
+
+            // Finished pages are checkpointed, so a retry after a restart only processes what is missing
+            try (PageCheckpoint checkpoint = pageCheckpointStore.open("watermark-pdf", inputPath,
+                    "threshold=" + threshold + ",tolerance=" + tolerance, document.getNumberOfPages())) {
+                // Process each page
+                for (int pageIndex = 0; pageIndex < document.getNumberOfPages(); pageIndex++) {
+                    // Create a new page with the same dimensions
+                    PDPage originalPage = document.getPage(pageIndex);
+                    PDRectangle mediaBox = originalPage.getMediaBox();
+                    PDPage newPage = new PDPage(new PDRectangle(mediaBox.getWidth(), mediaBox.getHeight()));
+                    processedDocument.addPage(newPage);
+
+                    PDImageXObject pdImage;
+                    byte[] savedJpeg = checkpoint != null ? checkpoint.load(pageIndex) : null;
+                    if (savedJpeg != null) {
+                        pdImage = JPEGFactory.createFromByteArray(processedDocument, savedJpeg);
+                    } else {
+                        // Render the page to an image
+                        BufferedImage pageImage = pdfRenderer.renderImageWithDPI(
+                            pageIndex, 300, ImageType.RGB);
+
+                        // Process the image to remove watermark
+                        BufferedImage processedImage;
+                        if (threshold > 150) {
+                            // For lighter watermarks, use color filtering approach
+                            processedImage = removeWatermarkByColorFiltering(pageImage, threshold, tolerance);
+                        } else {
+                            // For darker watermarks, use edge detection and reconstruction
+                            processedImage = removeWatermarkByEdgeReconstruction(pageImage, threshold, tolerance);
+                        }
+
+                        // Convert the processed image back to PDF
+                        pdImage = JPEGFactory.createFromImage(
+                            processedDocument, processedImage, 0.9f);
+                        if (checkpoint != null) {
+                            checkpoint.save(pageIndex, PDFCompressorService.rawImageData(pdImage));
+                        }
+                    }
                 
-                // Process the image to remove watermark
-                BufferedImage processedImage;
-                if (threshold > 150) {
-                    // For lighter watermarks, use color filtering approach
-                    processedImage = removeWatermarkByColorFiltering(pageImage, threshold, tolerance);
-                } else {
-                    // For darker watermarks, use edge detection and reconstruction
-                    processedImage = removeWatermarkByEdgeReconstruction(pageImage, threshold, tolerance);
+                    // Draw the processed image on the new page
+                    PDPageContentStream contentStream = new PDPageContentStream(processedDocument, newPage);
+                    contentStream.drawImage(pdImage, 0, 0, mediaBox.getWidth(), mediaBox.getHeight());
+                    contentStream.close();
                 }
-                
-                // Create a new page with the same dimensions
-                PDPage originalPage = document.getPage(pageIndex);
-                PDRectangle mediaBox = originalPage.getMediaBox();
-                PDPage newPage = new PDPage(new PDRectangle(mediaBox.getWidth(), mediaBox.getHeight()));
-                processedDocument.addPage(newPage);
-                
-                // Convert the processed image back to PDF
-                PDImageXObject pdImage = JPEGFactory.createFromImage(
-                    processedDocument, processedImage, 0.9f);
-                
-                // Draw the processed image on the new page
-                PDPageContentStream contentStream = new PDPageContentStream(processedDocument, newPage);
-                contentStream.drawImage(pdImage, 0, 0, mediaBox.getWidth(), mediaBox.getHeight());
-                contentStream.close();
-            }
-            
-            // Save the processed document
-            processedDocument.save(outputPath.toFile());
             
+                // Save the processed document
+                processedDocument.save(outputPath.toFile());
+                if (checkpoint != null) {
+                    checkpoint.complete();
+                }
+            }
+
             // Close both documents
             document.close();
             processedDocument.close();
@@ -142,23 +183,56 @@ public class WatermarkRemovalService {
         }
     }
 
+    // Streams the output to the writer band by band. The colour-filtering histogram is taken over
+    // the whole image first, so its result matches processing the image in one piece; the texture
+    // search of edge reconstruction only looks within the band and its margins
+    private void removeWatermarkInBands(ImageRegionReader reader, Path outputPath, String fileExtension,
+                                        int threshold, int tolerance) throws IOException {
+        BandedImageProcessor processor = new BandedImageProcessor(reader, tileBandPixels, BAND_HALO);
+        System.out.println("Removing watermark from " + reader.getWidth() + "x" + reader.getHeight()
+            + " image in " + processor.getBandCount() + " bands");
+
+        BufferedImage processedImage;
+        if (threshold > 150) {
+            long[] colorHistogram = new long[256];
+            processor.forEachBand(band -> addToBrightnessHistogram(band, colorHistogram));
+            boolean[] isPotentialWatermarkColor = findWatermarkColors(colorHistogram, threshold);
+            processedImage = processor.processedImage(
+                band -> removeWatermarkByColorFiltering(band, isPotentialWatermarkColor, tolerance));
+        } else {
+            processedImage = processor.processedImage(
+                band -> removeWatermarkByEdgeReconstruction(band, threshold, tolerance));
+        }
+
+        try {
+            if (!ImageIO.write(processedImage, fileExtension, outputPath.toFile())) {
+                throw new IOException("No writer found for format: " + fileExtension);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
     private BufferedImage removeWatermarkByColorFiltering(BufferedImage image, int threshold, int tolerance) {
-        int width = image.getWidth();
-        int height = image.getHeight();
-        
-        // Create a new image for the result
-        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-        
         // Step 1: Analyze the image to find dominant colors (potential watermark colors)
-        int[] colorHistogram = new int[256]; // Simplified grayscale histogram
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
+        long[] colorHistogram = new long[256]; // Simplified grayscale histogram
+        addToBrightnessHistogram(image, colorHistogram);
+        boolean[] isPotentialWatermarkColor = findWatermarkColors(colorHistogram, threshold);
+
+        return removeWatermarkByColorFiltering(image, isPotentialWatermarkColor, tolerance);
+    }
+
+    private void addToBrightnessHistogram(BufferedImage image, long[] colorHistogram) {
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
                 Color pixelColor = new Color(image.getRGB(x, y));
                 int brightness = (pixelColor.getRed() + pixelColor.getGreen() + pixelColor.getBlue()) / 3;
                 colorHistogram[brightness]++;
             }
         }
-        
+    }
+
+    private boolean[] findWatermarkColors(long[] colorHistogram, int threshold) {
         // Find peaks in the histogram (potential watermark colors)
         boolean[] isPotentialWatermarkColor = new boolean[256];
         for (int i = 1; i < 255; i++) {
@@ -170,6 +244,15 @@ public class WatermarkRemovalService {
                 }
             }
         }
+        return isPotentialWatermarkColor;
+    }
+
+    private BufferedImage removeWatermarkByColorFiltering(BufferedImage image, boolean[] isPotentialWatermarkColor, int tolerance) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        
+        // Create a new image for the result
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
         
         // Step 2: Create a mask for potential watermark areas
         BufferedImage watermarkMask = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
@@ -0,0 +1,230 @@
+package com.pdfcompressor.service;
+
+import jakarta.annotation.PreDestroy;
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.javacpp.IntPointer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+import static org.bytedeco.ffmpeg.global.avcodec.*;
+import static org.bytedeco.ffmpeg.global.avutil.*;
+
+// Writes WebP, which the ImageIO plugins can only read, through the libwebp encoder in the FFmpeg
+// natives that video compression already ships. Codec contexts come from a small bounded pool instead
+// of one per thread. libwebp reads its settings only when a context is opened, so each idle context
+// stays open for its size and settings and a request takes one that matches before reopening another;
+// the frame's pixel buffer is only held for the duration of an encode
+@Component
+public class WebPEncoder {
+
+    // Java ARGB ints in native byte order
+    private static final int PIXEL_FORMAT = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+        ? AV_PIX_FMT_BGRA : AV_PIX_FMT_ARGB;
+
+    private final int method;
+    private final int maxContexts;
+    // Contexts not in use, least recently used first
+    private final Deque<EncoderContext> idle = new ArrayDeque<>();
+    private int created;
+    private boolean shutDown;
+
+    public WebPEncoder(@Value("${image.webp.method:4}") int method,
+                       @Value("${image.webp.contexts:0}") int contexts) {
+        // libwebp's speed/size trade-off: 0 is fastest, 6 is smallest
+        this.method = Math.max(0, Math.min(6, method));
+        this.maxContexts = contexts > 0 ? contexts : Runtime.getRuntime().availableProcessors();
+    }
+
+    // quality is 0-1; lossless keeps every pixel, with alpha, and ignores it
+    public byte[] encode(BufferedImage image, float quality, boolean lossless) throws IOException {
+        // libwebp takes whole percent steps, so nearby qualities share an open context
+        int qualityPercent = lossless ? 0 : Math.round(Math.max(0, Math.min(100, quality * 100)));
+        EncoderContext context = acquire(image.getWidth(), image.getHeight(), qualityPercent, lossless);
+        try {
+            return context.encode(image, qualityPercent, lossless);
+        } finally {
+            release(context);
+        }
+    }
+
+    private EncoderContext acquire(int width, int height, int qualityPercent, boolean lossless) throws IOException {
+        synchronized (idle) {
+            while (true) {
+                if (shutDown) {
+                    throw new IOException("WebP encoder is shut down");
+                }
+                Iterator<EncoderContext> contexts = idle.descendingIterator();
+                while (contexts.hasNext()) {
+                    EncoderContext context = contexts.next();
+                    if (context.matches(width, height, qualityPercent, lossless)) {
+                        contexts.remove();
+                        return context;
+                    }
+                }
+                if (created < maxContexts) {
+                    created++;
+                    return new EncoderContext();
+                }
+                if (!idle.isEmpty()) {
+                    // Reopened with the new settings
+                    return idle.pollFirst();
+                }
+                try {
+                    idle.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a WebP encoder", e);
+                }
+            }
+        }
+    }
+
+    private void release(EncoderContext context) {
+        synchronized (idle) {
+            if (shutDown) {
+                context.close();
+            } else {
+                idle.addLast(context);
+            }
+            idle.notifyAll();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        synchronized (idle) {
+            // Contexts in use are closed when they are released
+            shutDown = true;
+            for (EncoderContext context : idle) {
+                context.close();
+            }
+            idle.clear();
+            idle.notifyAll();
+        }
+    }
+
+    // Used by one encode at a time, handed out by acquire
+    private final class EncoderContext {
+        private AVCodecContext codecContext;
+        private final AVFrame frame = av_frame_alloc();
+        private final AVPacket packet = av_packet_alloc();
+        private int width;
+        private int height;
+        private int qualityPercent;
+        private boolean lossless;
+
+        boolean matches(int width, int height, int qualityPercent, boolean lossless) {
+            return codecContext != null && width == this.width && height == this.height
+                && qualityPercent == this.qualityPercent && lossless == this.lossless;
+        }
+
+        byte[] encode(BufferedImage image, int qualityPercent, boolean lossless) throws IOException {
+            int width = image.getWidth();
+            int height = image.getHeight();
+            if (!matches(width, height, qualityPercent, lossless)) {
+                open(width, height, qualityPercent, lossless);
+            }
+
+            frame.format(PIXEL_FORMAT);
+            frame.width(width);
+            frame.height(height);
+            if (av_frame_get_buffer(frame, 0) < 0) {
+                throw new IOException("Could not allocate a WebP frame");
+            }
+            try {
+                IntPointer pixels = new IntPointer(frame.data(0));
+                int stride = frame.linesize(0) / 4;
+                int[] row = new int[width];
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                    pixels.position((long) y * stride).put(row, 0, width);
+                }
+
+                int result = avcodec_send_frame(codecContext, frame);
+                if (result < 0) {
+                    throw new IOException("WebP encoding failed: " + errorString(result));
+                }
+                result = avcodec_receive_packet(codecContext, packet);
+                if (result < 0) {
+                    throw new IOException("WebP encoding failed: " + errorString(result));
+                }
+                try {
+                    byte[] data = new byte[packet.size()];
+                    packet.data().get(data);
+                    return data;
+                } finally {
+                    av_packet_unref(packet);
+                }
+            } finally {
+                // An idle context holds no pixel buffer
+                av_frame_unref(frame);
+            }
+        }
+
+        private void open(int width, int height, int qualityPercent, boolean lossless) throws IOException {
+            if (codecContext != null) {
+                avcodec_free_context(codecContext);
+                codecContext = null;
+            }
+            AVCodec codec = avcodec_find_encoder_by_name("libwebp");
+            if (codec == null || codec.isNull()) {
+                throw new IOException("The FFmpeg build has no libwebp encoder");
+            }
+
+            AVCodecContext context = avcodec_alloc_context3(codec);
+            context.width(width);
+            context.height(height);
+            context.pix_fmt(PIXEL_FORMAT);
+            context.time_base(new AVRational().num(1).den(25));
+            context.compression_level(method);
+            // libwebp warns on every open that it converts RGB to YUV itself, which is what is wanted here;
+            // shifting this context's messages down a level keeps errors visible without the noise
+            context.log_level_offset(AV_LOG_VERBOSE - AV_LOG_WARNING);
+
+            AVDictionary options = new AVDictionary(null);
+            av_dict_set(options, "lossless", lossless ? "1" : "0", 0);
+            if (!lossless) {
+                av_dict_set(options, "quality", Integer.toString(qualityPercent), 0);
+            }
+            int result = avcodec_open2(context, codec, options);
+            av_dict_free(options);
+            if (result < 0) {
+                avcodec_free_context(context);
+                throw new IOException("Could not open the WebP encoder: " + errorString(result));
+            }
+
+            codecContext = context;
+            this.width = width;
+            this.height = height;
+            this.qualityPercent = qualityPercent;
+            this.lossless = lossless;
+        }
+
+        void close() {
+            if (codecContext != null) {
+                avcodec_free_context(codecContext);
+                codecContext = null;
+            }
+            av_frame_free(frame);
+            av_packet_free(packet);
+        }
+    }
+
+    private static String errorString(int error) {
+        byte[] buffer = new byte[AV_ERROR_MAX_STRING_SIZE];
+        av_strerror(error, buffer, buffer.length);
+        return new String(buffer).trim();
+    }
+}
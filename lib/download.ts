@@ -0,0 +1,46 @@
+import { type NextRequest, NextResponse } from "next/server"
+
+// Headers the Spring Boot download endpoints use for range requests and conditional GET
+const FORWARDED_REQUEST_HEADERS = ["range", "if-range", "if-none-match", "if-modified-since"]
+const FORWARDED_RESPONSE_HEADERS = ["content-length", "content-range", "accept-ranges", "etag", "last-modified"]
+
+// Proxies a download from Spring Boot, passing range/validator headers through and
+// streaming the body instead of buffering the whole file
+export async function proxyDownload(request: NextRequest, url: string, fileName: string, contentType?: string) {
+  const requestHeaders = new Headers()
+  for (const name of FORWARDED_REQUEST_HEADERS) {
+    const value = request.headers.get(name)
+    if (value) {
+      requestHeaders.set(name, value)
+    }
+  }
+
+  const response = await fetch(url, { headers: requestHeaders })
+
+  if (!response.ok && response.status !== 304 && response.status !== 416) {
+    return NextResponse.json({ error: "File not found" }, { status: response.status })
+  }
+
+  const headers = new Headers()
+  for (const name of FORWARDED_RESPONSE_HEADERS) {
+    const value = response.headers.get(name)
+    if (value) {
+      headers.set(name, value)
+    }
+  }
+  headers.set("Content-Disposition", `attachment; filename=${fileName}`)
+
+  // Multipart range responses carry their own boundary in the content type
+  const upstreamType = response.headers.get("content-type")
+  if (upstreamType && upstreamType.startsWith("multipart/byteranges")) {
+    headers.set("Content-Type", upstreamType)
+  } else {
+    headers.set("Content-Type", contentType || upstreamType || "application/octet-stream")
+  }
+
+  const hasBody = response.status !== 304 && response.status !== 416
+  return new NextResponse(hasBody ? response.body : null, {
+    status: response.status,
+    headers,
+  })
+}